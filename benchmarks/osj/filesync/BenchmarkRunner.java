@@ -0,0 +1,80 @@
+package osj.filesync;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A small timing harness for the benchmarks, so that they build and run
+ * with nothing but the library's own classpath. Each benchmark is run a
+ * number of times to warm up the JVM, then timed over a number of
+ * measured runs, and the fastest, mean and slowest runs are printed.
+ *
+ * Work done before each run, such as changing the tree to sync, is not
+ * timed.
+ *
+ * @author ajmas
+ *
+ */
+public class BenchmarkRunner {
+
+    /**
+     * The number of warm up and measured runs, which can be set with the
+     * system properties 'bench.warmups' and 'bench.iterations'.
+     */
+    static final int WARMUPS = Integer.getInteger("bench.warmups", 2);
+    static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private BenchmarkRunner() {
+    }
+
+    /**
+     * Times the task, printing the duration of one run in milliseconds.
+     *
+     * @param before run ahead of each run of the task, untimed, or null
+     */
+    public static void time(String name, Task before, Task task) throws Exception {
+        long[] nanos = new long[ITERATIONS];
+        for (int i = -WARMUPS; i < ITERATIONS; i++) {
+            if (before != null) {
+                before.run();
+            }
+            long start = System.nanoTime();
+            task.run();
+            if (i >= 0) {
+                nanos[i] = System.nanoTime() - start;
+            }
+        }
+        print(name, nanos, 1000000.0, "ms");
+    }
+
+    /**
+     * Times the task over a number of operations per run, printing the
+     * duration of one operation in nanoseconds.
+     */
+    public static void timePerOperation(String name, int operations, Task task) throws Exception {
+        long[] nanos = new long[ITERATIONS];
+        for (int i = -WARMUPS; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            if (i >= 0) {
+                nanos[i] = (System.nanoTime() - start) / operations;
+            }
+        }
+        print(name, nanos, 1.0, "ns/op");
+    }
+
+    private static void print(String name, long[] nanos, double scale, String unit) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long value : sorted) {
+            total += value;
+        }
+        System.out.println(String.format(Locale.ROOT, "%-50s min %10.1f  mean %10.1f  max %10.1f %s", name,
+                sorted[0] / scale, total / (double) sorted.length / scale, sorted[sorted.length - 1] / scale, unit));
+    }
+}
@@ -0,0 +1,66 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Time of a local sync which has to delete a whole tree of extraneous
+ * files from the destination.
+ *
+ * The shapes to run are given as arguments, all but
+ * {@link SyntheticTree.Shape#FEW_HUGE} by default.
+ *
+ * @author ajmas
+ *
+ */
+public class DeletionBenchmark {
+
+    private final SyntheticTree.Shape shape;
+    private final Path workFolder;
+    private final Path destination;
+    private final FileSyncConfiguration configuration;
+
+    DeletionBenchmark(SyntheticTree.Shape shape) throws Exception {
+        this.shape = shape;
+        workFolder = Files.createTempDirectory("bonsai-bench");
+        Path source = workFolder.resolve("source");
+        destination = workFolder.resolve("destination");
+        Files.createDirectories(source);
+        Files.write(source.resolve("kept.txt"), new byte[] { 1 });
+
+        configuration = new FileSyncConfiguration();
+        configuration.setLocalConfiguration(new EndpointConfiguration(source.toUri()));
+        configuration.setRemoteConfiguration(new EndpointConfiguration(destination.toUri()));
+    }
+
+    void addExtraneousTree() throws IOException {
+        SyntheticTree.generate(destination.resolve("extraneous"), shape, 2);
+    }
+
+    void deleteExtraneous() throws FileSyncException {
+        new SimpleLocalFileSynchroniser().syncFiles(configuration, FileSynchroniser.SyncDirection.TO_REMOTE,
+                null, false, null);
+    }
+
+    public static void main(String[] args) throws Exception {
+        SyntheticTree.Shape[] shapes = args.length > 0 ? SyntheticTree.shapes(args) : new SyntheticTree.Shape[] {
+                SyntheticTree.Shape.DEEP_NARROW, SyntheticTree.Shape.WIDE_FLAT, SyntheticTree.Shape.MANY_SMALL };
+        for (SyntheticTree.Shape shape : shapes) {
+            final DeletionBenchmark benchmark = new DeletionBenchmark(shape);
+            try {
+                BenchmarkRunner.time("deleteExtraneous shape=" + shape, new BenchmarkRunner.Task() {
+                    public void run() throws IOException {
+                        benchmark.addExtraneousTree();
+                    }
+                }, new BenchmarkRunner.Task() {
+                    public void run() throws FileSyncException {
+                        benchmark.deleteExtraneous();
+                    }
+                });
+            } finally {
+                SyntheticTree.delete(benchmark.workFolder);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Time of a local sync of an up to date tree, and of a tree in which 1% of
+ * the files changed since the last sync, with and without an index file.
+ *
+ * The shapes to run are given as arguments, all of them by default.
+ *
+ * @author ajmas
+ *
+ */
+public class LocalSyncBenchmark {
+
+    private final Path workFolder;
+    private final Path source;
+    private final FileSyncConfiguration configuration;
+
+    /**
+     * Creates a source tree and a destination which was synced with it.
+     */
+    LocalSyncBenchmark(SyntheticTree.Shape shape, boolean indexed) throws Exception {
+        workFolder = Files.createTempDirectory("bonsai-bench");
+        source = workFolder.resolve("source");
+        Path destination = workFolder.resolve("destination");
+        SyntheticTree.generate(source, shape, 1);
+
+        configuration = new FileSyncConfiguration();
+        configuration.setLocalConfiguration(new EndpointConfiguration(source.toUri()));
+        configuration.setRemoteConfiguration(new EndpointConfiguration(destination.toUri()));
+        if (indexed) {
+            configuration.setIndexFile(workFolder.resolve("index.bin").toFile());
+        }
+        sync();
+    }
+
+    void sync() throws FileSyncException {
+        new SimpleLocalFileSynchroniser().syncFiles(configuration, FileSynchroniser.SyncDirection.TO_REMOTE,
+                null, false, null);
+    }
+
+    void delete() throws IOException {
+        SyntheticTree.delete(workFolder);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (SyntheticTree.Shape shape : SyntheticTree.shapes(args)) {
+            for (boolean indexed : new boolean[] { false, true }) {
+                final LocalSyncBenchmark benchmark = new LocalSyncBenchmark(shape, indexed);
+                try {
+                    BenchmarkRunner.Task sync = new BenchmarkRunner.Task() {
+                        public void run() throws FileSyncException {
+                            benchmark.sync();
+                        }
+                    };
+                    String parameters = " shape=" + shape + " indexed=" + indexed;
+                    BenchmarkRunner.time("noChange" + parameters, null, sync);
+                    // INFO changes 1% of the source files before each sync
+                    BenchmarkRunner.time("onePercentChanged" + parameters, new BenchmarkRunner.Task() {
+                        private long seed;
+
+                        public void run() throws IOException {
+                            SyntheticTree.modify(benchmark.source, 0.01, seed++);
+                        }
+                    }, sync);
+                } finally {
+                    benchmark.delete();
+                }
+            }
+        }
+    }
+}
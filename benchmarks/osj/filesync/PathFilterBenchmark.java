@@ -0,0 +1,78 @@
+package osj.filesync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cost of filtering one path, for the prefix scan of
+ * {@link FileSyncConfiguration.FSPathFilter} and for
+ * {@link CompiledPathFilter}, as the number of exclude rules grows.
+ *
+ * @author ajmas
+ *
+ */
+public class PathFilterBenchmark {
+
+    private static final int PATH_COUNT = 65536;
+    private static final int[] RULE_COUNTS = { 10, 1000, 5000 };
+
+    // INFO read after each run, so that the JIT cannot drop the calls
+    static volatile int accepted;
+
+    private final String[] paths;
+    private final PathFilter prefixFilter;
+    private final PathFilter compiledFilter;
+
+    PathFilterBenchmark(int ruleCount) {
+        Random random = new Random(42);
+        List<String> excludes = new ArrayList<String>();
+        for (int i = 0; i < ruleCount; i++) {
+            excludes.add(folder(random.nextInt(1000), random.nextInt(100)));
+        }
+        paths = new String[PATH_COUNT];
+        for (int i = 0; i < PATH_COUNT; i++) {
+            paths[i] = folder(random.nextInt(1000), random.nextInt(100)) + "/src/file" + i + ".java";
+        }
+
+        FileSyncConfiguration configuration = new FileSyncConfiguration();
+        configuration.setPathsToExclude(excludes);
+        prefixFilter = configuration.new FSPathFilter();
+        compiledFilter = configuration.getPathFilter();
+    }
+
+    void filter(PathFilter filter) {
+        int count = 0;
+        for (String path : paths) {
+            if (filter.accept(path)) {
+                count++;
+            }
+        }
+        accepted = count;
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int ruleCount : RULE_COUNTS) {
+            final PathFilterBenchmark benchmark = new PathFilterBenchmark(ruleCount);
+            BenchmarkRunner.timePerOperation("prefixScan rules=" + ruleCount, PATH_COUNT,
+                    new BenchmarkRunner.Task() {
+                        public void run() {
+                            benchmark.filter(benchmark.prefixFilter);
+                        }
+                    });
+            BenchmarkRunner.timePerOperation("compiled rules=" + ruleCount, PATH_COUNT, new BenchmarkRunner.Task() {
+                public void run() {
+                    benchmark.filter(benchmark.compiledFilter);
+                }
+            });
+        }
+    }
+
+    /**
+     * Fixed width names, as the prefix scan also matches 'module1' against
+     * 'module10', unlike the compiled filter.
+     */
+    private static String folder(int project, int module) {
+        return String.format("project%03d/module%02d", project, module);
+    }
+}
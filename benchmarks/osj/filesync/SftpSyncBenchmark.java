@@ -0,0 +1,89 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Time of an upload with {@link SshFileSynchroniser} to an SFTP server,
+ * for a full upload and for a sync with no changes, with one and several
+ * SFTP channels.
+ *
+ * The server is given with the system properties 'bench.sftpUrl', such as
+ * ssh://localhost:2222/tmp/bench, the folder uploaded to, whose content
+ * is replaced, and 'bench.sftpUser' and 'bench.sftpPassword'. The shapes to run are given as arguments, all but
+ * {@link SyntheticTree.Shape#MANY_SMALL} by default.
+ *
+ * @author ajmas
+ *
+ */
+public class SftpSyncBenchmark {
+
+    private static final int[] CHANNEL_COUNTS = { 1, 4 };
+
+    private final Path workFolder;
+    private final FileSyncConfiguration configuration;
+
+    SftpSyncBenchmark(SyntheticTree.Shape shape, String url, int channels) throws Exception {
+        workFolder = Files.createTempDirectory("bonsai-bench");
+        Path source = workFolder.resolve("source");
+        SyntheticTree.generate(source, shape, 1);
+
+        configuration = new FileSyncConfiguration();
+        configuration.setLocalConfiguration(new EndpointConfiguration(source.toUri()));
+        EndpointConfiguration remote = new EndpointConfiguration(url);
+        remote.getConfigurationProperties().setProperty(SshSessionPool.USERNAME_PROPERTY,
+                System.getProperty("bench.sftpUser", System.getProperty("user.name")));
+        if (System.getProperty("bench.sftpPassword") != null) {
+            remote.getConfigurationProperties().setProperty(SshSessionPool.PASSWORD_PROPERTY,
+                    System.getProperty("bench.sftpPassword"));
+        }
+        remote.getConfigurationProperties().setProperty(SftpChannelPool.CHANNELS_PROPERTY, String.valueOf(channels));
+        configuration.setRemoteConfiguration(remote);
+        sync(false);
+    }
+
+    void sync(boolean force) throws FileSyncException, IOException {
+        new SshFileSynchroniser().syncFiles(configuration, FileSynchroniser.SyncDirection.TO_REMOTE,
+                null, force, null);
+    }
+
+    void delete() throws IOException {
+        SyntheticTree.delete(workFolder);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = System.getProperty("bench.sftpUrl");
+        if (url == null) {
+            System.err.println("Set bench.sftpUrl to the SFTP folder to upload to, such as "
+                    + "-Dbench.sftpUrl=ssh://localhost:2222/tmp/bench");
+            System.exit(1);
+        }
+        SyntheticTree.Shape[] shapes = args.length > 0 ? SyntheticTree.shapes(args) : new SyntheticTree.Shape[] {
+                SyntheticTree.Shape.DEEP_NARROW, SyntheticTree.Shape.WIDE_FLAT, SyntheticTree.Shape.FEW_HUGE };
+        try {
+            for (SyntheticTree.Shape shape : shapes) {
+                for (int channels : CHANNEL_COUNTS) {
+                    final SftpSyncBenchmark benchmark = new SftpSyncBenchmark(shape, url, channels);
+                    try {
+                        String parameters = " shape=" + shape + " channels=" + channels;
+                        BenchmarkRunner.time("fullUpload" + parameters, null, new BenchmarkRunner.Task() {
+                            public void run() throws FileSyncException, IOException {
+                                benchmark.sync(true);
+                            }
+                        });
+                        BenchmarkRunner.time("noChange" + parameters, null, new BenchmarkRunner.Task() {
+                            public void run() throws FileSyncException, IOException {
+                                benchmark.sync(false);
+                            }
+                        });
+                    } finally {
+                        benchmark.delete();
+                    }
+                }
+            }
+        } finally {
+            SshSessionPool.getDefault().closeIdleSessions();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates file trees of a known shape for the benchmarks. The content is
+ * random but seeded, so the same shape and seed always give the same tree.
+ *
+ * @author ajmas
+ *
+ */
+public class SyntheticTree {
+
+    /**
+     * The size of the files of {@link Shape#FEW_HUGE}, which can be set with
+     * the system property 'bench.hugeFileSize', in bytes.
+     */
+    static final long HUGE_FILE_SIZE = Long.getLong("bench.hugeFileSize", 256L * 1024 * 1024);
+
+    public enum Shape {
+        /** 2,047 folders, ten levels deep, with 4 files of 2 KiB each */
+        DEEP_NARROW(10, 2, 4, 2048),
+        /** 20,000 files of 1 KiB in a single folder */
+        WIDE_FLAT(0, 0, 20000, 1024),
+        /** 8,421 folders, three levels of 20, with 12 files of 256 bytes each */
+        MANY_SMALL(3, 20, 12, 256),
+        /** 4 large files in a single folder */
+        FEW_HUGE(0, 0, 4, HUGE_FILE_SIZE);
+
+        final int depth;
+        final int foldersPerFolder;
+        final int filesPerFolder;
+        final long fileSize;
+
+        Shape(int depth, int foldersPerFolder, int filesPerFolder, long fileSize) {
+            this.depth = depth;
+            this.foldersPerFolder = foldersPerFolder;
+            this.filesPerFolder = filesPerFolder;
+            this.fileSize = fileSize;
+        }
+    }
+
+    private SyntheticTree() {
+    }
+
+    /**
+     * @param names the names of the shapes, as given on the command line
+     * @return the shapes named, or all of them if none is
+     */
+    public static Shape[] shapes(String[] names) {
+        if (names.length == 0) {
+            return Shape.values();
+        }
+        Shape[] shapes = new Shape[names.length];
+        for (int i = 0; i < names.length; i++) {
+            shapes[i] = Shape.valueOf(names[i].toUpperCase(Locale.ROOT));
+        }
+        return shapes;
+    }
+
+    /**
+     * Creates the tree under the root folder, which must not exist.
+     *
+     * @return the number of files created
+     */
+    public static int generate(Path root, Shape shape, long seed) throws IOException {
+        return generate(root, shape, shape.depth, new Random(seed));
+    }
+
+    private static int generate(Path folder, Shape shape, int remainingDepth, Random random) throws IOException {
+        Files.createDirectories(folder);
+        int fileCount = 0;
+        byte[] buffer = new byte[(int) Math.min(shape.fileSize, 1024 * 1024)];
+        for (int i = 0; i < shape.filesPerFolder; i++) {
+            try (OutputStream out = Files.newOutputStream(folder.resolve("file" + i + ".dat"))) {
+                for (long written = 0; written < shape.fileSize; written += buffer.length) {
+                    random.nextBytes(buffer);
+                    out.write(buffer, 0, (int) Math.min(buffer.length, shape.fileSize - written));
+                }
+            }
+            fileCount++;
+        }
+        if (remainingDepth > 0) {
+            for (int i = 0; i < shape.foldersPerFolder; i++) {
+                fileCount += generate(folder.resolve("folder" + i), shape, remainingDepth - 1, random);
+            }
+        }
+        return fileCount;
+    }
+
+    /**
+     * Changes one byte in a fraction of the files, chosen at random, and
+     * moves their modification time forward.
+     *
+     * @return the number of files changed
+     */
+    public static int modify(Path root, double fraction, long seed) throws IOException {
+        Random random = new Random(seed);
+        List<Path> files = listFiles(root);
+        int count = (int) Math.max(1, Math.round(files.size() * fraction));
+        for (int i = 0; i < count; i++) {
+            Path file = files.remove(random.nextInt(files.size()));
+            try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw")) {
+                if (out.length() > 0) {
+                    long position = (long) (random.nextDouble() * out.length());
+                    out.seek(position);
+                    int value = out.read();
+                    out.seek(position);
+                    out.write(value + 1);
+                }
+            }
+            FileTime lastModified = Files.getLastModifiedTime(file);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified.toMillis() + 2000));
+        }
+        return count;
+    }
+
+    public static List<Path> listFiles(Path root) throws IOException {
+        final List<Path> files = new ArrayList<Path>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Deletes the folder and everything under it, if it exists.
+     */
+    public static void delete(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
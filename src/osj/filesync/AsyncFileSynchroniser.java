@@ -0,0 +1,103 @@
+package osj.filesync;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import osj.filesync.FileSynchroniser.SyncDirection;
+
+/**
+ * Runs the syncs of a {@link FileSynchroniser} in the background, on an
+ * executor given by the caller, and returns a {@link SyncHandle} to wait
+ * for, cancel or follow each of them.
+ *
+ * The syncs do blocking file and network I/O, so each one holds a thread
+ * of the executor while it runs. To run many syncs at once without
+ * dedicating a thread to each, give an executor whose threads are cheap
+ * to block, such as one creating a virtual thread per task where the
+ * runtime has them; otherwise the size of the executor caps the number
+ * of concurrent syncs. The default executor creates daemon threads as
+ * needed.
+ *
+ * Each sync runs on a copy of the configuration, so that the progress of
+ * concurrent syncs sharing a configuration is followed separately. The
+ * metrics of the configuration still receive the measurements of all of
+ * them.
+ *
+ * @author ajmas
+ *
+ */
+public class AsyncFileSynchroniser {
+
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "filesync-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final FileSynchroniser synchroniser;
+    private final Executor executor;
+    private long progressInterval = 1000;
+
+    public AsyncFileSynchroniser(FileSynchroniser synchroniser) {
+        this(synchroniser, DEFAULT_EXECUTOR);
+    }
+
+    public AsyncFileSynchroniser(FileSynchroniser synchroniser, Executor executor) {
+        this.synchroniser = synchroniser;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the least time between two progress updates, in milliseconds
+     */
+    public long getProgressInterval() {
+        return progressInterval;
+    }
+
+    public void setProgressInterval(long progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * Starts a sync, as {@link FileSynchroniser#syncFiles} would run it.
+     */
+    public SyncHandle syncFiles(FileSyncConfiguration configuration, SyncDirection syncDirection,
+            List<String> relativePaths, boolean force, PathFilter pathFilter) {
+        return syncFiles(configuration, syncDirection, relativePaths, force, pathFilter, null);
+    }
+
+    /**
+     * Starts a sync, telling the listener of its progress from the start.
+     *
+     * @param listener the listener, or null
+     */
+    public SyncHandle syncFiles(FileSyncConfiguration configuration, final SyncDirection syncDirection,
+            final List<String> relativePaths, final boolean force, final PathFilter pathFilter,
+            SyncProgressListener listener) {
+
+        final FileSyncConfiguration syncConfiguration = configuration.copy();
+        final ProgressTracker tracker = new ProgressTracker(configuration.getSyncMetrics(), progressInterval);
+        syncConfiguration.setSyncMetrics(tracker);
+        if (listener != null) {
+            tracker.addProgressListener(listener);
+        }
+
+        SyncHandle handle = new SyncHandle(new Callable<SyncReport>() {
+            public SyncReport call() throws Exception {
+                synchroniser.syncFiles(syncConfiguration, syncDirection, relativePaths, force, pathFilter);
+                return tracker.getReport();
+            }
+        }, tracker);
+        executor.execute(handle.getTask());
+        return handle;
+    }
+}
@@ -0,0 +1,36 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A transfer which can also send many files in one go, such as small files
+ * packed into a single archive, saving the round trips of sending each
+ * one on its own. The transfer workers of the {@link SyncPipeline} hand it
+ * the files it accepts in batches, of as many of them as are queued, up
+ * to its limits. Other callers send the files one at a time.
+ *
+ * @author ajmas
+ *
+ */
+public interface BatchTransfer extends FileTransfer {
+
+    /**
+     * @return whether the file can be sent as part of a batch
+     */
+    public boolean accepts(SyncAction action);
+
+    public int getMaxBatchFiles();
+
+    public long getMaxBatchBytes();
+
+    /**
+     * Sends the files, all accepted by this transfer.
+     *
+     * @return the failure of each file which could not be sent, keyed by
+     *         relative path; the others were sent
+     * @throws IOException if the batch as a whole failed
+     */
+    public Map<String, IOException> transfer(List<SyncAction> batch) throws IOException;
+}
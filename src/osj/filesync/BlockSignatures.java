@@ -0,0 +1,159 @@
+package osj.filesync;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The weak and strong checksums of each fixed size block of a file, which
+ * is all the sending side needs to know about the receiver's copy of the
+ * file to compute a delta. The last block may be shorter than the others.
+ *
+ * @author ajmas
+ *
+ */
+public class BlockSignatures {
+
+    static final int MIN_BLOCK_SIZE = 2048;
+    static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+    private final int blockSize;
+    private final long fileLength;
+    private final int[] weakSums;
+    private final byte[][] strongSums;
+
+    private Map<Integer, int[]> blocksByWeakSum;
+
+    BlockSignatures(int blockSize, long fileLength, int[] weakSums, byte[][] strongSums) {
+        this.blockSize = blockSize;
+        this.fileLength = fileLength;
+        this.weakSums = weakSums;
+        this.strongSums = strongSums;
+    }
+
+    /**
+     * @return a block size of about the square root of the file length,
+     *         which balances the size of the signatures against the size
+     *         of the literal data
+     */
+    public static int chooseBlockSize(long fileLength) {
+        long blockSize = (long) Math.sqrt(fileLength) & ~7L;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+
+    public static BlockSignatures compute(InputStream in, int blockSize) throws IOException {
+        long fileLength = 0;
+        int blockCount = 0;
+        int[] weakSums = new int[16];
+        byte[][] strongSums = new byte[16][];
+
+        MessageDigest digest = newDigest();
+        byte[] block = new byte[blockSize];
+        int length = 0;
+        while ((length = readBlock(in, block)) > 0) {
+            if (blockCount == weakSums.length) {
+                weakSums = Arrays.copyOf(weakSums, blockCount * 2);
+                strongSums = Arrays.copyOf(strongSums, blockCount * 2);
+            }
+            weakSums[blockCount] = RollingChecksum.of(block, 0, length);
+            digest.update(block, 0, length);
+            strongSums[blockCount] = digest.digest();
+            blockCount++;
+            fileLength += length;
+        }
+        return new BlockSignatures(blockSize, fileLength,
+                Arrays.copyOf(weakSums, blockCount), Arrays.copyOf(strongSums, blockCount));
+    }
+
+    public static BlockSignatures read(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        int blockSize = dataIn.readInt();
+        long fileLength = dataIn.readLong();
+        int blockCount = dataIn.readInt();
+        int[] weakSums = new int[blockCount];
+        byte[][] strongSums = new byte[blockCount][];
+        for (int i = 0; i < blockCount; i++) {
+            weakSums[i] = dataIn.readInt();
+            strongSums[i] = new byte[dataIn.readUnsignedByte()];
+            dataIn.readFully(strongSums[i]);
+        }
+        return new BlockSignatures(blockSize, fileLength, weakSums, strongSums);
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(blockSize);
+        dataOut.writeLong(fileLength);
+        dataOut.writeInt(weakSums.length);
+        for (int i = 0; i < weakSums.length; i++) {
+            dataOut.writeInt(weakSums[i]);
+            dataOut.writeByte(strongSums[i].length);
+            dataOut.write(strongSums[i]);
+        }
+        dataOut.flush();
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    public int getBlockCount() {
+        return weakSums.length;
+    }
+
+    public byte[] getStrongSum(int block) {
+        return strongSums[block];
+    }
+
+    /**
+     * @return the blocks with the given weak checksum, or null if there are none
+     */
+    int[] findBlocks(int weakSum) {
+        if (blocksByWeakSum == null) {
+            Map<Integer, int[]> blocks = new HashMap<Integer, int[]>(weakSums.length * 2);
+            for (int i = 0; i < weakSums.length; i++) {
+                int[] existing = blocks.get(weakSums[i]);
+                if (existing == null) {
+                    blocks.put(weakSums[i], new int[] { i });
+                } else {
+                    int[] extended = Arrays.copyOf(existing, existing.length + 1);
+                    extended[existing.length] = i;
+                    blocks.put(weakSums[i], extended);
+                }
+            }
+            blocksByWeakSum = blocks;
+        }
+        return blocksByWeakSum.get(weakSum);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("MD5 is not available", ex);
+        }
+    }
+
+    /**
+     * Reads up to a full block, only returning less at the end of the stream.
+     */
+    static int readBlock(InputStream in, byte[] block) throws IOException {
+        int length = 0;
+        int count = 0;
+        while (length < block.length && (count = in.read(block, length, block.length - length)) > -1) {
+            length += count;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,43 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which files present on both sides of a sync need copying.
+ * Files missing from the destination are always copied, and a forced
+ * sync copies everything, so a detector is only asked about the others.
+ *
+ * @author ajmas
+ *
+ */
+public interface ChangeDetector {
+
+    enum Mode {
+        /** copy when the source is newer than the destination */
+        MTIME,
+        /** copy when the size or the modification time differs */
+        SIZE_AND_MTIME,
+        /** copy when the size or the content differs */
+        CONTENT_HASH
+    }
+
+    /**
+     * Called once per folder, with all its files, so that a detector can
+     * work on the files of a folder in parallel.
+     *
+     * @param sourceFiles the source files which have a destination counterpart
+     * @param destinationFiles the destination children of the folder, keyed by name
+     * @return the names of the source files which need copying
+     */
+    public Set<String> findChanged(Collection<FileEntry> sourceFiles, Map<String, FileEntry> destinationFiles)
+            throws IOException;
+
+    /**
+     * @return the content hash of the source file, if it is known, or null
+     */
+    public byte[] getSourceHash(FileEntry sourceEntry);
+
+}
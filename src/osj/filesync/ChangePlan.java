@@ -0,0 +1,291 @@
+package osj.filesync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The changes a sync would make to the destination, worked out by
+ * {@link SyncPipeline#plan} without touching it, and applied later by a
+ * {@link ChangePlanExecutor}, possibly on another machine or split across
+ * several processes, see {@link #partition(int)}.
+ *
+ * The changes are kept in the order they are applied in: the deletions,
+ * deepest first, then the folders to create, parents first, then the
+ * files to copy.
+ *
+ * A plan is written in a compact binary format: after the header, each
+ * change is written as its type, its path as the number of leading
+ * characters it shares with the previous path followed by the rest, and
+ * the size and modification time of the source and destination entries.
+ *
+ * @author ajmas
+ *
+ */
+public class ChangePlan {
+
+    private static final int MAGIC = 0x42465350; // "BFSP"
+    private static final short VERSION = 1;
+
+    private static final int HAS_SOURCE = 1;
+    private static final int HAS_DESTINATION = 2;
+    private static final int DIRECTORY = 4;
+
+    private final String sourceId;
+    private final String destinationId;
+
+    private final List<SyncAction> deletions = new ArrayList<SyncAction>();
+    private final List<SyncAction> directories = new ArrayList<SyncAction>();
+    private final List<SyncAction> copies = new ArrayList<SyncAction>();
+
+    /**
+     * @param sourceId identifies the source, for the executor and the reader
+     * @param destinationId identifies the destination
+     */
+    public ChangePlan(String sourceId, String destinationId) {
+        this.sourceId = sourceId;
+        this.destinationId = destinationId;
+    }
+
+    public String getSourceId() {
+        return sourceId;
+    }
+
+    public String getDestinationId() {
+        return destinationId;
+    }
+
+    /**
+     * Adds a change, which may be called by several threads.
+     */
+    public synchronized void add(SyncAction action) {
+        switch (action.getType()) {
+        case DELETE:
+            deletions.add(action);
+            break;
+        case CREATE_DIRECTORY:
+            directories.add(action);
+            break;
+        default:
+            copies.add(action);
+        }
+    }
+
+    /**
+     * Puts the changes in the order they are to be applied in, once they
+     * have all been added.
+     */
+    synchronized void sort() {
+        Comparator<SyncAction> byPath = new Comparator<SyncAction>() {
+            public int compare(SyncAction action1, SyncAction action2) {
+                return action1.getRelativePath().compareTo(action2.getRelativePath());
+            }
+        };
+        // INFO a parent sorts before its children, so reversing puts them first
+        Collections.sort(deletions, Collections.reverseOrder(byPath));
+        Collections.sort(directories, byPath);
+        Collections.sort(copies, byPath);
+    }
+
+    /**
+     * @return the entries to delete from the destination, deepest first
+     */
+    public synchronized List<SyncAction> getDeletions() {
+        return new ArrayList<SyncAction>(deletions);
+    }
+
+    /**
+     * @return the folders to create on the destination, parents first
+     */
+    public synchronized List<SyncAction> getDirectories() {
+        return new ArrayList<SyncAction>(directories);
+    }
+
+    /**
+     * @return the files to copy, new or replacing a destination file
+     */
+    public synchronized List<SyncAction> getCopies() {
+        return new ArrayList<SyncAction>(copies);
+    }
+
+    /**
+     * @return the number of files which are not yet on the destination
+     */
+    public synchronized int getCreateCount() {
+        int count = 0;
+        for (SyncAction copy : copies) {
+            if (copy.getDestinationEntry() == null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of destination files which are replaced
+     */
+    public synchronized int getUpdateCount() {
+        return copies.size() - getCreateCount();
+    }
+
+    public synchronized int getDeleteCount() {
+        return deletions.size();
+    }
+
+    public synchronized int getDirectoryCount() {
+        return directories.size();
+    }
+
+    /**
+     * @return the size of all the files to copy
+     */
+    public synchronized long getBytesToTransfer() {
+        long bytes = 0;
+        for (SyncAction copy : copies) {
+            bytes += copy.getSourceEntry().getSize();
+        }
+        return bytes;
+    }
+
+    public synchronized boolean isEmpty() {
+        return deletions.isEmpty() && directories.isEmpty() && copies.isEmpty();
+    }
+
+    /**
+     * Splits the plan into plans of about the same number of bytes to
+     * copy, which can be applied at the same time. Each part creates all
+     * the folders, which the executor skips if they already exist, and
+     * the deletions are all in the first part.
+     */
+    public synchronized List<ChangePlan> partition(int parts) {
+        List<ChangePlan> plans = new ArrayList<ChangePlan>();
+        long[] bytes = new long[parts];
+        for (int i = 0; i < parts; i++) {
+            ChangePlan plan = new ChangePlan(sourceId, destinationId);
+            plan.directories.addAll(directories);
+            plans.add(plan);
+        }
+        plans.get(0).deletions.addAll(deletions);
+
+        // INFO largest first, each to the part with the fewest bytes so far
+        List<SyncAction> bySize = new ArrayList<SyncAction>(copies);
+        Collections.sort(bySize, new Comparator<SyncAction>() {
+            public int compare(SyncAction action1, SyncAction action2) {
+                return Long.compare(action2.getSourceEntry().getSize(), action1.getSourceEntry().getSize());
+            }
+        });
+        for (SyncAction copy : bySize) {
+            int smallest = 0;
+            for (int i = 1; i < parts; i++) {
+                if (bytes[i] < bytes[smallest]) {
+                    smallest = i;
+                }
+            }
+            plans.get(smallest).copies.add(copy);
+            bytes[smallest] += copy.getSourceEntry().getSize();
+        }
+        for (ChangePlan plan : plans) {
+            plan.sort();
+        }
+        return plans;
+    }
+
+    /**
+     * Writes the plan to the stream, which is left open.
+     */
+    public synchronized void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeUTF(sourceId);
+        out.writeUTF(destinationId);
+        out.writeInt(deletions.size() + directories.size() + copies.size());
+        String previousPath = writeActions(out, deletions, "");
+        previousPath = writeActions(out, directories, previousPath);
+        writeActions(out, copies, previousPath);
+        out.flush();
+    }
+
+    /**
+     * @return the path of the last action written
+     */
+    private static String writeActions(DataOutputStream out, List<SyncAction> actions, String previousPath)
+            throws IOException {
+        for (SyncAction action : actions) {
+            String path = action.getRelativePath();
+            int shared = sharedPrefixLength(previousPath, path);
+            out.writeByte(action.getType().ordinal());
+            out.writeShort(shared);
+            out.writeUTF(path.substring(shared));
+            int flags = (action.getSourceEntry() != null ? HAS_SOURCE : 0)
+                    | (action.getDestinationEntry() != null ? HAS_DESTINATION : 0);
+            out.writeByte(flags);
+            writeEntry(out, action.getSourceEntry());
+            writeEntry(out, action.getDestinationEntry());
+            previousPath = path;
+        }
+        return previousPath;
+    }
+
+    /**
+     * Reads a plan written by {@link #writeTo(OutputStream)}.
+     */
+    public static ChangePlan readFrom(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 65536));
+        if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+            throw new IOException("Not a change plan, or in an unknown format");
+        }
+        ChangePlan plan = new ChangePlan(in.readUTF(), in.readUTF());
+        int count = in.readInt();
+        String previousPath = "";
+        SyncAction.Type[] types = SyncAction.Type.values();
+        for (int i = 0; i < count; i++) {
+            SyncAction.Type type = types[in.readUnsignedByte()];
+            String path = previousPath.substring(0, in.readUnsignedShort()) + in.readUTF();
+            int flags = in.readUnsignedByte();
+            FileEntry sourceEntry = (flags & HAS_SOURCE) != 0 ? readEntry(in, path) : null;
+            FileEntry destinationEntry = (flags & HAS_DESTINATION) != 0 ? readEntry(in, path) : null;
+            plan.add(new SyncAction(type, path, sourceEntry, destinationEntry));
+            previousPath = path;
+        }
+        return plan;
+    }
+
+    private static int sharedPrefixLength(String path1, String path2) {
+        int max = Math.min(Math.min(path1.length(), path2.length()), 0xffff);
+        int i = 0;
+        while (i < max && path1.charAt(i) == path2.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static FileEntry readEntry(DataInputStream in, String relativePath) throws IOException {
+        int flags = in.readUnsignedByte();
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        return new FileEntry(relativePath, (flags & DIRECTORY) != 0, size, lastModified, null);
+    }
+
+    private static void writeEntry(DataOutputStream out, FileEntry entry) throws IOException {
+        if (entry != null) {
+            out.writeByte(entry.isDirectory() ? DIRECTORY : 0);
+            out.writeLong(entry.getSize());
+            out.writeLong(entry.getLastModified());
+        }
+    }
+
+    public synchronized String toString() {
+        return getCreateCount() + " files to create, " + getUpdateCount() + " to update, "
+                + deletions.size() + " entries to delete, " + directories.size() + " folders to create, "
+                + getBytesToTransfer() + " bytes to transfer";
+    }
+}
@@ -0,0 +1,211 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Applies a {@link ChangePlan} to the destination: the deletions, then
+ * the folders, then the copies, which run on several threads at once.
+ *
+ * Time may have passed since the plan was made, so each change is checked
+ * against the current state: entries already deleted and folders already
+ * created are skipped, and each file is copied as it is now, with its
+ * current size and modification time, or skipped if it is gone from the
+ * source. An entry is only deleted if it is still absent from the source
+ * and still as planned, and a folder only once nothing is left in it, so
+ * entries which changed or appeared since, excluded ones included, are
+ * kept. The executor does not update the index, so the next sync with
+ * an index lists the changed folders again.
+ *
+ * @author ajmas
+ *
+ */
+public class ChangePlanExecutor {
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final SyncEndpoint source;
+    private final SyncEndpoint destination;
+    private final FileTransfer transfer;
+
+    private int transferThreads = 4;
+    private int maxDeletions = -1;
+    private List<SyncListener> listeners = new ArrayList<SyncListener>();
+    private SyncMetrics metrics = SyncMetrics.NOOP;
+
+    public ChangePlanExecutor(SyncEndpoint source, SyncEndpoint destination, FileTransfer transfer) {
+        this.source = source;
+        this.destination = destination;
+        this.transfer = transfer;
+    }
+
+    public void setTransferThreads(int transferThreads) {
+        this.transferThreads = transferThreads;
+    }
+
+    /**
+     * @see FileSyncConfiguration#setMaxDeletions(int)
+     */
+    public void setMaxDeletions(int maxDeletions) {
+        this.maxDeletions = maxDeletions;
+    }
+
+    public void addSyncListener(SyncListener listener) {
+        listeners.add(listener);
+    }
+
+    public void setMetrics(SyncMetrics metrics) {
+        this.metrics = metrics != null ? metrics : SyncMetrics.NOOP;
+    }
+
+    /**
+     * Configures the executor from the general sync parameters.
+     */
+    public void configure(FileSyncConfiguration configuration) {
+        setTransferThreads(configuration.getTransferThreads());
+        setMaxDeletions(configuration.getMaxDeletions());
+        listeners.addAll(configuration.getSyncListeners());
+        setMetrics(configuration.getSyncMetrics());
+    }
+
+    public void execute(ChangePlan plan) throws FileSyncException, IOException {
+        if (maxDeletions >= 0 && plan.getDeleteCount() > maxDeletions) {
+            throw new FileSyncException("The plan deletes " + plan.getDeleteCount()
+                    + " entries from the destination, more than the limit of " + maxDeletions);
+        }
+
+        long phaseStart = System.nanoTime();
+        for (SyncAction action : plan.getDeletions()) {
+            FileEntry entry = destination.stat(action.getRelativePath());
+            if (entry != null && isStillToDelete(action, entry)) {
+                logger.debug("Deleting " + action.getRelativePath());
+                long startNanos = System.nanoTime();
+                destination.delete(entry);
+                metrics.entryDeleted(action, System.nanoTime() - startNanos);
+                notifyListeners(action);
+            }
+        }
+        phaseStart = phaseCompleted(SyncMetrics.Phase.DELETE, phaseStart);
+
+        for (SyncAction action : plan.getDirectories()) {
+            FileEntry entry = destination.stat(action.getRelativePath());
+            if (entry == null) {
+                logger.debug("Creating directory " + action.getRelativePath());
+                try {
+                    destination.createDirectory(action.getRelativePath());
+                } catch (IOException ex) {
+                    // INFO another part of the same plan may have created it in the meantime
+                    entry = destination.stat(action.getRelativePath());
+                    if (entry == null || !entry.isDirectory()) {
+                        throw ex;
+                    }
+                    continue;
+                }
+                metrics.directoryCreated(action);
+                notifyListeners(action);
+            } else if (!entry.isDirectory()) {
+                throw new FileSyncException("Unable to create directory " + action.getRelativePath()
+                        + ", a file is in the way");
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(transferThreads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final SyncAction action : plan.getCopies()) {
+                metrics.transferQueued(action);
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        copy(action);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Plan execution was interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new FileSyncException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        phaseCompleted(SyncMetrics.Phase.TRANSFER, phaseStart);
+    }
+
+    /**
+     * @return whether the entry is still the one planned for deletion, and
+     *         still absent from the source. A folder is only deleted once
+     *         empty, its planned content being deleted before it, so that
+     *         nothing added since the plan was made is deleted with it.
+     */
+    private boolean isStillToDelete(SyncAction action, FileEntry entry) throws IOException {
+        String path = action.getRelativePath();
+        FileEntry planned = action.getDestinationEntry();
+        if (source.stat(path) != null) {
+            logger.warn("Not deleting " + path + ", which is back on the source");
+            return false;
+        }
+        if (planned == null || entry.isDirectory() != planned.isDirectory()) {
+            logger.warn("Not deleting " + path + ", which changed since the plan was made");
+            return false;
+        }
+        if (!entry.isDirectory()) {
+            if (entry.getSize() != planned.getSize() || entry.getLastModified() != planned.getLastModified()) {
+                logger.warn("Not deleting " + path + ", which changed since the plan was made");
+                return false;
+            }
+        } else if (!destination.list(path).isEmpty()) {
+            logger.warn("Not deleting " + path + ", which holds entries the plan does not delete");
+            return false;
+        }
+        return true;
+    }
+
+    private void copy(SyncAction action) throws IOException {
+        FileEntry sourceEntry = source.stat(action.getRelativePath());
+        if (sourceEntry == null || sourceEntry.isDirectory()) {
+            logger.warn("Skipping " + action.getRelativePath() + ", which is no longer a file on the source");
+            return;
+        }
+        if (sourceEntry.getSize() != action.getSourceEntry().getSize()
+                || sourceEntry.getLastModified() != action.getSourceEntry().getLastModified()) {
+            logger.debug("Copying " + action.getRelativePath() + " as it is now, it changed since the plan was made");
+        } else {
+            logger.debug("Copying " + action.getRelativePath());
+        }
+
+        SyncAction current = new SyncAction(SyncAction.Type.COPY, action.getRelativePath(), sourceEntry,
+                destination.stat(action.getRelativePath()));
+        long startNanos = System.nanoTime();
+        transfer.transfer(current);
+        metrics.fileTransferred(current, sourceEntry.getSize(), System.nanoTime() - startNanos);
+        notifyListeners(current);
+    }
+
+    private long phaseCompleted(SyncMetrics.Phase phase, long startNanos) {
+        long now = System.nanoTime();
+        metrics.phaseCompleted(phase, now - startNanos);
+        return now;
+    }
+
+    private void notifyListeners(SyncAction action) {
+        for (SyncListener listener : listeners) {
+            listener.actionCompleted(action);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies one large file as a number of ranges, several at a time, so that
+ * a single file can keep more than one thread or channel busy. The ranges
+ * are claimed in order by a fixed number of workers, and the copy fails
+ * as soon as any range does.
+ *
+ * A transfer using it reads the following properties, each prefixed by
+ * the transfer's own prefix, such as 'local.chunked' or 'ssh.chunked':
+ *
+ * <ul>
+ * <li>threshold: files of at least this many bytes are copied in ranges,
+ *     256 MiB by default</li>
+ * <li>chunkSize: the size of a range, 32 MiB by default</li>
+ * <li>verify: whether to compare the MD5 of the copy with the MD5 of the
+ *     source before it replaces the target, true by default</li>
+ * </ul>
+ *
+ * @author ajmas
+ *
+ */
+class ChunkedCopy {
+
+    static final long DEFAULT_THRESHOLD = 256L * 1024 * 1024;
+    static final long DEFAULT_CHUNK_SIZE = 32L * 1024 * 1024;
+
+    // INFO the workers only wait on I/O, they are bounded by the parallelism of each copy
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "chunked-copy");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Copies one range of the file.
+     */
+    interface RangeCopier {
+        void copy(long offset, long length) throws IOException;
+    }
+
+    private final long threshold;
+    private final long chunkSize;
+    private final boolean verify;
+
+    ChunkedCopy(Properties properties, String prefix) {
+        String value = properties.getProperty(prefix + ".threshold");
+        this.threshold = value != null ? Long.parseLong(value.trim()) : DEFAULT_THRESHOLD;
+        value = properties.getProperty(prefix + ".chunkSize");
+        this.chunkSize = value != null ? Long.parseLong(value.trim()) : DEFAULT_CHUNK_SIZE;
+        this.verify = Boolean.parseBoolean(properties.getProperty(prefix + ".verify", "true").trim());
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException(prefix + ".chunkSize must be at least 1, was: " + chunkSize);
+        }
+    }
+
+    /**
+     * @return whether a file of this size is copied in ranges
+     */
+    boolean accepts(long size, int parallelism) {
+        return parallelism > 1 && size >= threshold && size > chunkSize;
+    }
+
+    boolean isVerifying() {
+        return verify;
+    }
+
+    /**
+     * Copies every range of the file, returning once all are copied.
+     */
+    void copy(final long size, int parallelism, final RangeCopier copier) throws IOException {
+        final AtomicLong nextOffset = new AtomicLong();
+        final AtomicBoolean failed = new AtomicBoolean();
+        int workers = (int) Math.min(parallelism, (size + chunkSize - 1) / chunkSize);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(workers);
+        for (int i = 0; i < workers; i++) {
+            tasks.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    long offset = -1;
+                    // INFO once a range failed, the other workers claim no more
+                    while (!failed.get() && (offset = nextOffset.getAndAdd(chunkSize)) < size) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new InterruptedIOException("Chunked copy cancelled");
+                        }
+                        try {
+                            copier.copy(offset, Math.min(chunkSize, size - offset));
+                        } catch (IOException | RuntimeException ex) {
+                            failed.set(true);
+                            throw ex;
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+    }
+
+    /**
+     * Runs the two hashes concurrently, and fails if they differ.
+     */
+    void verify(Callable<byte[]> sourceHash, Callable<byte[]> copyHash, String description) throws IOException {
+        List<byte[]> hashes = runAll(Arrays.asList(sourceHash, copyHash));
+        if (!Arrays.equals(hashes.get(0), hashes.get(1))) {
+            throw new IOException("The copy of " + description + " does not match its source");
+        }
+    }
+
+    /**
+     * Runs the tasks concurrently, failing with the first task which fails,
+     * as soon as it does, and cancelling the others.
+     *
+     * @return the results, in the order of the tasks
+     */
+    private static <T> List<T> runAll(List<Callable<T>> tasks) throws IOException {
+        CompletionService<T> completion = new ExecutorCompletionService<T>(EXECUTOR);
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        try {
+            for (Callable<T> task : tasks) {
+                futures.add(completion.submit(task));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                completion.take().get();
+            }
+            List<T> results = new ArrayList<T>(futures.size());
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during a chunked copy");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package osj.filesync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Path filter for large include and exclude lists. The patterns are
+ * compiled into a trie of path segments, so a path is matched against all
+ * the patterns at once, in time proportional to its depth rather than to
+ * the number of patterns.
+ *
+ * A pattern matches a path and everything below it. Patterns are matched
+ * segment by segment and may use globs:
+ *
+ * <ul>
+ * <li>'*' matches any characters within a segment</li>
+ * <li>'?' matches a single character within a segment</li>
+ * <li>'**' matches any number of segments, including none</li>
+ * </ul>
+ *
+ * A path is accepted if it is not matched by an exclude pattern and, when
+ * there are include patterns, is matched by one of them. Folders above an
+ * include pattern are not accepted themselves, but their subtree is, see
+ * {@link #acceptSubtree(String)}.
+ *
+ * @author ajmas
+ *
+ */
+public class CompiledPathFilter implements SubtreePathFilter {
+
+    private static final String ANY_SEGMENTS = "**";
+
+    private final Node includes;
+    private final Node excludes;
+
+    public CompiledPathFilter(Collection<String> pathsToInclude, Collection<String> pathsToExclude) {
+        includes = compile(pathsToInclude);
+        excludes = compile(pathsToExclude);
+    }
+
+    public boolean accept(String path) {
+        String[] segments = split(path);
+        if (excludes != null && matches(excludes, segments, false)) {
+            return false;
+        }
+        return includes == null || matches(includes, segments, false);
+    }
+
+    public boolean acceptSubtree(String folder) {
+        String[] segments = split(folder);
+        if (excludes != null && matches(excludes, segments, false)) {
+            return false;
+        }
+        return includes == null || matches(includes, segments, true);
+    }
+
+    private static Node compile(Collection<String> patterns) {
+        if (patterns == null || patterns.isEmpty()) {
+            return null;
+        }
+        Node root = new Node();
+        for (String pattern : patterns) {
+            Node node = root;
+            String[] segments = split(pattern);
+            for (int i = 0; i < segments.length; i++) {
+                String segment = segments[i];
+                if (ANY_SEGMENTS.equals(segment)) {
+                    if (node.anySegments == null) {
+                        node.anySegments = new Node();
+                        node.anySegments.repeats = true;
+                    }
+                    node = node.anySegments;
+                } else if (isGlob(segment)) {
+                    Node child = null;
+                    for (Node glob : node.globs) {
+                        if (glob.segment.equals(segment)) {
+                            child = glob;
+                        }
+                    }
+                    if (child == null) {
+                        child = new Node();
+                        child.segment = segment;
+                        node.globs.add(child);
+                    }
+                    node = child;
+                } else {
+                    Node child = node.literals.get(segment);
+                    if (child == null) {
+                        child = new Node();
+                        node.literals.put(segment, child);
+                    }
+                    node = child;
+                }
+            }
+            node.terminal = true;
+        }
+        return root;
+    }
+
+    /**
+     * Runs the path through the trie, following every branch it matches.
+     *
+     * @param partial whether a path which could still be extended into a
+     *        match counts as a match
+     */
+    private static boolean matches(Node root, String[] segments, boolean partial) {
+        List<Node> active = new ArrayList<Node>();
+        addWithClosure(active, root);
+        if (isTerminal(active)) {
+            return true;
+        }
+
+        List<Node> next = new ArrayList<Node>();
+        for (String segment : segments) {
+            next.clear();
+            for (Node node : active) {
+                if (node.repeats) {
+                    addWithClosure(next, node);
+                }
+                Node literal = node.literals.get(segment);
+                if (literal != null) {
+                    addWithClosure(next, literal);
+                }
+                for (Node glob : node.globs) {
+                    if (matchesGlob(glob.segment, 0, segment, 0)) {
+                        addWithClosure(next, glob);
+                    }
+                }
+            }
+            if (isTerminal(next)) {
+                return true;
+            }
+            if (next.isEmpty()) {
+                return false;
+            }
+            List<Node> swap = active;
+            active = next;
+            next = swap;
+        }
+        return partial;
+    }
+
+    private static void addWithClosure(List<Node> nodes, Node node) {
+        while (node != null && !nodes.contains(node)) {
+            nodes.add(node);
+            node = node.anySegments;
+        }
+    }
+
+    private static boolean isTerminal(List<Node> nodes) {
+        for (Node node : nodes) {
+            if (node.terminal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean matchesGlob(String glob, int globIndex, String text, int textIndex) {
+        while (globIndex < glob.length()) {
+            char c = glob.charAt(globIndex);
+            if (c == '*') {
+                for (int i = textIndex; i <= text.length(); i++) {
+                    if (matchesGlob(glob, globIndex + 1, text, i)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (textIndex >= text.length() || (c != '?' && c != text.charAt(textIndex))) {
+                return false;
+            }
+            globIndex++;
+            textIndex++;
+        }
+        return textIndex == text.length();
+    }
+
+    private static boolean isGlob(String segment) {
+        return segment.indexOf('*') >= 0 || segment.indexOf('?') >= 0;
+    }
+
+    private static String[] split(String path) {
+        List<String> segments = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i <= path.length(); i++) {
+            if (i == path.length() || path.charAt(i) == '/') {
+                if (i > start) {
+                    segments.add(path.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    /**
+     * A node of the trie. Literal segments are looked up by name, glob
+     * segments are tried in turn, and a '**' node can repeat any number of
+     * times.
+     */
+    static class Node {
+        String segment;
+        boolean terminal;
+        boolean repeats;
+        Node anySegments;
+        final Map<String, Node> literals = new HashMap<String, Node>();
+        final List<Node> globs = new ArrayList<Node>();
+    }
+}
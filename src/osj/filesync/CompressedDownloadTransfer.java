@@ -0,0 +1,98 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Downloads files from an ssh host as gzip streams, read from the output
+ * of a remote 'gzip -c' run over an exec channel. Like
+ * {@link SftpDownloadTransfer}, the file is written to a temporary file
+ * which replaces the destination in a single rename, with the remote
+ * modification time and permissions.
+ *
+ * The {@link CompressionPolicy} decides which files are compressed; the
+ * others, and any file whose compressed download fails, are passed to
+ * the given transfer.
+ *
+ * @author ajmas
+ *
+ */
+public class CompressedDownloadTransfer implements FileTransfer {
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final SftpSyncEndpoint source;
+    private final LocalSyncEndpoint destination;
+    private final CompressionPolicy policy;
+    private final FileTransfer plainTransfer;
+
+    public CompressedDownloadTransfer(SftpSyncEndpoint source, LocalSyncEndpoint destination,
+            CompressionPolicy policy, FileTransfer plainTransfer) {
+        this.source = source;
+        this.destination = destination;
+        this.policy = policy;
+        this.plainTransfer = plainTransfer;
+    }
+
+    public void transfer(SyncAction action) throws IOException {
+        long size = action.getSourceEntry().getSize();
+        if (!policy.shouldCompress(action.getRelativePath(), size, null)) {
+            plainTransfer.transfer(action);
+            policy.recordUncompressed(size);
+            return;
+        }
+
+        try {
+            long wireBytes = download(action);
+            policy.recordCompressed(action.getRelativePath(), size, wireBytes);
+        } catch (IOException ex) {
+            logger.warn("Compressed download of " + action.getRelativePath() + " failed, fetching it as is", ex);
+            plainTransfer.transfer(action);
+            policy.recordUncompressed(size);
+        }
+    }
+
+    /**
+     * @return the compressed size of the file
+     */
+    private long download(SyncAction action) throws IOException {
+        String remotePath = source.resolve(action.getRelativePath());
+        Path localPath = destination.resolve(action.getRelativePath());
+        String command = "gzip -c -" + policy.getLevel() + " < " + RemoteCommand.quote(remotePath);
+
+        Path tempFile = TempFiles.createTempFile(localPath);
+        try {
+            RemoteCommand remoteCommand = new RemoteCommand(source.getChannelPool().getSession(), command);
+            InputStream wire = remoteCommand.getInputStream();
+            if (source.getThrottle() != null) {
+                wire = source.getThrottle().throttle(wire);
+            }
+            CompressionPolicy.CountingInputStream counter = new CompressionPolicy.CountingInputStream(wire);
+            try {
+                remoteCommand.getOutputStream().close();
+                try (InputStream in = new GZIPInputStream(counter, 65536);
+                        OutputStream out = Files.newOutputStream(tempFile)) {
+                    RemoteCommand.copy(in, out);
+                }
+                remoteCommand.waitFor(true);
+            } finally {
+                remoteCommand.close();
+            }
+
+            SftpDownloadTransfer.copyPermissions(source, remotePath, tempFile);
+            Files.setLastModifiedTime(tempFile, FileTime.fromMillis(action.getSourceEntry().getLastModified()));
+            Files.move(tempFile, localPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return counter.count;
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Uploads files to an ssh host as gzip streams, written to the standard
+ * input of a remote 'gzip -d' run over an exec channel. The file is
+ * decompressed into a temporary file, given its modification time and
+ * renamed into place, all in the same command.
+ *
+ * The {@link CompressionPolicy} decides which files are compressed; the
+ * others, and any file whose compressed upload fails, are passed to the
+ * given transfer. So are modified files when that transfer sends deltas,
+ * which are usually smaller still.
+ *
+ * @author ajmas
+ *
+ */
+public class CompressedUploadTransfer implements FileTransfer {
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final LocalSyncEndpoint source;
+    private final SftpSyncEndpoint destination;
+    private final CompressionPolicy policy;
+    private final FileTransfer plainTransfer;
+    private final boolean deltaUpdates;
+
+    /**
+     * @param deltaUpdates whether the plain transfer sends modified files
+     *        as deltas
+     */
+    public CompressedUploadTransfer(LocalSyncEndpoint source, SftpSyncEndpoint destination,
+            CompressionPolicy policy, FileTransfer plainTransfer, boolean deltaUpdates) {
+        this.source = source;
+        this.destination = destination;
+        this.policy = policy;
+        this.plainTransfer = plainTransfer;
+        this.deltaUpdates = deltaUpdates;
+    }
+
+    public void transfer(SyncAction action) throws IOException {
+        Path localPath = source.resolve(action.getRelativePath());
+        long size = action.getSourceEntry().getSize();
+        boolean update = deltaUpdates && action.getDestinationEntry() != null;
+        if (update || !policy.shouldCompress(action.getRelativePath(), size, localPath)) {
+            plainTransfer.transfer(action);
+            policy.recordUncompressed(size);
+            return;
+        }
+
+        try {
+            long wireBytes = upload(action, localPath);
+            policy.recordCompressed(action.getRelativePath(), size, wireBytes);
+        } catch (InterruptedIOException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            if (Thread.currentThread().isInterrupted()) {
+                // INFO a cancelled sync, or a throttle wait which was interrupted and cancelled the transfer
+                throw ex;
+            }
+            logger.warn("Compressed upload of " + action.getRelativePath() + " failed, sending it as is", ex);
+            plainTransfer.transfer(action);
+            policy.recordUncompressed(size);
+        }
+    }
+
+    /**
+     * @return the compressed size of the file
+     */
+    private long upload(SyncAction action, Path localPath) throws IOException {
+        String remotePath = destination.resolve(action.getRelativePath());
+        String tempPath = destination.resolve(TempFiles.tempPathOf(action.getRelativePath()));
+        long seconds = action.getSourceEntry().getLastModified() / 1000;
+        String command = "gzip -dc > " + RemoteCommand.quote(tempPath)
+                + " && touch -m -d @" + seconds + " " + RemoteCommand.quote(tempPath)
+                + " && mv -f " + RemoteCommand.quote(tempPath) + " " + RemoteCommand.quote(remotePath)
+                + " || { rm -f " + RemoteCommand.quote(tempPath) + "; exit 1; }";
+
+        destination.invalidate(action.getRelativePath());
+        RemoteCommand remoteCommand = new RemoteCommand(destination.getChannelPool().getSession(), command);
+        try {
+            OutputStream wire = remoteCommand.getOutputStream();
+            if (destination.getThrottle() != null) {
+                wire = destination.getThrottle().throttle(wire);
+            }
+            CompressionPolicy.CountingOutputStream counter = new CompressionPolicy.CountingOutputStream(wire);
+            try (InputStream in = Files.newInputStream(localPath);
+                    DeflaterOutputStream out = newGzipStream(counter)) {
+                RemoteCommand.copy(in, out);
+            }
+            remoteCommand.waitFor(true);
+            return counter.count;
+        } finally {
+            remoteCommand.close();
+        }
+    }
+
+    private DeflaterOutputStream newGzipStream(OutputStream out) throws IOException {
+        final int level = policy.getLevel();
+        return new GZIPOutputStream(out, 65536) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+}
@@ -0,0 +1,303 @@
+package osj.filesync;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+
+/**
+ * Decides whether the files sent to and from an ssh host are compressed,
+ * from the remote endpoint property 'ssh.compression':
+ *
+ * <ul>
+ * <li>none: the default</li>
+ * <li>zlib: compression of the whole ssh session, by JSch. This needs
+ *     JZlib on the class path, and is ignored with a warning otherwise.</li>
+ * <li>stream: every file is sent as a gzip stream over an exec channel,
+ *     needing gzip on the remote host, see {@link CompressedUploadTransfer}
+ *     and {@link CompressedDownloadTransfer}</li>
+ * <li>adaptive: as stream, but files in an already compressed format,
+ *     such as jpg, zip or gz, are sent as is, and so are files of any
+ *     type which turns out not to compress well. The first files of each
+ *     type are sampled to learn how well that type compresses.</li>
+ * </ul>
+ *
+ * The level, from 1 to 9, is set with 'ssh.compression.level', 6 by
+ * default. Files smaller than 'ssh.compression.minSize' bytes, 4 KiB by
+ * default, are sent as is. In adaptive mode, a type is compressed while
+ * it shrinks to at most 'ssh.compression.maxRatio' of its size, 0.9 by
+ * default, and more extensions to skip can be listed, comma separated,
+ * in 'ssh.compression.skip'.
+ *
+ * @author ajmas
+ *
+ */
+public class CompressionPolicy {
+
+    public static final String COMPRESSION_PROPERTY = "ssh.compression";
+    public static final String LEVEL_PROPERTY = "ssh.compression.level";
+    public static final String MIN_SIZE_PROPERTY = "ssh.compression.minSize";
+    public static final String MAX_RATIO_PROPERTY = "ssh.compression.maxRatio";
+    public static final String SKIP_PROPERTY = "ssh.compression.skip";
+
+    public enum Mode {
+        NONE, ZLIB, STREAM, ADAPTIVE
+    }
+
+    static final int DEFAULT_LEVEL = 6;
+    static final long DEFAULT_MIN_SIZE = 4096;
+    static final double DEFAULT_MAX_RATIO = 0.9;
+
+    // INFO a type is decided once this much of it has been measured
+    static final long SAMPLED_BYTES = 1024 * 1024;
+    static final int SAMPLE_SIZE = 65536;
+
+    static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "aac", "ogg", "flac", "mp4", "m4a", "m4v", "mkv", "mov", "avi", "webm",
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "lz4", "7z", "rar", "jar", "war", "apk",
+            "docx", "xlsx", "pptx", "odt", "ods", "woff", "woff2"));
+
+    static Logger logger = Logger.getLogger(CompressionPolicy.class);
+
+    private final Mode mode;
+    private final int level;
+    private final long minSize;
+    private final double maxRatio;
+    private final Set<String> skippedExtensions = new HashSet<String>(COMPRESSED_EXTENSIONS);
+    private final CompressionReport report = new CompressionReport();
+
+    // INFO bytes measured and bytes they compressed to, by extension
+    private final ConcurrentMap<String, long[]> samples = new ConcurrentHashMap<String, long[]>();
+
+    public CompressionPolicy(Properties properties) {
+        this.mode = getMode(properties);
+        String value = properties.getProperty(LEVEL_PROPERTY);
+        this.level = value != null ? Integer.parseInt(value.trim()) : DEFAULT_LEVEL;
+        value = properties.getProperty(MIN_SIZE_PROPERTY);
+        this.minSize = value != null ? Long.parseLong(value.trim()) : DEFAULT_MIN_SIZE;
+        value = properties.getProperty(MAX_RATIO_PROPERTY);
+        this.maxRatio = value != null ? Double.parseDouble(value.trim()) : DEFAULT_MAX_RATIO;
+        value = properties.getProperty(SKIP_PROPERTY);
+        if (value != null) {
+            for (String extension : value.split(",")) {
+                if (!extension.trim().isEmpty()) {
+                    skippedExtensions.add(extension.trim().toLowerCase());
+                }
+            }
+        }
+        if (level < 1 || level > 9) {
+            throw new IllegalArgumentException(LEVEL_PROPERTY + " must be from 1 to 9, was: " + level);
+        }
+    }
+
+    public static Mode getMode(Properties properties) {
+        String value = properties.getProperty(COMPRESSION_PROPERTY);
+        return value != null ? Mode.valueOf(value.trim().toUpperCase()) : Mode.NONE;
+    }
+
+    /**
+     * Turns on the compression of the session, before it connects, if the
+     * endpoint asks for it and JSch is able to.
+     *
+     * @return whether the session is compressed
+     */
+    public static boolean configureSession(Session session, Properties properties) {
+        if (getMode(properties) != Mode.ZLIB) {
+            return false;
+        }
+        try {
+            Class.forName(JSch.getConfig("zlib@openssh.com"));
+        } catch (ClassNotFoundException | LinkageError ex) {
+            logger.warn("ssh compression needs JZlib on the class path, the session will not be compressed");
+            return false;
+        }
+        String level = properties.getProperty(LEVEL_PROPERTY, String.valueOf(DEFAULT_LEVEL)).trim();
+        session.setConfig("compression.s2c", "zlib@openssh.com,zlib,none");
+        session.setConfig("compression.c2s", "zlib@openssh.com,zlib,none");
+        session.setConfig("compression_level", level);
+        return true;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return whether files are sent as compressed streams
+     */
+    public boolean isStreaming() {
+        return mode == Mode.STREAM || mode == Mode.ADAPTIVE;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public CompressionReport getReport() {
+        return report;
+    }
+
+    /**
+     * @param localFile the file, if it is on the local side, which is then
+     *        sampled if its type is not yet known
+     * @return whether the file is to be sent compressed
+     */
+    public boolean shouldCompress(String relativePath, long size, Path localFile) throws IOException {
+        if (!isStreaming() || size < minSize) {
+            return false;
+        }
+        if (mode == Mode.STREAM) {
+            return true;
+        }
+
+        String extension = extensionOf(relativePath);
+        if (skippedExtensions.contains(extension)) {
+            return false;
+        }
+        long[] sample = getSample(extension);
+        if (sample == null || sample[0] < SAMPLED_BYTES) {
+            if (localFile == null) {
+                // INFO learnt from the transfer itself
+                return true;
+            }
+            sample = sample(extension, localFile);
+        }
+        return sample[1] <= sample[0] * maxRatio;
+    }
+
+    /**
+     * Records how well a file compressed, for the report and to learn
+     * about its type.
+     */
+    public void recordCompressed(String relativePath, long bytes, long wireBytes) {
+        report.addCompressed(bytes, wireBytes);
+        if (mode == Mode.ADAPTIVE) {
+            addSample(extensionOf(relativePath), bytes, wireBytes);
+        }
+    }
+
+    public void recordUncompressed(long bytes) {
+        report.addUncompressed(bytes);
+    }
+
+    private long[] sample(String extension, Path localFile) throws IOException {
+        byte[] buffer = new byte[SAMPLE_SIZE];
+        int len = 0;
+        try (InputStream in = Files.newInputStream(localFile)) {
+            int count = 0;
+            while (len < buffer.length && (count = in.read(buffer, len, buffer.length - len)) > 0) {
+                len += count;
+            }
+        }
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(buffer, 0, len);
+            deflater.finish();
+            byte[] output = new byte[SAMPLE_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(output);
+            }
+            return addSample(extension, len, compressed);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private long[] getSample(String extension) {
+        long[] sample = samples.get(extension);
+        if (sample == null) {
+            return null;
+        }
+        synchronized (sample) {
+            return new long[] { sample[0], sample[1] };
+        }
+    }
+
+    private long[] addSample(String extension, long bytes, long compressedBytes) {
+        long[] sample = samples.get(extension);
+        if (sample == null) {
+            long[] newSample = new long[2];
+            sample = samples.putIfAbsent(extension, newSample);
+            if (sample == null) {
+                sample = newSample;
+            }
+        }
+        synchronized (sample) {
+            sample[0] += bytes;
+            sample[1] += compressedBytes;
+            return new long[] { sample[0], sample[1] };
+        }
+    }
+
+    static String extensionOf(String relativePath) {
+        String name = SyncIndex.nameOf(relativePath);
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(dot + 1).toLowerCase() : "";
+    }
+
+    /**
+     * Counts the bytes written through it.
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package osj.filesync;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How well the transfers of one sync were compressed: the bytes of the
+ * files, the bytes which went over the wire for them, and the time taken.
+ * Updated concurrently by the transfer threads.
+ *
+ * @author ajmas
+ *
+ */
+public class CompressionReport {
+
+    private final long startTime = System.nanoTime();
+    private volatile long endTime;
+
+    private final AtomicLong compressedFiles = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+    private final AtomicLong uncompressedFiles = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+
+    /**
+     * Records a file sent compressed.
+     *
+     * @param bytes the size of the file
+     * @param wire the bytes sent for it
+     */
+    public void addCompressed(long bytes, long wire) {
+        compressedFiles.incrementAndGet();
+        compressedBytes.addAndGet(bytes);
+        wireBytes.addAndGet(wire);
+    }
+
+    /**
+     * Records a file sent as is.
+     */
+    public void addUncompressed(long bytes) {
+        uncompressedFiles.incrementAndGet();
+        uncompressedBytes.addAndGet(bytes);
+        wireBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Marks the end of the sync, which the throughput is measured to.
+     */
+    public void finish() {
+        endTime = System.nanoTime();
+    }
+
+    public long getCompressedFiles() {
+        return compressedFiles.get();
+    }
+
+    public long getUncompressedFiles() {
+        return uncompressedFiles.get();
+    }
+
+    /**
+     * @return the size of all the files transferred
+     */
+    public long getBytes() {
+        return compressedBytes.get() + uncompressedBytes.get();
+    }
+
+    /**
+     * @return the bytes sent for all the files transferred
+     */
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    /**
+     * @return the bytes sent for the compressed files over their size, or
+     *         1 if none were compressed
+     */
+    public double getCompressionRatio() {
+        long bytes = compressedBytes.get();
+        return bytes > 0 ? (double) (wireBytes.get() - uncompressedBytes.get()) / bytes : 1.0;
+    }
+
+    public long getElapsedMillis() {
+        long end = endTime != 0 ? endTime : System.nanoTime();
+        return (end - startTime) / 1000000;
+    }
+
+    /**
+     * @return the file bytes transferred per second
+     */
+    public double getThroughput() {
+        long elapsed = getElapsedMillis();
+        return elapsed > 0 ? getBytes() * 1000.0 / elapsed : 0;
+    }
+
+    public String toString() {
+        return String.format("%d files compressed, %d sent as is: %d bytes sent as %d, ratio %.2f, %.1f KiB/s over %d ms",
+                getCompressedFiles(), getUncompressedFiles(), getBytes(), getWireBytes(), getCompressionRatio(),
+                getThroughput() / 1024, getElapsedMillis());
+    }
+}
@@ -0,0 +1,99 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Change detector comparing the content of the files, so that files whose
+ * modification time changed without their content changing are not
+ * copied, and changes are seen whatever the clocks of the two sides say.
+ * Files of different sizes are copied without being hashed.
+ *
+ * Hashes recorded in the previous {@link SyncIndex} are reused for as long
+ * as the size and modification time of the file are unchanged. A
+ * destination file which is unchanged since it was copied is known to
+ * hold the content the source had then, so it is not hashed at all.
+ *
+ * @author ajmas
+ *
+ */
+public class ContentHashChangeDetector implements ChangeDetector {
+
+    private final HashingEndpoint source;
+    private final HashingEndpoint destination;
+    private final SyncIndex previousIndex;
+
+    private final Map<String, byte[]> sourceHashes = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * @param previousIndex the index of the last run, or null
+     */
+    public ContentHashChangeDetector(HashingEndpoint source, HashingEndpoint destination, SyncIndex previousIndex) {
+        this.source = source;
+        this.destination = destination;
+        this.previousIndex = previousIndex;
+    }
+
+    public Set<String> findChanged(Collection<FileEntry> sourceFiles, Map<String, FileEntry> destinationFiles)
+            throws IOException {
+        Set<String> changed = new HashSet<String>();
+        List<FileEntry> sourceToHash = new ArrayList<FileEntry>();
+        List<FileEntry> destinationToHash = new ArrayList<FileEntry>();
+        List<FileEntry> candidates = new ArrayList<FileEntry>();
+
+        for (FileEntry sourceEntry : sourceFiles) {
+            FileEntry destinationEntry = destinationFiles.get(sourceEntry.getName());
+            if (sourceEntry.getSize() != destinationEntry.getSize()) {
+                changed.add(sourceEntry.getName());
+                continue;
+            }
+            candidates.add(sourceEntry);
+
+            SyncIndex.Record record = previousIndex != null ? previousIndex.getRecord(sourceEntry.getRelativePath()) : null;
+            byte[] recordedHash = record != null ? record.getSourceHash() : null;
+            if (recordedHash != null && isSame(record.getSource(), sourceEntry)) {
+                sourceHashes.put(sourceEntry.getRelativePath(), recordedHash);
+            } else {
+                sourceToHash.add(sourceEntry);
+            }
+            if (recordedHash == null || !isSame(record.getDestination(), destinationEntry)) {
+                destinationToHash.add(destinationEntry);
+            }
+        }
+
+        if (!sourceToHash.isEmpty()) {
+            sourceHashes.putAll(source.hash(sourceToHash));
+        }
+        Map<String, byte[]> destinationHashes = destinationToHash.isEmpty()
+                ? null : destination.hash(destinationToHash);
+
+        for (FileEntry sourceEntry : candidates) {
+            String path = sourceEntry.getRelativePath();
+            byte[] destinationHash = destinationHashes != null ? destinationHashes.get(path) : null;
+            if (destinationHash == null) {
+                // INFO unchanged since the last run, so it holds what the source held then
+                destinationHash = previousIndex.getRecord(path).getSourceHash();
+            }
+            if (!Arrays.equals(sourceHashes.get(path), destinationHash)) {
+                changed.add(sourceEntry.getName());
+            }
+        }
+        return changed;
+    }
+
+    public byte[] getSourceHash(FileEntry sourceEntry) {
+        return sourceHashes.get(sourceEntry.getRelativePath());
+    }
+
+    private static boolean isSame(FileEntry recorded, FileEntry current) {
+        return recorded != null && recorded.getSize() == current.getSize()
+                && recorded.getLastModified() == current.getLastModified();
+    }
+}
@@ -0,0 +1,202 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Deletes the destination entries which are no longer on the source, as a
+ * phase of its own once the copies are done.
+ *
+ * The folders to delete are first listed down to their leaves, in
+ * parallel, keeping only the entries accepted by the path filters. A
+ * folder holding anything the filters exclude is kept, along with its
+ * parents, so excluded destination files are never deleted. The entries
+ * are then deleted deepest first, each level in parallel, so that every
+ * folder is empty by the time it is deleted.
+ *
+ * @author ajmas
+ *
+ */
+class DeletionSweep {
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final SyncEndpoint endpoint;
+    private final int threads;
+    private final PathFilter[] pathFilters;
+
+    DeletionSweep(SyncEndpoint endpoint, int threads, PathFilter... pathFilters) {
+        this.endpoint = endpoint;
+        this.threads = threads;
+        this.pathFilters = pathFilters;
+    }
+
+    /**
+     * @param entries the entries to delete, already accepted by the filters
+     * @return the entries to delete, including the content of the folders
+     *         among them, deepest first
+     */
+    List<FileEntry> expand(Collection<FileEntry> entries) throws IOException {
+        final Queue<FileEntry> expanded = new ConcurrentLinkedQueue<FileEntry>();
+        final List<ExpandTask> tasks = new ArrayList<ExpandTask>();
+        for (FileEntry entry : entries) {
+            if (entry.isDirectory()) {
+                tasks.add(new ExpandTask(entry, expanded));
+            } else {
+                expanded.add(entry);
+            }
+        }
+
+        if (!tasks.isEmpty()) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(new RecursiveTask<Boolean>() {
+                    private static final long serialVersionUID = 1L;
+
+                    protected Boolean compute() {
+                        invokeAll(tasks);
+                        return Boolean.TRUE;
+                    }
+                });
+            } catch (ParallelTreeWalker.WalkFailure failure) {
+                throw (IOException) failure.getCause();
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        List<FileEntry> ordered = new ArrayList<FileEntry>();
+        for (List<FileEntry> level : byDepth(expanded)) {
+            ordered.addAll(level);
+        }
+        return ordered;
+    }
+
+    /**
+     * Deletes the entries given by {@link #expand}, level by level.
+     *
+     * @param listener told about each entry deleted, or null
+     */
+    void delete(List<FileEntry> entries, final SyncMetrics metrics, final SyncListener listener)
+            throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (List<FileEntry> level : byDepth(entries)) {
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (final FileEntry entry : level) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        public Void call() throws IOException {
+                            logger.debug("Deleting " + entry.getRelativePath());
+                            long startNanos = System.nanoTime();
+                            endpoint.delete(entry);
+                            SyncAction action = new SyncAction(SyncAction.Type.DELETE, entry.getRelativePath(),
+                                    null, entry);
+                            metrics.entryDeleted(action, System.nanoTime() - startNanos);
+                            if (listener != null) {
+                                listener.actionCompleted(action);
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Deletion was interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the entries grouped by depth, deepest first
+     */
+    private static Collection<List<FileEntry>> byDepth(Collection<FileEntry> entries) {
+        TreeMap<Integer, List<FileEntry>> levels = new TreeMap<Integer, List<FileEntry>>();
+        for (FileEntry entry : entries) {
+            String path = entry.getRelativePath();
+            int depth = 0;
+            for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1)) {
+                depth++;
+            }
+            List<FileEntry> level = levels.get(depth);
+            if (level == null) {
+                level = new ArrayList<FileEntry>();
+                levels.put(depth, level);
+            }
+            level.add(entry);
+        }
+        return levels.descendingMap().values();
+    }
+
+    /**
+     * Lists a folder to delete, and forks a sub-task for each of its child
+     * folders which the filters may accept something in.
+     */
+    class ExpandTask extends RecursiveTask<Boolean> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileEntry folder;
+        private final Queue<FileEntry> expanded;
+
+        ExpandTask(FileEntry folder, Queue<FileEntry> expanded) {
+            this.folder = folder;
+            this.expanded = expanded;
+        }
+
+        /**
+         * @return whether the whole folder is to be deleted
+         */
+        protected Boolean compute() {
+            boolean complete = true;
+            List<ExpandTask> subTasks = new ArrayList<ExpandTask>();
+            try {
+                for (FileEntry child : endpoint.list(folder.getRelativePath()).values()) {
+                    String path = child.getRelativePath();
+                    if (child.isDirectory() && ParallelTreeWalker.acceptSubtree(path, pathFilters)) {
+                        subTasks.add(new ExpandTask(child, expanded));
+                    } else if (!child.isDirectory() && ParallelTreeWalker.accept(path, pathFilters)) {
+                        expanded.add(child);
+                    } else {
+                        complete = false;
+                    }
+                }
+            } catch (IOException ex) {
+                throw new ParallelTreeWalker.WalkFailure(ex);
+            }
+            for (ExpandTask subTask : invokeAll(subTasks)) {
+                complete &= subTask.join();
+            }
+            if (complete) {
+                expanded.add(folder);
+            } else {
+                logger.debug("Keeping " + folder.getRelativePath() + ", which holds excluded entries");
+            }
+            return complete;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package osj.filesync;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Computes the difference between a file and another version of it known
+ * only by its {@link BlockSignatures}, the way rsync does: the rolling
+ * checksum is checked at every offset of the new data, and any window
+ * whose weak and strong checksums match a block of the old version is
+ * sent as a reference to that block rather than as data.
+ *
+ * The delta is a stream of operations, applied by {@link DeltaPatcher}:
+ *
+ * <pre>
+ * int blockSize
+ * { byte OP_LITERAL, int length, byte[length] data
+ * | byte OP_COPY, int firstBlock, int blockCount }*
+ * byte OP_END
+ * </pre>
+ *
+ * Only a buffer of a few blocks is held in memory, whatever the size of
+ * the file.
+ *
+ * @author ajmas
+ *
+ */
+public class DeltaGenerator {
+
+    static final int OP_END = 0;
+    static final int OP_LITERAL = 1;
+    static final int OP_COPY = 2;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_LITERAL = 256 * 1024;
+
+    private final BlockSignatures signatures;
+
+    private long literalBytes;
+    private long copiedBytes;
+
+    public DeltaGenerator(BlockSignatures signatures) {
+        this.signatures = signatures;
+    }
+
+    /**
+     * Writes the delta which turns the old version into the new data.
+     */
+    public void generate(InputStream newData, OutputStream out) throws IOException {
+        int blockSize = signatures.getBlockSize();
+        DeltaWriter writer = new DeltaWriter(new DataOutputStream(out), blockSize);
+        RollingChecksum weakSum = new RollingChecksum(blockSize);
+        MessageDigest digest = BlockSignatures.newDigest();
+
+        byte[] buffer = new byte[Math.max(BUFFER_SIZE, blockSize * 4)];
+        int start = 0;
+        int end = 0;
+        int literalStart = 0;
+        int nextBlock = 0;
+        boolean weakSumValid = false;
+        boolean eof = false;
+
+        while (true) {
+            // INFO one byte past the window is needed to roll it forward
+            if (end - start <= blockSize && !eof) {
+                writer.literal(buffer, literalStart, start - literalStart);
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+                literalStart = 0;
+                int count = 0;
+                while (end < buffer.length && (count = newData.read(buffer, end, buffer.length - end)) > -1) {
+                    end += count;
+                }
+                eof = count == -1;
+                continue;
+            }
+            if (end - start < blockSize) {
+                break;
+            }
+
+            if (!weakSumValid) {
+                weakSum.reset(buffer, start, blockSize);
+                weakSumValid = true;
+            }
+
+            int block = findBlock(weakSum.getValue(), buffer, start, blockSize, nextBlock, digest);
+            if (block >= 0) {
+                writer.literal(buffer, literalStart, start - literalStart);
+                writer.copy(block);
+                start += blockSize;
+                literalStart = start;
+                nextBlock = block + 1;
+                weakSumValid = false;
+            } else if (start + blockSize < end) {
+                weakSum.roll(buffer[start], buffer[start + blockSize]);
+                start++;
+                if (start - literalStart >= MAX_LITERAL) {
+                    writer.literal(buffer, literalStart, start - literalStart);
+                    literalStart = start;
+                }
+            } else {
+                break;
+            }
+        }
+
+        // INFO the last block of the old version is usually shorter than the others
+        int tailLength = end - start;
+        int lastBlock = signatures.getBlockCount() - 1;
+        if (tailLength > 0 && lastBlock >= 0
+                && signatures.getFileLength() - (long) lastBlock * blockSize == tailLength
+                && findBlock(RollingChecksum.of(buffer, start, tailLength), buffer, start, tailLength, lastBlock, digest) == lastBlock) {
+            writer.literal(buffer, literalStart, start - literalStart);
+            writer.copy(lastBlock);
+            literalStart = end;
+        }
+        writer.literal(buffer, literalStart, end - literalStart);
+        writer.end();
+    }
+
+    /**
+     * @return the number of bytes of the new data which were sent as is
+     */
+    public long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    /**
+     * @return the number of bytes of the new data which were taken from the old version
+     */
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    /**
+     * @return the matching block, preferring the one following the last
+     *         match so that runs of blocks are kept together, or -1
+     */
+    private int findBlock(int weakSum, byte[] buffer, int offset, int length, int preferredBlock, MessageDigest digest) {
+        int[] blocks = signatures.findBlocks(weakSum);
+        if (blocks == null) {
+            return -1;
+        }
+        digest.update(buffer, offset, length);
+        byte[] strongSum = digest.digest();
+        int match = -1;
+        for (int block : blocks) {
+            if (Arrays.equals(strongSum, signatures.getStrongSum(block))) {
+                if (block == preferredBlock) {
+                    return block;
+                }
+                if (match < 0) {
+                    match = block;
+                }
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Writes the operations, merging references to consecutive blocks.
+     */
+    private class DeltaWriter {
+        private final DataOutputStream out;
+        private final int blockSize;
+        private int firstBlock = -1;
+        private int blockCount;
+
+        DeltaWriter(DataOutputStream out, int blockSize) throws IOException {
+            this.out = out;
+            this.blockSize = blockSize;
+            out.writeInt(blockSize);
+        }
+
+        void literal(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            flushCopy();
+            out.writeByte(OP_LITERAL);
+            out.writeInt(length);
+            out.write(buffer, offset, length);
+            literalBytes += length;
+        }
+
+        void copy(int block) throws IOException {
+            if (firstBlock >= 0 && block == firstBlock + blockCount) {
+                blockCount++;
+                return;
+            }
+            flushCopy();
+            firstBlock = block;
+            blockCount = 1;
+        }
+
+        void end() throws IOException {
+            flushCopy();
+            out.writeByte(OP_END);
+            out.flush();
+        }
+
+        private void flushCopy() throws IOException {
+            if (firstBlock < 0) {
+                return;
+            }
+            out.writeByte(OP_COPY);
+            out.writeInt(firstBlock);
+            out.writeInt(blockCount);
+            long offset = (long) firstBlock * blockSize;
+            copiedBytes += Math.min((long) blockCount * blockSize, signatures.getFileLength() - offset);
+            firstBlock = -1;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package osj.filesync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+
+/**
+ * The receiving side of a delta transfer, run on the remote host over an
+ * exec channel by {@link SftpDeltaUploadTransfer}. It only needs this
+ * jar on the remote host, for example:
+ *
+ * <pre>
+ * java -cp bonsai-filesync.jar osj.filesync.DeltaHelper signature &lt;file&gt; &lt;blockSize&gt;
+ * java -cp bonsai-filesync.jar osj.filesync.DeltaHelper patch &lt;file&gt;
+ * </pre>
+ *
+ * 'signature' writes the {@link BlockSignatures} of the file to standard
+ * output. 'patch' reads a delta from standard input, writes the new
+ * version to a temporary file next to the file and renames it over the
+ * file, so the file is never seen half written.
+ *
+ * @author ajmas
+ *
+ */
+public class DeltaHelper {
+
+    public static void main(String[] args) {
+        try {
+            if (args.length == 3 && "signature".equals(args[0])) {
+                signature(new File(args[1]), Integer.parseInt(args[2]));
+            } else if (args.length == 2 && "patch".equals(args[0])) {
+                patch(new File(args[1]));
+            } else {
+                System.err.println("Usage: DeltaHelper signature <file> <blockSize> | patch <file>");
+                System.exit(2);
+            }
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static void signature(File file, int blockSize) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 65536)) {
+            OutputStream out = new BufferedOutputStream(System.out, 65536);
+            BlockSignatures.compute(in, blockSize).write(out);
+            out.flush();
+        }
+    }
+
+    static void patch(File file) throws IOException {
+        File tempFile = TempFiles.createTempFile(file.getAbsoluteFile().toPath()).toFile();
+        try {
+            try (RandomAccessFile oldFile = new RandomAccessFile(file, "r");
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile), 65536)) {
+                new DeltaPatcher(oldFile).apply(new BufferedInputStream(System.in, 65536), out);
+            }
+            PosixFileAttributeView attributes = Files.getFileAttributeView(file.toPath(), PosixFileAttributeView.class);
+            if (attributes != null) {
+                Files.setPosixFilePermissions(tempFile.toPath(), attributes.readAttributes().permissions());
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package osj.filesync;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Rebuilds the new version of a file from its old version and a delta
+ * written by {@link DeltaGenerator}.
+ *
+ * @author ajmas
+ *
+ */
+public class DeltaPatcher {
+
+    private final RandomAccessFile oldFile;
+
+    public DeltaPatcher(RandomAccessFile oldFile) {
+        this.oldFile = oldFile;
+    }
+
+    /**
+     * Writes the new version to the output.
+     *
+     * @return the length of the new version
+     */
+    public long apply(InputStream delta, OutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(delta);
+        int blockSize = in.readInt();
+        long oldLength = oldFile.length();
+        byte[] buffer = new byte[65536];
+        long length = 0;
+
+        while (true) {
+            int op = in.readUnsignedByte();
+            if (op == DeltaGenerator.OP_END) {
+                out.flush();
+                return length;
+            } else if (op == DeltaGenerator.OP_LITERAL) {
+                int remaining = in.readInt();
+                length += remaining;
+                while (remaining > 0) {
+                    int count = Math.min(remaining, buffer.length);
+                    in.readFully(buffer, 0, count);
+                    out.write(buffer, 0, count);
+                    remaining -= count;
+                }
+            } else if (op == DeltaGenerator.OP_COPY) {
+                long offset = (long) in.readInt() * blockSize;
+                long remaining = Math.min((long) in.readInt() * blockSize, oldLength - offset);
+                if (offset < 0 || remaining < 0) {
+                    throw new IOException("Delta refers to data past the end of the old file, at " + offset);
+                }
+                length += remaining;
+                oldFile.seek(offset);
+                while (remaining > 0) {
+                    int count = (int) Math.min(remaining, buffer.length);
+                    oldFile.readFully(buffer, 0, count);
+                    out.write(buffer, 0, count);
+                    remaining -= count;
+                }
+            } else {
+                throw new IOException("Unexpected delta operation: " + op);
+            }
+        }
+    }
+}
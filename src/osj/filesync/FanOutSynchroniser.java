@@ -0,0 +1,376 @@
+package osj.filesync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.apache.log4j.Logger;
+
+import osj.filesync.FileSynchroniser.SyncDirection;
+
+/**
+ * Synchronises one local folder to many targets, ssh hosts or local
+ * folders, as {@link SshFileSynchroniser} and
+ * {@link SimpleLocalFileSynchroniser} would to each of them, but with a
+ * single pass over the source.
+ *
+ * The targets are compared to the source concurrently, and all of them
+ * see the same {@link SourceSnapshot}, so each source folder is listed,
+ * and each file hashed, once. Once every target has its
+ * {@link ChangePlan}, the plans are applied concurrently. A file which
+ * several ssh hosts need is read from disk once into shared buffers, see
+ * {@link SharedReadBuffers}. The plans list their copies in path order,
+ * so the targets tend to need the same files at about the same time.
+ *
+ * The number of targets handled at once and the number of file transfers
+ * running at once, over all targets, are both capped. A failed target
+ * does not stop the others: each one gets its own {@link SyncReport}, and
+ * the sync fails once all of them are done if any of them failed.
+ *
+ * The index file of the configuration is not used, since it describes a
+ * single pair of endpoints, and uploads are not resumable.
+ *
+ * @author ajmas
+ *
+ */
+public class FanOutSynchroniser {
+
+    static final String FILE_PROTOCOL = "file";
+    static final String SSH_PROTOCOL = "ssh";
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final SshFileSynchroniser sshSynchroniser = new SshFileSynchroniser();
+
+    private int maxConcurrentTargets = 8;
+    private int maxConcurrentTransfers = 16;
+    private long bufferCapacity = 256L * 1024 * 1024;
+    private long maxBufferedFileSize = 16L * 1024 * 1024;
+
+    private volatile Map<URI, SyncReport> lastSyncReports = Collections.emptyMap();
+
+    /**
+     * @return the number of targets compared or updated at once
+     */
+    public int getMaxConcurrentTargets() {
+        return maxConcurrentTargets;
+    }
+
+    public void setMaxConcurrentTargets(int maxConcurrentTargets) {
+        this.maxConcurrentTargets = maxConcurrentTargets;
+    }
+
+    /**
+     * @return the number of file transfers running at once, over all
+     *         targets
+     */
+    public int getMaxConcurrentTransfers() {
+        return maxConcurrentTransfers;
+    }
+
+    public void setMaxConcurrentTransfers(int maxConcurrentTransfers) {
+        this.maxConcurrentTransfers = maxConcurrentTransfers;
+    }
+
+    /**
+     * @return the most bytes of source files kept in memory for the
+     *         targets which still need them
+     */
+    public long getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    public void setBufferCapacity(long bufferCapacity) {
+        this.bufferCapacity = bufferCapacity;
+    }
+
+    /**
+     * @return the size of the largest file which is buffered, larger ones
+     *         are read from disk by each transfer
+     */
+    public long getMaxBufferedFileSize() {
+        return maxBufferedFileSize;
+    }
+
+    public void setMaxBufferedFileSize(long maxBufferedFileSize) {
+        this.maxBufferedFileSize = maxBufferedFileSize;
+    }
+
+    /**
+     * Syncs the local folder of the configuration to each target. The
+     * remote configuration is not used.
+     */
+    public void syncFiles(final FileSyncConfiguration configuration, List<EndpointConfiguration> targets,
+            final List<String> relativePaths, final boolean force, final PathFilter pathFilter)
+            throws FileSyncException, IOException {
+
+        final URI localURI = configuration.getLocalConfiguration().getURI();
+        if (!FILE_PROTOCOL.equalsIgnoreCase(localURI.getScheme())) {
+            throw new RuntimeException("Only URLs of type 'file' are supported by this synchroniser");
+        }
+        List<Target> fanOut = new ArrayList<Target>();
+        for (EndpointConfiguration endpoint : targets) {
+            String scheme = endpoint.getURI().getScheme();
+            if (!SSH_PROTOCOL.equalsIgnoreCase(scheme) && !FILE_PROTOCOL.equalsIgnoreCase(scheme)) {
+                throw new RuntimeException(
+                        "Only target URLs of type 'ssh' or 'file' are supported by this synchroniser, specified scheme was: "
+                                + scheme);
+            }
+            fanOut.add(new Target(endpoint, new SyncRecorder(getClass().getSimpleName(), SyncDirection.TO_REMOTE,
+                    configuration.getSyncMetrics())));
+        }
+        if (fanOut.isEmpty()) {
+            lastSyncReports = Collections.emptyMap();
+            return;
+        }
+
+        final LocalSyncEndpoint source = new LocalSyncEndpoint(new File(localURI.getPath()).toPath());
+        final SourceSnapshot snapshot = new SourceSnapshot(source);
+        final SharedReadBuffers buffers = new SharedReadBuffers(source, bufferCapacity, maxBufferedFileSize);
+        final Semaphore transferPermits = new Semaphore(maxConcurrentTransfers);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxConcurrentTargets, fanOut.size()));
+        try {
+            forEachTarget(executor, fanOut, new TargetTask() {
+                public void run(Target target) throws FileSyncException, IOException {
+                    target.plan = plan(target, configuration, snapshot, relativePaths, force, pathFilter);
+                }
+            });
+            for (Target target : fanOut) {
+                if (target.plan != null && target.isSsh()) {
+                    for (SyncAction action : target.plan.getCopies()) {
+                        buffers.expect(action.getRelativePath());
+                        target.expected.add(action.getRelativePath());
+                    }
+                }
+            }
+            forEachTarget(executor, fanOut, new TargetTask() {
+                public void run(Target target) throws FileSyncException, IOException {
+                    try {
+                        if (target.plan != null) {
+                            apply(target, configuration, source, snapshot, buffers, transferPermits);
+                        }
+                    } finally {
+                        // INFO copies skipped or not reached, as the target failed, are released too
+                        for (String relativePath : target.expected) {
+                            if (target.expected.remove(relativePath)) {
+                                buffers.release(relativePath);
+                            }
+                        }
+                    }
+                }
+            });
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Map<URI, SyncReport> reports = new LinkedHashMap<URI, SyncReport>();
+        StringBuilder failures = new StringBuilder();
+        int failed = 0;
+        for (Target target : fanOut) {
+            reports.put(target.endpoint.getURI(), target.recorder.finish(target.failure));
+            if (target.failure != null) {
+                failed++;
+                failures.append('\n').append(target.endpoint.getURI()).append(": ").append(target.failure);
+            }
+        }
+        lastSyncReports = Collections.unmodifiableMap(reports);
+        if (failed > 0) {
+            throw new FileSyncException("The sync failed for " + failed + " of " + fanOut.size() + " targets",
+                    failures.substring(1));
+        }
+    }
+
+    /**
+     * @return the report of each target of the last sync, in the order the
+     *         targets were given
+     */
+    public Map<URI, SyncReport> getLastSyncReports() {
+        return lastSyncReports;
+    }
+
+    private ChangePlan plan(final Target target, final FileSyncConfiguration configuration,
+            final SourceSnapshot snapshot, final List<String> relativePaths, final boolean force,
+            final PathFilter pathFilter) throws FileSyncException, IOException {
+
+        final URI targetURI = target.endpoint.getURI();
+        if (!target.isSsh()) {
+            LocalSyncEndpoint destination = new LocalSyncEndpoint(new File(targetURI.getPath()).toPath());
+            SyncPipeline pipeline = createPipeline(target, configuration, snapshot, destination);
+            return pipeline.plan(force, relativePaths, configuration.getPathFilter(), pathFilter);
+        }
+        return sshSynchroniser.withChannels(target.endpoint, new SshFileSynchroniser.ChannelTask<ChangePlan>() {
+            public ChangePlan run(SftpChannelPool channels) throws FileSyncException, IOException {
+                SftpSyncEndpoint destination = new SftpSyncEndpoint(channels, targetURI.getPath());
+                if (relativePaths == null) {
+                    sshSynchroniser.loadManifest(destination, target.endpoint);
+                }
+                SyncPipeline pipeline = createPipeline(target, configuration, snapshot, destination);
+                // INFO files which are no longer on the local side are left on the remote side
+                pipeline.setDeleteExtraneous(false);
+                return pipeline.plan(force, relativePaths, configuration.getPathFilter(), pathFilter);
+            }
+        });
+    }
+
+    private SyncPipeline createPipeline(Target target, FileSyncConfiguration configuration, SourceSnapshot snapshot,
+            SyncEndpoint destination) {
+        // INFO the transfer is never used by a plan
+        SyncPipeline pipeline = new SyncPipeline(snapshot, destination, null);
+        pipeline.configure(configuration, configuration.getLocalConfiguration().getURI(), target.endpoint.getURI());
+        pipeline.setIndexFile(null, null, null);
+        pipeline.setMetrics(target.recorder);
+        return pipeline;
+    }
+
+    private void apply(final Target target, final FileSyncConfiguration configuration, final LocalSyncEndpoint source,
+            final SourceSnapshot snapshot, final SharedReadBuffers buffers, final Semaphore transferPermits)
+            throws FileSyncException, IOException {
+
+        final URI targetURI = target.endpoint.getURI();
+        final Properties targetProperties = target.endpoint.getConfigurationProperties();
+        if (!target.isSsh()) {
+            LocalSyncEndpoint destination = new LocalSyncEndpoint(new File(targetURI.getPath()).toPath());
+            FileTransfer transfer = new LocalFileTransfer(source, destination, targetProperties);
+            if (configuration.getThrottle() != null) {
+                destination.setThrottle(configuration.getThrottle());
+                transfer = new ThrottledTransfer(transfer, configuration.getThrottle());
+            }
+            execute(target, configuration, snapshot, destination,
+                    new LimitedTransfer(transfer, transferPermits, target, null));
+            return;
+        }
+        sshSynchroniser.withChannels(target.endpoint, new SshFileSynchroniser.ChannelTask<Void>() {
+            public Void run(SftpChannelPool channels) throws FileSyncException, IOException {
+                SftpSyncEndpoint destination = new SftpSyncEndpoint(channels, targetURI.getPath());
+                destination.setThrottle(configuration.getThrottle());
+                FileTransfer transfer = sshSynchroniser.createUploadTransfer(source, destination, targetProperties,
+                        new CompressionPolicy(targetProperties), null, buffers);
+                execute(target, configuration, snapshot, destination,
+                        new LimitedTransfer(transfer, transferPermits, target, buffers));
+                return null;
+            }
+        });
+    }
+
+    private void execute(Target target, FileSyncConfiguration configuration, SourceSnapshot snapshot,
+            SyncEndpoint destination, FileTransfer transfer) throws FileSyncException, IOException {
+        ChangePlanExecutor executor = new ChangePlanExecutor(snapshot, destination, transfer);
+        executor.configure(configuration);
+        executor.setMetrics(target.recorder);
+        executor.execute(target.plan);
+    }
+
+    /**
+     * Runs the task for each target which has not failed yet, and records
+     * the failures.
+     */
+    private void forEachTarget(ExecutorService executor, List<Target> fanOut, final TargetTask task)
+            throws InterruptedIOException {
+        List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
+        for (final Target target : fanOut) {
+            if (target.failure != null) {
+                continue;
+            }
+            calls.add(new Callable<Void>() {
+                public Void call() {
+                    try {
+                        task.run(target);
+                    } catch (FileSyncException | IOException | RuntimeException ex) {
+                        logger.warn("The sync to " + target.endpoint.getURI() + " failed", ex);
+                        target.failure = ex;
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            executor.invokeAll(calls);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while syncing to " + fanOut.size() + " targets");
+        }
+    }
+
+    interface TargetTask {
+        void run(Target target) throws FileSyncException, IOException;
+    }
+
+    /**
+     * One target of the fan-out, and where its sync has got to.
+     */
+    static class Target {
+        final EndpointConfiguration endpoint;
+        final SyncRecorder recorder;
+        volatile ChangePlan plan;
+        volatile Exception failure;
+        // INFO the copies announced to the shared buffers, and not released yet
+        final Set<String> expected = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        Target(EndpointConfiguration endpoint, SyncRecorder recorder) {
+            this.endpoint = endpoint;
+            this.recorder = recorder;
+        }
+
+        boolean isSsh() {
+            return SSH_PROTOCOL.equalsIgnoreCase(endpoint.getURI().getScheme());
+        }
+    }
+
+    /**
+     * Holds one of the permits shared by the transfers of all targets for
+     * the time of each transfer, and releases the target's shared buffer
+     * of the file once it is sent, whichever transfer sent it.
+     */
+    static class LimitedTransfer implements FileTransfer {
+
+        private final FileTransfer transfer;
+        private final Semaphore permits;
+        private final Target target;
+        private final SharedReadBuffers buffers;
+
+        /**
+         * @param buffers the shared buffers the target's copies were
+         *        announced to, or null if they were not
+         */
+        LimitedTransfer(FileTransfer transfer, Semaphore permits, Target target, SharedReadBuffers buffers) {
+            this.transfer = transfer;
+            this.permits = permits;
+            this.target = target;
+            this.buffers = buffers;
+        }
+
+        public void transfer(SyncAction action) throws IOException {
+            try {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to transfer " + action.getRelativePath());
+                }
+                try {
+                    transfer.transfer(action);
+                } finally {
+                    permits.release();
+                }
+            } finally {
+                if (buffers != null && target.expected.remove(action.getRelativePath())) {
+                    buffers.release(action.getRelativePath());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package osj.filesync;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Metadata for a single file or directory, as seen from one side of
+ * the sync. The path is relative to the endpoint's 'sync base' and
+ * uses '/' as separator, irrespective of the platform.
+ *
+ * @author ajmas
+ *
+ */
+public class FileEntry {
+
+    private final String relativePath;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+    private final Object fileKey;
+
+    public FileEntry(String relativePath, boolean directory, long size, long lastModified, Object fileKey) {
+        this.relativePath = relativePath;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.fileKey = fileKey;
+    }
+
+    public static FileEntry fromAttributes(String relativePath, BasicFileAttributes attributes) {
+        return new FileEntry(relativePath, attributes.isDirectory(), attributes.size(),
+                attributes.lastModifiedTime().toMillis(), attributes.fileKey());
+    }
+
+    public String getRelativePath() {
+        return relativePath;
+    }
+
+    public String getName() {
+        return relativePath.substring(relativePath.lastIndexOf('/') + 1);
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the last modified time, in milliseconds since the epoch
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the file system specific key (inode) or null if not available
+     */
+    public Object getFileKey() {
+        return fileKey;
+    }
+
+    public String toString() {
+        return relativePath + (directory ? "/" : "") + " [size=" + size + ", lastModified=" + lastModified + "]";
+    }
+}
@@ -0,0 +1,172 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Computes the MD5 of local files on a pool of threads. Files are read
+ * through memory mappings of the file, a segment at a time, which saves
+ * copying the data into the heap. Small files are read into a buffer
+ * instead, as mapping them costs more than it saves.
+ *
+ * Hashes are cached by path, size and modification time, so a file is
+ * only hashed again once it changes.
+ *
+ * @author ajmas
+ *
+ */
+public class FileHasher {
+
+    static final int MAX_CACHED_HASHES = 100000;
+
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int MIN_MAPPED_SIZE = 64 * 1024;
+
+    private static final FileHasher DEFAULT = new FileHasher(Runtime.getRuntime().availableProcessors());
+
+    private final ExecutorService executor;
+
+    private final Map<Path, CachedHash> cache = new LinkedHashMap<Path, CachedHash>(1024, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<Path, CachedHash> eldest) {
+            return size() > MAX_CACHED_HASHES;
+        }
+    };
+
+    public FileHasher(int parallelism) {
+        executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "file-hasher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return the hasher shared by all the local endpoints
+     */
+    public static FileHasher getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Hashes the files in parallel.
+     *
+     * @param files the attributes of each file, as they were listed
+     * @return the MD5 of each file
+     */
+    public Map<Path, byte[]> hash(Map<Path, FileEntry> files) throws IOException {
+        Map<Path, byte[]> hashes = new HashMap<Path, byte[]>();
+        Map<Path, Future<byte[]>> pending = new HashMap<Path, Future<byte[]>>();
+        for (Map.Entry<Path, FileEntry> file : files.entrySet()) {
+            final Path path = file.getKey();
+            final FileEntry entry = file.getValue();
+            byte[] hash = getCached(path, entry);
+            if (hash != null) {
+                hashes.put(path, hash);
+            } else {
+                pending.put(path, executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        byte[] hash = hash(path);
+                        putCached(path, entry, hash);
+                        return hash;
+                    }
+                }));
+            }
+        }
+
+        try {
+            for (Map.Entry<Path, Future<byte[]>> file : pending.entrySet()) {
+                hashes.put(file.getKey(), file.getValue().get());
+            }
+        } catch (InterruptedException ex) {
+            cancel(pending.values());
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing files");
+        } catch (ExecutionException ex) {
+            cancel(pending.values());
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Unable to hash files", ex.getCause());
+        }
+        return hashes;
+    }
+
+    /**
+     * @return the MD5 of the file
+     */
+    public static byte[] hash(Path path) throws IOException {
+        MessageDigest digest = BlockSignatures.newDigest();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < MIN_MAPPED_SIZE) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) > -1) {
+                    // INFO read until the buffer is full
+                }
+                buffer.flip();
+                digest.update(buffer);
+            } else {
+                for (long position = 0; position < size; position += SEGMENT_SIZE) {
+                    MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(SEGMENT_SIZE, size - position));
+                    digest.update(segment);
+                }
+            }
+        }
+        return digest.digest();
+    }
+
+    private byte[] getCached(Path path, FileEntry entry) {
+        synchronized (cache) {
+            CachedHash cached = cache.get(path);
+            if (cached != null && cached.size == entry.getSize() && cached.lastModified == entry.getLastModified()) {
+                return cached.hash;
+            }
+            return null;
+        }
+    }
+
+    private void putCached(Path path, FileEntry entry, byte[] hash) {
+        synchronized (cache) {
+            cache.put(path, new CachedHash(entry.getSize(), entry.getLastModified(), hash));
+        }
+    }
+
+    private static void cancel(Collection<Future<byte[]>> futures) {
+        for (Future<byte[]> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    static class CachedHash {
+        final long size;
+        final long lastModified;
+        final byte[] hash;
+
+        CachedHash(long size, long lastModified, byte[] hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package osj.filesync;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -19,6 +20,20 @@ public class FileSyncConfiguration {
     private List<String> pathsToInclude = new ArrayList<String>();
     private List<String> pathsToExclude = new ArrayList<String>();
 
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int transferThreads = 4;
+    private int queueCapacity = 1024;
+
+    private File indexFile;
+    private boolean trustDirectoryTimestamps;
+    private ChangeDetector.Mode changeDetection = ChangeDetector.Mode.MTIME;
+    private TwoWaySync.ConflictPolicy conflictPolicy = TwoWaySync.ConflictPolicy.KEEP_BOTH;
+    private int maxDeletions = -1;
+
+    private List<SyncListener> syncListeners = new ArrayList<SyncListener>();
+    private SyncMetrics syncMetrics = SyncMetrics.NOOP;
+    private TransferThrottle throttle;
+
     public EndpointConfiguration getRemoteConfiguration() {
         return remoteConfiguration;
     }
@@ -51,11 +66,190 @@ public class FileSyncConfiguration {
         this.pathsToExclude = pathsToExclude;
     }
 
+    /**
+     * @return the number of threads used to scan and compare the trees
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the number of threads used to transfer files
+     */
+    public int getTransferThreads() {
+        return transferThreads;
+    }
+
+    public void setTransferThreads(int transferThreads) {
+        this.transferThreads = transferThreads;
+    }
+
+    /**
+     * @return the maximum number of pending items between two stages of
+     *         the {@link SyncPipeline}
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @return the file in which the state of both sides is kept between
+     *         runs, or null if no state is kept
+     */
+    public File getIndexFile() {
+        return indexFile;
+    }
+
+    public void setIndexFile(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    public boolean isTrustDirectoryTimestamps() {
+        return trustDirectoryTimestamps;
+    }
+
+    /**
+     * When set, and an index file is configured, a folder whose modification
+     * time is unchanged on both sides since the last run is not listed: its
+     * files are taken to be unchanged and only its sub-folders are stat'ed.
+     * This turns a no-op sync into one stat call per folder on each side,
+     * but a file edited in place, which only updates its own modification
+     * time and not its folder's, is not picked up until its folder changes
+     * or a forced sync is run.
+     */
+    public void setTrustDirectoryTimestamps(boolean trustDirectoryTimestamps) {
+        this.trustDirectoryTimestamps = trustDirectoryTimestamps;
+    }
+
+    /**
+     * @return how files present on both sides are checked for changes
+     */
+    public ChangeDetector.Mode getChangeDetection() {
+        return changeDetection;
+    }
+
+    /**
+     * Content hash detection reads every file which has the same size on
+     * both sides, except those whose hash is recorded in the index file
+     * and which are unchanged since, so it is best used with an index.
+     */
+    public void setChangeDetection(ChangeDetector.Mode changeDetection) {
+        this.changeDetection = changeDetection;
+    }
+
+    /**
+     * @return how a two way sync handles a path changed on both sides
+     */
+    public TwoWaySync.ConflictPolicy getConflictPolicy() {
+        return conflictPolicy;
+    }
+
+    public void setConflictPolicy(TwoWaySync.ConflictPolicy conflictPolicy) {
+        this.conflictPolicy = conflictPolicy;
+    }
+
+    /**
+     * @return the most entries a sync may delete, or -1 for no limit
+     */
+    public int getMaxDeletions() {
+        return maxDeletions;
+    }
+
+    /**
+     * Guards against a sync wiping the destination, for instance when the
+     * source is an unmounted or empty folder. A sync which would delete
+     * more entries than this, counting the content of deleted folders,
+     * fails before deleting any of them.
+     */
+    public void setMaxDeletions(int maxDeletions) {
+        this.maxDeletions = maxDeletions;
+    }
+
+    /**
+     * @return the listeners told about each change made by a sync
+     */
+    public List<SyncListener> getSyncListeners() {
+        return syncListeners;
+    }
+
+    public void addSyncListener(SyncListener syncListener) {
+        syncListeners.add(syncListener);
+    }
+
+    /**
+     * @return where the measurements of each sync are sent, by default
+     *         nowhere
+     */
+    public SyncMetrics getSyncMetrics() {
+        return syncMetrics;
+    }
+
+    /**
+     * @see JmxSyncMetrics
+     */
+    public void setSyncMetrics(SyncMetrics syncMetrics) {
+        this.syncMetrics = syncMetrics != null ? syncMetrics : SyncMetrics.NOOP;
+    }
+
+    /**
+     * @return the limits on the transfers, or null if they are not limited
+     */
+    public TransferThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * The throttle can be changed while a sync runs, which then follows its
+     * new limits.
+     */
+    public void setThrottle(TransferThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @return a copy of the parameters, which can be changed without
+     *         affecting this configuration
+     */
+    FileSyncConfiguration copy() {
+        FileSyncConfiguration copy = new FileSyncConfiguration();
+        copy.remoteConfiguration = remoteConfiguration;
+        copy.localConfiguration = localConfiguration;
+        copy.pathsToInclude = new ArrayList<String>(pathsToInclude);
+        copy.pathsToExclude = new ArrayList<String>(pathsToExclude);
+        copy.parallelism = parallelism;
+        copy.transferThreads = transferThreads;
+        copy.queueCapacity = queueCapacity;
+        copy.indexFile = indexFile;
+        copy.trustDirectoryTimestamps = trustDirectoryTimestamps;
+        copy.changeDetection = changeDetection;
+        copy.conflictPolicy = conflictPolicy;
+        copy.maxDeletions = maxDeletions;
+        copy.syncListeners = new ArrayList<SyncListener>(syncListeners);
+        copy.syncMetrics = syncMetrics;
+        copy.throttle = throttle;
+        return copy;
+    }
 
+    /**
+     * @return the filter for the paths to include and exclude, see
+     *         {@link CompiledPathFilter} for the pattern syntax
+     */
     public PathFilter getPathFilter() {
-        return new FSPathFilter ();
+        return new CompiledPathFilter(pathsToInclude, pathsToExclude);
     }
 
+    /**
+     * Plain prefix filter, which tests every path against every pattern.
+     * Superseded by {@link CompiledPathFilter}.
+     */
     class FSPathFilter implements PathFilter {
 
         public boolean accept(String path) {
@@ -69,7 +263,7 @@ public class FileSyncConfiguration {
             }
 
 
-            if ( pathsToInclude != null && pathsToExclude.size() > 0 ) {
+            if ( pathsToInclude != null && pathsToInclude.size() > 0 ) {
                 for (String includePath : pathsToInclude) {
                     if (path.startsWith(includePath)) {
                         return true;
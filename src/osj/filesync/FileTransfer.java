@@ -0,0 +1,17 @@
+package osj.filesync;
+
+import java.io.IOException;
+
+/**
+ * Copies the content of a single file from the source endpoint to the
+ * destination endpoint. Used by the transfer workers of the
+ * {@link SyncPipeline}, so implementations must be safe for use from
+ * several threads at once.
+ *
+ * @author ajmas
+ *
+ */
+public interface FileTransfer {
+
+    public void transfer(SyncAction action) throws IOException;
+}
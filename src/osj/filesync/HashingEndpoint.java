@@ -0,0 +1,21 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A sync endpoint able to compute the MD5 of its files, which is needed
+ * for {@link ChangeDetector.Mode#CONTENT_HASH} change detection.
+ *
+ * @author ajmas
+ *
+ */
+public interface HashingEndpoint extends SyncEndpoint {
+
+    /**
+     * @return the MD5 of the content of each file, keyed by relative path
+     */
+    public Map<String, byte[]> hash(Collection<FileEntry> files) throws IOException;
+
+}
@@ -0,0 +1,207 @@
+package osj.filesync;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exports the measurements of the syncs as a standard MBean, under
+ * 'osj.filesync:type=SyncMetrics,name=...' on the platform MBean server,
+ * so they can be watched with jconsole or any JMX based monitoring.
+ *
+ * <pre>
+ * JmxSyncMetrics metrics = new JmxSyncMetrics();
+ * metrics.register("backup");
+ * configuration.setSyncMetrics(metrics);
+ * </pre>
+ *
+ * @author ajmas
+ *
+ */
+public class JmxSyncMetrics implements SyncMetrics, JmxSyncMetricsMBean {
+
+    public static final String DOMAIN = "osj.filesync";
+
+    private final AtomicLong syncCount = new AtomicLong();
+    private final AtomicLong failedSyncCount = new AtomicLong();
+    private final AtomicLong directoriesListed = new AtomicLong();
+    private final AtomicLong entriesScanned = new AtomicLong();
+    private final AtomicLong entriesCompared = new AtomicLong();
+    private final AtomicLong filesTransferred = new AtomicLong();
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private final AtomicLong directoriesCreated = new AtomicLong();
+    private final AtomicLong entriesDeleted = new AtomicLong();
+    private volatile LatencyHistogram transferLatency = new LatencyHistogram();
+
+    private volatile int listingsQueueDepth;
+    private volatile int actionsQueueDepth;
+    private volatile SyncReport lastReport;
+
+    private ObjectName objectName;
+
+    /**
+     * Registers the metrics on the platform MBean server.
+     *
+     * @param name the value of the name key of the object name, telling
+     *        apart the syncs of one application
+     */
+    public synchronized void register(String name) throws JMException {
+        ObjectName newName = new ObjectName(DOMAIN + ":type=SyncMetrics,name=" + ObjectName.quote(name));
+        unregister();
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, newName);
+        objectName = newName;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * @return the name the metrics are registered under, or null
+     */
+    public synchronized ObjectName getObjectName() {
+        return objectName;
+    }
+
+    public void directoryListed(String relativePath, int entries) {
+        directoriesListed.incrementAndGet();
+        entriesScanned.addAndGet(entries);
+    }
+
+    public void entriesCompared(int count) {
+        entriesCompared.addAndGet(count);
+    }
+
+    public void transferQueued(SyncAction action) {
+    }
+
+    public void fileTransferred(SyncAction action, long bytes, long nanos) {
+        filesTransferred.incrementAndGet();
+        bytesTransferred.addAndGet(bytes);
+        transferLatency.record(nanos);
+    }
+
+    public void directoryCreated(SyncAction action) {
+        directoriesCreated.incrementAndGet();
+    }
+
+    public void entryDeleted(SyncAction action, long nanos) {
+        entriesDeleted.incrementAndGet();
+    }
+
+    public void queueDepth(String queue, int depth) {
+        if (LISTINGS_QUEUE.equals(queue)) {
+            listingsQueueDepth = depth;
+        } else if (ACTIONS_QUEUE.equals(queue)) {
+            actionsQueueDepth = depth;
+        }
+    }
+
+    public void phaseCompleted(Phase phase, long nanos) {
+        // INFO only the last report's phases are exported, totals over syncs mean little
+    }
+
+    public void syncCompleted(SyncReport report) {
+        syncCount.incrementAndGet();
+        if (!report.isSuccessful()) {
+            failedSyncCount.incrementAndGet();
+        }
+        listingsQueueDepth = 0;
+        actionsQueueDepth = 0;
+        lastReport = report;
+    }
+
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+
+    public long getFailedSyncCount() {
+        return failedSyncCount.get();
+    }
+
+    public long getDirectoriesListed() {
+        return directoriesListed.get();
+    }
+
+    public long getEntriesScanned() {
+        return entriesScanned.get();
+    }
+
+    public long getEntriesCompared() {
+        return entriesCompared.get();
+    }
+
+    public long getFilesTransferred() {
+        return filesTransferred.get();
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    public long getDirectoriesCreated() {
+        return directoriesCreated.get();
+    }
+
+    public long getEntriesDeleted() {
+        return entriesDeleted.get();
+    }
+
+    public long getTransferLatencyMeanMicros() {
+        return transferLatency.getMeanNanos() / 1000;
+    }
+
+    public long getTransferLatencyP95Micros() {
+        return transferLatency.getPercentileNanos(95) / 1000;
+    }
+
+    public long getTransferLatencyMaxMicros() {
+        return transferLatency.getMaxNanos() / 1000;
+    }
+
+    public int getListingsQueueDepth() {
+        return listingsQueueDepth;
+    }
+
+    public int getActionsQueueDepth() {
+        return actionsQueueDepth;
+    }
+
+    public long getLastSyncDurationMillis() {
+        SyncReport report = lastReport;
+        return report != null ? report.getDurationMillis() : 0;
+    }
+
+    public boolean isLastSyncSuccessful() {
+        SyncReport report = lastReport;
+        return report == null || report.isSuccessful();
+    }
+
+    public String getLastSyncReport() {
+        SyncReport report = lastReport;
+        return report != null ? report.toString() : null;
+    }
+
+    public void reset() {
+        syncCount.set(0);
+        failedSyncCount.set(0);
+        directoriesListed.set(0);
+        entriesScanned.set(0);
+        entriesCompared.set(0);
+        filesTransferred.set(0);
+        bytesTransferred.set(0);
+        directoriesCreated.set(0);
+        entriesDeleted.set(0);
+        transferLatency = new LatencyHistogram();
+        lastReport = null;
+    }
+}
@@ -0,0 +1,47 @@
+package osj.filesync;
+
+/**
+ * The management interface of {@link JmxSyncMetrics}. The counts are
+ * totals over all the syncs since the metrics were created or reset.
+ *
+ * @author ajmas
+ *
+ */
+public interface JmxSyncMetricsMBean {
+
+    long getSyncCount();
+
+    long getFailedSyncCount();
+
+    long getDirectoriesListed();
+
+    long getEntriesScanned();
+
+    long getEntriesCompared();
+
+    long getFilesTransferred();
+
+    long getBytesTransferred();
+
+    long getDirectoriesCreated();
+
+    long getEntriesDeleted();
+
+    long getTransferLatencyMeanMicros();
+
+    long getTransferLatencyP95Micros();
+
+    long getTransferLatencyMaxMicros();
+
+    int getListingsQueueDepth();
+
+    int getActionsQueueDepth();
+
+    long getLastSyncDurationMillis();
+
+    boolean isLastSyncSuccessful();
+
+    String getLastSyncReport();
+
+    void reset();
+}
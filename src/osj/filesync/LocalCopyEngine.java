@@ -0,0 +1,355 @@
+package osj.filesync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Copies a file on the local file system with as little work as the file
+ * system allows. In order of preference, the copy is:
+ *
+ * <ul>
+ * <li>a clone sharing the source's blocks, on file systems with copy on
+ *     write support such as btrfs and xfs. Java has no access to the
+ *     FICLONE ioctl, so this runs 'cp --reflink=always', which is only
+ *     worth the process start for larger files. Once cp reports that a
+ *     file store does not support clones, they are not tried there
+ *     again; other failures only fall back for the file at hand.</li>
+ * <li>a sparse copy, for a file which has zero filled regions. Zero
+ *     blocks are skipped rather than written, leaving holes in the copy.
+ *     A file is only copied this way if a sample of its blocks finds a
+ *     zero one, so that ordinary files keep the faster path below.</li>
+ * <li>FileChannel.transferTo in large chunks, which the kernel can do
+ *     without copying the data through the JVM. Files above the chunked
+ *     threshold are split into ranges copied by several threads, each
+ *     writing at its own position, see {@link ChunkedCopy}.</li>
+ * </ul>
+ *
+ * The copy is written to a temporary file next to the target, which then
+ * replaces the target in a single rename. The modification time and the
+ * POSIX permissions are preserved.
+ *
+ * The following destination endpoint properties apply:
+ *
+ * <ul>
+ * <li>local.reflink: 'auto', the default, or 'never'</li>
+ * <li>local.sparse: 'auto', the default, or 'never'</li>
+ * <li>local.chunked.threads: the number of threads copying the ranges of
+ *     one file, 4 by default, or 1 to copy every file in one go</li>
+ * <li>local.chunked.threshold, local.chunked.chunkSize and
+ *     local.chunked.verify, see {@link ChunkedCopy}</li>
+ * </ul>
+ *
+ * @author ajmas
+ *
+ */
+public class LocalCopyEngine {
+
+    public static final String REFLINK_PROPERTY = "local.reflink";
+    public static final String SPARSE_PROPERTY = "local.sparse";
+    public static final String CHUNKED_PREFIX = "local.chunked";
+    public static final String CHUNKED_THREADS_PROPERTY = CHUNKED_PREFIX + ".threads";
+
+    public static final String AUTO = "auto";
+    public static final String NEVER = "never";
+
+    static final long TRANSFER_CHUNK_SIZE = 64L * 1024 * 1024;
+    static final long THROTTLED_CHUNK_SIZE = 256 * 1024;
+    static final long REFLINK_MIN_SIZE = 1024 * 1024;
+    static final long SPARSE_MIN_SIZE = 1024 * 1024;
+    static final int SPARSE_BLOCK_SIZE = 4096;
+    static final int SPARSE_SAMPLES = 16;
+    static final int SPARSE_BUFFER_SIZE = 1024 * 1024;
+    static final int DEFAULT_CHUNKED_THREADS = 4;
+
+    private static final int MAX_CP_OUTPUT = 4096;
+
+    private static final boolean LINUX = System.getProperty("os.name", "").toLowerCase().startsWith("linux");
+
+    // INFO the file stores found unable to clone files, shared by all the engines
+    private static final ConcurrentMap<FileStore, Boolean> NO_REFLINK = new ConcurrentHashMap<FileStore, Boolean>();
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final boolean reflink;
+    private final boolean sparse;
+    private final ChunkedCopy chunkedCopy;
+    private final int chunkedThreads;
+
+    public LocalCopyEngine() {
+        this(new Properties());
+    }
+
+    public LocalCopyEngine(Properties properties) {
+        this.reflink = LINUX && !NEVER.equalsIgnoreCase(properties.getProperty(REFLINK_PROPERTY, AUTO).trim());
+        this.sparse = !NEVER.equalsIgnoreCase(properties.getProperty(SPARSE_PROPERTY, AUTO).trim());
+        this.chunkedCopy = new ChunkedCopy(properties, CHUNKED_PREFIX);
+        String value = properties.getProperty(CHUNKED_THREADS_PROPERTY);
+        this.chunkedThreads = value != null ? Integer.parseInt(value.trim()) : DEFAULT_CHUNKED_THREADS;
+    }
+
+    /**
+     * Copies the source file over the target file, which may not exist.
+     */
+    public void copy(Path source, Path target) throws IOException {
+        copy(source, target, null);
+    }
+
+    /**
+     * Copies the source file over the target file, holding the copy to the
+     * bytes per second limit of the throttle. A throttled copy is made in
+     * one go, in small chunks, unless it can be a clone.
+     *
+     * @param throttle the throttle, or null
+     */
+    public void copy(final Path source, final Path target, TransferThrottle throttle) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+
+        final Path tempFile = TempFiles.createTempFile(target);
+        try {
+            if (!cloneFile(source, tempFile, attributes.size())) {
+                boolean chunked = false;
+                try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+                    if (throttle != null) {
+                        copyThrottled(in, tempFile, attributes.size(), throttle);
+                    } else if (sparse && attributes.size() >= SPARSE_MIN_SIZE && hasZeroBlock(in, attributes.size())) {
+                        copySparse(in, tempFile, attributes.size());
+                    } else if (chunkedCopy.accepts(attributes.size(), chunkedThreads)) {
+                        copyChunked(in, tempFile, attributes.size());
+                        chunked = true;
+                    } else {
+                        copyChannel(in, tempFile, attributes.size());
+                    }
+                }
+                if (chunked && chunkedCopy.isVerifying()) {
+                    chunkedCopy.verify(new Callable<byte[]>() {
+                        public byte[] call() throws IOException {
+                            return FileHasher.hash(source);
+                        }
+                    }, new Callable<byte[]>() {
+                        public byte[] call() throws IOException {
+                            return FileHasher.hash(tempFile);
+                        }
+                    }, source.toString());
+                }
+            }
+
+            copyAttributes(source, tempFile, attributes);
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * @return whether the target was made a clone of the source
+     */
+    private boolean cloneFile(Path source, Path target, long size) throws IOException {
+        if (!reflink || size < REFLINK_MIN_SIZE) {
+            return false;
+        }
+        FileStore fileStore = Files.getFileStore(target);
+        if (NO_REFLINK.containsKey(fileStore)) {
+            return false;
+        }
+
+        Process process = new ProcessBuilder("cp", "--reflink=always", "--", source.toString(), target.toString())
+                .redirectErrorStream(true).start();
+        String output;
+        try (InputStream out = process.getInputStream()) {
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            int b;
+            while ((b = out.read()) != -1) {
+                if (message.size() < MAX_CP_OUTPUT) {
+                    message.write(b);
+                }
+            }
+            if (process.waitFor() == 0) {
+                return true;
+            }
+            output = new String(message.toByteArray(), Charset.defaultCharset()).trim();
+        } catch (InterruptedException ex) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while cloning " + source);
+        }
+
+        // INFO only a file system which can not clone is given up on, not a failure of this one file
+        if (isUnsupported(output)) {
+            logger.debug("Unable to clone files on " + fileStore + ", falling back to full copies: " + output);
+            NO_REFLINK.put(fileStore, Boolean.TRUE);
+        } else {
+            logger.debug("Unable to clone " + source + ", falling back to a full copy: " + output);
+        }
+        return false;
+    }
+
+    /**
+     * @return whether cp failed because the file system can not clone files,
+     *         as opposed to failing for this file
+     */
+    static boolean isUnsupported(String cpOutput) {
+        String output = cpOutput.toLowerCase(Locale.ROOT);
+        // INFO EOPNOTSUPP, or ENOTTY from file systems without the ioctl
+        return output.contains("not supported") || output.contains("inappropriate ioctl");
+    }
+
+    private void copyChannel(FileChannel in, Path target, long size) throws IOException {
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            while (position < size) {
+                long count = in.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position), out);
+                if (count <= 0) {
+                    // INFO the source was truncated while it was being copied
+                    break;
+                }
+                position += count;
+            }
+        }
+    }
+
+    private void copyThrottled(FileChannel in, Path target, long size, TransferThrottle throttle) throws IOException {
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            while (position < size) {
+                long chunk = Math.min(THROTTLED_CHUNK_SIZE, size - position);
+                throttle.acquireBytes(chunk);
+                long count = in.transferTo(position, chunk, out);
+                if (count <= 0) {
+                    // INFO the source was truncated while it was being copied
+                    break;
+                }
+                position += count;
+            }
+        }
+    }
+
+    /**
+     * Copies the ranges of the file concurrently. Positional reads of the
+     * source channel can be shared, but each range writes through its own
+     * channel to the target, positioned at the start of the range.
+     */
+    private void copyChunked(final FileChannel in, final Path target, final long size) throws IOException {
+        chunkedCopy.copy(size, chunkedThreads, new ChunkedCopy.RangeCopier() {
+            public void copy(long offset, long length) throws IOException {
+                try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                    out.position(offset);
+                    long end = offset + length;
+                    while (offset < end) {
+                        long count = in.transferTo(offset, end - offset, out);
+                        if (count <= 0) {
+                            throw new IOException("The source was truncated while it was being copied");
+                        }
+                        offset += count;
+                    }
+                }
+            }
+        });
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            if (out.size() != size) {
+                throw new IOException("The copy is " + out.size() + " bytes long, expected " + size);
+            }
+        }
+    }
+
+    /**
+     * Reads a block at evenly spread offsets. A hole reads as zeros, so a
+     * file with large holes is very likely to have one sampled.
+     */
+    private boolean hasZeroBlock(FileChannel in, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SPARSE_BLOCK_SIZE);
+        long blocks = size / SPARSE_BLOCK_SIZE;
+        for (int i = 0; i < SPARSE_SAMPLES; i++) {
+            long position = (blocks * i / SPARSE_SAMPLES) * SPARSE_BLOCK_SIZE;
+            buffer.clear();
+            while (buffer.hasRemaining() && in.read(buffer, position + buffer.position()) > 0) {
+                // INFO fill the block
+            }
+            if (!buffer.hasRemaining() && isZero(buffer.array(), 0, SPARSE_BLOCK_SIZE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void copySparse(FileChannel in, Path target, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SPARSE_BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+        try (RandomAccessFile file = new RandomAccessFile(target.toFile(), "rw")) {
+            file.setLength(0);
+            FileChannel out = file.getChannel();
+            long position = 0;
+            while (position < size) {
+                buffer.clear();
+                int len = in.read(buffer, position);
+                if (len <= 0) {
+                    size = position;
+                    break;
+                }
+
+                // INFO write each run of non zero blocks, seeking over the zero ones
+                int start = 0;
+                while (start < len) {
+                    while (start < len && isZero(bytes, start, Math.min(SPARSE_BLOCK_SIZE, len - start))) {
+                        start += SPARSE_BLOCK_SIZE;
+                    }
+                    int end = start;
+                    while (end < len && !isZero(bytes, end, Math.min(SPARSE_BLOCK_SIZE, len - end))) {
+                        end += SPARSE_BLOCK_SIZE;
+                    }
+                    end = Math.min(end, len);
+                    if (end > start) {
+                        ByteBuffer run = ByteBuffer.wrap(bytes, start, end - start);
+                        long writePosition = position + start;
+                        while (run.hasRemaining()) {
+                            writePosition += out.write(run, writePosition);
+                        }
+                    }
+                    start = end;
+                }
+                position += len;
+            }
+            // INFO extends the file over a trailing hole
+            file.setLength(size);
+        }
+    }
+
+    private static boolean isZero(byte[] bytes, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (bytes[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void copyAttributes(Path source, Path target, BasicFileAttributes attributes) throws IOException {
+        PosixFileAttributeView sourcePosix = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+        PosixFileAttributeView targetPosix = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+        if (sourcePosix != null && targetPosix != null) {
+            targetPosix.setPermissions(sourcePosix.readAttributes().permissions());
+        }
+        Files.getFileAttributeView(target, BasicFileAttributeView.class)
+                .setTimes(attributes.lastModifiedTime(), attributes.lastAccessTime(), null);
+    }
+}
@@ -0,0 +1,37 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Copies files between two folders on the local file system, preserving
+ * the file attributes. The copies are made by a {@link LocalCopyEngine}.
+ *
+ * @author ajmas
+ *
+ */
+public class LocalFileTransfer implements FileTransfer {
+
+    private final LocalSyncEndpoint source;
+    private final LocalSyncEndpoint destination;
+    private final LocalCopyEngine copyEngine;
+
+    public LocalFileTransfer(LocalSyncEndpoint source, LocalSyncEndpoint destination) {
+        this(source, destination, new Properties());
+    }
+
+    /**
+     * @param properties the destination endpoint properties, configuring
+     *        the {@link LocalCopyEngine}
+     */
+    public LocalFileTransfer(LocalSyncEndpoint source, LocalSyncEndpoint destination, Properties properties) {
+        this.source = source;
+        this.destination = destination;
+        this.copyEngine = new LocalCopyEngine(properties);
+    }
+
+    public void transfer(SyncAction action) throws IOException {
+        String path = action.getRelativePath();
+        copyEngine.copy(source.resolve(path), destination.resolve(path), destination.getThrottle());
+    }
+}
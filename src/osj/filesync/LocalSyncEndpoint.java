@@ -0,0 +1,132 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sync endpoint backed by the local file system. Folders are listed with
+ * a directory stream, reading the attributes of every entry as part of
+ * the listing. Files are hashed by the shared {@link FileHasher}.
+ *
+ * @author ajmas
+ *
+ */
+public class LocalSyncEndpoint implements HashingEndpoint {
+
+    private final Path basePath;
+    private volatile TransferThrottle throttle;
+
+    public LocalSyncEndpoint(Path basePath) {
+        this.basePath = basePath;
+    }
+
+    public Path getBasePath() {
+        return basePath;
+    }
+
+    /**
+     * @return the throttle of the copies to this endpoint, or null if they
+     *         are not throttled
+     */
+    public TransferThrottle getThrottle() {
+        return throttle;
+    }
+
+    public void setThrottle(TransferThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    public Path resolve(String relativePath) {
+        return relativePath.isEmpty() ? basePath : basePath.resolve(relativePath);
+    }
+
+    public FileEntry stat(String relativePath) throws IOException {
+        try {
+            return FileEntry.fromAttributes(relativePath, readAttributes(resolve(relativePath)));
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    public Map<String, FileEntry> list(String relativePath) throws IOException {
+        Map<String, FileEntry> children = new HashMap<String, FileEntry>();
+        Path folder = resolve(relativePath);
+        if (!Files.isDirectory(folder)) {
+            return children;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (Path child : stream) {
+                String name = child.getFileName().toString();
+                String path = relativePath.isEmpty() ? name : relativePath + "/" + name;
+                children.put(name, FileEntry.fromAttributes(path, readAttributes(child)));
+            }
+        }
+        return children;
+    }
+
+    public void createDirectory(String relativePath) throws IOException {
+        Files.createDirectory(resolve(relativePath));
+    }
+
+    public void delete(FileEntry entry) throws IOException {
+        Files.walkFileTree(resolve(entry.getRelativePath()), new SimpleFileVisitor<Path>() {
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                if (ex != null) {
+                    throw ex;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    public void rename(String relativePath, String newRelativePath) throws IOException {
+        Files.move(resolve(relativePath), resolve(newRelativePath), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public long getTimestampResolution() {
+        return 1;
+    }
+
+    public Map<String, byte[]> hash(Collection<FileEntry> files) throws IOException {
+        Map<Path, FileEntry> paths = new HashMap<Path, FileEntry>();
+        for (FileEntry file : files) {
+            paths.put(resolve(file.getRelativePath()), file);
+        }
+        Map<String, byte[]> hashes = new HashMap<String, byte[]>();
+        for (Map.Entry<Path, byte[]> hash : FileHasher.getDefault().hash(paths).entrySet()) {
+            hashes.put(paths.get(hash.getKey()).getRelativePath(), hash.getValue());
+        }
+        return hashes;
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException ex) {
+            // INFO dangling symbolic link, so describe the link itself
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+    }
+
+    public String toString() {
+        return basePath.toString();
+    }
+}
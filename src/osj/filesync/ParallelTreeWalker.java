@@ -0,0 +1,244 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks a source tree and its destination counterpart in parallel, using
+ * a fork-join pool so that idle threads steal folders from busy ones.
+ *
+ * Each folder is listed exactly once per side, and the two listings are
+ * handed to a {@link DirectoryVisitor}. The walk then descends into every
+ * source folder accepted by the path filters, or whose subtree is accepted
+ * by a {@link SubtreePathFilter}. Destination folders which
+ * were absent from their parent's listing are not listed at all.
+ *
+ * If the index of the previous run is available, a destination folder
+ * whose modification time is the one recorded in the index is not listed
+ * either, its recorded children are used instead, and its sub-folders are
+ * stat'ed to tell whether they changed. When directory timestamps are
+ * trusted, a folder whose modification time is unchanged on both sides is
+ * not listed at all: only its recorded sub-folders are stat'ed and walked.
+ *
+ * @author ajmas
+ *
+ */
+class ParallelTreeWalker {
+
+    /**
+     * Receives the listings of each folder pair. Called concurrently from
+     * the walker threads, and always for a folder before its children.
+     */
+    interface DirectoryVisitor {
+
+        void visitDirectory(String relativePath, Map<String, FileEntry> sourceChildren,
+                Map<String, FileEntry> destinationChildren) throws IOException;
+
+        /**
+         * Called instead of visitDirectory for a folder which is unchanged
+         * since the previous run, with the current state of the recorded
+         * sub-folders which will be walked next.
+         */
+        void skipDirectory(String relativePath, Map<String, FileEntry> sourceFolders) throws IOException;
+    }
+
+    private final int parallelism;
+
+    private SyncIndex previousIndex;
+    private boolean trustDirectoryTimestamps;
+
+    ParallelTreeWalker(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1, was: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    void setPreviousIndex(SyncIndex previousIndex, boolean trustDirectoryTimestamps) {
+        this.previousIndex = previousIndex;
+        this.trustDirectoryTimestamps = trustDirectoryTimestamps;
+    }
+
+    void walk(SyncEndpoint source, SyncEndpoint destination, DirectoryVisitor visitor,
+            PathFilter... pathFilters) throws IOException {
+        walk(source, destination, source.stat(""), destination.stat(""), visitor, pathFilters);
+    }
+
+    void walk(SyncEndpoint source, SyncEndpoint destination, FileEntry sourceRoot, FileEntry destinationRoot,
+            DirectoryVisitor visitor, PathFilter... pathFilters) throws IOException {
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryTask(source, destination, visitor, sourceRoot, destinationRoot, pathFilters));
+        } catch (WalkFailure failure) {
+            throw (IOException) failure.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return whether the file is accepted by the path filters. The partial
+     *         files of resumable uploads and the temporary files of copies
+     *         never are, so no sync copies or deletes them, see
+     *         {@link ResumableUploadTransfer#isPartialPath} and
+     *         {@link TempFiles#isTempPath}.
+     */
+    static boolean accept(String path, PathFilter... pathFilters) {
+        if (ResumableUploadTransfer.isPartialPath(path) || TempFiles.isTempPath(path)) {
+            return false;
+        }
+        boolean accept = true;
+        for (PathFilter pathFilter : pathFilters) {
+            if (pathFilter != null) {
+                accept &= pathFilter.accept(path);
+            }
+        }
+        return accept;
+    }
+
+    /**
+     * @return whether the folder, or anything below it, may be accepted
+     *         by the path filters
+     */
+    static boolean acceptSubtree(String folder, PathFilter... pathFilters) {
+        for (PathFilter pathFilter : pathFilters) {
+            if (pathFilter instanceof SubtreePathFilter) {
+                if (!((SubtreePathFilter) pathFilter).acceptSubtree(folder)) {
+                    return false;
+                }
+            } else if (pathFilter != null && !pathFilter.accept(folder)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the entry has the state recorded in the index
+     */
+    static boolean isUnchanged(FileEntry entry, FileEntry recorded) {
+        if (entry == null || recorded == null) {
+            return false;
+        }
+        if (entry.isDirectory() != recorded.isDirectory() || entry.getLastModified() != recorded.getLastModified()) {
+            return false;
+        }
+        if (entry.getFileKey() != null && recorded.getFileKey() != null) {
+            return entry.getFileKey().toString().equals(recorded.getFileKey().toString());
+        }
+        return true;
+    }
+
+    /**
+     * Lists one folder pair and forks a sub-task for each accepted child
+     * folder.
+     */
+    class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SyncEndpoint source;
+        private final SyncEndpoint destination;
+        private final DirectoryVisitor visitor;
+        private final String relativePath;
+        private final FileEntry sourceFolder;
+        private final FileEntry destinationFolder;
+        private final PathFilter[] pathFilters;
+
+        /**
+         * @param destinationFolder the destination counterpart of the folder,
+         *        or null if it does not exist
+         */
+        DirectoryTask(SyncEndpoint source, SyncEndpoint destination, DirectoryVisitor visitor,
+                FileEntry sourceFolder, FileEntry destinationFolder, PathFilter... pathFilters) {
+            this.source = source;
+            this.destination = destination;
+            this.visitor = visitor;
+            this.relativePath = sourceFolder.getRelativePath();
+            this.sourceFolder = sourceFolder;
+            this.destinationFolder = destinationFolder;
+            this.pathFilters = pathFilters;
+        }
+
+        protected void compute() {
+            try {
+                invokeAll(visit());
+            } catch (IOException ex) {
+                throw new WalkFailure(ex);
+            }
+        }
+
+        private List<DirectoryTask> visit() throws IOException {
+            SyncIndex.Record record = previousIndex != null ? previousIndex.getRecord(relativePath) : null;
+            boolean destinationUnchanged = record != null && isUnchanged(destinationFolder, record.getDestination());
+
+            if (trustDirectoryTimestamps && destinationUnchanged && isUnchanged(sourceFolder, record.getSource())) {
+                return skip();
+            }
+
+            Map<String, FileEntry> sourceChildren = source.list(relativePath);
+            Map<String, FileEntry> destinationChildren;
+            if (destinationFolder == null || !destinationFolder.isDirectory()) {
+                destinationChildren = Collections.emptyMap();
+            } else if (destinationUnchanged) {
+                destinationChildren = previousIndex.getDestinationChildren(relativePath);
+            } else {
+                destinationChildren = destination.list(relativePath);
+            }
+
+            visitor.visitDirectory(relativePath, sourceChildren, destinationChildren);
+
+            List<DirectoryTask> subTasks = new ArrayList<DirectoryTask>();
+            for (FileEntry sourceEntry : sourceChildren.values()) {
+                if (sourceEntry.isDirectory() && acceptSubtree(sourceEntry.getRelativePath(), pathFilters)) {
+                    FileEntry destinationEntry = destinationChildren.get(sourceEntry.getName());
+                    if (destinationUnchanged && destinationEntry != null) {
+                        // INFO a recorded folder does not show a change below it, so it is stat'ed instead
+                        destinationEntry = destination.stat(sourceEntry.getRelativePath());
+                    }
+                    subTasks.add(new DirectoryTask(source, destination, visitor, sourceEntry,
+                            destinationEntry, pathFilters));
+                }
+            }
+            return subTasks;
+        }
+
+        private List<DirectoryTask> skip() throws IOException {
+            Map<String, FileEntry> sourceFolders = new HashMap<String, FileEntry>();
+            List<DirectoryTask> subTasks = new ArrayList<DirectoryTask>();
+            for (SyncIndex.Record child : previousIndex.getChildren(relativePath).values()) {
+                FileEntry recorded = child.getSource();
+                if (recorded != null && recorded.isDirectory() && acceptSubtree(recorded.getRelativePath(), pathFilters)) {
+                    FileEntry sourceEntry = source.stat(recorded.getRelativePath());
+                    if (sourceEntry != null && sourceEntry.isDirectory()) {
+                        sourceFolders.put(sourceEntry.getName(), sourceEntry);
+                        // INFO the destination is stat'ed too, so a change below it is compared with the record
+                        subTasks.add(new DirectoryTask(source, destination, visitor, sourceEntry,
+                                destination.stat(recorded.getRelativePath()), pathFilters));
+                    }
+                }
+            }
+            visitor.skipDirectory(relativePath, sourceFolders);
+            return subTasks;
+        }
+    }
+
+    /**
+     * Carries a checked exception out of the fork-join pool.
+     */
+    static class WalkFailure extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        WalkFailure(IOException cause) {
+            super(cause);
+        }
+    }
+}
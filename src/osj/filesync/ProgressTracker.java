@@ -0,0 +1,164 @@
+package osj.filesync;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Follows the progress of a sync from its measurements, passing them on
+ * to the metrics of the configuration, and streams it to
+ * {@link SyncProgressListener}s.
+ *
+ * The transfer rate is measured over windows of a second, and smoothed
+ * exponentially so that the estimated time left does not jump with each
+ * file.
+ *
+ * @author ajmas
+ *
+ */
+class ProgressTracker implements SyncMetrics {
+
+    private static final long RATE_WINDOW_NANOS = 1000000000L;
+    private static final double RATE_SMOOTHING = 0.3;
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final SyncMetrics metrics;
+    private final long intervalNanos;
+    private final List<SyncProgressListener> listeners = new CopyOnWriteArrayList<SyncProgressListener>();
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong filesQueued = new AtomicLong();
+    private final AtomicLong bytesQueued = new AtomicLong();
+    private final AtomicLong filesDone = new AtomicLong();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private final AtomicLong lastPublishedNanos = new AtomicLong(startNanos);
+
+    private long sampleNanos = startNanos;
+    private long sampleBytes;
+    private double rate = -1;
+
+    private volatile SyncReport report;
+    private volatile boolean done;
+
+    /**
+     * @param metrics where the measurements are passed on to
+     * @param intervalMillis the least time between two progress updates
+     */
+    ProgressTracker(SyncMetrics metrics, long intervalMillis) {
+        this.metrics = metrics;
+        this.intervalNanos = intervalMillis * 1000000L;
+    }
+
+    void addProgressListener(SyncProgressListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return the report of the sync, once it is done
+     */
+    SyncReport getReport() {
+        return report;
+    }
+
+    SyncProgress getProgress() {
+        long now = System.nanoTime();
+        long bytes = bytesDone.get();
+        return new SyncProgress(filesDone.get(), filesQueued.get(), bytes, bytesQueued.get(),
+                getRate(now, bytes), (now - startNanos) / 1000000L, done);
+    }
+
+    private synchronized double getRate(long now, long bytes) {
+        long elapsed = now - sampleNanos;
+        if (elapsed >= RATE_WINDOW_NANOS) {
+            double current = (bytes - sampleBytes) * 1e9 / elapsed;
+            rate = rate < 0 ? current : RATE_SMOOTHING * current + (1 - RATE_SMOOTHING) * rate;
+            sampleNanos = now;
+            sampleBytes = bytes;
+        }
+        if (rate >= 0) {
+            return rate;
+        }
+        // INFO until the first window is over, the average since the start
+        return now > startNanos ? bytes * 1e9 / (now - startNanos) : 0;
+    }
+
+    /**
+     * Tells the listeners once the interval since the last update is over,
+     * or every time when the sync is done.
+     */
+    void publish(boolean force) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long last = lastPublishedNanos.get();
+        if (!force && (now - last < intervalNanos || !lastPublishedNanos.compareAndSet(last, now))) {
+            return;
+        }
+        SyncProgress progress = getProgress();
+        for (SyncProgressListener listener : listeners) {
+            try {
+                listener.progressChanged(progress);
+            } catch (RuntimeException ex) {
+                logger.warn("Progress listener failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Marks the sync as ended, for syncs which did not report on it.
+     */
+    void finish() {
+        if (!done) {
+            done = true;
+            publish(true);
+        }
+    }
+
+    public void directoryListed(String relativePath, int entries) {
+        metrics.directoryListed(relativePath, entries);
+    }
+
+    public void entriesCompared(int count) {
+        metrics.entriesCompared(count);
+    }
+
+    public void transferQueued(SyncAction action) {
+        filesQueued.incrementAndGet();
+        bytesQueued.addAndGet(action.getSourceEntry().getSize());
+        metrics.transferQueued(action);
+        publish(false);
+    }
+
+    public void fileTransferred(SyncAction action, long bytes, long nanos) {
+        filesDone.incrementAndGet();
+        bytesDone.addAndGet(bytes);
+        metrics.fileTransferred(action, bytes, nanos);
+        publish(false);
+    }
+
+    public void directoryCreated(SyncAction action) {
+        metrics.directoryCreated(action);
+    }
+
+    public void entryDeleted(SyncAction action, long nanos) {
+        metrics.entryDeleted(action, nanos);
+    }
+
+    public void queueDepth(String queue, int depth) {
+        metrics.queueDepth(queue, depth);
+    }
+
+    public void phaseCompleted(Phase phase, long nanos) {
+        metrics.phaseCompleted(phase, nanos);
+    }
+
+    public void syncCompleted(SyncReport report) {
+        this.report = report;
+        metrics.syncCompleted(report);
+        finish();
+    }
+}
@@ -0,0 +1,134 @@
+package osj.filesync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * A command run on an ssh host over an exec channel, with its standard
+ * input and output available as streams, so that large requests and
+ * responses never need to be held in memory.
+ *
+ * @author ajmas
+ *
+ */
+public class RemoteCommand {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final long POLL_INTERVAL_MS = 50;
+
+    private final String command;
+    private final ChannelExec channel;
+    private final ByteArrayOutputStream errorOutput = new ByteArrayOutputStream();
+    private final InputStream stdout;
+    private final OutputStream stdin;
+
+    /**
+     * Starts the command on the session.
+     */
+    public RemoteCommand(Session session, String command) throws IOException {
+        this.command = command;
+        try {
+            channel = (ChannelExec) session.openChannel("exec");
+            channel.setCommand(command);
+            channel.setErrStream(errorOutput);
+            stdout = channel.getInputStream();
+            stdin = channel.getOutputStream();
+            channel.connect();
+        } catch (JSchException ex) {
+            throw new IOException("Unable to run '" + command + "' on " + session.getHost(), ex);
+        }
+    }
+
+    /**
+     * Runs the command to completion, feeding it the given input and
+     * failing if it returns a non zero exit status.
+     *
+     * @return the standard output of the command
+     */
+    public static String execute(Session session, String command, byte[] input) throws IOException {
+        RemoteCommand remoteCommand = new RemoteCommand(session, command);
+        try {
+            if (input != null) {
+                remoteCommand.getOutputStream().write(input);
+            }
+            remoteCommand.getOutputStream().close();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            copy(remoteCommand.getInputStream(), output);
+            remoteCommand.waitFor(true);
+            return new String(output.toByteArray(), UTF8);
+        } finally {
+            remoteCommand.close();
+        }
+    }
+
+    /**
+     * Quotes an argument for the remote shell.
+     */
+    public static String quote(String argument) {
+        return "'" + argument.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * @return the standard output of the command
+     */
+    public InputStream getInputStream() {
+        return stdout;
+    }
+
+    /**
+     * @return the standard input of the command, to be closed once all
+     *         the input has been written
+     */
+    public OutputStream getOutputStream() {
+        return stdin;
+    }
+
+    /**
+     * Waits for the command to finish.
+     *
+     * @param check whether to fail if the exit status is not zero
+     * @return the exit status
+     */
+    public int waitFor(boolean check) throws IOException {
+        try {
+            while (!channel.isClosed()) {
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for '" + command + "'");
+        }
+        int exitStatus = channel.getExitStatus();
+        if (check && exitStatus != 0) {
+            throw new IOException("'" + command + "' failed with exit status " + exitStatus + ": " + getErrorOutput());
+        }
+        return exitStatus;
+    }
+
+    public String getErrorOutput() {
+        synchronized (errorOutput) {
+            return new String(errorOutput.toByteArray(), UTF8).trim();
+        }
+    }
+
+    public void close() {
+        channel.disconnect();
+    }
+
+    static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[65536];
+        int len = -1;
+        while ((len = in.read(buffer)) > -1) {
+            out.write(buffer, 0, len);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package osj.filesync;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.jcraft.jsch.Session;
+
+/**
+ * The attributes of every entry under a remote folder, fetched with a
+ * single 'find -printf' run over an exec channel. The response is parsed
+ * as it streams in, so the whole tree costs one round trip instead of one
+ * per folder.
+ *
+ * This needs GNU find on the remote host. It is enabled by setting the
+ * endpoint property 'ssh.listing' to 'find'.
+ *
+ * @author ajmas
+ *
+ */
+public class RemoteManifest {
+
+    public static final String LISTING_PROPERTY = "ssh.listing";
+    public static final String FIND_LISTING = "find";
+
+    private final Map<String, Map<String, FileEntry>> folders = new HashMap<String, Map<String, FileEntry>>();
+
+    /**
+     * Runs find on the remote folder and reads its output.
+     */
+    public static RemoteManifest fetch(Session session, String basePath) throws IOException {
+        // INFO type, size, modification time and relative path, one NUL terminated record per entry
+        String command = "find " + RemoteCommand.quote(basePath) + " -mindepth 1 -printf '%y %s %T@ %P\\0'";
+
+        RemoteManifest manifest = new RemoteManifest();
+        RemoteCommand remoteCommand = new RemoteCommand(session, command);
+        try {
+            remoteCommand.getOutputStream().close();
+            manifest.read(remoteCommand.getInputStream());
+            remoteCommand.waitFor(true);
+        } finally {
+            remoteCommand.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * @return the children of the folder, keyed by name, or an empty map if
+     *         the folder was not found
+     */
+    public Map<String, FileEntry> list(String relativePath) {
+        Map<String, FileEntry> children = folders.get(relativePath);
+        return children != null ? children : Collections.<String, FileEntry>emptyMap();
+    }
+
+    /**
+     * @return the entry, or null if it was not found
+     */
+    public FileEntry stat(String relativePath) {
+        return list(SyncIndex.parentOf(relativePath)).get(SyncIndex.nameOf(relativePath));
+    }
+
+    public int getFolderCount() {
+        return folders.size();
+    }
+
+    void read(InputStream in) throws IOException {
+        InputStream bufferedIn = new BufferedInputStream(in, 65536);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+        int b = -1;
+        while ((b = bufferedIn.read()) != -1) {
+            if (b == 0) {
+                add(new String(record.toByteArray(), RemoteCommand.UTF8));
+                record.reset();
+            } else {
+                record.write(b);
+            }
+        }
+    }
+
+    private void add(String record) throws IOException {
+        String[] fields = record.split(" ", 4);
+        if (fields.length != 4) {
+            throw new IOException("Unexpected find output: " + record);
+        }
+
+        boolean directory = "d".equals(fields[0]);
+        long size;
+        long lastModified;
+        try {
+            size = Long.parseLong(fields[1]);
+            // INFO truncated to whole seconds, which is all SFTP can set
+            lastModified = (long) Math.floor(Double.parseDouble(fields[2])) * 1000L;
+        } catch (NumberFormatException ex) {
+            throw new IOException("Unexpected find output: " + record, ex);
+        }
+        String path = fields[3];
+
+        String folder = SyncIndex.parentOf(path);
+        Map<String, FileEntry> children = folders.get(folder);
+        if (children == null) {
+            children = new HashMap<String, FileEntry>();
+            folders.put(folder, children);
+        }
+        children.put(SyncIndex.nameOf(path), new FileEntry(path, directory, size, lastModified, null));
+        if (directory && !folders.containsKey(path)) {
+            folders.put(path, new HashMap<String, FileEntry>());
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package osj.filesync;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+/**
+ * Uploads large files so that an interrupted upload can be resumed by the
+ * next sync rather than started again, when the remote endpoint property
+ * 'ssh.resume' is 'true'.
+ *
+ * Each file is written to a partial file next to its destination, named
+ * '.name.partial', and the bytes sent are checkpointed in a local
+ * {@link TransferJournal} every 'ssh.resume.checkpoint' bytes, 8 MiB by
+ * default. When a sync finds the partial file of the same version of the
+ * source, it truncates it to the last checkpoint and continues from there
+ * in SFTP RESUME mode. A resumed file is checked against the source, by
+ * hash, before it is renamed into place, and uploaded again from the start
+ * if they differ. Files which completed are recorded too, so that a sync
+ * resumed with force does not send them again.
+ *
+ * Files named as partial files are left out of every scan, on both sides,
+ * so a partial file left by a failed sync is neither copied back by a two
+ * way sync nor deleted as extraneous, see {@link ParallelTreeWalker#accept}.
+ *
+ * Only new files of at least 'ssh.resume.minSize' bytes, 8 MiB by
+ * default, are uploaded this way, and modified ones too unless they are
+ * sent as a delta. They are sent uncompressed, whatever 'ssh.compression'
+ * says, as a compressed upload can not be resumed. Other files go to the
+ * given transfer, which may compress them. The journal is kept in the
+ * file given by 'ssh.resume.journal', by default in the temp folder under
+ * a name derived from both endpoints.
+ *
+ * @author ajmas
+ *
+ */
+public class ResumableUploadTransfer implements FileTransfer {
+
+    public static final String RESUME_PROPERTY = "ssh.resume";
+    public static final String MIN_SIZE_PROPERTY = "ssh.resume.minSize";
+    public static final String CHECKPOINT_PROPERTY = "ssh.resume.checkpoint";
+    public static final String JOURNAL_PROPERTY = "ssh.resume.journal";
+
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    static final long DEFAULT_MIN_SIZE = 8L * 1024 * 1024;
+    static final long DEFAULT_CHECKPOINT = 8L * 1024 * 1024;
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final LocalSyncEndpoint source;
+    private final SftpSyncEndpoint destination;
+    private final TransferJournal journal;
+    private final FileTransfer otherTransfer;
+    private final boolean deltaUpdates;
+
+    private final long minSize;
+    private final long checkpointInterval;
+
+    /**
+     * @param otherTransfer the transfer of the files which are not resumable
+     * @param deltaUpdates whether existing files are sent as a delta by the
+     *        other transfer, which is then left to it
+     */
+    public ResumableUploadTransfer(LocalSyncEndpoint source, SftpSyncEndpoint destination, TransferJournal journal,
+            Properties properties, FileTransfer otherTransfer, boolean deltaUpdates) {
+        this.source = source;
+        this.destination = destination;
+        this.journal = journal;
+        this.otherTransfer = otherTransfer;
+        this.deltaUpdates = deltaUpdates;
+        String value = properties.getProperty(MIN_SIZE_PROPERTY);
+        this.minSize = value != null ? Long.parseLong(value.trim()) : DEFAULT_MIN_SIZE;
+        value = properties.getProperty(CHECKPOINT_PROPERTY);
+        this.checkpointInterval = value != null ? Long.parseLong(value.trim()) : DEFAULT_CHECKPOINT;
+    }
+
+    /**
+     * @return whether the endpoint properties ask for resumable uploads
+     */
+    public static boolean isEnabled(Properties properties) {
+        return Boolean.parseBoolean(properties.getProperty(RESUME_PROPERTY, "false").trim());
+    }
+
+    /**
+     * @return the journal file for a sync between the two endpoints
+     */
+    public static File getJournalFile(Properties properties, URI localURI, URI remoteURI) {
+        String value = properties.getProperty(JOURNAL_PROPERTY);
+        if (value != null) {
+            return new File(value.trim());
+        }
+        String name = "bonsai-" + Integer.toHexString(Arrays.asList(localURI.toString(), remoteURI.toString()).hashCode())
+                + ".journal";
+        return new File(System.getProperty("java.io.tmpdir"), name);
+    }
+
+    public void transfer(SyncAction action) throws IOException {
+        FileEntry sourceEntry = action.getSourceEntry();
+        if (sourceEntry.getSize() < minSize || (deltaUpdates && action.getDestinationEntry() != null)) {
+            otherTransfer.transfer(action);
+            return;
+        }
+        if (journal.isCompleted(sourceEntry) && isUploaded(action)) {
+            logger.debug("Skipping " + action.getRelativePath() + ", which was uploaded by an earlier sync");
+            return;
+        }
+
+        String partialPath = partialPathOf(action.getRelativePath());
+        long offset = getResumeOffset(sourceEntry, partialPath);
+        upload(sourceEntry, partialPath, offset);
+
+        if (offset > 0 && !isVerified(sourceEntry, partialPath)) {
+            logger.warn("The resumed upload of " + action.getRelativePath()
+                    + " does not match the source, uploading it again from the start");
+            upload(sourceEntry, partialPath, 0);
+        }
+
+        String remotePartialPath = destination.resolve(partialPath);
+        SftpChannelPool channels = destination.getChannelPool();
+        ChannelSftp sftp = channels.borrow();
+        try {
+            sftp.setMtime(remotePartialPath, (int) (sourceEntry.getLastModified() / 1000));
+        } catch (SftpException ex) {
+            throw new IOException("Unable to set the modification time of " + remotePartialPath, ex);
+        } finally {
+            channels.release(sftp);
+        }
+        destination.rename(partialPath, action.getRelativePath());
+        journal.completed(sourceEntry);
+    }
+
+    /**
+     * @return whether the destination holds the file as the source has it
+     */
+    private boolean isUploaded(SyncAction action) throws IOException {
+        FileEntry destinationEntry = destination.stat(action.getRelativePath());
+        return destinationEntry != null && destinationEntry.getSize() == action.getSourceEntry().getSize()
+                && destinationEntry.getLastModified() / 1000 == action.getSourceEntry().getLastModified() / 1000;
+    }
+
+    /**
+     * @return the offset the upload can continue from, which is the last
+     *         checkpoint, or less if the partial file is shorter
+     */
+    private long getResumeOffset(FileEntry sourceEntry, String partialPath) throws IOException {
+        TransferJournal.Record record = journal.getRecord(sourceEntry.getRelativePath());
+        if (record == null || record.isCompleted() || !record.matches(sourceEntry) || record.getOffset() == 0) {
+            return 0;
+        }
+        FileEntry partialEntry = destination.stat(partialPath);
+        if (partialEntry == null || partialEntry.isDirectory()) {
+            return 0;
+        }
+        long offset = Math.min(record.getOffset(), partialEntry.getSize());
+        logger.debug("Resuming the upload of " + sourceEntry.getRelativePath() + " at " + offset + " of "
+                + sourceEntry.getSize() + " bytes");
+        return offset;
+    }
+
+    /**
+     * Sends the source file to the partial file from the offset, in RESUME
+     * mode, or over any partial file when the offset is zero.
+     */
+    private void upload(final FileEntry sourceEntry, String partialPath, final long offset) throws IOException {
+        String localPath = source.resolve(sourceEntry.getRelativePath()).toString();
+        String remotePartialPath = destination.resolve(partialPath);
+        destination.invalidate(partialPath);
+        journal.checkpoint(sourceEntry, offset);
+
+        final IOException[] checkpointFailure = new IOException[1];
+        final SftpProgressMonitor throttle = ThrottleMonitor.of(destination.getThrottle());
+        SftpProgressMonitor monitor = new SftpProgressMonitor() {
+            private long sent = offset;
+            private long lastCheckpoint = offset;
+            // INFO in RESUME mode JSch first counts the bytes already on the remote side, which are not sent
+            private boolean skipCounted = offset == 0;
+
+            public void init(int op, String src, String dest, long max) {
+            }
+
+            public boolean count(long count) {
+                if (!skipCounted) {
+                    skipCounted = true;
+                    return true;
+                }
+                if (throttle != null && !throttle.count(count)) {
+                    return false;
+                }
+                sent += count;
+                if (sent - lastCheckpoint >= checkpointInterval) {
+                    // INFO counted bytes are only queued, so a resume also looks at the partial file's size
+                    try {
+                        journal.checkpoint(sourceEntry, sent);
+                        lastCheckpoint = sent;
+                    } catch (IOException ex) {
+                        checkpointFailure[0] = ex;
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            public void end() {
+            }
+        };
+
+        SftpChannelPool channels = destination.getChannelPool();
+        ChannelSftp sftp = channels.borrow();
+        try {
+            if (offset > 0) {
+                SftpATTRS attrs = sftp.stat(remotePartialPath);
+                attrs.setSIZE(offset);
+                sftp.setStat(remotePartialPath, attrs);
+                sftp.put(localPath, remotePartialPath, monitor, ChannelSftp.RESUME);
+            } else {
+                sftp.put(localPath, remotePartialPath, monitor, ChannelSftp.OVERWRITE);
+            }
+        } catch (SftpException ex) {
+            throw new IOException("Unable to upload " + localPath + " to " + remotePartialPath, ex);
+        } finally {
+            channels.release(sftp);
+        }
+        if (checkpointFailure[0] != null) {
+            throw checkpointFailure[0];
+        }
+    }
+
+    private boolean isVerified(FileEntry sourceEntry, String partialPath) throws IOException {
+        Path localPath = source.resolve(sourceEntry.getRelativePath());
+        FileEntry partialEntry = new FileEntry(partialPath, false, sourceEntry.getSize(), 0, null);
+        byte[] remoteHash = destination.hash(Collections.singleton(partialEntry)).get(partialPath);
+        return Arrays.equals(FileHasher.hash(localPath), remoteHash);
+    }
+
+    /**
+     * @return whether the path is named as the partial file of an upload,
+     *         which the scans leave out
+     */
+    static boolean isPartialPath(String relativePath) {
+        String name = SyncIndex.nameOf(relativePath);
+        return name.length() > PARTIAL_SUFFIX.length() + 1 && name.startsWith(".") && name.endsWith(PARTIAL_SUFFIX);
+    }
+
+    /**
+     * @return the hidden name the file is uploaded to, the same in every sync
+     */
+    static String partialPathOf(String relativePath) {
+        String parent = SyncIndex.parentOf(relativePath);
+        String name = "." + SyncIndex.nameOf(relativePath) + PARTIAL_SUFFIX;
+        return parent.isEmpty() ? name : parent + "/" + name;
+    }
+}
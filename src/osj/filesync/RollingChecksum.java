@@ -0,0 +1,54 @@
+package osj.filesync;
+
+/**
+ * The weak checksum used by rsync to find matching blocks. It can be
+ * rolled forward one byte at a time, so checking a block at every offset
+ * of a file costs O(1) per offset rather than O(block size).
+ *
+ * @author ajmas
+ *
+ */
+public class RollingChecksum {
+
+    private final int blockLength;
+    private int a;
+    private int b;
+
+    public RollingChecksum(int blockLength) {
+        this.blockLength = blockLength;
+    }
+
+    /**
+     * Computes the checksum of a whole window.
+     */
+    public void reset(byte[] buffer, int offset, int length) {
+        a = 0;
+        b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = buffer[offset + i] & 0xff;
+            a += value;
+            b += (length - i) * value;
+        }
+        a &= 0xffff;
+        b &= 0xffff;
+    }
+
+    /**
+     * Slides the window forward by one byte.
+     */
+    public void roll(byte out, byte in) {
+        int outValue = out & 0xff;
+        a = (a - outValue + (in & 0xff)) & 0xffff;
+        b = (b - blockLength * outValue + a) & 0xffff;
+    }
+
+    public int getValue() {
+        return a | (b << 16);
+    }
+
+    public static int of(byte[] buffer, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum(length);
+        checksum.reset(buffer, offset, length);
+        return checksum.getValue();
+    }
+}
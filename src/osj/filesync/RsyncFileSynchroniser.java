@@ -1,157 +1,640 @@
 package osj.filesync;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.URI;
 import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
 
 /**
- * File synchroniser using an external rsync command.
- * 
+ * File synchroniser using an external rsync command, in any direction.
+ * The endpoints are given as 'file' URIs, 'ssh' URIs, rsync daemon URIs,
+ * or 'user@host/path'. The content of each base folder is synced with the
+ * content of the other.
+ *
+ * The include and exclude paths of the configuration are passed to rsync
+ * as --include and --exclude rules, anchored at the base folder, with the
+ * globs left to rsync. A {@link PathFilter} given to a sync is applied by
+ * walking the source folder, which must then be local, and passing the
+ * files it accepts with --files-from. When relative paths are given, only
+ * those paths and their subtrees are synced, also with --files-from.
+ *
+ * The output of rsync is read as it is written, see
+ * {@link RsyncOutputParser}, so the files copied, the folders created and
+ * the entries deleted are reported to the {@link SyncMetrics} and the
+ * {@link SyncListener}s of the configuration as rsync goes.
+ *
+ * The remote endpoint properties tune the run:
+ *
+ * <ul>
+ * <li>'rsync.binary', the rsync command, by default /usr/bin/rsync; a
+ *     name without a path is looked up on the PATH</li>
+ * <li>'rsync.options', the options replacing the default '-az'</li>
+ * <li>'rsync.delete', whether entries no longer on the source are deleted
+ *     from the destination, as with --delete. Not done by two way syncs.
+ *     When the sync is split, or a limit is set, see
+ *     {@link FileSyncConfiguration#getMaxDeletions()}, the deletions are
+ *     made by one more rsync, once the others are done, which sends no
+ *     files. With a limit, that rsync is first run with --dry-run, to
+ *     count the deletions, so the sync fails before deleting anything if
+ *     they are more</li>
+ * <li>'rsync.partitions', the number of rsync processes run at once, each
+ *     over a share of the subtrees to sync, 1 by default. The source must
+ *     be local, or relative paths given, for the tree to be split</li>
+ * <li>'rsync.progress', whether rsync reports its progress with
+ *     --info=progress2, true by default</li>
+ * <li>'password', the password of an rsync daemon</li>
+ * </ul>
+ *
+ * The version of rsync is read from 'rsync --version' once per binary.
+ * Before rsync 3.1, as on stock macOS, the progress is not reported and
+ * paths which vanish before rsync gets to them fail the run; before
+ * rsync 3.0 the modification times of the files are not reported.
+ *
+ * A two way sync runs rsync once in each direction, skipping files which
+ * are newer on the receiving side, so a file changed on both sides keeps
+ * its newer copy, and deletions are not synced.
+ *
+ * The bytes per second limit of the {@link TransferThrottle} in force when
+ * the sync starts is passed as --bwlimit, shared between the processes. Its
+ * other limits, and changes to it during the sync, do not apply to rsync.
+ *
  * @author ajmas
  *
  */
 public class RsyncFileSynchroniser implements FileSynchroniser {
 
+    public static final String BINARY_PROPERTY = "rsync.binary";
+    public static final String OPTIONS_PROPERTY = "rsync.options";
+    public static final String DELETE_PROPERTY = "rsync.delete";
+    public static final String PARTITIONS_PROPERTY = "rsync.partitions";
+    public static final String PROGRESS_PROPERTY = "rsync.progress";
+
+    static final String DEFAULT_OPTIONS = "-az";
+
+    /**
+     * rsync exits with this status when source files vanished during the
+     * run, which is not a failure of the sync.
+     */
+    private static final int VANISHED_FILES_STATUS = 24;
+
+    private static final String ANY_SEGMENTS = "**/";
+
+    private static final Pattern VERSION = Pattern.compile("version (\\d+)\\.(\\d+)");
+
+    private static final ConcurrentMap<String, int[]> VERSIONS = new ConcurrentHashMap<String, int[]>();
+
+    Logger logger = Logger.getLogger(getClass());
+
     String rsyncBinaryPath = "/usr/bin/rsync";
 
+    SyncDirection[] SUPPORTED_DIRECTIONS = new SyncDirection[] {
+            SyncDirection.TO_LOCAL,
+            SyncDirection.TO_REMOTE,
+            SyncDirection.TWO_WAY
+    };
+
+    private volatile SyncReport lastSyncReport;
+
     public Set<SyncDirection> getSupportSyncDirections() {
-        // TODO Auto-generated method stub
-        return null;
+        return new HashSet<FileSynchroniser.SyncDirection>(Arrays.asList(SUPPORTED_DIRECTIONS));
     }
 
     public void syncFiles(FileSyncConfiguration configuration, SyncDirection syncDirection,
             List<String> relativePaths, boolean force, PathFilter pathFilter) throws FileSyncException {
 
-    	OutputStreamLogger outStreamLogger = null;
-    	OutputStreamLogger errStreamLogger = null;
-    	try {
-	        File rsyncBinaryFile = new File(rsyncBinaryPath);
-	        if (!rsyncBinaryFile.exists()) {
-	            throw new RuntimeException("rsync binary was not located on the file system");
-	        }
-	
-	        String local  = null;
-	        String remote = null;
-	        
-	        URI localURI = configuration.getLocalConfiguration().getURI();
-	        
-	        URI remoteURI = configuration.getRemoteConfiguration().getURI();
-	        
-	        if ("file".equalsIgnoreCase(localURI.getScheme())) {
-	            local = localURI.getPath();
-	        }
-	        
-	        if (remoteURI.getScheme() == null) {
-	            // TODO should be forcing the rsync protocol and then going through this based on config?
-	            remote = remoteURI.getPath();
-	            int idx = remote.indexOf("/");
-	            remote = remote.substring(0,idx) + ":" + remote.substring(idx);
-	        } else if ("file".equalsIgnoreCase(remoteURI.getScheme())) {
-	            remote = remoteURI.getPath();
-	        } else {
-	            remote = remoteURI.toString();
-	        }
-	                
-	        String rsyncOptions = "-avzru";
-	        String[] rsyncOptionParts = new String[0];
-	        
-	        Properties configurationProperties = configuration.getRemoteConfiguration().getConfigurationProperties();
-	        
-	        String password = configurationProperties.getProperty("password");
-	                
-	        if (rsyncOptions != null && rsyncOptions.trim().length() > 0) {
-	            rsyncOptionParts = rsyncOptions.split(" ");
-	        }
-	
-	        List<String> parameterList = new ArrayList<>();
-	        parameterList.add(rsyncBinaryPath);
-	        for (int i=0; i<rsyncOptionParts.length; i++) {
-	            parameterList.add(rsyncOptionParts[i]);
-	        }
-	        if (password != null) {
-	            File passwordFile = writePasswordToFile(password);
-	            parameterList.add("--password-file=" + passwordFile.getAbsolutePath());
-	        }
-	        parameterList.add(local);
-	        parameterList.add(remote);
-	
-	        System.out.println("Executing: " + parameterList);
-	
-	        // TODO see how we deal with host signatures
-	        
-	        if (syncDirection == SyncDirection.TO_REMOTE) {
-	            Process process = Runtime.getRuntime().exec(parameterList.toArray(new String[0]));
-	            try {
-	                outStreamLogger = new OutputStreamLogger(process.getInputStream());
-	                (new Thread(outStreamLogger)).start();
-	                errStreamLogger = new OutputStreamLogger(process.getErrorStream());
-	                (new Thread(errStreamLogger)).start();
-	                process.waitFor();
-	                
-	            } catch (InterruptedException e) {
-	                e.printStackTrace();
-	            }
-	
-	            int exitValue = process.exitValue();
-	            if (exitValue != 0) {
-	            	System.err.println( errStreamLogger.getOutput());
-	            	throw new FileSyncException("Rsync command failed with an error (" + exitValue + ")", errStreamLogger.getOutput());
-	            }
-	        }
-    	} catch (IOException ex) {
-    		throw new FileSyncException(ex);
-    	}
-    }
-    
-    private File writePasswordToFile(String password) throws IOException {
-        File file = File.createTempFile("rsync", ".dat");
-        
-        System.out.println(file);
-        
-        OutputStream out = new FileOutputStream(file);
-        out.write(password.getBytes(Charset.forName("UTF-8")));
-        out.close();
-        
-        file.deleteOnExit();
-        
-        return file;
+        SyncRecorder recorder = new SyncRecorder(getClass().getSimpleName(), syncDirection, configuration.getSyncMetrics());
+        Exception failure = null;
+        List<File> tempFiles = new ArrayList<File>();
+        try {
+            Properties properties = configuration.getRemoteConfiguration().getConfigurationProperties();
+            String binary = properties.getProperty(BINARY_PROPERTY, rsyncBinaryPath).trim();
+            if (binary.contains(File.separator) && !new File(binary).exists()) {
+                throw new RuntimeException("rsync binary was not located on the file system: " + binary);
+            }
+
+            URI localURI = configuration.getLocalConfiguration().getURI();
+            URI remoteURI = configuration.getRemoteConfiguration().getURI();
+            String local = locationOf(localURI);
+            String remote = locationOf(remoteURI);
+
+            List<String> arguments = new ArrayList<String>();
+            arguments.add(binary);
+            arguments.addAll(Arrays.asList(properties.getProperty(OPTIONS_PROPERTY, DEFAULT_OPTIONS).trim().split("\\s+")));
+            if ("ssh".equalsIgnoreCase(remoteURI.getScheme()) && remoteURI.getPort() > 0) {
+                arguments.add("--rsh=ssh -p " + remoteURI.getPort());
+            }
+            if (configuration.getChangeDetection() == ChangeDetector.Mode.CONTENT_HASH) {
+                arguments.add("--checksum");
+            }
+            if (force) {
+                arguments.add("--ignore-times");
+            }
+            TransferThrottle throttle = configuration.getThrottle();
+            if (throttle != null && throttle.getCurrentBytesPerSecond() > 0) {
+                // INFO rsync takes KiB per second, and its limit is fixed for the run
+                int processes = Math.max(1, getPartitions(properties));
+                long kibPerSecond = (throttle.getCurrentBytesPerSecond() / processes + 1023) / 1024;
+                arguments.add("--bwlimit=" + kibPerSecond);
+            }
+            arguments.addAll(filterRules(configuration.getPathsToInclude(), configuration.getPathsToExclude()));
+            arguments.add("--out-format=" + (isVersionAtLeast(binary, 3, 0) ? RsyncOutputParser.OUT_FORMAT
+                    : RsyncOutputParser.OUT_FORMAT_WITHOUT_TIME));
+            if (Boolean.parseBoolean(properties.getProperty(PROGRESS_PROPERTY, "true").trim())
+                    && isVersionAtLeast(binary, 3, 1)) {
+                arguments.add("--info=progress2");
+            }
+            String password = properties.getProperty("password");
+            if (password != null) {
+                File passwordFile = writePasswordToFile(password);
+                tempFiles.add(passwordFile);
+                arguments.add("--password-file=" + passwordFile.getAbsolutePath());
+            }
+
+            if (syncDirection == SyncDirection.TWO_WAY) {
+                // INFO rsync has no two way mode, so each side is sent to the other, skipping newer files
+                arguments.add("--update");
+                sync(configuration, arguments, local, remote, localURI, relativePaths, pathFilter, false, recorder, tempFiles);
+                sync(configuration, arguments, remote, local, remoteURI, relativePaths, pathFilter, false, recorder, tempFiles);
+            } else {
+                if (configuration.getChangeDetection() == ChangeDetector.Mode.MTIME) {
+                    // INFO files which are newer on the destination are left alone
+                    arguments.add("--update");
+                }
+                boolean delete = Boolean.parseBoolean(properties.getProperty(DELETE_PROPERTY, "false").trim());
+                if (syncDirection == SyncDirection.TO_REMOTE) {
+                    sync(configuration, arguments, local, remote, localURI, relativePaths, pathFilter, delete, recorder, tempFiles);
+                } else {
+                    sync(configuration, arguments, remote, local, remoteURI, relativePaths, pathFilter, delete, recorder, tempFiles);
+                }
+            }
+        } catch (IOException ex) {
+            failure = ex;
+            throw new FileSyncException(ex);
+        } catch (FileSyncException | RuntimeException ex) {
+            failure = ex;
+            throw ex;
+        } finally {
+            for (File tempFile : tempFiles) {
+                tempFile.delete();
+            }
+            lastSyncReport = recorder.finish(failure);
+        }
+    }
+
+    /**
+     * @return the report of the last sync, or null if none was run
+     */
+    public SyncReport getLastSyncReport() {
+        return lastSyncReport;
+    }
+
+    /**
+     * Syncs the destination with the source, over one rsync process per
+     * partition of the paths to sync.
+     */
+    private void sync(FileSyncConfiguration configuration, List<String> commonArguments, String source,
+            String destination, URI sourceURI, List<String> relativePaths, PathFilter pathFilter, boolean delete,
+            SyncMetrics metrics, List<File> tempFiles) throws FileSyncException, IOException {
+
+        Properties properties = configuration.getRemoteConfiguration().getConfigurationProperties();
+        File sourceFolder = "file".equalsIgnoreCase(sourceURI.getScheme()) ? new File(sourceURI.getPath()) : null;
+
+        List<String> paths = null;
+        if (pathFilter != null) {
+            if (sourceFolder == null) {
+                throw new FileSyncException("A path filter can only be applied to an rsync sync from a local folder");
+            }
+            paths = listAcceptedFiles(sourceFolder.toPath(),
+                    relativePaths != null ? SyncPipeline.coalesce(relativePaths) : Collections.singletonList(""),
+                    pathFilter);
+            if (paths.isEmpty()) {
+                return;
+            }
+        } else if (relativePaths != null) {
+            paths = SyncPipeline.coalesce(relativePaths);
+            if (paths.contains("")) {
+                paths = null;
+            }
+        }
+        int partitions = getPartitions(properties);
+        boolean wholeTree = paths == null;
+        if (wholeTree && partitions > 1 && sourceFolder != null) {
+            paths = listChildren(sourceFolder);
+        }
+
+        List<List<String>> partitioned = paths != null ? partition(paths, partitions) : null;
+        int maxDeletions = configuration.getMaxDeletions();
+        // INFO deletions of a partitioned sync run as one more pass, which sends nothing, so the limit holds
+        // INFO for the whole sync and entries only on the destination are found at any level, the top included
+        boolean deletionPass = delete && (maxDeletions >= 0 || (partitioned != null && partitioned.size() > 1));
+
+        List<String> arguments = new ArrayList<String>(commonArguments);
+        if (delete && !deletionPass) {
+            arguments.add("--delete");
+        }
+        List<List<String>> commands = new ArrayList<List<String>>();
+        if (partitioned == null) {
+            commands.add(command(arguments, null, source, destination, tempFiles));
+        } else {
+            for (List<String> partition : partitioned) {
+                commands.add(command(arguments, partition, source, destination, tempFiles));
+            }
+        }
+        execute(commands, metrics, configuration.getSyncListeners());
+
+        if (deletionPass) {
+            List<String> pathsToDelete = wholeTree ? null : paths;
+            List<String> deleteArguments = new ArrayList<String>(commonArguments);
+            deleteArguments.add("--delete");
+            deleteArguments.add("--existing");
+            deleteArguments.add("--ignore-existing");
+            if (maxDeletions >= 0) {
+                // INFO --max-delete deletes up to the limit before failing, so the deletions are counted first
+                List<String> dryRunArguments = new ArrayList<String>(deleteArguments);
+                dryRunArguments.add("--dry-run");
+                int deletionCount = countDeletions(command(dryRunArguments, pathsToDelete, source, destination,
+                        tempFiles));
+                if (deletionCount > maxDeletions) {
+                    throw new FileSyncException("The sync would delete " + deletionCount
+                            + " entries, more than the limit of " + maxDeletions);
+                }
+                // INFO still passed, for entries which appeared on the destination since they were counted
+                deleteArguments.add("--max-delete=" + maxDeletions);
+            }
+            execute(Collections.singletonList(command(deleteArguments, pathsToDelete, source, destination,
+                    tempFiles)), metrics, configuration.getSyncListeners());
+        }
+    }
+
+    /**
+     * @return the number of entries the command, a dry run, would delete
+     */
+    private int countDeletions(List<String> command) throws FileSyncException, IOException {
+        List<Process> processes = Collections.synchronizedList(new ArrayList<Process>());
+        try {
+            return run(command, processes, SyncMetrics.NOOP, Collections.<SyncListener>emptyList())
+                    .getDeletionCount();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new FileSyncException("The rsync sync was interrupted");
+        }
+    }
+
+    /**
+     * @param paths the paths to sync, or null to sync the whole tree
+     */
+    private List<String> command(List<String> arguments, List<String> paths, String source, String destination,
+            List<File> tempFiles) throws IOException {
+        List<String> command = new ArrayList<String>(arguments);
+        if (paths != null) {
+            File filesFromFile = writeFilesFromFile(paths);
+            tempFiles.add(filesFromFile);
+            // INFO -a does not imply -r with --files-from, which is needed to sync the listed folders
+            command.add("--recursive");
+            command.add("--files-from=" + filesFromFile.getAbsolutePath());
+            command.add("--from0");
+            if (isVersionAtLeast(arguments.get(0), 3, 1)) {
+                // INFO paths deleted since they were reported are skipped rather than failing the run
+                command.add("--ignore-missing-args");
+            }
+        }
+        command.add(source);
+        command.add(destination);
+        return command;
+    }
+
+    /**
+     * Runs the commands at once, stopping them all when one fails or the
+     * calling thread is interrupted.
+     */
+    private void execute(List<List<String>> commands, final SyncMetrics metrics, final List<SyncListener> listeners)
+            throws FileSyncException {
+
+        final List<Process> processes = Collections.synchronizedList(new ArrayList<Process>());
+        ExecutorService executor = Executors.newFixedThreadPool(commands.size());
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final List<String> command : commands) {
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        run(command, processes, metrics, listeners);
+                        return null;
+                    }
+                }));
+            }
+
+            FileSyncException failure = null;
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException ex) {
+                    if (failure == null) {
+                        failure = ex.getCause() instanceof FileSyncException ? (FileSyncException) ex.getCause()
+                                : new FileSyncException(ex.getCause());
+                        destroy(processes);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            destroy(processes);
+            throw new FileSyncException("The rsync sync was interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the parser of the output of the command
+     */
+    private RsyncOutputParser run(List<String> command, List<Process> processes, SyncMetrics metrics,
+            List<SyncListener> listeners) throws FileSyncException, IOException, InterruptedException {
+
+        logger.debug("Executing: " + command);
+        // INFO errors are merged into the output, to be read as they come rather than buffered
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        processes.add(process);
+        try {
+            RsyncOutputParser parser = new RsyncOutputParser(metrics, listeners);
+            parser.parse(process.getInputStream());
+            int exitValue = process.waitFor();
+            if (exitValue == VANISHED_FILES_STATUS) {
+                logger.warn("Some files vanished while rsync ran: " + parser.getMessages());
+            } else if (exitValue != 0) {
+                throw new FileSyncException("Rsync command failed with an error (" + exitValue + ")", parser.getMessages());
+            }
+            return parser;
+        } finally {
+            process.destroy();
+            processes.remove(process);
+        }
+    }
+
+    private void destroy(List<Process> processes) {
+        synchronized (processes) {
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * @return whether the rsync binary is of the given version or later,
+     *         false when its version cannot be read
+     */
+    boolean isVersionAtLeast(String binary, int major, int minor) {
+        int[] version = VERSIONS.get(binary);
+        if (version == null) {
+            version = readVersion(binary);
+            VERSIONS.putIfAbsent(binary, version);
+        }
+        return version[0] > major || (version[0] == major && version[1] >= minor);
     }
-    
-    
-    static class OutputStreamLogger implements Runnable {
-        InputStream in = null;
-        StringBuilder strBuilder = new StringBuilder();
-        
-        OutputStreamLogger(InputStream in) {
-            this.in = in;
-        }
-        
-        public void run() {
-            InputStreamReader reader = null;
+
+    private int[] readVersion(String binary) {
+        try {
+            Process process = new ProcessBuilder(binary, "--version").redirectErrorStream(true).start();
             try {
-                reader = new InputStreamReader(in);
-                char[] buffer = new char[1024];
-                int len = -1;
-                while ((len = reader.read(buffer)) > -1) {
-                	strBuilder.append(new String(buffer, 0, len));
+                BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                        Charset.forName("UTF-8")));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Matcher matcher = VERSION.matcher(line);
+                    if (matcher.find()) {
+                        return new int[] { Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)) };
+                    }
+                }
+            } finally {
+                process.destroy();
+            }
+        } catch (IOException ex) {
+            logger.warn("Unable to read the version of " + binary + ": " + ex.getMessage());
+        }
+        logger.warn("Unknown version of " + binary + ", options of rsync 3.0 and later are not used");
+        return new int[] { 0, 0 };
+    }
+
+    /**
+     * @return the location of the endpoint's base folder as rsync takes it,
+     *         ending with a '/' so that the content of the folder is synced
+     *         rather than the folder itself
+     */
+    static String locationOf(URI uri) {
+        String location;
+        if (uri.getScheme() == null) {
+            // INFO 'user@host/path', which rsync takes as 'user@host:/path'
+            location = uri.getPath();
+            int idx = location.indexOf("/");
+            location = location.substring(0, idx) + ":" + location.substring(idx);
+        } else if ("file".equalsIgnoreCase(uri.getScheme())) {
+            location = uri.getPath();
+        } else if ("ssh".equalsIgnoreCase(uri.getScheme())) {
+            location = (uri.getUserInfo() != null ? uri.getUserInfo() + "@" : "") + uri.getHost() + ":" + uri.getPath();
+        } else {
+            location = uri.toString();
+        }
+        return location.endsWith("/") ? location : location + "/";
+    }
+
+    /**
+     * Translates the include and exclude paths, see
+     * {@link CompiledPathFilter}, into rsync filter rules. Each rule is
+     * anchored at the base folder and also covers the subtree of the
+     * path. Excludes come first, as rsync applies the first rule which
+     * matches; folders above an included path are included, and the
+     * other entries excluded.
+     */
+    static List<String> filterRules(List<String> pathsToInclude, List<String> pathsToExclude) {
+        List<String> rules = new ArrayList<String>();
+        if (pathsToExclude != null) {
+            for (String pattern : patterns(pathsToExclude)) {
+                rules.add("--exclude=/" + pattern);
+            }
+        }
+        if (pathsToInclude == null || pathsToInclude.isEmpty()) {
+            return rules;
+        }
+
+        Set<String> folders = new LinkedHashSet<String>();
+        List<String> includes = new ArrayList<String>();
+        boolean anyFolder = false;
+        for (String pattern : patterns(pathsToInclude)) {
+            String[] segments = pattern.split("/");
+            String folder = "";
+            for (int i = 0; i < segments.length - 1 && !segments[i].contains("**"); i++) {
+                folder += segments[i] + "/";
+                folders.add("--include=/" + folder);
+            }
+            anyFolder |= pattern.contains("**");
+            includes.add("--include=/" + pattern);
+            includes.add("--include=/" + pattern + "/***");
+        }
+        rules.addAll(folders);
+        if (anyFolder) {
+            // INFO the included paths can be at any depth, so every folder is searched, and those left empty pruned
+            rules.add("--include=*/");
+            rules.add("--prune-empty-dirs");
+        }
+        rules.addAll(includes);
+        rules.add("--exclude=*");
+        return rules;
+    }
+
+    /**
+     * @return the paths normalised, with a copy without its '**' segments
+     *         of each path which has some, as in rsync they match at least
+     *         one folder but in a {@link CompiledPathFilter} none
+     */
+    private static Set<String> patterns(List<String> paths) {
+        Set<String> patterns = new LinkedHashSet<String>();
+        for (String path : SyncPipeline.coalesce(paths)) {
+            if (path.isEmpty()) {
+                continue;
+            }
+            patterns.add(path);
+            if (path.contains(ANY_SEGMENTS)) {
+                String collapsed = path.replace(ANY_SEGMENTS, "");
+                if (!collapsed.isEmpty()) {
+                    patterns.add(collapsed);
+                }
+            }
+        }
+        return patterns;
+    }
+
+    private int getPartitions(Properties properties) {
+        String value = properties.getProperty(PARTITIONS_PROPERTY);
+        return value != null ? Integer.parseInt(value.trim()) : 1;
+    }
+
+    /**
+     * @return the paths split into at most the given number of runs of
+     *         consecutive paths, of about the same length
+     */
+    static List<List<String>> partition(List<String> paths, int partitions) {
+        List<List<String>> result = new ArrayList<List<String>>();
+        int count = Math.max(1, Math.min(partitions, paths.size()));
+        for (int i = 0; i < count; i++) {
+            List<String> partition = paths.subList(i * paths.size() / count, (i + 1) * paths.size() / count);
+            if (!partition.isEmpty()) {
+                result.add(partition);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the names of the entries of the folder, sorted
+     */
+    private List<String> listChildren(File folder) throws IOException {
+        String[] names = folder.list();
+        if (names == null) {
+            throw new IOException("Unable to list " + folder);
+        }
+        List<String> children = new ArrayList<String>(Arrays.asList(names));
+        Collections.sort(children);
+        return children;
+    }
+
+    /**
+     * @return the files below the given paths which the filter accepts,
+     *         skipping the folders whose subtree it does not accept
+     */
+    private List<String> listAcceptedFiles(final Path basePath, List<String> relativePaths, final PathFilter pathFilter)
+            throws IOException {
+        final List<String> files = new ArrayList<String>();
+        for (String relativePath : relativePaths) {
+            final Path start = relativePath.isEmpty() ? basePath : basePath.resolve(relativePath);
+            if (!Files.exists(start)) {
+                continue;
+            }
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    String path = relativePathOf(basePath, dir);
+                    if (!path.isEmpty() && pathFilter instanceof SubtreePathFilter
+                            && !((SubtreePathFilter) pathFilter).acceptSubtree(path)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
                 }
-            } catch (IOException ex) {
-                ex.printStackTrace();
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    String path = relativePathOf(basePath, file);
+                    if (pathFilter.accept(path)) {
+                        files.add(path);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return files;
+    }
+
+    private static String relativePathOf(Path basePath, Path path) {
+        return basePath.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Writes the paths for --files-from, NUL separated so that any file
+     * name can be given.
+     */
+    private File writeFilesFromFile(List<String> relativePaths) throws IOException {
+        File file = File.createTempFile("rsync", ".files");
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (String relativePath : relativePaths) {
+                out.write(relativePath.getBytes(Charset.forName("UTF-8")));
+                out.write(0);
             }
         }
-        
-        public String getOutput() {
-        	return strBuilder.toString();
+        return file;
+    }
+
+    private File writePasswordToFile(String password) throws IOException {
+        File file = File.createTempFile("rsync", ".dat");
+        // INFO rsync refuses a password file which others can read
+        file.setReadable(false, false);
+        file.setReadable(true, true);
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(password.getBytes(Charset.forName("UTF-8")));
         }
+
+        file.deleteOnExit();
+
+        return file;
     }
 
 }
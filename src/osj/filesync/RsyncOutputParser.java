@@ -0,0 +1,191 @@
+package osj.filesync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads the output of an rsync run as it is written, turning each line
+ * itemized with {@link #OUT_FORMAT} into a file event for the
+ * {@link SyncMetrics} and {@link SyncListener}s, and each --info=progress2
+ * line into the depth of rsync's queue of files left to check. Other lines
+ * are logged.
+ *
+ * Memory use does not depend on the amount of output: lines are cut at
+ * {@link #MAX_LINE_LENGTH} bytes, and only the last few messages are kept,
+ * to explain a failed run.
+ *
+ * @author ajmas
+ *
+ */
+class RsyncOutputParser {
+
+    /**
+     * The format of the itemized lines: the changes, the size, the
+     * modification time and the path.
+     */
+    static final String OUT_FORMAT = "%i|%l|%M|%n";
+
+    /**
+     * The format of the itemized lines for rsync before 3.0, which has no
+     * modification time.
+     */
+    static final String OUT_FORMAT_WITHOUT_TIME = "%i|%l||%n";
+
+    static final String TO_CHECK_QUEUE = "rsync.toCheck";
+
+    static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_MESSAGES = 20;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String DELETING = "*deleting";
+    private static final Pattern PROGRESS = Pattern.compile(
+            "^\\s*([\\d,]+)\\s+\\d+%.*?(?:\\((?:xfr#\\d+, )?(?:to|ir)-chk=(\\d+)/\\d+\\))?$");
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final SyncMetrics metrics;
+    private final List<SyncListener> listeners;
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy/MM/dd-HH:mm:ss");
+
+    private final Deque<String> messages = new ArrayDeque<String>();
+    private long lastEventNanos = System.nanoTime();
+    private int deletionCount;
+
+    RsyncOutputParser(SyncMetrics metrics, List<SyncListener> listeners) {
+        this.metrics = metrics;
+        this.listeners = listeners;
+    }
+
+    /**
+     * Reads the output until its end, progress lines being ended by '\r'
+     * and the others by '\n'.
+     */
+    void parse(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            for (int i = 0; i < count; i++) {
+                byte b = buffer[i];
+                if (b == '\n' || b == '\r') {
+                    parseLine(new String(line.toByteArray(), UTF8));
+                    line.reset();
+                } else if (line.size() < MAX_LINE_LENGTH) {
+                    line.write(b);
+                }
+            }
+        }
+        if (line.size() > 0) {
+            parseLine(new String(line.toByteArray(), UTF8));
+        }
+    }
+
+    void parseLine(String line) {
+        if (line.trim().isEmpty()) {
+            return;
+        }
+        Matcher progress = PROGRESS.matcher(line);
+        if (progress.matches()) {
+            if (progress.group(2) != null) {
+                metrics.queueDepth(TO_CHECK_QUEUE, Integer.parseInt(progress.group(2)));
+            }
+            logger.debug("rsync: " + line.trim());
+            return;
+        }
+
+        String[] fields = line.split("\\|", 4);
+        if (fields.length == 4 && (fields[0].startsWith(DELETING) || fields[0].length() == 11)) {
+            item(fields[0].trim(), fields[1].trim(), fields[2].trim(), fields[3]);
+        } else {
+            message(line);
+        }
+    }
+
+    private void item(String changes, String size, String lastModified, String path) {
+        boolean directory = path.endsWith("/");
+        String relativePath = directory ? path.substring(0, path.length() - 1) : path;
+        FileEntry entry = new FileEntry(relativePath, directory, parseSize(size), parseTime(lastModified), null);
+        long nanos = System.nanoTime() - lastEventNanos;
+        lastEventNanos += nanos;
+
+        SyncAction action;
+        if (changes.startsWith(DELETING)) {
+            action = new SyncAction(SyncAction.Type.DELETE, relativePath, null, entry);
+            deletionCount++;
+            metrics.entryDeleted(action, 0);
+        } else if (changes.charAt(1) == 'f' && (changes.charAt(0) == '<' || changes.charAt(0) == '>')) {
+            // INFO rsync reports a file as it starts on it, so the time is that of the file before it
+            action = new SyncAction(SyncAction.Type.COPY, relativePath, entry, null);
+            metrics.transferQueued(action);
+            metrics.fileTransferred(action, entry.getSize(), nanos);
+        } else if (changes.charAt(1) == 'd' && changes.charAt(0) == 'c' && changes.charAt(2) == '+') {
+            action = new SyncAction(SyncAction.Type.CREATE_DIRECTORY, relativePath, entry, null);
+            metrics.directoryCreated(action);
+        } else {
+            // INFO attribute changes, links and special files
+            logger.debug("rsync: " + changes + " " + path);
+            return;
+        }
+        for (SyncListener listener : listeners) {
+            listener.actionCompleted(action);
+        }
+    }
+
+    private void message(String line) {
+        logger.info("rsync: " + line);
+        synchronized (messages) {
+            if (messages.size() == MAX_MESSAGES) {
+                messages.removeFirst();
+            }
+            messages.addLast(line);
+        }
+    }
+
+    private static long parseSize(String size) {
+        try {
+            return Long.parseLong(size.replace(",", ""));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private long parseTime(String lastModified) {
+        try {
+            return timeFormat.parse(lastModified).getTime();
+        } catch (ParseException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the number of entries reported as deleted, or as to delete
+     *         by a dry run
+     */
+    int getDeletionCount() {
+        return deletionCount;
+    }
+
+    /**
+     * @return the last messages of the run, one per line
+     */
+    String getMessages() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (messages) {
+            for (String message : messages) {
+                builder.append(message).append('\n');
+            }
+        }
+        return builder.toString().trim();
+    }
+}
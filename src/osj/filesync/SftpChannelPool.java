@@ -0,0 +1,112 @@
+package osj.filesync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * A set of SFTP channels multiplexed over one ssh session. A ChannelSftp
+ * only runs one request at a time, so several channels are needed to keep
+ * a high latency link busy. Channels are opened on demand, up to the
+ * configured count, and a caller waits when they are all in use.
+ *
+ * @author ajmas
+ *
+ */
+public class SftpChannelPool implements Closeable {
+
+    public static final String CHANNELS_PROPERTY = "ssh.channels";
+
+    static final int DEFAULT_CHANNELS = 4;
+
+    private final Session session;
+    private final int channelCount;
+
+    private final BlockingQueue<ChannelSftp> idleChannels = new LinkedBlockingQueue<ChannelSftp>();
+    private final List<ChannelSftp> channels = new ArrayList<ChannelSftp>();
+
+    public SftpChannelPool(Session session, int channelCount) {
+        if (channelCount < 1) {
+            throw new IllegalArgumentException("channel count must be at least 1, was: " + channelCount);
+        }
+        this.session = session;
+        this.channelCount = channelCount;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * @return the most channels the pool opens
+     */
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    public static int getChannelCount(EndpointConfiguration endpoint) {
+        String value = endpoint.getConfigurationProperties().getProperty(CHANNELS_PROPERTY);
+        return value != null ? Integer.parseInt(value.trim()) : DEFAULT_CHANNELS;
+    }
+
+    /**
+     * Takes a channel for the exclusive use of the caller, who must give
+     * it back with {@link #release(ChannelSftp)}.
+     */
+    public ChannelSftp borrow() throws IOException {
+        ChannelSftp channel = idleChannels.poll();
+        if (channel != null) {
+            return channel;
+        }
+
+        synchronized (channels) {
+            if (channels.size() < channelCount) {
+                channel = open();
+                channels.add(channel);
+                return channel;
+            }
+        }
+
+        try {
+            return idleChannels.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an SFTP channel");
+        }
+    }
+
+    public void release(ChannelSftp channel) {
+        idleChannels.offer(channel);
+    }
+
+    public void close() {
+        synchronized (channels) {
+            for (ChannelSftp channel : channels) {
+                channel.disconnect();
+            }
+            channels.clear();
+            idleChannels.clear();
+        }
+    }
+
+    /**
+     * Opens a new channel over the session.
+     */
+    ChannelSftp open() throws IOException {
+        try {
+            ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
+            channel.connect();
+            return channel;
+        } catch (JSchException ex) {
+            throw new IOException("Unable to open an SFTP channel to " + session.getHost(), ex);
+        }
+    }
+}
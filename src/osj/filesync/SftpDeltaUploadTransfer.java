@@ -0,0 +1,299 @@
+package osj.filesync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Uploads a modified file by sending only the parts which changed, falling
+ * back to a full upload for new and small files, or if the delta transfer
+ * fails. Two modes are available, chosen with the endpoint property
+ * 'ssh.delta':
+ *
+ * <ul>
+ * <li>helper: the rsync algorithm, using {@link DeltaHelper} run on the
+ *     remote host with the command given by 'ssh.delta.helper'. Changes
+ *     which shift the rest of the file, such as an insertion, only cost
+ *     the inserted data. The new version is renamed into place.</li>
+ * <li>blocks: needs nothing but GNU coreutils on the remote host. The
+ *     MD5 of each block of the remote file is computed with 'split' and
+ *     only the blocks which differ are written, in place, over SFTP. The
+ *     remote file is not replaced atomically, so its modification time is
+ *     cleared until the writes are done, making an interrupted transfer
+ *     look out of date to the next run.</li>
+ * </ul>
+ *
+ * Only files of at least 'ssh.delta.minSize' bytes, 1 MiB by default,
+ * are sent as a delta. The block size is set with 'ssh.delta.blockSize',
+ * or chosen from the size of the file.
+ *
+ * @author ajmas
+ *
+ */
+public class SftpDeltaUploadTransfer implements FileTransfer {
+
+    public static final String DELTA_PROPERTY = "ssh.delta";
+    public static final String HELPER_PROPERTY = "ssh.delta.helper";
+    public static final String MIN_SIZE_PROPERTY = "ssh.delta.minSize";
+    public static final String BLOCK_SIZE_PROPERTY = "ssh.delta.blockSize";
+
+    public static final String HELPER_MODE = "helper";
+    public static final String BLOCKS_MODE = "blocks";
+
+    static final long DEFAULT_MIN_SIZE = 1024 * 1024;
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final LocalSyncEndpoint source;
+    private final SftpSyncEndpoint destination;
+    private final FileTransfer fullTransfer;
+
+    private final String mode;
+    private final String helperCommand;
+    private final long minSize;
+    private final int blockSize;
+
+    public SftpDeltaUploadTransfer(LocalSyncEndpoint source, SftpSyncEndpoint destination, Properties properties) {
+        this.source = source;
+        this.destination = destination;
+        this.fullTransfer = new SftpUploadTransfer(source, destination, properties);
+
+        this.mode = properties.getProperty(DELTA_PROPERTY, "").trim().toLowerCase();
+        this.helperCommand = properties.getProperty(HELPER_PROPERTY);
+        String value = properties.getProperty(MIN_SIZE_PROPERTY);
+        this.minSize = value != null ? Long.parseLong(value.trim()) : DEFAULT_MIN_SIZE;
+        value = properties.getProperty(BLOCK_SIZE_PROPERTY);
+        this.blockSize = value != null ? Integer.parseInt(value.trim()) : 0;
+
+        if (HELPER_MODE.equals(mode) && helperCommand == null) {
+            throw new IllegalArgumentException(HELPER_PROPERTY + " must be set when " + DELTA_PROPERTY + " is " + HELPER_MODE);
+        }
+    }
+
+    /**
+     * @return whether the endpoint properties ask for delta transfers
+     */
+    public static boolean isEnabled(Properties properties) {
+        String mode = properties.getProperty(DELTA_PROPERTY, "").trim();
+        return HELPER_MODE.equalsIgnoreCase(mode) || BLOCKS_MODE.equalsIgnoreCase(mode);
+    }
+
+    public void transfer(SyncAction action) throws IOException {
+        FileEntry sourceEntry = action.getSourceEntry();
+        FileEntry destinationEntry = action.getDestinationEntry();
+        if (destinationEntry == null || destinationEntry.isDirectory() || sourceEntry.getSize() < minSize) {
+            fullTransfer.transfer(action);
+            return;
+        }
+
+        destination.invalidate(action.getRelativePath());
+        try {
+            if (HELPER_MODE.equals(mode)) {
+                transferWithHelper(action);
+            } else {
+                transferBlocks(action);
+            }
+            setModificationTime(action);
+        } catch (InterruptedIOException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            if (Thread.currentThread().isInterrupted()) {
+                // INFO a cancelled sync, or a throttle wait which was interrupted and cancelled the transfer
+                throw ex;
+            }
+            logger.warn("Delta transfer of " + action.getRelativePath() + " failed, uploading the whole file", ex);
+            fullTransfer.transfer(action);
+        }
+    }
+
+    private int getBlockSize(long fileLength) {
+        return blockSize > 0 ? blockSize : BlockSignatures.chooseBlockSize(fileLength);
+    }
+
+    private void transferWithHelper(SyncAction action) throws IOException {
+        String localPath = source.resolve(action.getRelativePath()).toString();
+        String remotePath = RemoteCommand.quote(destination.resolve(action.getRelativePath()));
+        int size = getBlockSize(action.getDestinationEntry().getSize());
+
+        BlockSignatures signatures;
+        RemoteCommand signatureCommand = new RemoteCommand(destination.getChannelPool().getSession(),
+                helperCommand + " signature " + remotePath + " " + size);
+        try {
+            signatureCommand.getOutputStream().close();
+            signatures = BlockSignatures.read(new BufferedInputStream(signatureCommand.getInputStream(), 65536));
+            signatureCommand.waitFor(true);
+        } finally {
+            signatureCommand.close();
+        }
+
+        DeltaGenerator generator = new DeltaGenerator(signatures);
+        RemoteCommand patchCommand = new RemoteCommand(destination.getChannelPool().getSession(),
+                helperCommand + " patch " + remotePath);
+        try {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(localPath), 65536);
+                    OutputStream out = new BufferedOutputStream(patchCommand.getOutputStream(), 65536)) {
+                generator.generate(in, out);
+            }
+            patchCommand.waitFor(true);
+        } finally {
+            patchCommand.close();
+        }
+        logger.debug("Sent " + generator.getLiteralBytes() + " bytes of " + action.getRelativePath()
+                + ", reused " + generator.getCopiedBytes() + " bytes");
+    }
+
+    private void transferBlocks(SyncAction action) throws IOException {
+        String localPath = source.resolve(action.getRelativePath()).toString();
+        String remotePath = destination.resolve(action.getRelativePath());
+        long remoteLength = action.getDestinationEntry().getSize();
+        int size = getBlockSize(remoteLength);
+
+        List<byte[]> remoteSums = fetchBlockSums(remotePath, size);
+
+        SftpChannelPool channels = destination.getChannelPool();
+        ChannelSftp sftp = channels.borrow();
+        try (RandomAccessFile localFile = new RandomAccessFile(localPath, "r")) {
+            long localLength = localFile.length();
+            int blockCount = (int) ((localLength + size - 1) / size);
+            MessageDigest digest = BlockSignatures.newDigest();
+            byte[] block = new byte[size];
+            long sentBytes = 0;
+
+            // INFO an interrupted transfer must not look up to date to the next run
+            sftp.setMtime(remotePath, 0);
+
+            int firstChanged = -1;
+            for (int i = 0; i <= blockCount; i++) {
+                boolean changed = false;
+                if (i < blockCount) {
+                    int length = (int) Math.min(size, localLength - (long) i * size);
+                    localFile.seek((long) i * size);
+                    localFile.readFully(block, 0, length);
+                    digest.update(block, 0, length);
+                    changed = i >= remoteSums.size() || !Arrays.equals(digest.digest(), remoteSums.get(i));
+                }
+                if (changed && firstChanged < 0) {
+                    firstChanged = i;
+                } else if (!changed && firstChanged >= 0) {
+                    long offset = (long) firstChanged * size;
+                    long length = Math.min((long) i * size, localLength) - offset;
+                    remoteLength = writeRange(sftp, localFile, remotePath, offset, length, remoteLength);
+                    sentBytes += length;
+                    firstChanged = -1;
+                }
+            }
+
+            if (remoteLength > localLength) {
+                SftpATTRS attrs = sftp.stat(remotePath);
+                attrs.setSIZE(localLength);
+                sftp.setStat(remotePath, attrs);
+            }
+            logger.debug("Sent " + sentBytes + " bytes of " + action.getRelativePath()
+                    + ", reused " + (localLength - sentBytes) + " bytes");
+        } catch (SftpException ex) {
+            throw new IOException("Unable to update " + remotePath, ex);
+        } finally {
+            channels.release(sftp);
+        }
+    }
+
+    /**
+     * Writes part of the local file at the same offset in the remote file,
+     * without truncating it.
+     *
+     * @return the length of the remote file after the write
+     */
+    private long writeRange(ChannelSftp sftp, RandomAccessFile localFile, String remotePath, long offset,
+            long length, long remoteLength) throws IOException, SftpException {
+        // INFO in APPEND mode JSch writes at the current remote length plus the given offset
+        try (OutputStream out = sftp.put(remotePath, ThrottleMonitor.of(destination.getThrottle()),
+                ChannelSftp.APPEND, offset - remoteLength)) {
+            byte[] buffer = new byte[65536];
+            localFile.seek(offset);
+            long remaining = length;
+            while (remaining > 0) {
+                int count = (int) Math.min(remaining, buffer.length);
+                localFile.readFully(buffer, 0, count);
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+        }
+        return Math.max(remoteLength, offset + length);
+    }
+
+    /**
+     * @return the MD5 of each block of the remote file, computed on the
+     *         remote host if possible, or else by reading it over SFTP
+     */
+    private List<byte[]> fetchBlockSums(String remotePath, int size) throws IOException {
+        List<byte[]> sums = new ArrayList<byte[]>();
+        RemoteCommand command = new RemoteCommand(destination.getChannelPool().getSession(),
+                "split -b " + size + " --filter=md5sum -- " + RemoteCommand.quote(remotePath));
+        try {
+            command.getOutputStream().close();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(command.getInputStream(), RemoteCommand.UTF8));
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                sums.add(SftpSyncEndpoint.fromHex(line.substring(0, 32)));
+            }
+            if (command.waitFor(false) == 0) {
+                return sums;
+            }
+            logger.debug("Unable to compute block sums on the remote host: " + command.getErrorOutput());
+        } catch (RuntimeException ex) {
+            throw new IOException("Unexpected md5sum output for " + remotePath, ex);
+        } finally {
+            command.close();
+        }
+
+        sums.clear();
+        SftpChannelPool channels = destination.getChannelPool();
+        ChannelSftp sftp = channels.borrow();
+        try (InputStream in = new BufferedInputStream(
+                sftp.get(remotePath, ThrottleMonitor.of(destination.getThrottle())), 65536)) {
+            MessageDigest digest = BlockSignatures.newDigest();
+            byte[] block = new byte[size];
+            int length = 0;
+            while ((length = BlockSignatures.readBlock(in, block)) > 0) {
+                digest.update(block, 0, length);
+                sums.add(digest.digest());
+            }
+            return sums;
+        } catch (SftpException ex) {
+            throw new IOException("Unable to read " + remotePath, ex);
+        } finally {
+            channels.release(sftp);
+        }
+    }
+
+    private void setModificationTime(SyncAction action) throws IOException {
+        String remotePath = destination.resolve(action.getRelativePath());
+        SftpChannelPool channels = destination.getChannelPool();
+        ChannelSftp sftp = channels.borrow();
+        try {
+            sftp.setMtime(remotePath, (int) (action.getSourceEntry().getLastModified() / 1000));
+        } catch (SftpException ex) {
+            throw new IOException("Unable to set the modification time of " + remotePath, ex);
+        } finally {
+            channels.release(sftp);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Downloads files from an ssh host to the local file system.
+ *
+ * Each file is written to a temporary file next to its destination, which
+ * then replaces the destination in a single rename, so an interrupted
+ * download never leaves a truncated file behind. The remote modification
+ * time and permissions are preserved.
+ *
+ * Files above the 'ssh.chunked.threshold' are split into ranges which are
+ * downloaded over several channels of the pool at once, each written at
+ * its own position of the temporary file, see {@link ChunkedCopy}.
+ *
+ * @author ajmas
+ *
+ */
+public class SftpDownloadTransfer implements FileTransfer {
+
+    private final SftpSyncEndpoint source;
+    private final LocalSyncEndpoint destination;
+    private final ChunkedCopy chunkedCopy;
+
+    public SftpDownloadTransfer(SftpSyncEndpoint source, LocalSyncEndpoint destination) {
+        this(source, destination, new Properties());
+    }
+
+    /**
+     * @param properties the remote endpoint properties
+     */
+    public SftpDownloadTransfer(SftpSyncEndpoint source, LocalSyncEndpoint destination, Properties properties) {
+        this.source = source;
+        this.destination = destination;
+        this.chunkedCopy = new ChunkedCopy(properties, SftpUploadTransfer.CHUNKED_PREFIX);
+    }
+
+    public void transfer(final SyncAction action) throws IOException {
+        final String remotePath = source.resolve(action.getRelativePath());
+        Path localPath = destination.resolve(action.getRelativePath());
+        final SftpChannelPool channels = source.getChannelPool();
+        final long size = action.getSourceEntry().getSize();
+
+        final Path tempFile = TempFiles.createTempFile(localPath);
+        try {
+            if (chunkedCopy.accepts(size, channels.getChannelCount())) {
+                try (final FileChannel out = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                    chunkedCopy.copy(size, channels.getChannelCount(), new ChunkedCopy.RangeCopier() {
+                        public void copy(long offset, long length) throws IOException {
+                            readRange(remotePath, out, offset, length);
+                        }
+                    });
+                    if (out.size() != size) {
+                        throw new IOException("The copy of " + remotePath + " is " + out.size() + " bytes long, expected " + size);
+                    }
+                }
+                if (chunkedCopy.isVerifying()) {
+                    chunkedCopy.verify(new Callable<byte[]>() {
+                        public byte[] call() throws IOException {
+                            FileEntry sourceEntry = action.getSourceEntry();
+                            return source.hash(Collections.singleton(sourceEntry)).get(sourceEntry.getRelativePath());
+                        }
+                    }, new Callable<byte[]>() {
+                        public byte[] call() throws IOException {
+                            return FileHasher.hash(tempFile);
+                        }
+                    }, remotePath);
+                }
+            } else {
+                ChannelSftp sftp = channels.borrow();
+                try (OutputStream out = Files.newOutputStream(tempFile)) {
+                    sftp.get(remotePath, out, ThrottleMonitor.of(source.getThrottle()));
+                } catch (SftpException ex) {
+                    throw new IOException("Unable to copy " + remotePath + " to " + localPath, ex);
+                } finally {
+                    channels.release(sftp);
+                }
+            }
+
+            copyPermissions(source, remotePath, tempFile);
+            Files.setLastModifiedTime(tempFile, FileTime.fromMillis(action.getSourceEntry().getLastModified()));
+            Files.move(tempFile, localPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Gives the local file the permissions of the remote file, when the
+     * local file system has POSIX permissions. Otherwise the file keeps
+     * the default permissions of a new file.
+     */
+    static void copyPermissions(SftpSyncEndpoint source, String remotePath, Path localFile) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(localFile, PosixFileAttributeView.class);
+        if (view == null) {
+            return;
+        }
+        SftpChannelPool channels = source.getChannelPool();
+        ChannelSftp sftp = channels.borrow();
+        try {
+            view.setPermissions(permissionsOf(sftp.stat(remotePath).getPermissions()));
+        } catch (SftpException ex) {
+            throw new IOException("Unable to read the permissions of " + remotePath, ex);
+        } finally {
+            channels.release(sftp);
+        }
+    }
+
+    /**
+     * @return the read, write and execute permissions of the mode
+     */
+    static Set<PosixFilePermission> permissionsOf(int mode) {
+        Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        // INFO the permissions are declared from owner read, 0400, down to others execute, 0001
+        for (PosixFilePermission permission : PosixFilePermission.values()) {
+            if ((mode & (0400 >> permission.ordinal())) != 0) {
+                permissions.add(permission);
+            }
+        }
+        return permissions;
+    }
+
+    /**
+     * Reads one range of the remote file on a channel of its own, and
+     * writes it at the same offset of the local file.
+     */
+    private void readRange(String remotePath, FileChannel out, long offset, long length) throws IOException {
+        SftpChannelPool channels = source.getChannelPool();
+        ChannelSftp sftp = channels.borrow();
+        try (InputStream in = sftp.get(remotePath, ThrottleMonitor.of(source.getThrottle()), offset)) {
+            byte[] buffer = new byte[65536];
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                int count = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+                if (count < 0) {
+                    throw new IOException(remotePath + " was truncated while it was being copied");
+                }
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, count);
+                while (data.hasRemaining()) {
+                    position += out.write(data, position);
+                }
+            }
+        } catch (SftpException ex) {
+            throw new IOException("Unable to read " + length + " bytes at " + offset + " of " + remotePath, ex);
+        } finally {
+            channels.release(sftp);
+        }
+    }
+}
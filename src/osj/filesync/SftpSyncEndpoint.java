@@ -0,0 +1,247 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Sync endpoint on an ssh host, accessed over an SFTP channel. A folder
+ * is listed with a single 'ls' request, which returns the attributes of
+ * all its children in one round trip.
+ *
+ * Each request borrows a channel from the {@link SftpChannelPool}, so up to
+ * one request per channel runs concurrently.
+ *
+ * When a {@link RemoteManifest} is set, listings and stats are answered
+ * from it without any round trip, except for folders which were changed
+ * through this endpoint since the manifest was fetched.
+ *
+ * Files are hashed on the remote host with 'md5sum', many files per
+ * command.
+ *
+ * @author ajmas
+ *
+ */
+public class SftpSyncEndpoint implements HashingEndpoint {
+
+    private static final int FILES_PER_HASH_COMMAND = 200;
+
+    private final SftpChannelPool channels;
+    private final String basePath;
+
+    private volatile RemoteManifest manifest;
+    private volatile TransferThrottle throttle;
+    private final Set<String> changedFolders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public SftpSyncEndpoint(SftpChannelPool channels, String basePath) {
+        this.channels = channels;
+        this.basePath = basePath;
+    }
+
+    public String getBasePath() {
+        return basePath;
+    }
+
+    public String resolve(String relativePath) {
+        return relativePath.isEmpty() ? basePath : basePath + "/" + relativePath;
+    }
+
+    public SftpChannelPool getChannelPool() {
+        return channels;
+    }
+
+    /**
+     * @return the throttle of the transfers to and from this endpoint, or
+     *         null if they are not throttled
+     */
+    public TransferThrottle getThrottle() {
+        return throttle;
+    }
+
+    public void setThrottle(TransferThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    public void setManifest(RemoteManifest manifest) {
+        this.manifest = manifest;
+        changedFolders.clear();
+    }
+
+    /**
+     * Records that the entry was changed, so that it is no longer answered
+     * from the manifest.
+     */
+    public void invalidate(String relativePath) {
+        changedFolders.add(SyncIndex.parentOf(relativePath));
+        changedFolders.add(relativePath);
+    }
+
+    private boolean isInManifest(String folder) {
+        return manifest != null && !changedFolders.contains(folder);
+    }
+
+    public FileEntry stat(String relativePath) throws IOException {
+        if (!relativePath.isEmpty() && isInManifest(SyncIndex.parentOf(relativePath))) {
+            return manifest.stat(relativePath);
+        }
+
+        ChannelSftp sftp = channels.borrow();
+        try {
+            return toFileEntry(relativePath, sftp.stat(resolve(relativePath)));
+        } catch (SftpException ex) {
+            if (ex.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                return null;
+            }
+            throw new IOException("Unable to stat " + resolve(relativePath), ex);
+        } finally {
+            channels.release(sftp);
+        }
+    }
+
+    public Map<String, FileEntry> list(String relativePath) throws IOException {
+        if (isInManifest(relativePath)) {
+            return manifest.list(relativePath);
+        }
+
+        Map<String, FileEntry> children = new HashMap<String, FileEntry>();
+        Vector<LsEntry> entries;
+        ChannelSftp sftp = channels.borrow();
+        try {
+            @SuppressWarnings("unchecked")
+            Vector<LsEntry> result = sftp.ls(resolve(relativePath));
+            entries = result;
+        } catch (SftpException ex) {
+            if (ex.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                return children;
+            }
+            throw new IOException("Unable to list " + resolve(relativePath), ex);
+        } finally {
+            channels.release(sftp);
+        }
+
+        for (LsEntry entry : entries) {
+            String name = entry.getFilename();
+            if (".".equals(name) || "..".equals(name)) {
+                continue;
+            }
+            String path = relativePath.isEmpty() ? name : relativePath + "/" + name;
+            children.put(name, toFileEntry(path, entry.getAttrs()));
+        }
+        return children;
+    }
+
+    public void createDirectory(String relativePath) throws IOException {
+        invalidate(relativePath);
+        ChannelSftp sftp = channels.borrow();
+        try {
+            sftp.mkdir(resolve(relativePath));
+        } catch (SftpException ex) {
+            throw new IOException("Unable to create directory " + resolve(relativePath), ex);
+        } finally {
+            channels.release(sftp);
+        }
+    }
+
+    public void delete(FileEntry entry) throws IOException {
+        if (entry.isDirectory()) {
+            for (FileEntry child : list(entry.getRelativePath()).values()) {
+                delete(child);
+            }
+        }
+        invalidate(entry.getRelativePath());
+        ChannelSftp sftp = channels.borrow();
+        try {
+            if (entry.isDirectory()) {
+                sftp.rmdir(resolve(entry.getRelativePath()));
+            } else {
+                sftp.rm(resolve(entry.getRelativePath()));
+            }
+        } catch (SftpException ex) {
+            throw new IOException("Unable to delete " + resolve(entry.getRelativePath()), ex);
+        } finally {
+            channels.release(sftp);
+        }
+    }
+
+    public void rename(String relativePath, String newRelativePath) throws IOException {
+        invalidate(relativePath);
+        invalidate(newRelativePath);
+        ChannelSftp sftp = channels.borrow();
+        try {
+            sftp.rename(resolve(relativePath), resolve(newRelativePath));
+        } catch (SftpException ex) {
+            throw new IOException("Unable to rename " + resolve(relativePath) + " to " + resolve(newRelativePath), ex);
+        } finally {
+            channels.release(sftp);
+        }
+    }
+
+    /**
+     * SFTP (version 3) only carries modification times in whole seconds.
+     */
+    public long getTimestampResolution() {
+        return 1000;
+    }
+
+    public Map<String, byte[]> hash(Collection<FileEntry> files) throws IOException {
+        Map<String, byte[]> hashes = new HashMap<String, byte[]>();
+        List<FileEntry> batch = new ArrayList<FileEntry>(FILES_PER_HASH_COMMAND);
+        for (FileEntry file : files) {
+            batch.add(file);
+            if (batch.size() == FILES_PER_HASH_COMMAND) {
+                hashBatch(batch, hashes);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            hashBatch(batch, hashes);
+        }
+        return hashes;
+    }
+
+    private void hashBatch(List<FileEntry> files, Map<String, byte[]> hashes) throws IOException {
+        StringBuilder command = new StringBuilder("md5sum --");
+        for (FileEntry file : files) {
+            command.append(' ').append(RemoteCommand.quote(resolve(file.getRelativePath())));
+        }
+        String output = RemoteCommand.execute(channels.getSession(), command.toString(), null);
+
+        // INFO one line per file, in the order given; names with special characters start with a backslash
+        String[] lines = output.split("\n");
+        if (lines.length != files.size()) {
+            throw new IOException("Unexpected md5sum output for " + files.size() + " files: " + output);
+        }
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].startsWith("\\") ? lines[i].substring(1) : lines[i];
+            hashes.put(files.get(i).getRelativePath(), fromHex(line.substring(0, 32)));
+        }
+    }
+
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    static FileEntry toFileEntry(String relativePath, SftpATTRS attrs) {
+        return new FileEntry(relativePath, attrs.isDir(), attrs.getSize(), attrs.getMTime() * 1000L, null);
+    }
+
+    public String toString() {
+        return basePath;
+    }
+}
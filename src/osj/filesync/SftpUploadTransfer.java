@@ -0,0 +1,169 @@
+package osj.filesync;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Uploads files from the local file system to an ssh host, keeping their
+ * modification time, to the second.
+ *
+ * Files above the 'ssh.chunked.threshold' are split into ranges which are
+ * uploaded over several channels of the pool at once, see
+ * {@link ChunkedCopy}. The ranges are written into a temporary file next
+ * to the destination, which is renamed into place once it is complete.
+ *
+ * @author ajmas
+ *
+ */
+public class SftpUploadTransfer implements FileTransfer {
+
+    public static final String CHUNKED_PREFIX = "ssh.chunked";
+
+
+    private final LocalSyncEndpoint source;
+    private final SftpSyncEndpoint destination;
+    private final ChunkedCopy chunkedCopy;
+
+    public SftpUploadTransfer(LocalSyncEndpoint source, SftpSyncEndpoint destination) {
+        this(source, destination, new Properties());
+    }
+
+    /**
+     * @param properties the remote endpoint properties
+     */
+    public SftpUploadTransfer(LocalSyncEndpoint source, SftpSyncEndpoint destination, Properties properties) {
+        this.source = source;
+        this.destination = destination;
+        this.chunkedCopy = new ChunkedCopy(properties, CHUNKED_PREFIX);
+    }
+
+    public void transfer(SyncAction action) throws IOException {
+        String localPath = source.resolve(action.getRelativePath()).toString();
+        String remotePath = destination.resolve(action.getRelativePath());
+        SftpChannelPool channels = destination.getChannelPool();
+        destination.invalidate(action.getRelativePath());
+        if (chunkedCopy.accepts(action.getSourceEntry().getSize(), channels.getChannelCount())) {
+            transferChunked(action);
+            return;
+        }
+
+        ChannelSftp sftp = channels.borrow();
+        try {
+            sftp.put(localPath, remotePath, ThrottleMonitor.of(destination.getThrottle()));
+            // INFO keep the modification time, so the next run does not see the file as changed
+            sftp.setMtime(remotePath, (int) (action.getSourceEntry().getLastModified() / 1000));
+        } catch (SftpException ex) {
+            throw new IOException("Unable to copy " + localPath + " to " + remotePath, ex);
+        } finally {
+            channels.release(sftp);
+        }
+    }
+
+    private void transferChunked(SyncAction action) throws IOException {
+        final Path localPath = source.resolve(action.getRelativePath());
+        final String remotePath = destination.resolve(action.getRelativePath());
+        final String tempPath = TempFiles.tempPathOf(action.getRelativePath());
+        final String remoteTempPath = destination.resolve(tempPath);
+        final long size = action.getSourceEntry().getSize();
+        final SftpChannelPool channels = destination.getChannelPool();
+
+        boolean done = false;
+        try {
+            ChannelSftp sftp = channels.borrow();
+            try {
+                // INFO the file is created at its full length, so the range writes never change it
+                sftp.put(new ByteArrayInputStream(new byte[0]), remoteTempPath, ChannelSftp.OVERWRITE);
+                SftpATTRS attrs = sftp.stat(remoteTempPath);
+                attrs.setSIZE(size);
+                sftp.setStat(remoteTempPath, attrs);
+            } finally {
+                channels.release(sftp);
+            }
+
+            chunkedCopy.copy(size, channels.getChannelCount(), new ChunkedCopy.RangeCopier() {
+                public void copy(long offset, long length) throws IOException {
+                    writeRange(localPath, remoteTempPath, size, offset, length);
+                }
+            });
+
+            if (chunkedCopy.isVerifying()) {
+                final FileEntry tempEntry = new FileEntry(tempPath, false, size, 0, null);
+                chunkedCopy.verify(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        return FileHasher.hash(localPath);
+                    }
+                }, new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        return destination.hash(Collections.singleton(tempEntry)).get(tempEntry.getRelativePath());
+                    }
+                }, localPath.toString());
+            }
+
+            sftp = channels.borrow();
+            try {
+                sftp.setMtime(remoteTempPath, (int) (action.getSourceEntry().getLastModified() / 1000));
+                sftp.rename(remoteTempPath, remotePath);
+                done = true;
+            } finally {
+                channels.release(sftp);
+            }
+        } catch (SftpException ex) {
+            throw new IOException("Unable to copy " + localPath + " to " + remotePath, ex);
+        } finally {
+            if (!done) {
+                deleteQuietly(remoteTempPath);
+            }
+        }
+    }
+
+    private void deleteQuietly(String remotePath) throws IOException {
+        SftpChannelPool channels = destination.getChannelPool();
+        ChannelSftp sftp = channels.borrow();
+        try {
+            sftp.rm(remotePath);
+        } catch (SftpException ex) {
+            // INFO the temporary file may never have been created
+        } finally {
+            channels.release(sftp);
+        }
+    }
+
+    /**
+     * Writes one range of the local file at the same offset of the remote
+     * file, on a channel of its own.
+     */
+    private void writeRange(Path localPath, String remotePath, long remoteLength, long offset, long length)
+            throws IOException {
+        SftpChannelPool channels = destination.getChannelPool();
+        ChannelSftp sftp = channels.borrow();
+        // INFO in APPEND mode JSch writes at the current remote length plus the given offset
+        try (RandomAccessFile localFile = new RandomAccessFile(localPath.toFile(), "r");
+                OutputStream out = sftp.put(remotePath,
+                        ThrottleMonitor.of(destination.getThrottle()), ChannelSftp.APPEND, offset - remoteLength)) {
+            byte[] buffer = new byte[65536];
+            localFile.seek(offset);
+            long remaining = length;
+            while (remaining > 0) {
+                int count = (int) Math.min(remaining, buffer.length);
+                localFile.readFully(buffer, 0, count);
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+        } catch (SftpException ex) {
+            throw new IOException("Unable to write " + length + " bytes at " + offset + " of " + remotePath, ex);
+        } finally {
+            channels.release(sftp);
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package osj.filesync;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Uploads files to an ssh host from the {@link SharedReadBuffers} of a
+ * fan-out, so that a file sent to many hosts is read from disk once.
+ * Files which are not buffered, and modified files when they are sent as
+ * a delta, go to the given transfer. The buffers are released by the
+ * fan-out, whichever transfer sends the file.
+ *
+ * @author ajmas
+ *
+ */
+class SharedBufferUploadTransfer implements FileTransfer {
+
+    private final SharedReadBuffers buffers;
+    private final SftpSyncEndpoint destination;
+    private final FileTransfer otherTransfer;
+    private final boolean deltaUpdates;
+
+    SharedBufferUploadTransfer(SharedReadBuffers buffers, SftpSyncEndpoint destination, FileTransfer otherTransfer,
+            boolean deltaUpdates) {
+        this.buffers = buffers;
+        this.destination = destination;
+        this.otherTransfer = otherTransfer;
+        this.deltaUpdates = deltaUpdates;
+    }
+
+    public void transfer(SyncAction action) throws IOException {
+        byte[] content = deltaUpdates && action.getDestinationEntry() != null
+                ? null : buffers.acquire(action.getSourceEntry());
+        if (content == null) {
+            otherTransfer.transfer(action);
+        } else {
+            upload(action, content);
+        }
+    }
+
+    private void upload(SyncAction action, byte[] content) throws IOException {
+        String remotePath = destination.resolve(action.getRelativePath());
+        SftpChannelPool channels = destination.getChannelPool();
+        destination.invalidate(action.getRelativePath());
+        ChannelSftp sftp = channels.borrow();
+        try {
+            sftp.put(new ByteArrayInputStream(content), remotePath, ThrottleMonitor.of(destination.getThrottle()));
+            // INFO keep the modification time, so the next run does not see the file as changed
+            sftp.setMtime(remotePath, (int) (action.getSourceEntry().getLastModified() / 1000));
+        } catch (SftpException ex) {
+            throw new IOException("Unable to copy " + action.getRelativePath() + " to " + remotePath, ex);
+        } finally {
+            channels.release(sftp);
+        }
+    }
+}
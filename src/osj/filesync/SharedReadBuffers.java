@@ -0,0 +1,128 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Content of the source files which several targets of a fan-out need,
+ * read from disk once and shared by their transfers.
+ *
+ * Each target's transfers of a file are announced with {@link #expect}
+ * before they start. The file is read by the first transfer to
+ * {@link #acquire} it, and dropped once every announced transfer has
+ * called {@link #release}. Files needed by a single target, larger than
+ * the maximum file size, or which would take the buffers above their
+ * capacity, are not buffered: their transfers read them from disk.
+ *
+ * @author ajmas
+ *
+ */
+class SharedReadBuffers {
+
+    private final LocalSyncEndpoint source;
+    private final long capacity;
+    private final long maxFileSize;
+
+    private final Map<String, Buffer> buffers = new HashMap<String, Buffer>();
+    private long bufferedBytes;
+
+    private static class Buffer {
+        int readers;
+        long size;
+        FutureTask<byte[]> content;
+    }
+
+    /**
+     * @param capacity the most bytes kept in memory at once
+     * @param maxFileSize the size of the largest file which is buffered
+     */
+    SharedReadBuffers(LocalSyncEndpoint source, long capacity, long maxFileSize) {
+        this.source = source;
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Announces one more transfer of the file.
+     */
+    synchronized void expect(String relativePath) {
+        Buffer buffer = buffers.get(relativePath);
+        if (buffer == null) {
+            buffer = new Buffer();
+            buffers.put(relativePath, buffer);
+        }
+        buffer.readers++;
+    }
+
+    /**
+     * @return the content of the file, which must not be modified, or null
+     *         if the transfer should read the file itself
+     */
+    byte[] acquire(FileEntry sourceEntry) throws IOException {
+        final String relativePath = sourceEntry.getRelativePath();
+        FutureTask<byte[]> content;
+        boolean load = false;
+        synchronized (this) {
+            Buffer buffer = buffers.get(relativePath);
+            if (buffer == null) {
+                return null;
+            }
+            if (buffer.content == null) {
+                long size = sourceEntry.getSize();
+                if (buffer.readers < 2 || size > maxFileSize || bufferedBytes + size > capacity) {
+                    return null;
+                }
+                buffer.content = new FutureTask<byte[]>(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        return Files.readAllBytes(source.resolve(relativePath));
+                    }
+                });
+                buffer.size = size;
+                bufferedBytes += size;
+                load = true;
+            }
+            content = buffer.content;
+        }
+        if (load) {
+            content.run();
+        }
+        try {
+            return content.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + relativePath);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Unable to read " + relativePath, ex.getCause());
+        }
+    }
+
+    /**
+     * Ends one announced transfer of the file, whether or not it used the
+     * buffer.
+     */
+    synchronized void release(String relativePath) {
+        Buffer buffer = buffers.get(relativePath);
+        if (buffer != null && --buffer.readers <= 0) {
+            buffers.remove(relativePath);
+            if (buffer.content != null) {
+                bufferedBytes -= buffer.size;
+            }
+        }
+    }
+
+    /**
+     * @return the bytes held at the moment
+     */
+    synchronized long getBufferedBytes() {
+        return bufferedBytes;
+    }
+}
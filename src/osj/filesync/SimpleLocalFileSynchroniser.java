@@ -1,27 +1,25 @@
 package osj.filesync;
 
-import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
-
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
-import java.nio.file.Files;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
 import java.util.Set;
 
-import org.apache.log4j.Logger;
-
 /**
  * Simple file synchroniser for synchronising files across the
  * local file system. It decides whether the files need copying
- * based on last modified time.
+ * based on last modified time. Scanning, comparing and copying run
+ * concurrently, see {@link SyncPipeline}.
  * 
- * It supports synchronising files to the remote location or the
- * local location, but not both at the same time.
+ * It supports synchronising files to the remote location, to the
+ * local location, or both ways, see {@link TwoWaySync}. When relative
+ * paths are given to a one way sync, only those paths and their
+ * subtrees are synced; a two way sync always covers the whole tree.
+ * The copies can be throttled, see {@link TransferThrottle}.
  *  
  * @author ajmas
  *
@@ -30,13 +28,14 @@ public class SimpleLocalFileSynchroniser implements FileSynchroniser {
 
     static final String FILE_PROTOCOL = "file";
 
-    Logger  logger = Logger.getLogger(getClass());
-    
     SyncDirection[] SUPPORTED_DIRECTIONS = new SyncDirection[] {
             SyncDirection.TO_LOCAL,
-            SyncDirection.TO_REMOTE
+            SyncDirection.TO_REMOTE,
+            SyncDirection.TWO_WAY
     };
 
+    private volatile SyncReport lastSyncReport;
+
     public Set<SyncDirection> getSupportSyncDirections() {
         return new HashSet<FileSynchroniser.SyncDirection>(Arrays.asList(SUPPORTED_DIRECTIONS));
     }
@@ -44,127 +43,140 @@ public class SimpleLocalFileSynchroniser implements FileSynchroniser {
     public void syncFiles(FileSyncConfiguration configuration, SyncDirection syncDirection,
             List<String> relativePaths, boolean force, PathFilter pathFilter) throws FileSyncException {
 
+        checkURIs(configuration);
         URI localURI = configuration.getLocalConfiguration().getURI();
-        if ( !FILE_PROTOCOL.equalsIgnoreCase(localURI.getScheme())) {
-            throw new RuntimeException("Only URLs of type 'file' are supported by this synchroniser");
-        }
-
         URI remoteURI = configuration.getRemoteConfiguration().getURI();
-        if ( !FILE_PROTOCOL.equalsIgnoreCase(remoteURI.getScheme())) {
-            throw new RuntimeException("Only URLs of type 'file' are supported by this synchroniser");
-        }
 
         File localBasePath = new File(localURI.getPath());
         File remoteBasePath = new File(remoteURI.getPath());
 
+        SyncRecorder recorder = new SyncRecorder(getClass().getSimpleName(), syncDirection, configuration.getSyncMetrics());
+        Exception failure = null;
         try {
 	        if (syncDirection == SyncDirection.TO_REMOTE) {
-	            visitAndCopy(localBasePath, remoteBasePath, force, configuration.getPathFilter(),  pathFilter );
+	            visitAndCopy(localBasePath, remoteBasePath, configuration, recorder, localURI, remoteURI, configuration.getRemoteConfiguration(), relativePaths, force, configuration.getPathFilter(),  pathFilter );
 	        } else if (syncDirection == SyncDirection.TO_LOCAL) {
-	            visitAndCopy(remoteBasePath, localBasePath, force, configuration.getPathFilter(),  pathFilter );
+	            visitAndCopy(remoteBasePath, localBasePath, configuration, recorder, remoteURI, localURI, configuration.getLocalConfiguration(), relativePaths, force, configuration.getPathFilter(),  pathFilter );
 	        } else {
-	            throw new RuntimeException("two way sync is not implemented");
+	            syncBothWays(localBasePath, remoteBasePath, configuration, recorder, localURI, remoteURI, pathFilter);
 	        }
         } catch (IOException ex) {
+        	failure = ex;
         	throw new FileSyncException(ex);
+        } catch (FileSyncException | RuntimeException ex) {
+        	failure = ex;
+        	throw ex;
+        } finally {
+        	lastSyncReport = recorder.finish(failure);
         }
     }
 
-    private void visitAndCopy (File sourceBasePath, File destinationBasePath, boolean force, PathFilter... pathFilters) throws FileSyncException, IOException {
-
-        List<File> unvisitedFolders = new ArrayList<File>();
-        unvisitedFolders.add(sourceBasePath);
-        
-        File folder = null;
-        while(unvisitedFolders.size() > 0 && (folder = unvisitedFolders.remove(0)) != null ) {
-
-        	// INFO Handle deletion of resources on the destination file system, which are no longer
-        	//      source file system
-            File destinationFolder = new File(destinationBasePath, getPath(sourceBasePath,folder));
-            if (destinationFolder.exists()) {
-            	File[] children = destinationFolder.listFiles();
-            	for (File remoteFile : children) {
-            		File localFile = new File(sourceBasePath, getPath(destinationBasePath, remoteFile));
-            		if (!localFile.exists()) {
-                    	logger.debug("Deleting " + remoteFile);
-            			deleteFile(remoteFile);
-            		}
-            	}
-            }
-            
-            // INFO Handle creation and update of remote resources
-            File[] children = folder.listFiles();
-            if (children.length > 0 ) {
-                for (File localFile : children) {
-                    String path = getPath(sourceBasePath, localFile);
-
-                    // INFO if the path for the folder or file is not accepted continue to next item
-                    if (!accept(path, pathFilters)) {
-                        continue;
-                    }
-
-                    File destinationFile = new File(destinationBasePath,path);
-
-                    if (localFile.isDirectory()) {
-                        unvisitedFolders.add(localFile);
-                        if (!destinationFile.exists()) {
-                        	logger.debug("Creating remote directory " + destinationFile);
-                            destinationFile.mkdir();
-                        }
-                    } else {
-                        if (force || !destinationFile.exists() || localFile.lastModified() > destinationFile.lastModified()) {
-                        	logger.debug("Copying " + localFile);
-                            Files.copy(localFile.toPath(), destinationFile.toPath(), REPLACE_EXISTING, COPY_ATTRIBUTES);
-                        }
-                    }
-                }
-            }
+    /**
+     * @return the report of the last sync, or null if none was run
+     */
+    public SyncReport getLastSyncReport() {
+        return lastSyncReport;
+    }
 
-        }
+    /**
+     * Works out the changes a one way sync would make, without making
+     * them, see {@link SyncPipeline#plan}.
+     */
+    public ChangePlan planFiles(FileSyncConfiguration configuration, SyncDirection syncDirection,
+            List<String> relativePaths, boolean force, PathFilter pathFilter) throws FileSyncException, IOException {
 
+        checkURIs(configuration);
+        LocalSyncEndpoint[] endpoints = oneWayEndpoints(configuration, syncDirection);
+        URI localURI = configuration.getLocalConfiguration().getURI();
+        URI remoteURI = configuration.getRemoteConfiguration().getURI();
+        boolean toRemote = syncDirection == SyncDirection.TO_REMOTE;
+
+        // INFO the transfer is never used by a plan
+        SyncPipeline pipeline = new SyncPipeline(endpoints[0], endpoints[1], null);
+        pipeline.configure(configuration, toRemote ? localURI : remoteURI, toRemote ? remoteURI : localURI);
+        return pipeline.plan(force, relativePaths, configuration.getPathFilter(), pathFilter);
     }
-    
+
     /**
-     * Recursive file deletion operation, since we can't delete a directory until all 
-     * its children have been deleted.
-     * 
-     * @param file
-     * @return
+     * Applies a plan made by {@link #planFiles}, in the same direction.
      */
-    private boolean deleteFile (File file) throws FileSyncException {
-    	if (file.isDirectory()) {
-    		File[] children = file.listFiles();
-    		if (file.list().length > 0) {
-    			for (File child : children) {
-    				deleteFile(child);
-    			}
-    		}
-    	}    	
-    	
-    	if (!file.delete()) {
-			throw new FileSyncException("Unable to delete file " + file);
-    	}
-    	
-    	return true;
+    public void applyPlan(FileSyncConfiguration configuration, SyncDirection syncDirection, ChangePlan plan)
+            throws FileSyncException, IOException {
+
+        checkURIs(configuration);
+        LocalSyncEndpoint[] endpoints = oneWayEndpoints(configuration, syncDirection);
+        EndpointConfiguration destinationConfiguration = syncDirection == SyncDirection.TO_REMOTE
+                ? configuration.getRemoteConfiguration() : configuration.getLocalConfiguration();
+
+        ChangePlanExecutor executor = new ChangePlanExecutor(endpoints[0], endpoints[1], createTransfer(endpoints[0],
+                endpoints[1], destinationConfiguration.getConfigurationProperties(), configuration.getThrottle()));
+        executor.configure(configuration);
+        executor.execute(plan);
     }
 
-    private boolean accept (String path, PathFilter... pathFilters) {
-        boolean accept = true;
-        for (PathFilter pathFilter : pathFilters) {
-            if (pathFilter != null) {
-                accept &= pathFilter.accept(path);
-            }
+    private void checkURIs(FileSyncConfiguration configuration) {
+        URI localURI = configuration.getLocalConfiguration().getURI();
+        if ( !FILE_PROTOCOL.equalsIgnoreCase(localURI.getScheme())) {
+            throw new RuntimeException("Only URLs of type 'file' are supported by this synchroniser");
+        }
+
+        URI remoteURI = configuration.getRemoteConfiguration().getURI();
+        if ( !FILE_PROTOCOL.equalsIgnoreCase(remoteURI.getScheme())) {
+            throw new RuntimeException("Only URLs of type 'file' are supported by this synchroniser");
         }
-        return accept;
     }
 
-    private String getPath(File parentFile, File childFile) {
-        String path = childFile.getAbsolutePath().substring(parentFile.getAbsolutePath().length());
-        if (path.startsWith("/")) {
-            path = path.substring(1);
+    /**
+     * @return the source and destination of a one way sync
+     */
+    private LocalSyncEndpoint[] oneWayEndpoints(FileSyncConfiguration configuration, SyncDirection syncDirection)
+            throws FileSyncException {
+        if (syncDirection == SyncDirection.TWO_WAY) {
+            throw new FileSyncException("Only one way syncs can be planned");
         }
-        return path;
+        LocalSyncEndpoint local = new LocalSyncEndpoint(new File(configuration.getLocalConfiguration().getURI().getPath()).toPath());
+        LocalSyncEndpoint remote = new LocalSyncEndpoint(new File(configuration.getRemoteConfiguration().getURI().getPath()).toPath());
+        return syncDirection == SyncDirection.TO_REMOTE
+                ? new LocalSyncEndpoint[] { local, remote }
+                : new LocalSyncEndpoint[] { remote, local };
     }
 
+    private void visitAndCopy (File sourceBasePath, File destinationBasePath, FileSyncConfiguration configuration, SyncMetrics metrics, URI sourceURI, URI destinationURI, EndpointConfiguration destinationConfiguration, List<String> relativePaths, boolean force, PathFilter... pathFilters) throws FileSyncException, IOException {
+        LocalSyncEndpoint source = new LocalSyncEndpoint(sourceBasePath.toPath());
+        LocalSyncEndpoint destination = new LocalSyncEndpoint(destinationBasePath.toPath());
+
+        SyncPipeline pipeline = new SyncPipeline(source, destination, createTransfer(source, destination,
+                destinationConfiguration.getConfigurationProperties(), configuration.getThrottle()));
+        pipeline.configure(configuration, sourceURI, destinationURI);
+        pipeline.setMetrics(metrics);
+        pipeline.run(force, relativePaths, pathFilters);
+    }
+
+    private void syncBothWays (File localBasePath, File remoteBasePath, FileSyncConfiguration configuration, SyncMetrics metrics, URI localURI, URI remoteURI, PathFilter pathFilter) throws FileSyncException, IOException {
+        LocalSyncEndpoint local = new LocalSyncEndpoint(localBasePath.toPath());
+        LocalSyncEndpoint remote = new LocalSyncEndpoint(remoteBasePath.toPath());
+
+        TwoWaySync sync = new TwoWaySync(local, remote,
+                createTransfer(local, remote, configuration.getRemoteConfiguration().getConfigurationProperties(),
+                        configuration.getThrottle()),
+                createTransfer(remote, local, configuration.getLocalConfiguration().getConfigurationProperties(),
+                        configuration.getThrottle()));
+        sync.configure(configuration, localURI, remoteURI);
+        sync.setMetrics(metrics);
+        sync.run(configuration.getPathFilter(), pathFilter);
+    }
+
+    /**
+     * @param throttle the limits on the copies, or null
+     */
+    private FileTransfer createTransfer(LocalSyncEndpoint source, LocalSyncEndpoint destination,
+            Properties destinationProperties, TransferThrottle throttle) {
+        FileTransfer transfer = new LocalFileTransfer(source, destination, destinationProperties);
+        if (throttle != null) {
+            destination.setThrottle(throttle);
+            transfer = new ThrottledTransfer(transfer, throttle);
+        }
+        return transfer;
+    }
 
 }
@@ -0,0 +1,162 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Read only view of a source endpoint shared by several syncs, which
+ * lists each folder and hashes each file only once, however many syncs
+ * ask for them. The first sync to ask does the work, the others wait for
+ * its result. Used by the {@link FanOutSynchroniser}, whose targets all
+ * walk the same source.
+ *
+ * The view is taken as the source is first seen, so it should only live
+ * as long as the syncs sharing it.
+ *
+ * @author ajmas
+ *
+ */
+class SourceSnapshot implements HashingEndpoint {
+
+    private final HashingEndpoint source;
+
+    private final ConcurrentMap<String, FutureTask<FileEntry>> entries = new ConcurrentHashMap<String, FutureTask<FileEntry>>();
+    private final ConcurrentMap<String, FutureTask<Map<String, FileEntry>>> listings = new ConcurrentHashMap<String, FutureTask<Map<String, FileEntry>>>();
+    private final ConcurrentMap<String, FutureTask<byte[]>> hashes = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+    SourceSnapshot(HashingEndpoint source) {
+        this.source = source;
+    }
+
+    public FileEntry stat(final String relativePath) throws IOException {
+        if (!relativePath.isEmpty()) {
+            // INFO an entry of a listed folder needs no stat of its own
+            FutureTask<Map<String, FileEntry>> listing = listings.get(SyncIndex.parentOf(relativePath));
+            if (listing != null) {
+                return get(listing).get(SyncIndex.nameOf(relativePath));
+            }
+        }
+        return get(entries, relativePath, new Callable<FileEntry>() {
+            public FileEntry call() throws IOException {
+                return source.stat(relativePath);
+            }
+        });
+    }
+
+    public Map<String, FileEntry> list(final String relativePath) throws IOException {
+        return get(listings, relativePath, new Callable<Map<String, FileEntry>>() {
+            public Map<String, FileEntry> call() throws IOException {
+                // INFO the listing is shared by every sync
+                return Collections.unmodifiableMap(source.list(relativePath));
+            }
+        });
+    }
+
+    /**
+     * Hashes the files no other sync has asked for yet in one batch, and
+     * waits for the others.
+     */
+    public Map<String, byte[]> hash(Collection<FileEntry> files) throws IOException {
+        final List<FileEntry> claimed = new ArrayList<FileEntry>();
+        final Map<String, byte[]> claimedHashes = new HashMap<String, byte[]>();
+        Map<String, FutureTask<byte[]>> pending = new HashMap<String, FutureTask<byte[]>>();
+        for (final FileEntry file : files) {
+            FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    byte[] hash = claimedHashes.get(file.getRelativePath());
+                    if (hash == null) {
+                        throw new IOException("No hash was computed for " + file.getRelativePath());
+                    }
+                    return hash;
+                }
+            });
+            FutureTask<byte[]> existing = hashes.putIfAbsent(hashKey(file), task);
+            if (existing == null) {
+                claimed.add(file);
+                existing = task;
+            }
+            pending.put(file.getRelativePath(), existing);
+        }
+
+        if (!claimed.isEmpty()) {
+            try {
+                claimedHashes.putAll(source.hash(claimed));
+            } finally {
+                // INFO run even on failure, so that the syncs waiting for these hashes fail too
+                for (FileEntry file : claimed) {
+                    pending.get(file.getRelativePath()).run();
+                }
+            }
+        }
+
+        Map<String, byte[]> result = new HashMap<String, byte[]>();
+        for (Map.Entry<String, FutureTask<byte[]>> entry : pending.entrySet()) {
+            result.put(entry.getKey(), get(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * @return a key which changes with the file, so that a file modified
+     *         while the syncs run is hashed again
+     */
+    private static String hashKey(FileEntry file) {
+        return file.getRelativePath() + '\0' + file.getSize() + '\0' + file.getLastModified();
+    }
+
+    public void createDirectory(String relativePath) throws IOException {
+        throw new UnsupportedOperationException("The source of a fan-out is read only");
+    }
+
+    public void delete(FileEntry entry) throws IOException {
+        throw new UnsupportedOperationException("The source of a fan-out is read only");
+    }
+
+    public void rename(String relativePath, String newRelativePath) throws IOException {
+        throw new UnsupportedOperationException("The source of a fan-out is read only");
+    }
+
+    public long getTimestampResolution() {
+        return source.getTimestampResolution();
+    }
+
+    private static <T> T get(ConcurrentMap<String, FutureTask<T>> results, String relativePath, Callable<T> callable)
+            throws IOException {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        FutureTask<T> existing = results.putIfAbsent(relativePath, task);
+        if (existing == null) {
+            task.run();
+            existing = task;
+        }
+        return get(existing);
+    }
+
+    private static <T> T get(FutureTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the source");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Unable to read the source", ex.getCause());
+        }
+    }
+
+    public String toString() {
+        return source.toString();
+    }
+}
@@ -3,25 +3,31 @@ package osj.filesync;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
-import java.util.Vector;
 
-import com.jcraft.jsch.Channel;
-import com.jcraft.jsch.ChannelSftp;
-import com.jcraft.jsch.ChannelSftp.LsEntry;
-import com.jcraft.jsch.JSch;
+import org.apache.log4j.Logger;
+
 import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.Session;
-import com.jcraft.jsch.SftpATTRS;
-import com.jcraft.jsch.SftpException;
 
 /**
- * Synchroniser class that synchronises to an ssh host
+ * Synchroniser class that synchronises to an ssh host.
+ * 
+ * Sessions are kept open between syncs by the {@link SshSessionPool},
+ * and transfers run concurrently over several SFTP channels on the
+ * same session, see {@link SftpChannelPool#CHANNELS_PROPERTY}.
+ * Downloaded files are written to a temporary file and renamed into
+ * place, keeping their remote modification time. Modified files can be
+ * uploaded as a delta, see {@link SftpDeltaUploadTransfer}, and files
+ * can be compressed, see {@link CompressionPolicy}. Large uploads can be
+ * resumed after a failed sync, see {@link ResumableUploadTransfer}, small
+ * files can be uploaded in batches, see {@link TarBatchUploadTransfer},
+ * and transfers can be throttled, see {@link TransferThrottle}. Two way syncs
+ * are done by {@link TwoWaySync}. The files
+ * copied are reported to the {@link SyncListener}s of the configuration.
  * 
  * @author ajmas
  *
@@ -31,7 +37,16 @@ public class SshFileSynchroniser implements FileSynchroniser {
 	static final String FILE_PROTOCOL = "file";
 	static final String SSH_PROTOCOL = "ssh";
 
-	SyncDirection[] SUPPORTED_DIRECTIONS = new SyncDirection[] { SyncDirection.TO_REMOTE };
+	Logger logger = Logger.getLogger(getClass());
+
+	private volatile CompressionReport lastCompressionReport;
+	private volatile SyncReport lastSyncReport;
+
+	SyncDirection[] SUPPORTED_DIRECTIONS = new SyncDirection[] {
+			SyncDirection.TO_REMOTE,
+			SyncDirection.TO_LOCAL,
+			SyncDirection.TWO_WAY
+	};
 
 	public Set<SyncDirection> getSupportSyncDirections() {
 		return new HashSet<FileSynchroniser.SyncDirection>(
@@ -40,8 +55,25 @@ public class SshFileSynchroniser implements FileSynchroniser {
 
 	public void syncFiles(FileSyncConfiguration configuration,
 			SyncDirection syncDirection, List<String> relativePaths,
-			boolean force, PathFilter pathFilter) throws IOException {
+			boolean force, PathFilter pathFilter) throws FileSyncException, IOException {
+
+		checkURIs(configuration);
+
+		SyncRecorder recorder = new SyncRecorder(getClass().getSimpleName(), syncDirection,
+				configuration.getSyncMetrics());
+		Exception failure = null;
+		try {
+			visitAndCopy(configuration, recorder, syncDirection, relativePaths,
+					force, configuration.getPathFilter(), pathFilter);
+		} catch (FileSyncException | IOException | RuntimeException ex) {
+			failure = ex;
+			throw ex;
+		} finally {
+			lastSyncReport = recorder.finish(failure);
+		}
+	}
 
+	private void checkURIs(FileSyncConfiguration configuration) {
 		URI localURI = configuration.getLocalConfiguration().getURI();
 		if (!FILE_PROTOCOL.equalsIgnoreCase(localURI.getScheme())) {
 			throw new RuntimeException(
@@ -55,215 +87,351 @@ public class SshFileSynchroniser implements FileSynchroniser {
 					"Only remote URLs of type 'ssh' are supported by this synchroniser, specified scheme was: "
 							+ remoteURI.getScheme());
 		}
+	}
 
-		if (syncDirection == SyncDirection.TO_REMOTE) {
-			visitAndCopy(configuration.getLocalConfiguration(),
-					configuration.getRemoteConfiguration(), syncDirection,
-					force, configuration.getPathFilter(), pathFilter);
-		} else if (syncDirection == SyncDirection.TO_LOCAL) {
-			visitAndCopy(configuration.getLocalConfiguration(),
-					configuration.getRemoteConfiguration(), syncDirection,
-					force, configuration.getPathFilter(), pathFilter);		
-		} else {
-			throw new RuntimeException("two way sync is not implemented");
-		}
+	/**
+	 * @return the report of the last sync, or null if none was run
+	 */
+	public SyncReport getLastSyncReport() {
+		return lastSyncReport;
+	}
 
+	/**
+	 * Works out the changes a one way sync would make, without making
+	 * them, see {@link SyncPipeline#plan}.
+	 */
+	public ChangePlan planFiles(final FileSyncConfiguration configuration,
+			final SyncDirection syncDirection, final List<String> relativePaths,
+			final boolean force, final PathFilter pathFilter) throws FileSyncException, IOException {
+
+		checkURIs(configuration);
+		checkOneWay(syncDirection);
+		final File localBasePath = new File(configuration.getLocalConfiguration().getURI().getPath());
+		final URI remoteURI = configuration.getRemoteConfiguration().getURI();
+
+		return withChannels(configuration.getRemoteConfiguration(), new ChannelTask<ChangePlan>() {
+			public ChangePlan run(SftpChannelPool channels) throws FileSyncException, IOException {
+				SyncEndpoint local = new LocalSyncEndpoint(localBasePath.toPath());
+				SftpSyncEndpoint remote = new SftpSyncEndpoint(channels, remoteURI.getPath());
+				if (relativePaths == null) {
+					loadManifest(remote, configuration.getRemoteConfiguration());
+				}
+				boolean toRemote = syncDirection == SyncDirection.TO_REMOTE;
+				// INFO the transfer is never used by a plan
+				SyncPipeline pipeline = toRemote
+						? new SyncPipeline(local, remote, null)
+						: new SyncPipeline(remote, local, null);
+				pipeline.configure(configuration,
+						toRemote ? configuration.getLocalConfiguration().getURI() : remoteURI,
+						toRemote ? remoteURI : configuration.getLocalConfiguration().getURI());
+				pipeline.setDeleteExtraneous(false);
+				return pipeline.plan(force, relativePaths, configuration.getPathFilter(), pathFilter);
+			}
+		});
 	}
 
-	// ref: http://stackoverflow.com/questions/199624/scp-via-java
-	private void visitAndCopy(EndpointConfiguration localEndpoint,
-			EndpointConfiguration remoteEndpoint, SyncDirection syncDirection, boolean force,
-			PathFilter... pathFilters) throws IOException {
+	/**
+	 * Applies a plan made by {@link #planFiles}, in the same direction.
+	 */
+	public void applyPlan(final FileSyncConfiguration configuration,
+			final SyncDirection syncDirection, final ChangePlan plan) throws FileSyncException, IOException {
+
+		checkURIs(configuration);
+		checkOneWay(syncDirection);
+		final File localBasePath = new File(configuration.getLocalConfiguration().getURI().getPath());
+		final URI remoteURI = configuration.getRemoteConfiguration().getURI();
+
+		withChannels(configuration.getRemoteConfiguration(), new ChannelTask<Void>() {
+			public Void run(SftpChannelPool channels) throws FileSyncException, IOException {
+				LocalSyncEndpoint local = new LocalSyncEndpoint(localBasePath.toPath());
+				SftpSyncEndpoint remote = new SftpSyncEndpoint(channels, remoteURI.getPath());
+				remote.setThrottle(configuration.getThrottle());
+				Properties remoteProperties = configuration.getRemoteConfiguration().getConfigurationProperties();
+				CompressionPolicy compressionPolicy = new CompressionPolicy(remoteProperties);
+				TransferJournal journal = syncDirection == SyncDirection.TO_REMOTE
+						? openJournal(configuration) : null;
+				ChangePlanExecutor executor = syncDirection == SyncDirection.TO_REMOTE
+						? new ChangePlanExecutor(local, remote,
+								createUploadTransfer(local, remote, remoteProperties, compressionPolicy, journal))
+						: new ChangePlanExecutor(remote, local,
+								createDownloadTransfer(remote, local, remoteProperties, compressionPolicy));
+				executor.configure(configuration);
+				boolean completed = false;
+				try {
+					executor.execute(plan);
+					completed = true;
+				} finally {
+					reportCompression(compressionPolicy);
+					closeJournal(journal, completed);
+				}
+				return null;
+			}
+		});
+	}
+
+	private static void checkOneWay(SyncDirection syncDirection) throws FileSyncException {
+		if (syncDirection == SyncDirection.TWO_WAY) {
+			throw new FileSyncException("Only one way syncs can be planned");
+		}
+	}
 
-		File localBasePath = new File(localEndpoint.getURI().getPath());
+	// ref: http://stackoverflow.com/questions/199624/scp-via-java
+	private void visitAndCopy(final FileSyncConfiguration configuration, final SyncMetrics metrics,
+			final SyncDirection syncDirection, final List<String> relativePaths, final boolean force,
+			final PathFilter... pathFilters) throws FileSyncException, IOException {
+
+		final File localBasePath = new File(configuration.getLocalConfiguration().getURI().getPath());
+		final URI remoteURI = configuration.getRemoteConfiguration().getURI();
+
+		withChannels(configuration.getRemoteConfiguration(), new ChannelTask<Void>() {
+			public Void run(SftpChannelPool channels) throws FileSyncException, IOException {
+				if (syncDirection == SyncDirection.TO_REMOTE) {
+					visitAndCopyToRemote(channels,localBasePath,remoteURI,configuration,metrics,relativePaths,force,pathFilters);
+				} else if (syncDirection == SyncDirection.TO_LOCAL) {
+					visitAndCopyToLocal(channels,localBasePath,remoteURI,configuration,metrics,relativePaths,force,pathFilters);
+				} else {
+					visitAndCopyBothWays(channels,localBasePath,remoteURI,configuration,metrics,pathFilters);
+				}
+				return null;
+			}
+		});
+	}
 
-		List<File> unvisitedFolders = new ArrayList<File>();
-		unvisitedFolders.add(localBasePath);
+	/**
+	 * Work to do over the SFTP channels of a pooled session.
+	 */
+	interface ChannelTask<T> {
+		T run(SftpChannelPool channels) throws FileSyncException, IOException;
+	}
 
-		URI remoteURI = remoteEndpoint.getURI();
+	<T> T withChannels(EndpointConfiguration remoteEndpoint, ChannelTask<T> task)
+			throws FileSyncException, IOException {
 
-		String host = remoteURI.getHost();
-		Integer port = remoteURI.getPort();
-		if (port == null || port == -1) {
-			port = 22;
+		SshSessionPool sessionPool = SshSessionPool.getDefault();
+		SshSessionPool.PooledSession pooledSession = null;
+		SftpChannelPool channels = null;
+		try {
+			pooledSession = sessionPool.acquire(remoteEndpoint);
+			channels = new SftpChannelPool(pooledSession.getSession(),
+					SftpChannelPool.getChannelCount(remoteEndpoint));
+			return task.run(channels);
+		} catch (JSchException e) {
+			throw new FileSyncException("Unable to connect to " + remoteEndpoint.getURI().getHost(), e);
+		} finally {
+			if (channels != null) {
+				channels.close();
+			}
+			if (pooledSession != null) {
+				sessionPool.release(pooledSession);
+			}
 		}
 
-		Properties configurationProperties = remoteEndpoint
-				.getConfigurationProperties();
-		String userName = configurationProperties.getProperty("ssh.username");
-		String password = configurationProperties.getProperty("ssh.password");
+	}
+
+	private void visitAndCopyToRemote(SftpChannelPool channels, File localBasePath,
+			URI remoteURI, FileSyncConfiguration configuration, SyncMetrics metrics, List<String> relativePaths, boolean force,
+			PathFilter... pathFilters) throws FileSyncException, IOException {
 
-		System.out.println("host: " + host);
-		System.out.println("port: " + port);
-		System.out.println("userName: " + userName);
-		System.out.println("password: " + password);
+		LocalSyncEndpoint source = new LocalSyncEndpoint(localBasePath.toPath());
+		SftpSyncEndpoint destination = new SftpSyncEndpoint(channels, remoteURI.getPath());
+		destination.setThrottle(configuration.getThrottle());
+		if (relativePaths == null) {
+			// INFO the manifest covers the whole tree, which a targeted sync does not need
+			loadManifest(destination, configuration.getRemoteConfiguration());
+		}
 
-		Session session = null;
-		Channel channel = null;
+		Properties remoteProperties = configuration.getRemoteConfiguration().getConfigurationProperties();
+		CompressionPolicy compressionPolicy = new CompressionPolicy(remoteProperties);
+		TransferJournal journal = openJournal(configuration);
+		FileTransfer transfer = createUploadTransfer(source, destination, remoteProperties, compressionPolicy, journal);
+
+		SyncPipeline pipeline = new SyncPipeline(source, destination, transfer);
+		pipeline.configure(configuration, configuration.getLocalConfiguration().getURI(), remoteURI);
+		pipeline.setMetrics(metrics);
+		// INFO files which are no longer on the local side are left on the remote side
+		pipeline.setDeleteExtraneous(false);
+		boolean completed = false;
 		try {
-			JSch ssh = new JSch();
-			JSch.setConfig("StrictHostKeyChecking", "no");
-			session = ssh.getSession(userName, host, port);
-			session.setPassword(password);
-			session.connect();
-			channel = session.openChannel("sftp");
-			channel.connect();
-
-			ChannelSftp sftp = (ChannelSftp) channel;
-
-			if (syncDirection == SyncDirection.TO_REMOTE) {
-				visitAndCopyToRemote(sftp,localBasePath,remoteURI.getPath(),force,pathFilters);
-			} else if (syncDirection == SyncDirection.TO_LOCAL) {
-				visitAndCopyToLocal(sftp,localBasePath,remoteURI.getPath(),force,pathFilters);
-			}
-			
-		} catch (JSchException e) {
-			System.out.println(userName);
-			e.printStackTrace();
+			pipeline.run(force, relativePaths, pathFilters);
+			completed = true;
+		} finally {
+			reportCompression(compressionPolicy);
+			closeJournal(journal, completed);
+		}
+	}
 
-		} catch (SftpException e) {
-			System.out.println(userName);
-			e.printStackTrace();
+	private void visitAndCopyBothWays(SftpChannelPool channels, File localBasePath,
+			URI remoteURI, FileSyncConfiguration configuration, SyncMetrics metrics,
+			PathFilter... pathFilters) throws FileSyncException, IOException {
+
+		LocalSyncEndpoint local = new LocalSyncEndpoint(localBasePath.toPath());
+		SftpSyncEndpoint remote = new SftpSyncEndpoint(channels, remoteURI.getPath());
+		remote.setThrottle(configuration.getThrottle());
+
+		Properties remoteProperties = configuration.getRemoteConfiguration().getConfigurationProperties();
+		CompressionPolicy compressionPolicy = new CompressionPolicy(remoteProperties);
+		TransferJournal journal = openJournal(configuration);
+		TwoWaySync sync = new TwoWaySync(local, remote,
+				createUploadTransfer(local, remote, remoteProperties, compressionPolicy, journal),
+				createDownloadTransfer(remote, local, remoteProperties, compressionPolicy));
+		sync.configure(configuration, configuration.getLocalConfiguration().getURI(), remoteURI);
+		sync.setMetrics(metrics);
+		boolean completed = false;
+		try {
+			sync.run(pathFilters);
+			completed = true;
 		} finally {
-			if (channel != null) {
-				channel.disconnect();
-			}
-			if (session != null) {
-				session.disconnect();
-			}
+			reportCompression(compressionPolicy);
+			closeJournal(journal, completed);
 		}
+	}
 
+	/**
+	 * @param journal the journal of resumable uploads, or null if uploads
+	 *        are not resumable
+	 */
+	private FileTransfer createUploadTransfer(LocalSyncEndpoint source, SftpSyncEndpoint destination,
+			Properties remoteProperties, CompressionPolicy compressionPolicy, TransferJournal journal) {
+		return createUploadTransfer(source, destination, remoteProperties, compressionPolicy, journal, null);
 	}
 
-	private void visitAndCopyToRemote(ChannelSftp sftp, File localBasePath,
-			String remoteBasePath, boolean force,
-			PathFilter... pathFilters) throws SftpException {
-		
-		List<File> unvisitedFolders = new ArrayList<File>();
-		unvisitedFolders.add(localBasePath);
-		
-		File folder = null;
-		while (unvisitedFolders.size() > 0
-				&& (folder = unvisitedFolders.remove(0)) != null) {
-			File[] children = folder.listFiles();
-			if (children.length > 0) {
-				for (File localFile : children) {
-					String path = getPath(localBasePath, localFile);
-
-					// if the path for the folder or file is not accepted
-					// continue to next item
-					if (!accept(path, pathFilters)) {
-						continue;
-					}
-
-					String remotePath = remoteBasePath + "/" + path;
-
-					SftpATTRS remoteFileAttr = getRemoteFileAttr(sftp,
-							remotePath);
-					if (localFile.isDirectory()) {
-						unvisitedFolders.add(localFile);
-						if (remoteFileAttr == null) {
-							System.out.println("mkdir: " + localFile.getAbsolutePath());
-							sftp.mkdir(remotePath);
-						}
-					} else {
-						if (force || remoteFileAttr == null || (localFile.lastModified() / 1000) > remoteFileAttr.getMTime()) {
-							System.out.println("copy: " + localFile.getAbsolutePath() + " to " + remotePath);
-							sftp.put(localFile.getAbsolutePath(), remotePath);
-						}
-					}
-				}
-			}
+	/**
+	 * @param buffers the file contents shared by the targets of a fan-out,
+	 *        or null if the files are read by each transfer
+	 */
+	FileTransfer createUploadTransfer(LocalSyncEndpoint source, SftpSyncEndpoint destination,
+			Properties remoteProperties, CompressionPolicy compressionPolicy, TransferJournal journal,
+			SharedReadBuffers buffers) {
+		boolean delta = SftpDeltaUploadTransfer.isEnabled(remoteProperties);
+		FileTransfer transfer = delta
+				? new SftpDeltaUploadTransfer(source, destination, remoteProperties)
+				: new SftpUploadTransfer(source, destination, remoteProperties);
+		if (buffers != null) {
+			transfer = new SharedBufferUploadTransfer(buffers, destination, transfer, delta);
 		}
+		if (compressionPolicy.isStreaming()) {
+			transfer = new CompressedUploadTransfer(source, destination, compressionPolicy, transfer, delta);
+		}
+		if (journal != null) {
+			// INFO ahead of compression, as a compressed upload can not be resumed
+			transfer = new ResumableUploadTransfer(source, destination, journal, remoteProperties, transfer, delta);
+		}
+		if (destination.getThrottle() != null) {
+			transfer = new ThrottledTransfer(transfer, destination.getThrottle());
+		}
+		if (TarBatchUploadTransfer.isEnabled(remoteProperties)) {
+			transfer = new TarBatchUploadTransfer(source, destination, remoteProperties, transfer);
+		}
+		return transfer;
 	}
-	
-	private void visitAndCopyToLocal(ChannelSftp sftp, File localBasePath,
-			String remoteBasePath, boolean force,
-			PathFilter... pathFilters) throws SftpException {
-		
-		
-		List<String> unvisitedFolders = new ArrayList<String>();
-		unvisitedFolders.add(remoteBasePath);
-		
-		String folder = null;
-		while (unvisitedFolders.size() > 0
-				&& (folder = unvisitedFolders.remove(0)) != null) {
-			
-			folder = remoteBasePath + "/" + folder;
-			@SuppressWarnings("unchecked")
-			Vector<LsEntry> children = sftp.ls(folder);
-			if (children.size() > 0) {
-				for (LsEntry remoteEntry : children) {
-					String absoluteRemotePath = folder + "/" + remoteEntry.getFilename();
-
-					// TODO
-					String path = "";
-					// if the path for the folder or file is not accepted
-					// continue to next item
-					if (!accept(path, pathFilters)) {
-						continue;
-					}
-
-					//String remotePath = folder + "/" + path;
-					
-					if (remoteEntry.getAttrs().isDir()) {
-						unvisitedFolders.add(absoluteRemotePath);
-						
-						File localFile = new File(localBasePath, path);
-						if (!localFile.exists()) {
-							System.out.println("mkdir: " + localFile.getAbsolutePath());
-							localFile.mkdir();
-						}
-					} else {
-//						if (force || remoteFileAttr == null || (localFile.lastModified() / 1000) > remoteFileAttr.getMTime()) {
-//							System.out.println("copy: " + localFile.getAbsolutePath() + " to " + remotePath);
-//							sftp.put(localFile.getAbsolutePath(), remotePath);
-//						}
-					}
-				}
-			}
+
+	private FileTransfer createDownloadTransfer(SftpSyncEndpoint source, LocalSyncEndpoint destination,
+			Properties remoteProperties, CompressionPolicy compressionPolicy) {
+		FileTransfer transfer = new SftpDownloadTransfer(source, destination, remoteProperties);
+		if (compressionPolicy.isStreaming()) {
+			transfer = new CompressedDownloadTransfer(source, destination, compressionPolicy, transfer);
 		}
-		
+		if (source.getThrottle() != null) {
+			transfer = new ThrottledTransfer(transfer, source.getThrottle());
+		}
+		return transfer;
 	}
-	
-	
-	private SftpATTRS getRemoteFileAttr(ChannelSftp sftp, String path) {
+
+	/**
+	 * @return the journal of the resumable uploads to the remote side, or
+	 *         null if the remote endpoint does not ask for them
+	 */
+	private TransferJournal openJournal(FileSyncConfiguration configuration) throws IOException {
+		Properties remoteProperties = configuration.getRemoteConfiguration().getConfigurationProperties();
+		if (!ResumableUploadTransfer.isEnabled(remoteProperties)) {
+			return null;
+		}
+		File journalFile = ResumableUploadTransfer.getJournalFile(remoteProperties,
+				configuration.getLocalConfiguration().getURI(), configuration.getRemoteConfiguration().getURI());
+		return TransferJournal.open(journalFile);
+	}
+
+	/**
+	 * Keeps the journal of a failed sync for the next one to resume from,
+	 * and drops it once a sync completes.
+	 */
+	private void closeJournal(TransferJournal journal, boolean completed) {
+		if (journal == null) {
+			return;
+		}
 		try {
-			return sftp.lstat(path);
-		} catch (SftpException e) {
-			//System.err.println(e);
+			if (completed) {
+				journal.delete();
+			} else {
+				journal.close();
+			}
+		} catch (IOException ex) {
+			logger.warn("Unable to close the transfer journal", ex);
 		}
-		return null;
+	}
 
+	/**
+	 * @return how well the transfers of the last sync were compressed, or
+	 *         null if they were not
+	 */
+	public CompressionReport getLastCompressionReport() {
+		return lastCompressionReport;
 	}
 
-	private boolean accept(String path, PathFilter... pathFilters) {
-		boolean accept = true;
-		for (PathFilter pathFilter : pathFilters) {
-			if (pathFilter != null) {
-				accept &= pathFilter.accept(path);
+	private void reportCompression(CompressionPolicy compressionPolicy) {
+		if (compressionPolicy.isStreaming()) {
+			CompressionReport report = compressionPolicy.getReport();
+			report.finish();
+			lastCompressionReport = report;
+			logger.info("Compression: " + report);
+		} else {
+			lastCompressionReport = null;
+		}
+	}
+	
+	/**
+	 * Fetches the whole remote tree in one go if the endpoint asks for it,
+	 * falling back to listing folder by folder if the remote find fails.
+	 */
+	void loadManifest(SftpSyncEndpoint endpoint, EndpointConfiguration endpointConfiguration) {
+		String listing = endpointConfiguration.getConfigurationProperties().getProperty(RemoteManifest.LISTING_PROPERTY);
+		if (RemoteManifest.FIND_LISTING.equalsIgnoreCase(listing)) {
+			try {
+				RemoteManifest manifest = RemoteManifest.fetch(endpoint.getChannelPool().getSession(), endpoint.getBasePath());
+				logger.debug("Fetched remote manifest of " + manifest.getFolderCount() + " folders");
+				endpoint.setManifest(manifest);
+			} catch (IOException ex) {
+				logger.warn("Unable to fetch the remote manifest, listing folder by folder instead", ex);
 			}
 		}
-		return accept;
 	}
 
-	private String getPath(File parentFile, File childFile) {
-		String path = childFile.getAbsolutePath().substring(
-				parentFile.getAbsolutePath().length());
-		if (path.startsWith("/")) {
-			path = path.substring(1);
+	private void visitAndCopyToLocal(SftpChannelPool channels, File localBasePath,
+			URI remoteURI, FileSyncConfiguration configuration, SyncMetrics metrics, List<String> relativePaths, boolean force,
+			PathFilter... pathFilters) throws FileSyncException, IOException {
+
+		SftpSyncEndpoint source = new SftpSyncEndpoint(channels, remoteURI.getPath());
+		source.setThrottle(configuration.getThrottle());
+		LocalSyncEndpoint destination = new LocalSyncEndpoint(localBasePath.toPath());
+		if (relativePaths == null) {
+			// INFO the manifest covers the whole tree, which a targeted sync does not need
+			loadManifest(source, configuration.getRemoteConfiguration());
+		}
+
+		Properties remoteProperties = configuration.getRemoteConfiguration().getConfigurationProperties();
+		CompressionPolicy compressionPolicy = new CompressionPolicy(remoteProperties);
+		FileTransfer transfer = createDownloadTransfer(source, destination, remoteProperties, compressionPolicy);
+
+		SyncPipeline pipeline = new SyncPipeline(source, destination, transfer);
+		pipeline.configure(configuration, remoteURI, configuration.getLocalConfiguration().getURI());
+		pipeline.setMetrics(metrics);
+		// INFO files which are no longer on the remote side are left on the local side
+		pipeline.setDeleteExtraneous(false);
+		try {
+			pipeline.run(force, relativePaths, pathFilters);
+		} finally {
+			reportCompression(compressionPolicy);
 		}
-		return path;
 	}
-	
-//	private String getPath(File parentFile, LsEntry childFile) {
-//		childFile.getAttrs().
-//		String path = childFile.getAbsolutePath().substring(
-//				parentFile.getAbsolutePath().length());
-//		if (path.startsWith("/")) {
-//			path = path.substring(1);
-//		}
-//		return path;
-//	}
 
 }
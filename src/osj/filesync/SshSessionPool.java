@@ -0,0 +1,219 @@
+package osj.filesync;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * Keeps ssh sessions open across syncs, so that repeated syncs to the same
+ * host do not pay for the connection and authentication each time.
+ * Sessions are pooled by user, host and port.
+ *
+ * The following endpoint configuration properties apply:
+ *
+ * <ul>
+ * <li>ssh.username, ssh.password: the credentials</li>
+ * <li>ssh.pool.size: the maximum number of sessions kept open per
+ *     user, host and port, 1 by default. A session is shared by
+ *     concurrent syncs once this number is reached.</li>
+ * <li>ssh.pool.idleTimeout: the number of seconds an unused session is
+ *     kept open, 300 by default</li>
+ * <li>ssh.compression: 'zlib' to compress the session, see
+ *     {@link CompressionPolicy}</li>
+ * </ul>
+ *
+ * @author ajmas
+ *
+ */
+public class SshSessionPool {
+
+    public static final String USERNAME_PROPERTY = "ssh.username";
+    public static final String PASSWORD_PROPERTY = "ssh.password";
+    public static final String POOL_SIZE_PROPERTY = "ssh.pool.size";
+    public static final String IDLE_TIMEOUT_PROPERTY = "ssh.pool.idleTimeout";
+
+    static final int DEFAULT_PORT = 22;
+    static final int DEFAULT_POOL_SIZE = 1;
+    static final long DEFAULT_IDLE_TIMEOUT_SECONDS = 300;
+
+    private static final SshSessionPool DEFAULT = new SshSessionPool();
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final JSch jsch = new JSch();
+
+    private final ConcurrentMap<String, HostSessions> hosts = new ConcurrentHashMap<String, HostSessions>();
+
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ssh-session-reaper");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        JSch.setConfig("StrictHostKeyChecking", "no");
+    }
+
+    /**
+     * @return the pool shared by all the synchronisers
+     */
+    public static SshSessionPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Leases a connected session to the endpoint's host, opening a new one
+     * if needed. The session must be given back with {@link #release(PooledSession)}.
+     */
+    public PooledSession acquire(EndpointConfiguration endpoint) throws JSchException {
+        URI uri = endpoint.getURI();
+        Properties properties = endpoint.getConfigurationProperties();
+
+        String host = uri.getHost();
+        int port = uri.getPort() == -1 ? DEFAULT_PORT : uri.getPort();
+        String userName = properties.getProperty(USERNAME_PROPERTY);
+        String key = userName + "@" + host + ":" + port;
+        if (CompressionPolicy.getMode(properties) == CompressionPolicy.Mode.ZLIB) {
+            // INFO compression is negotiated when connecting, so compressed sessions are kept apart
+            key += "/zlib";
+        }
+
+        HostSessions hostSessions = hosts.get(key);
+        if (hostSessions == null) {
+            HostSessions newHostSessions = new HostSessions(key);
+            hostSessions = hosts.putIfAbsent(key, newHostSessions);
+            if (hostSessions == null) {
+                hostSessions = newHostSessions;
+            }
+        }
+        return hostSessions.acquire(endpoint, host, port, userName);
+    }
+
+    public void release(PooledSession pooledSession) {
+        hosts.get(pooledSession.key).release(pooledSession);
+    }
+
+    /**
+     * Disconnects all the sessions which are not currently leased.
+     */
+    public void closeIdleSessions() {
+        for (HostSessions hostSessions : hosts.values()) {
+            hostSessions.closeIdle(0);
+        }
+    }
+
+    private static int getIntProperty(Properties properties, String name, int defaultValue) {
+        String value = properties.getProperty(name);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    private static long getLongProperty(Properties properties, String name, long defaultValue) {
+        String value = properties.getProperty(name);
+        return value != null ? Long.parseLong(value.trim()) : defaultValue;
+    }
+
+    /**
+     * A pooled session, along with the number of syncs currently using it.
+     */
+    public static class PooledSession {
+        private final String key;
+        private final Session session;
+        private final long idleTimeoutMs;
+        private int leases;
+        private long lastReleased;
+
+        PooledSession(String key, Session session, long idleTimeoutMs) {
+            this.key = key;
+            this.session = session;
+            this.idleTimeoutMs = idleTimeoutMs;
+        }
+
+        public Session getSession() {
+            return session;
+        }
+    }
+
+    /**
+     * The sessions open to one user, host and port.
+     */
+    class HostSessions {
+        private final String key;
+        private final List<PooledSession> sessions = new ArrayList<PooledSession>();
+
+        HostSessions(String key) {
+            this.key = key;
+        }
+
+        synchronized PooledSession acquire(EndpointConfiguration endpoint, String host, int port, String userName)
+                throws JSchException {
+            Properties properties = endpoint.getConfigurationProperties();
+            int poolSize = getIntProperty(properties, POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE);
+
+            PooledSession leastUsed = null;
+            for (PooledSession pooledSession : new ArrayList<PooledSession>(sessions)) {
+                if (!pooledSession.session.isConnected()) {
+                    sessions.remove(pooledSession);
+                } else if (leastUsed == null || pooledSession.leases < leastUsed.leases) {
+                    leastUsed = pooledSession;
+                }
+            }
+
+            if (leastUsed == null || (leastUsed.leases > 0 && sessions.size() < poolSize)) {
+                logger.debug("Opening ssh session to " + key);
+                Session session = jsch.getSession(userName, host, port);
+                session.setPassword(properties.getProperty(PASSWORD_PROPERTY));
+                CompressionPolicy.configureSession(session, properties);
+                session.connect();
+                long idleTimeoutMs = TimeUnit.SECONDS.toMillis(
+                        getLongProperty(properties, IDLE_TIMEOUT_PROPERTY, DEFAULT_IDLE_TIMEOUT_SECONDS));
+                leastUsed = new PooledSession(key, session, idleTimeoutMs);
+                sessions.add(leastUsed);
+            }
+
+            leastUsed.leases++;
+            return leastUsed;
+        }
+
+        synchronized void release(final PooledSession pooledSession) {
+            pooledSession.leases--;
+            if (pooledSession.leases == 0) {
+                pooledSession.lastReleased = System.currentTimeMillis();
+                reaper.schedule(new Runnable() {
+                    public void run() {
+                        closeIdle(pooledSession.idleTimeoutMs);
+                    }
+                }, pooledSession.idleTimeoutMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Disconnects the sessions which have not been leased for at least
+         * the given time.
+         */
+        synchronized void closeIdle(long idleTimeMs) {
+            long now = System.currentTimeMillis();
+            for (PooledSession pooledSession : new ArrayList<PooledSession>(sessions)) {
+                if (pooledSession.leases == 0 && now - pooledSession.lastReleased >= idleTimeMs) {
+                    logger.debug("Closing idle ssh session to " + key);
+                    pooledSession.session.disconnect();
+                    sessions.remove(pooledSession);
+                }
+            }
+        }
+    }
+}
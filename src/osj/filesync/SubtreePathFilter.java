@@ -0,0 +1,18 @@
+package osj.filesync;
+
+/**
+ * A path filter which can tell, from a folder alone, whether anything
+ * below it may be accepted, so that the walk can skip whole subtrees
+ * instead of testing every path in them.
+ *
+ * @author ajmas
+ *
+ */
+public interface SubtreePathFilter extends PathFilter {
+
+    /**
+     * @return false if neither the folder nor any path below it can be
+     *         accepted
+     */
+    public boolean acceptSubtree(String folder);
+}
@@ -0,0 +1,55 @@
+package osj.filesync;
+
+/**
+ * A single change to apply to the destination, as decided by comparing
+ * the source and destination entries for a path.
+ *
+ * @author ajmas
+ *
+ */
+public class SyncAction {
+
+    public enum Type {
+        CREATE_DIRECTORY,
+        COPY,
+        DELETE
+    }
+
+    private final Type type;
+    private final String relativePath;
+    private final FileEntry sourceEntry;
+    private final FileEntry destinationEntry;
+
+    public SyncAction(Type type, String relativePath, FileEntry sourceEntry, FileEntry destinationEntry) {
+        this.type = type;
+        this.relativePath = relativePath;
+        this.sourceEntry = sourceEntry;
+        this.destinationEntry = destinationEntry;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getRelativePath() {
+        return relativePath;
+    }
+
+    /**
+     * @return the source entry, or null for a deletion
+     */
+    public FileEntry getSourceEntry() {
+        return sourceEntry;
+    }
+
+    /**
+     * @return the existing destination entry, or null if there is none
+     */
+    public FileEntry getDestinationEntry() {
+        return destinationEntry;
+    }
+
+    public String toString() {
+        return type + " " + relativePath;
+    }
+}
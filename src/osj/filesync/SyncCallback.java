@@ -0,0 +1,23 @@
+package osj.filesync;
+
+/**
+ * Told how a sync started by an {@link AsyncFileSynchroniser} ended, see
+ * {@link SyncHandle#addCallback(SyncCallback)}.
+ *
+ * @author ajmas
+ *
+ */
+public interface SyncCallback {
+
+    /**
+     * @param report the report of the sync, or null if the synchroniser
+     *        does not report on its syncs
+     */
+    void completed(SyncReport report);
+
+    /**
+     * @param failure why the sync failed, or a CancellationException if it
+     *        was cancelled
+     */
+    void failed(Throwable failure);
+}
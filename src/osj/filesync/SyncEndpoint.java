@@ -0,0 +1,47 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * One side of a sync, as seen by the {@link SyncPipeline}. All paths are
+ * relative to the endpoint's 'sync base', use '/' as separator and the
+ * empty string denotes the base itself.
+ *
+ * Implementations must be safe for use from several threads at once.
+ *
+ * @author ajmas
+ *
+ */
+public interface SyncEndpoint {
+
+    /**
+     * @return the entry for the path, or null if it does not exist
+     */
+    public FileEntry stat(String relativePath) throws IOException;
+
+    /**
+     * Lists the immediate children of a folder, keyed by name.
+     *
+     * @return the children, or an empty map if the folder does not exist
+     */
+    public Map<String, FileEntry> list(String relativePath) throws IOException;
+
+    public void createDirectory(String relativePath) throws IOException;
+
+    /**
+     * Deletes the entry, including all its children if it is a folder.
+     */
+    public void delete(FileEntry entry) throws IOException;
+
+    /**
+     * Moves an entry to another path, replacing any file already there.
+     */
+    public void rename(String relativePath, String newRelativePath) throws IOException;
+
+    /**
+     * @return the granularity of the modification times reported by this
+     *         endpoint, in milliseconds
+     */
+    public long getTimestampResolution();
+}
@@ -0,0 +1,161 @@
+package osj.filesync;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A sync started by an {@link AsyncFileSynchroniser}. It can be waited
+ * for, cancelled, and followed while it runs.
+ *
+ * Cancelling a running sync interrupts it: the transfers in progress are
+ * abandoned, and once the sync has stopped the callbacks are told of a
+ * CancellationException; {@link #get()} does not wait for it to stop. The
+ * result of {@link #get()} is the report of the sync, or null for a
+ * synchroniser which does not report on its syncs; a failed sync throws
+ * an ExecutionException holding the FileSyncException or IOException.
+ *
+ * @author ajmas
+ *
+ */
+public class SyncHandle implements Future<SyncReport> {
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final ProgressTracker tracker;
+    private final List<SyncCallback> callbacks = new CopyOnWriteArrayList<SyncCallback>();
+    private final FutureTask<SyncReport> task;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    SyncHandle(final Callable<SyncReport> sync, ProgressTracker tracker) {
+        this.tracker = tracker;
+        this.task = new FutureTask<SyncReport>(new Callable<SyncReport>() {
+            public SyncReport call() throws Exception {
+                if (!started.compareAndSet(false, true)) {
+                    throw new CancellationException();
+                }
+                return sync.call();
+            }
+        }) {
+            public void run() {
+                try {
+                    super.run();
+                } finally {
+                    finish();
+                }
+            }
+
+            protected void done() {
+                // INFO a running sync is done once cancelled, but finishes only when run() returns
+                if (started.compareAndSet(false, true)) {
+                    finish();
+                }
+            }
+        };
+    }
+
+    private void finish() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        tracker.finish();
+        for (SyncCallback callback : callbacks) {
+            // INFO whichever of this and addCallback removes it first tells it
+            if (callbacks.remove(callback)) {
+                notify(callback);
+            }
+        }
+    }
+
+    /**
+     * @return the work to hand to the executor
+     */
+    Runnable getTask() {
+        return task;
+    }
+
+    /**
+     * @return how far the sync has got
+     */
+    public SyncProgress getProgress() {
+        return tracker.getProgress();
+    }
+
+    public void addProgressListener(SyncProgressListener listener) {
+        tracker.addProgressListener(listener);
+    }
+
+    /**
+     * Adds a callback told how the sync ended, from the thread which ran
+     * it, or from this thread if it already has.
+     */
+    public void addCallback(SyncCallback callback) {
+        callbacks.add(callback);
+        if (finished.get() && callbacks.remove(callback)) {
+            notify(callback);
+        }
+    }
+
+    private void notify(SyncCallback callback) {
+        SyncReport report = null;
+        Throwable failure = null;
+        try {
+            report = task.get();
+        } catch (ExecutionException ex) {
+            failure = ex.getCause();
+        } catch (CancellationException ex) {
+            failure = ex;
+        } catch (InterruptedException ex) {
+            // INFO the task is done, so get() does not wait
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            if (failure == null) {
+                callback.completed(report);
+            } else {
+                callback.failed(failure);
+            }
+        } catch (RuntimeException ex) {
+            logger.warn("Sync callback failed", ex);
+        }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return task.cancel(mayInterruptIfRunning);
+    }
+
+    /**
+     * Cancels the sync, interrupting it if it is running.
+     */
+    public boolean cancel() {
+        return cancel(true);
+    }
+
+    public boolean isCancelled() {
+        return task.isCancelled();
+    }
+
+    public boolean isDone() {
+        return task.isDone();
+    }
+
+    public SyncReport get() throws InterruptedException, ExecutionException {
+        return task.get();
+    }
+
+    public SyncReport get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        return task.get(timeout, unit);
+    }
+}
@@ -0,0 +1,342 @@
+package osj.filesync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The state of both sides of a sync, as it was at the end of the last
+ * successful run. Entries are grouped by folder, so that the children of a
+ * folder can be looked up without listing it, and carried over from one
+ * run to the next.
+ *
+ * The index is stored in a compact binary format: each folder is written
+ * once, followed by the names (not the full paths) of its children and the
+ * size, modification time and file key recorded for each side.
+ *
+ * An index is only valid for the source and destination it was recorded
+ * for. Loading it for another pair of endpoints gives an empty index.
+ *
+ * @author ajmas
+ *
+ */
+public class SyncIndex {
+
+    private static final int MAGIC = 0x42465349; // "BFSI"
+    private static final short VERSION = 1;
+
+    private static final int HAS_SOURCE = 1;
+    private static final int HAS_DESTINATION = 2;
+    private static final int HAS_SOURCE_HASH = 4;
+
+    private static final Logger logger = Logger.getLogger(SyncIndex.class);
+
+    /**
+     * The recorded state of a single path.
+     */
+    public static class Record {
+        private final FileEntry source;
+        private final FileEntry destination;
+        private final byte[] sourceHash;
+
+        public Record(FileEntry source, FileEntry destination, byte[] sourceHash) {
+            this.source = source;
+            this.destination = destination;
+            this.sourceHash = sourceHash;
+        }
+
+        /**
+         * @return the source entry, or null if the path only exists on the destination
+         */
+        public FileEntry getSource() {
+            return source;
+        }
+
+        /**
+         * @return the destination entry, or null if its state is not known
+         */
+        public FileEntry getDestination() {
+            return destination;
+        }
+
+        /**
+         * @return the content hash of the source, or null if it was not computed
+         */
+        public byte[] getSourceHash() {
+            return sourceHash;
+        }
+    }
+
+    private final String sourceId;
+    private final String destinationId;
+
+    private volatile Record root;
+    private final ConcurrentNavigableMap<String, ConcurrentMap<String, Record>> folders =
+            new ConcurrentSkipListMap<String, ConcurrentMap<String, Record>>();
+
+    public SyncIndex(String sourceId, String destinationId) {
+        this.sourceId = sourceId;
+        this.destinationId = destinationId;
+    }
+
+    /**
+     * Loads the index, giving an empty index if the file does not exist
+     * or was recorded for another pair of endpoints.
+     */
+    public static SyncIndex load(File file, String sourceId, String destinationId) throws IOException {
+        SyncIndex index = new SyncIndex(sourceId, destinationId);
+        if (!file.exists()) {
+            return index;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                logger.warn("Ignoring sync index in an unknown format: " + file);
+                return index;
+            }
+            if (!sourceId.equals(in.readUTF()) || !destinationId.equals(in.readUTF())) {
+                logger.warn("Ignoring sync index recorded for other endpoints: " + file);
+                return index;
+            }
+
+            index.root = readRecord(in, "");
+            int folderCount = in.readInt();
+            for (int i = 0; i < folderCount; i++) {
+                String folder = in.readUTF();
+                int childCount = in.readInt();
+                ConcurrentMap<String, Record> children = new ConcurrentHashMap<String, Record>(childCount * 2);
+                for (int j = 0; j < childCount; j++) {
+                    String name = in.readUTF();
+                    children.put(name, readRecord(in, folder.isEmpty() ? name : folder + "/" + name));
+                }
+                index.folders.put(folder, children);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Writes the index to a temporary file, which then replaces the
+     * existing index, so that an interrupted save leaves the previous
+     * index intact.
+     */
+    public void save(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        File tempFile = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 65536))) {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeUTF(sourceId);
+                out.writeUTF(destinationId);
+                writeRecord(out, root);
+                out.writeInt(folders.size());
+                for (Map.Entry<String, ConcurrentMap<String, Record>> folder : folders.entrySet()) {
+                    out.writeUTF(folder.getKey());
+                    Map<String, Record> children = new HashMap<String, Record>(folder.getValue());
+                    out.writeInt(children.size());
+                    for (Map.Entry<String, Record> child : children.entrySet()) {
+                        out.writeUTF(child.getKey());
+                        writeRecord(out, child.getValue());
+                    }
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    public String getSourceId() {
+        return sourceId;
+    }
+
+    public String getDestinationId() {
+        return destinationId;
+    }
+
+    /**
+     * @return the record for the path, or null if there is none
+     */
+    public Record getRecord(String relativePath) {
+        if (relativePath.isEmpty()) {
+            return root;
+        }
+        Map<String, Record> children = folders.get(parentOf(relativePath));
+        return children != null ? children.get(nameOf(relativePath)) : null;
+    }
+
+    public void putRecord(String relativePath, Record record) {
+        if (relativePath.isEmpty()) {
+            root = record;
+            return;
+        }
+        String folder = parentOf(relativePath);
+        ConcurrentMap<String, Record> children = folders.get(folder);
+        if (children == null) {
+            ConcurrentMap<String, Record> newChildren = new ConcurrentHashMap<String, Record>();
+            children = folders.putIfAbsent(folder, newChildren);
+            if (children == null) {
+                children = newChildren;
+            }
+        }
+        children.put(nameOf(relativePath), record);
+    }
+
+    /**
+     * @return every record but the root's, keyed by path
+     */
+    public Map<String, Record> getAllRecords() {
+        Map<String, Record> records = new HashMap<String, Record>();
+        for (Map.Entry<String, ConcurrentMap<String, Record>> folder : folders.entrySet()) {
+            for (Map.Entry<String, Record> child : folder.getValue().entrySet()) {
+                String folderPath = folder.getKey();
+                records.put(folderPath.isEmpty() ? child.getKey() : folderPath + "/" + child.getKey(), child.getValue());
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return the recorded children of the folder, keyed by name
+     */
+    public Map<String, Record> getChildren(String folder) {
+        Map<String, Record> children = folders.get(folder);
+        if (children == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(children);
+    }
+
+    /**
+     * @return the recorded destination children of the folder, keyed by name
+     */
+    public Map<String, FileEntry> getDestinationChildren(String folder) {
+        Map<String, FileEntry> children = new HashMap<String, FileEntry>();
+        for (Map.Entry<String, Record> child : getChildren(folder).entrySet()) {
+            if (child.getValue().getDestination() != null) {
+                children.put(child.getKey(), child.getValue().getDestination());
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Copies the records for the children of the folder from another index.
+     */
+    public void copyChildren(SyncIndex other, String folder) {
+        Map<String, Record> children = other.folders.get(folder);
+        if (children != null) {
+            folders.put(folder, new ConcurrentHashMap<String, Record>(children));
+        }
+    }
+
+    /**
+     * @return an index with the same records, which can be changed without
+     *         changing this one
+     */
+    public SyncIndex copy() {
+        SyncIndex copy = new SyncIndex(sourceId, destinationId);
+        copy.root = root;
+        for (Map.Entry<String, ConcurrentMap<String, Record>> folder : folders.entrySet()) {
+            copy.folders.put(folder.getKey(), new ConcurrentHashMap<String, Record>(folder.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * Removes the record for the path and, if it is a folder, the records
+     * for everything below it.
+     */
+    public void removeSubtree(String relativePath) {
+        if (relativePath.isEmpty()) {
+            root = null;
+            folders.clear();
+            return;
+        }
+        Map<String, Record> children = folders.get(parentOf(relativePath));
+        if (children != null) {
+            children.remove(nameOf(relativePath));
+        }
+        folders.remove(relativePath);
+        // INFO '/' + 1 is '0', so this is every folder starting with relativePath + "/"
+        folders.subMap(relativePath + "/", relativePath + "0").clear();
+    }
+
+    static String parentOf(String relativePath) {
+        int idx = relativePath.lastIndexOf('/');
+        return idx < 0 ? "" : relativePath.substring(0, idx);
+    }
+
+    static String nameOf(String relativePath) {
+        return relativePath.substring(relativePath.lastIndexOf('/') + 1);
+    }
+
+    private static Record readRecord(DataInputStream in, String relativePath) throws IOException {
+        int flags = in.readByte();
+        if (flags < 0) {
+            return null;
+        }
+        FileEntry source = (flags & HAS_SOURCE) != 0 ? readEntry(in, relativePath) : null;
+        FileEntry destination = (flags & HAS_DESTINATION) != 0 ? readEntry(in, relativePath) : null;
+        byte[] sourceHash = null;
+        if ((flags & HAS_SOURCE_HASH) != 0) {
+            sourceHash = new byte[in.readUnsignedByte()];
+            in.readFully(sourceHash);
+        }
+        return new Record(source, destination, sourceHash);
+    }
+
+    private static void writeRecord(DataOutputStream out, Record record) throws IOException {
+        if (record == null) {
+            out.writeByte(-1);
+            return;
+        }
+        int flags = (record.source != null ? HAS_SOURCE : 0)
+                | (record.destination != null ? HAS_DESTINATION : 0)
+                | (record.sourceHash != null ? HAS_SOURCE_HASH : 0);
+        out.writeByte(flags);
+        if (record.source != null) {
+            writeEntry(out, record.source);
+        }
+        if (record.destination != null) {
+            writeEntry(out, record.destination);
+        }
+        if (record.sourceHash != null) {
+            out.writeByte(record.sourceHash.length);
+            out.write(record.sourceHash);
+        }
+    }
+
+    private static FileEntry readEntry(DataInputStream in, String relativePath) throws IOException {
+        boolean directory = in.readBoolean();
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        String fileKey = in.readUTF();
+        return new FileEntry(relativePath, directory, size, lastModified, fileKey.isEmpty() ? null : fileKey);
+    }
+
+    private static void writeEntry(DataOutputStream out, FileEntry entry) throws IOException {
+        out.writeBoolean(entry.isDirectory());
+        out.writeLong(entry.getSize());
+        out.writeLong(entry.getLastModified());
+        out.writeUTF(entry.getFileKey() != null ? entry.getFileKey().toString() : "");
+    }
+}
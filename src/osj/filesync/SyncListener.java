@@ -0,0 +1,17 @@
+package osj.filesync;
+
+/**
+ * Notified of each change applied to the destination during a sync.
+ * Listeners are called from the transfer threads, possibly concurrently,
+ * so they must be thread safe and should return quickly.
+ *
+ * @author ajmas
+ *
+ */
+public interface SyncListener {
+
+    /**
+     * Called once the action has been applied to the destination.
+     */
+    public void actionCompleted(SyncAction action);
+}
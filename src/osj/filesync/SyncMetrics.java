@@ -0,0 +1,119 @@
+package osj.filesync;
+
+/**
+ * Receives the measurements taken during a sync, to export them to a
+ * monitoring system, see {@link JmxSyncMetrics}. Set on the configuration
+ * with {@link FileSyncConfiguration#setSyncMetrics(SyncMetrics)}.
+ *
+ * The methods are called from the scanning, comparing and transfer
+ * threads, possibly concurrently, so implementations must be thread safe
+ * and should return quickly. The default, {@link #NOOP}, ignores them.
+ *
+ * @author ajmas
+ *
+ */
+public interface SyncMetrics {
+
+    /**
+     * The stages of a sync. In a {@link SyncPipeline} the scan, compare and
+     * transfer stages overlap, so the time of each is the wall time from
+     * the start of the run until the stage is done.
+     */
+    enum Phase {
+        SCAN,
+        COMPARE,
+        TRANSFER,
+        DELETE,
+        INDEX
+    }
+
+    /**
+     * The queue of folder listings waiting to be compared.
+     */
+    String LISTINGS_QUEUE = "listings";
+
+    /**
+     * The queue of changes waiting to be applied.
+     */
+    String ACTIONS_QUEUE = "actions";
+
+    /**
+     * Ignores everything.
+     */
+    SyncMetrics NOOP = new Noop();
+
+    /**
+     * Called for each folder listed.
+     *
+     * @param entries the number of entries in the source folder
+     */
+    void directoryListed(String relativePath, int entries);
+
+    /**
+     * Called as entries present on the source are compared with the
+     * destination.
+     */
+    void entriesCompared(int count);
+
+    /**
+     * Called as each file copy is decided on, before it starts. While the
+     * trees are being compared, more may follow after the first copies are
+     * done.
+     */
+    void transferQueued(SyncAction action);
+
+    /**
+     * Called once a file has been copied.
+     *
+     * @param bytes the size of the file
+     * @param nanos how long the copy took
+     */
+    void fileTransferred(SyncAction action, long bytes, long nanos);
+
+    void directoryCreated(SyncAction action);
+
+    void entryDeleted(SyncAction action, long nanos);
+
+    /**
+     * Called with the number of items waiting in one of the queues between
+     * the stages, each time an item is taken from it.
+     */
+    void queueDepth(String queue, int depth);
+
+    void phaseCompleted(Phase phase, long nanos);
+
+    /**
+     * Called at the end of each sync, whether it succeeded or not.
+     */
+    void syncCompleted(SyncReport report);
+
+    class Noop implements SyncMetrics {
+
+        public void directoryListed(String relativePath, int entries) {
+        }
+
+        public void entriesCompared(int count) {
+        }
+
+        public void transferQueued(SyncAction action) {
+        }
+
+        public void fileTransferred(SyncAction action, long bytes, long nanos) {
+        }
+
+        public void directoryCreated(SyncAction action) {
+        }
+
+        public void entryDeleted(SyncAction action, long nanos) {
+        }
+
+        public void queueDepth(String queue, int depth) {
+        }
+
+        public void phaseCompleted(Phase phase, long nanos) {
+        }
+
+        public void syncCompleted(SyncReport report) {
+        }
+    }
+}
@@ -0,0 +1,811 @@
+package osj.filesync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Staged sync engine, so that folder listings, comparisons and transfers
+ * overlap instead of running one after the other:
+ *
+ * <ol>
+ * <li>the scanners list the source and destination folders in parallel,
+ *     see {@link ParallelTreeWalker}</li>
+ * <li>the comparator decides, folder by folder, which entries need
+ *     creating, copying or deleting</li>
+ * <li>a pool of transfer workers applies the copies, in batches when the
+ *     transfer is a {@link BatchTransfer}</li>
+ * </ol>
+ *
+ * The destination entries which are no longer on the source are deleted
+ * last, as a phase of their own, see {@link DeletionSweep}. Entries the
+ * path filters exclude are never deleted, and a run which would delete
+ * more than the configured maximum fails before deleting anything.
+ *
+ * The stages are connected by bounded queues, so a slow transfer stage
+ * holds back the scanners rather than letting the pending work grow
+ * without limit. Folders are created by the comparator itself, before the
+ * copies into them are queued, so that transfers never race their parent
+ * folder.
+ *
+ * When an index file is configured, the state of both sides is recorded
+ * at the end of each successful run, see {@link SyncIndex}. The next run
+ * uses it to avoid listing destination folders which have not changed
+ * since, which saves most of the round trips when the destination is
+ * remote. Out of band changes to existing destination files, in folders
+ * whose modification time is unchanged, are only seen by a forced run.
+ *
+ * Which files are copied is decided by a {@link ChangeDetector}, by
+ * default the one for {@link ChangeDetector.Mode#MTIME}.
+ *
+ * A run can be restricted to some paths, in which case only those paths,
+ * the subtrees of the folders among them and their missing parent folders
+ * are synced. The index records of the rest of the tree are kept.
+ *
+ * A run can also be planned rather than applied, see {@link #plan}, giving
+ * the changes as a {@link ChangePlan} to review or apply elsewhere.
+ *
+ * @author ajmas
+ *
+ */
+public class SyncPipeline {
+
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private static final DirectoryListing END_OF_LISTINGS = new DirectoryListing(null, null, null, false);
+    private static final SyncAction END_OF_ACTIONS = new SyncAction(null, null, null, null);
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final SyncEndpoint source;
+    private final SyncEndpoint destination;
+    private final FileTransfer transfer;
+
+    private int scanParallelism = Runtime.getRuntime().availableProcessors();
+    private int transferThreads = 4;
+    private int queueCapacity = 1024;
+    private boolean deleteExtraneous = true;
+    private int maxDeletions = -1;
+    private List<SyncListener> listeners = new ArrayList<SyncListener>();
+    private SyncMetrics metrics = SyncMetrics.NOOP;
+
+    private File indexFile;
+    private String sourceId;
+    private String destinationId;
+    private boolean trustDirectoryTimestamps;
+    private ChangeDetector.Mode changeDetection = ChangeDetector.Mode.MTIME;
+    private ChangeDetector changeDetector;
+
+    private SyncIndex previousIndex;
+    private SyncIndex index;
+    private ChangePlan plan;
+    private final Set<String> changedFolders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Queue<FileEntry> extraneousEntries = new ConcurrentLinkedQueue<FileEntry>();
+
+    private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+    public SyncPipeline(SyncEndpoint source, SyncEndpoint destination, FileTransfer transfer) {
+        this.source = source;
+        this.destination = destination;
+        this.transfer = transfer;
+    }
+
+    public void setScanParallelism(int scanParallelism) {
+        this.scanParallelism = scanParallelism;
+    }
+
+    public void setTransferThreads(int transferThreads) {
+        this.transferThreads = transferThreads;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @param deleteExtraneous whether destination entries which are no
+     *        longer on the source are deleted
+     */
+    public void setDeleteExtraneous(boolean deleteExtraneous) {
+        this.deleteExtraneous = deleteExtraneous;
+    }
+
+    /**
+     * @see FileSyncConfiguration#setMaxDeletions(int)
+     */
+    public void setMaxDeletions(int maxDeletions) {
+        this.maxDeletions = maxDeletions;
+    }
+
+    public void addSyncListener(SyncListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Sends the measurements of the runs to the given metrics. With the
+     * default, nothing is measured.
+     */
+    public void setMetrics(SyncMetrics metrics) {
+        this.metrics = metrics != null ? metrics : SyncMetrics.NOOP;
+    }
+
+    private boolean isMeasured() {
+        return metrics != SyncMetrics.NOOP;
+    }
+
+    /**
+     * Records the state of both sides in the index file, identifying the
+     * endpoints by the given ids.
+     */
+    public void setIndexFile(File indexFile, String sourceId, String destinationId) {
+        this.indexFile = indexFile;
+        this.sourceId = sourceId;
+        this.destinationId = destinationId;
+    }
+
+    /**
+     * @see FileSyncConfiguration#setTrustDirectoryTimestamps(boolean)
+     */
+    public void setTrustDirectoryTimestamps(boolean trustDirectoryTimestamps) {
+        this.trustDirectoryTimestamps = trustDirectoryTimestamps;
+    }
+
+    public void setChangeDetection(ChangeDetector.Mode changeDetection) {
+        this.changeDetection = changeDetection;
+    }
+
+    /**
+     * Sets the change detector to use instead of the one for the change
+     * detection mode.
+     */
+    public void setChangeDetector(ChangeDetector changeDetector) {
+        this.changeDetector = changeDetector;
+    }
+
+    /**
+     * Configures the pipeline from the general sync parameters.
+     */
+    public void configure(FileSyncConfiguration configuration, URI sourceURI, URI destinationURI) {
+        setScanParallelism(configuration.getParallelism());
+        setTransferThreads(configuration.getTransferThreads());
+        setQueueCapacity(configuration.getQueueCapacity());
+        listeners.addAll(configuration.getSyncListeners());
+        setChangeDetection(configuration.getChangeDetection());
+        setMaxDeletions(configuration.getMaxDeletions());
+        if (configuration.getIndexFile() != null) {
+            setIndexFile(configuration.getIndexFile(), sourceURI.toString(), destinationURI.toString());
+            setTrustDirectoryTimestamps(configuration.isTrustDirectoryTimestamps());
+        }
+    }
+
+    public void run(boolean force, PathFilter... pathFilters) throws FileSyncException, IOException {
+        run(force, null, pathFilters);
+    }
+
+    /**
+     * Works out the changes a run would make, as a dry run which does not
+     * touch the destination nor save the index.
+     *
+     * @param relativePaths the paths to sync, or null to sync the whole tree
+     * @return the changes, to apply with a {@link ChangePlanExecutor}
+     */
+    public ChangePlan plan(boolean force, List<String> relativePaths, PathFilter... pathFilters)
+            throws FileSyncException, IOException {
+        ChangePlan changePlan = new ChangePlan(source.toString(), destination.toString());
+        plan = changePlan;
+        try {
+            run(force, relativePaths, pathFilters);
+        } finally {
+            plan = null;
+        }
+        changePlan.sort();
+        return changePlan;
+    }
+
+    /**
+     * @param relativePaths the paths to sync, or null to sync the whole tree
+     */
+    public void run(boolean force, List<String> relativePaths, PathFilter... pathFilters)
+            throws FileSyncException, IOException {
+
+        // INFO a sync of the root is one of the whole tree, made before the root is handled so it is handled once
+        final List<String> paths = relativePaths != null ? coalesce(relativePaths) : null;
+        if (paths != null && paths.contains("")) {
+            run(force, null, pathFilters);
+            return;
+        }
+
+        failure.set(null);
+        changedFolders.clear();
+        extraneousEntries.clear();
+        final long startNanos = isMeasured() ? System.nanoTime() : 0;
+
+        FileEntry sourceRoot = source.stat("");
+        if (sourceRoot == null || !sourceRoot.isDirectory()) {
+            throw new FileSyncException("Source folder does not exist: " + source);
+        }
+
+        FileEntry destinationRoot = destination.stat("");
+        if (destinationRoot == null && plan != null) {
+            plan.add(new SyncAction(SyncAction.Type.CREATE_DIRECTORY, "", sourceRoot, null));
+        } else if (destinationRoot == null) {
+            logger.debug("Creating directory " + destination);
+            destination.createDirectory("");
+        }
+
+        if (indexFile != null) {
+            previousIndex = SyncIndex.load(indexFile, sourceId, destinationId);
+            if (paths == null) {
+                index = new SyncIndex(sourceId, destinationId);
+            } else {
+                // INFO the records of the paths are replaced, those of the rest of the tree are kept
+                index = previousIndex.copy();
+                for (String path : paths) {
+                    index.removeSubtree(path);
+                }
+            }
+        }
+
+        ChangeDetector detector = changeDetector != null ? changeDetector : createChangeDetector();
+
+        final BlockingQueue<DirectoryListing> listings = new ArrayBlockingQueue<DirectoryListing>(queueCapacity);
+        final BlockingQueue<SyncAction> actions = new ArrayBlockingQueue<SyncAction>(queueCapacity);
+
+        ExecutorService executor = Executors.newFixedThreadPool(transferThreads + 1);
+        try {
+            executor.execute(new ChangeComparator(listings, actions, detector, force, startNanos, pathFilters));
+            for (int i = 0; i < transferThreads; i++) {
+                executor.execute(new TransferWorker(actions, detector));
+            }
+
+            try {
+                ParallelTreeWalker walker = new ParallelTreeWalker(scanParallelism);
+                walker.setPreviousIndex(previousIndex, trustDirectoryTimestamps);
+                ParallelTreeWalker.DirectoryVisitor visitor = new ParallelTreeWalker.DirectoryVisitor() {
+                            public void visitDirectory(String relativePath, Map<String, FileEntry> sourceChildren,
+                                    Map<String, FileEntry> destinationChildren) throws IOException {
+                                metrics.directoryListed(relativePath, sourceChildren.size());
+                                put(listings, new DirectoryListing(relativePath, sourceChildren,
+                                        destinationChildren, false));
+                            }
+
+                            public void skipDirectory(String relativePath, Map<String, FileEntry> sourceFolders) {
+                                index.copyChildren(previousIndex, relativePath);
+                                for (FileEntry sourceFolder : sourceFolders.values()) {
+                                    SyncIndex.Record record = previousIndex.getRecord(sourceFolder.getRelativePath());
+                                    index.putRecord(sourceFolder.getRelativePath(),
+                                            new SyncIndex.Record(sourceFolder, record.getDestination(), null));
+                                }
+                            }
+                        };
+                if (paths == null) {
+                    walker.walk(source, destination, sourceRoot, destinationRoot, visitor, pathFilters);
+                } else {
+                    for (String path : paths) {
+                        syncPath(path, walker, visitor, listings, pathFilters);
+                    }
+                }
+                put(listings, END_OF_LISTINGS);
+                if (isMeasured()) {
+                    metrics.phaseCompleted(SyncMetrics.Phase.SCAN, System.nanoTime() - startNanos);
+                }
+            } catch (IOException ex) {
+                fail(ex);
+            }
+
+            executor.shutdown();
+            while (!executor.awaitTermination(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                // INFO wait for the comparator and the transfer workers to drain their queues
+            }
+            if (isMeasured()) {
+                metrics.phaseCompleted(SyncMetrics.Phase.TRANSFER, System.nanoTime() - startNanos);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            fail(new InterruptedIOException("Sync was interrupted"));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Exception ex = failure.get();
+        if (ex instanceof FileSyncException) {
+            throw (FileSyncException) ex;
+        } else if (ex instanceof IOException) {
+            throw (IOException) ex;
+        } else if (ex != null) {
+            throw new FileSyncException(ex);
+        }
+
+        if (!extraneousEntries.isEmpty()) {
+            long deleteNanos = isMeasured() ? System.nanoTime() : 0;
+            deleteExtraneous(pathFilters);
+            if (isMeasured()) {
+                metrics.phaseCompleted(SyncMetrics.Phase.DELETE, System.nanoTime() - deleteNanos);
+            }
+        }
+
+        if (index != null && plan == null) {
+            long indexNanos = isMeasured() ? System.nanoTime() : 0;
+            saveIndex(paths == null ? sourceRoot : null);
+            if (isMeasured()) {
+                metrics.phaseCompleted(SyncMetrics.Phase.INDEX, System.nanoTime() - indexNanos);
+            }
+        }
+    }
+
+    /**
+     * Deletes the destination entries found to be no longer on the source,
+     * or adds them to the plan, once everything else is done.
+     */
+    private void deleteExtraneous(PathFilter... pathFilters) throws FileSyncException, IOException {
+        DeletionSweep sweep = new DeletionSweep(destination, transferThreads, pathFilters);
+        List<FileEntry> entries = sweep.expand(extraneousEntries);
+        if (plan != null) {
+            for (FileEntry entry : entries) {
+                plan.add(new SyncAction(SyncAction.Type.DELETE, entry.getRelativePath(), null, entry));
+            }
+            return;
+        }
+
+        if (maxDeletions >= 0 && entries.size() > maxDeletions) {
+            throw new FileSyncException("The sync would delete " + entries.size()
+                    + " entries from the destination, more than the limit of " + maxDeletions);
+        }
+        sweep.delete(entries, metrics, new SyncListener() {
+            public void actionCompleted(SyncAction action) {
+                notifyListeners(action);
+            }
+        });
+    }
+
+    /**
+     * Queues the path for comparison, along with any of its parent folders
+     * missing from the destination, and walks it if it is a folder.
+     */
+    private void syncPath(String path, ParallelTreeWalker walker, ParallelTreeWalker.DirectoryVisitor visitor,
+            BlockingQueue<DirectoryListing> listings, PathFilter... pathFilters) throws IOException {
+        for (String folder = SyncIndex.parentOf(path); !folder.isEmpty(); folder = SyncIndex.parentOf(folder)) {
+            if (!ParallelTreeWalker.acceptSubtree(folder, pathFilters)) {
+                return;
+            }
+        }
+
+        FileEntry sourceEntry = source.stat(path);
+        FileEntry destinationEntry = destination.stat(path);
+        if (sourceEntry == null) {
+            if (destinationEntry != null && ParallelTreeWalker.accept(path, pathFilters)) {
+                put(listings, partialListing(path, null, destinationEntry));
+            }
+            return;
+        }
+
+        List<String> missingFolders = new ArrayList<String>();
+        for (String folder = SyncIndex.parentOf(path); !folder.isEmpty(); folder = SyncIndex.parentOf(folder)) {
+            FileEntry destinationFolder = destination.stat(folder);
+            if (destinationFolder != null && destinationFolder.isDirectory()) {
+                break;
+            }
+            missingFolders.add(0, folder);
+        }
+        for (String folder : missingFolders) {
+            put(listings, partialListing(folder, source.stat(folder), null));
+        }
+
+        put(listings, partialListing(path, sourceEntry, destinationEntry));
+        if (sourceEntry.isDirectory() && ParallelTreeWalker.acceptSubtree(path, pathFilters)) {
+            walker.walk(source, destination, sourceEntry, destinationEntry, visitor, pathFilters);
+        }
+    }
+
+    /**
+     * @return the listing of the parent folder of the path, reduced to the path
+     */
+    private static DirectoryListing partialListing(String path, FileEntry sourceEntry, FileEntry destinationEntry) {
+        Map<String, FileEntry> sourceChildren = new HashMap<String, FileEntry>();
+        Map<String, FileEntry> destinationChildren = new HashMap<String, FileEntry>();
+        if (sourceEntry != null) {
+            sourceChildren.put(SyncIndex.nameOf(path), sourceEntry);
+        }
+        if (destinationEntry != null) {
+            destinationChildren.put(SyncIndex.nameOf(path), destinationEntry);
+        }
+        return new DirectoryListing(SyncIndex.parentOf(path), sourceChildren, destinationChildren, true);
+    }
+
+    /**
+     * @return the paths, normalised, without those below another of the paths
+     */
+    static List<String> coalesce(Collection<String> relativePaths) {
+        Set<String> paths = new HashSet<String>();
+        for (String relativePath : relativePaths) {
+            String path = relativePath.replace('\\', '/');
+            while (path.startsWith("/") || path.startsWith("./")) {
+                path = path.substring(path.startsWith("/") ? 1 : 2);
+            }
+            while (path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            paths.add(".".equals(path) ? "" : path);
+        }
+
+        List<String> coalesced = new ArrayList<String>();
+        for (String path : paths) {
+            boolean covered = paths.contains("") && !path.isEmpty();
+            for (String parent = SyncIndex.parentOf(path); !parent.isEmpty() && !covered; parent = SyncIndex.parentOf(parent)) {
+                covered = paths.contains(parent);
+            }
+            if (!covered) {
+                coalesced.add(path);
+            }
+        }
+        Collections.sort(coalesced);
+        return coalesced;
+    }
+
+    private ChangeDetector createChangeDetector() throws FileSyncException {
+        long timestampResolution = Math.max(source.getTimestampResolution(), destination.getTimestampResolution());
+        switch (changeDetection) {
+        case SIZE_AND_MTIME:
+            return new TimestampChangeDetector(timestampResolution, true);
+        case CONTENT_HASH:
+            if (!(source instanceof HashingEndpoint) || !(destination instanceof HashingEndpoint)) {
+                throw new FileSyncException("Content hash change detection is not supported between "
+                        + source + " and " + destination);
+            }
+            return new ContentHashChangeDetector((HashingEndpoint) source, (HashingEndpoint) destination,
+                    previousIndex);
+        default:
+            return new TimestampChangeDetector(timestampResolution, false);
+        }
+    }
+
+    /**
+     * Refreshes the destination state of the folders whose content was
+     * changed during the run, since that changed their modification time,
+     * and saves the index.
+     */
+    private void saveIndex(FileEntry sourceRoot) throws IOException {
+        // INFO the root record is only refreshed by a run over the whole tree
+        for (String folder : changedFolders) {
+            if (!folder.isEmpty()) {
+                SyncIndex.Record record = index.getRecord(folder);
+                if (record != null) {
+                    index.putRecord(folder, new SyncIndex.Record(record.getSource(),
+                            destination.stat(folder), record.getSourceHash()));
+                }
+            }
+        }
+        if (sourceRoot != null) {
+            index.putRecord("", new SyncIndex.Record(sourceRoot, destination.stat(""), null));
+        }
+        index.save(indexFile);
+    }
+
+    private void notifyListeners(SyncAction action) {
+        for (SyncListener listener : listeners) {
+            listener.actionCompleted(action);
+        }
+    }
+
+    private void record(String relativePath, FileEntry sourceEntry, FileEntry destinationEntry, byte[] sourceHash) {
+        if (index != null) {
+            index.putRecord(relativePath, new SyncIndex.Record(sourceEntry, destinationEntry, sourceHash));
+        }
+    }
+
+    /**
+     * Records the first failure, which also tells all the stages to stop.
+     */
+    private void fail(Exception ex) {
+        failure.compareAndSet(null, ex);
+    }
+
+    private boolean isAborted() {
+        return failure.get() != null;
+    }
+
+    private <T> void put(BlockingQueue<T> queue, T item) throws IOException {
+        try {
+            while (!queue.offer(item, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                if (isAborted()) {
+                    throw new InterruptedIOException("Sync was aborted");
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Sync was interrupted");
+        }
+    }
+
+    /**
+     * @return the next item, or null if the sync was aborted
+     */
+    private <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+        T item = null;
+        while (item == null && !isAborted()) {
+            item = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        return item;
+    }
+
+    /**
+     * The listings of a source folder and its destination counterpart.
+     */
+    static class DirectoryListing {
+        final String relativePath;
+        final Map<String, FileEntry> sourceChildren;
+        final Map<String, FileEntry> destinationChildren;
+        final boolean partial;
+
+        /**
+         * @param partial whether the listings only hold some of the children,
+         *        in which case the child folders are not recorded in the
+         *        index, as their content was not all synced
+         */
+        DirectoryListing(String relativePath, Map<String, FileEntry> sourceChildren,
+                Map<String, FileEntry> destinationChildren, boolean partial) {
+            this.relativePath = relativePath;
+            this.sourceChildren = sourceChildren;
+            this.destinationChildren = destinationChildren;
+            this.partial = partial;
+        }
+    }
+
+    class ChangeComparator implements Runnable {
+
+        private final BlockingQueue<DirectoryListing> listings;
+        private final BlockingQueue<SyncAction> actions;
+        private final ChangeDetector detector;
+        private final boolean force;
+        private final long startNanos;
+        private final PathFilter[] pathFilters;
+
+        ChangeComparator(BlockingQueue<DirectoryListing> listings, BlockingQueue<SyncAction> actions,
+                ChangeDetector detector, boolean force, long startNanos, PathFilter... pathFilters) {
+            this.listings = listings;
+            this.actions = actions;
+            this.detector = detector;
+            this.force = force;
+            this.startNanos = startNanos;
+            this.pathFilters = pathFilters;
+        }
+
+        public void run() {
+            try {
+                DirectoryListing listing = null;
+                while ((listing = take(listings)) != null && listing != END_OF_LISTINGS) {
+                    if (isMeasured()) {
+                        metrics.queueDepth(SyncMetrics.LISTINGS_QUEUE, listings.size());
+                    }
+                    compare(listing);
+                }
+                if (listing == END_OF_LISTINGS && isMeasured()) {
+                    metrics.phaseCompleted(SyncMetrics.Phase.COMPARE, System.nanoTime() - startNanos);
+                }
+            } catch (Exception ex) {
+                fail(ex);
+            }
+            try {
+                for (int i = 0; i < transferThreads; i++) {
+                    put(actions, END_OF_ACTIONS);
+                }
+            } catch (IOException ex) {
+                // INFO the sync was aborted, so the workers stop without the end marker
+            }
+        }
+
+        private void compare(DirectoryListing listing) throws IOException {
+
+            // INFO Collect the resources on the destination which are no longer on the source,
+            // INFO deleted once the copies are done, unless the filters exclude them
+            for (FileEntry destinationEntry : listing.destinationChildren.values()) {
+                if (!listing.sourceChildren.containsKey(destinationEntry.getName())) {
+                    String path = destinationEntry.getRelativePath();
+                    if (destinationEntry.isDirectory() ? !ParallelTreeWalker.acceptSubtree(path, pathFilters)
+                            : !ParallelTreeWalker.accept(path, pathFilters)) {
+                        continue;
+                    }
+                    if (deleteExtraneous) {
+                        changedFolders.add(listing.relativePath);
+                        extraneousEntries.add(destinationEntry);
+                    } else {
+                        record(destinationEntry.getRelativePath(), null, destinationEntry, null);
+                    }
+                }
+            }
+
+            // INFO Handle creation and update of destination resources
+            Map<String, FileEntry> existingFiles = new HashMap<String, FileEntry>();
+            int compared = 0;
+            for (FileEntry sourceEntry : listing.sourceChildren.values()) {
+                String path = sourceEntry.getRelativePath();
+
+                // INFO if the path for the folder or file is not accepted continue to next item,
+                // INFO keeping the folders leading to accepted paths
+                if (sourceEntry.isDirectory() ? !ParallelTreeWalker.acceptSubtree(path, pathFilters)
+                        : !ParallelTreeWalker.accept(path, pathFilters)) {
+                    continue;
+                }
+                compared++;
+
+                FileEntry destinationEntry = listing.destinationChildren.get(sourceEntry.getName());
+                if (sourceEntry.isDirectory()) {
+                    if (destinationEntry == null && plan != null) {
+                        plan.add(new SyncAction(SyncAction.Type.CREATE_DIRECTORY, path, sourceEntry, null));
+                    } else if (destinationEntry == null) {
+                        logger.debug("Creating directory " + path);
+                        destination.createDirectory(path);
+                        changedFolders.add(listing.relativePath);
+                        changedFolders.add(path);
+                        SyncAction action = new SyncAction(SyncAction.Type.CREATE_DIRECTORY, path, sourceEntry, null);
+                        metrics.directoryCreated(action);
+                        notifyListeners(action);
+                    }
+                    if (!listing.partial) {
+                        record(path, sourceEntry, destinationEntry, null);
+                    }
+                } else if (force || destinationEntry == null) {
+                    changedFolders.add(listing.relativePath);
+                    submit(new SyncAction(SyncAction.Type.COPY, path, sourceEntry, destinationEntry));
+                } else {
+                    existingFiles.put(sourceEntry.getName(), sourceEntry);
+                }
+            }
+            metrics.entriesCompared(compared);
+
+            if (existingFiles.isEmpty()) {
+                return;
+            }
+            Set<String> changed = detector.findChanged(existingFiles.values(), listing.destinationChildren);
+            for (FileEntry sourceEntry : existingFiles.values()) {
+                FileEntry destinationEntry = listing.destinationChildren.get(sourceEntry.getName());
+                if (changed.contains(sourceEntry.getName())) {
+                    changedFolders.add(listing.relativePath);
+                    submit(new SyncAction(SyncAction.Type.COPY, sourceEntry.getRelativePath(),
+                            sourceEntry, destinationEntry));
+                } else {
+                    record(sourceEntry.getRelativePath(), sourceEntry, destinationEntry,
+                            detector.getSourceHash(sourceEntry));
+                }
+            }
+        }
+
+        /**
+         * Queues the change for the transfer workers, or adds it to the plan
+         * when planning.
+         */
+        private void submit(SyncAction action) throws IOException {
+            if (plan != null) {
+                plan.add(action);
+            } else {
+                if (isMeasured()) {
+                    metrics.transferQueued(action);
+                }
+                put(actions, action);
+            }
+        }
+    }
+
+    class TransferWorker implements Runnable {
+
+        private final BlockingQueue<SyncAction> actions;
+        private final ChangeDetector detector;
+
+        TransferWorker(BlockingQueue<SyncAction> actions, ChangeDetector detector) {
+            this.actions = actions;
+            this.detector = detector;
+        }
+
+        public void run() {
+            try {
+                SyncAction action = null;
+                while ((action = take(actions)) != null && action != END_OF_ACTIONS) {
+                    if (isMeasured()) {
+                        metrics.queueDepth(SyncMetrics.ACTIONS_QUEUE, actions.size());
+                    }
+                    if (transfer instanceof BatchTransfer && ((BatchTransfer) transfer).accepts(action)) {
+                        if (!applyBatch((BatchTransfer) transfer, action)) {
+                            break;
+                        }
+                    } else {
+                        apply(action);
+                    }
+                }
+            } catch (Exception ex) {
+                fail(ex);
+            }
+        }
+
+        private void apply(SyncAction action) throws IOException {
+            long startNanos = isMeasured() ? System.nanoTime() : 0;
+            logger.debug("Copying " + action.getRelativePath());
+            transfer.transfer(action);
+            transferred(action, isMeasured() ? System.nanoTime() - startNanos : 0);
+        }
+
+        /**
+         * Sends the action together with the other queued ones the transfer
+         * accepts, up to its limits, and applies the queued ones it does not
+         * accept after the batch.
+         *
+         * @return false if the end marker was taken from the queue, in which
+         *         case this worker is done
+         */
+        private boolean applyBatch(BatchTransfer batchTransfer, SyncAction first) throws IOException {
+            List<SyncAction> batch = new ArrayList<SyncAction>();
+            List<SyncAction> others = new ArrayList<SyncAction>();
+            batch.add(first);
+            long batchBytes = first.getSourceEntry().getSize();
+            boolean ended = false;
+
+            // INFO only what is already queued is batched, a batch never waits for more files
+            while (batch.size() < batchTransfer.getMaxBatchFiles() && batchBytes < batchTransfer.getMaxBatchBytes()) {
+                SyncAction action = actions.poll();
+                if (action == null) {
+                    break;
+                }
+                if (action == END_OF_ACTIONS) {
+                    ended = true;
+                    break;
+                }
+                if (batchTransfer.accepts(action)) {
+                    batch.add(action);
+                    batchBytes += action.getSourceEntry().getSize();
+                } else {
+                    others.add(action);
+                }
+            }
+
+            long startNanos = isMeasured() ? System.nanoTime() : 0;
+            logger.debug("Copying a batch of " + batch.size() + " files, " + batchBytes + " bytes");
+            Map<String, IOException> failures = batchTransfer.transfer(batch);
+            long nanosPerFile = isMeasured() ? (System.nanoTime() - startNanos) / batch.size() : 0;
+            for (SyncAction action : batch) {
+                if (!failures.containsKey(action.getRelativePath())) {
+                    transferred(action, nanosPerFile);
+                }
+            }
+            if (!failures.isEmpty()) {
+                Map.Entry<String, IOException> failed = failures.entrySet().iterator().next();
+                throw new IOException(failures.size() + " of " + batch.size() + " files in a batch could not be copied, "
+                        + "the first being " + failed.getKey() + ": " + failed.getValue().getMessage(), failed.getValue());
+            }
+
+            for (SyncAction action : others) {
+                apply(action);
+            }
+            return !ended;
+        }
+
+        private void transferred(SyncAction action, long nanos) throws IOException {
+            if (isMeasured()) {
+                metrics.fileTransferred(action, action.getSourceEntry().getSize(), nanos);
+            }
+            if (index != null) {
+                record(action.getRelativePath(), action.getSourceEntry(),
+                        destination.stat(action.getRelativePath()), detector.getSourceHash(action.getSourceEntry()));
+            }
+            notifyListeners(action);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package osj.filesync;
+
+/**
+ * How far a running sync has got, as given by a {@link SyncHandle}.
+ *
+ * The totals are those of the copies decided on so far. A one way sync
+ * compares the trees while it copies, so they grow until the comparison
+ * is done, and the estimated time left is a lower bound until then.
+ *
+ * @author ajmas
+ *
+ */
+public class SyncProgress {
+
+    private final long filesDone;
+    private final long filesTotal;
+    private final long bytesDone;
+    private final long bytesTotal;
+    private final double bytesPerSecond;
+    private final long elapsedMillis;
+    private final boolean done;
+
+    SyncProgress(long filesDone, long filesTotal, long bytesDone, long bytesTotal, double bytesPerSecond,
+            long elapsedMillis, boolean done) {
+        this.filesDone = filesDone;
+        this.filesTotal = filesTotal;
+        this.bytesDone = bytesDone;
+        this.bytesTotal = bytesTotal;
+        this.bytesPerSecond = bytesPerSecond;
+        this.elapsedMillis = elapsedMillis;
+        this.done = done;
+    }
+
+    public long getFilesDone() {
+        return filesDone;
+    }
+
+    public long getFilesTotal() {
+        return filesTotal;
+    }
+
+    public long getBytesDone() {
+        return bytesDone;
+    }
+
+    public long getBytesTotal() {
+        return bytesTotal;
+    }
+
+    /**
+     * @return the recent transfer rate, smoothed over a few seconds
+     */
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return the estimated time until the copies decided on so far are
+     *         done, or -1 if nothing was copied yet to estimate it from
+     */
+    public long getEtaMillis() {
+        long bytesLeft = bytesTotal - bytesDone;
+        if (done || bytesLeft <= 0) {
+            return 0;
+        }
+        return bytesPerSecond > 0 ? (long) (bytesLeft * 1000 / bytesPerSecond) : -1;
+    }
+
+    /**
+     * @return whether the sync has ended, whatever the outcome
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    public String toString() {
+        return "SyncProgress files=" + filesDone + "/" + filesTotal
+                + " bytes=" + bytesDone + "/" + bytesTotal
+                + " bytesPerSecond=" + (long) bytesPerSecond
+                + " elapsedMs=" + elapsedMillis
+                + " etaMs=" + getEtaMillis()
+                + " done=" + done;
+    }
+}
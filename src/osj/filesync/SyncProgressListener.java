@@ -0,0 +1,15 @@
+package osj.filesync;
+
+/**
+ * Receives the progress of a sync started by an
+ * {@link AsyncFileSynchroniser}, at most once per progress interval while
+ * files are copied, and once more when the sync ends. Called from the
+ * threads of the sync, so it should return quickly.
+ *
+ * @author ajmas
+ *
+ */
+public interface SyncProgressListener {
+
+    void progressChanged(SyncProgress progress);
+}
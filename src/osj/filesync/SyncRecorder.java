@@ -0,0 +1,171 @@
+package osj.filesync;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import osj.filesync.FileSynchroniser.SyncDirection;
+
+/**
+ * Totals the measurements of one sync for its {@link SyncReport}, passing
+ * each of them on to the configured {@link SyncMetrics}. A synchroniser
+ * creates one at the start of {@link FileSynchroniser#syncFiles} and
+ * calls {@link #finish(Throwable)} at the end, whatever the outcome.
+ *
+ * @author ajmas
+ *
+ */
+public class SyncRecorder implements SyncMetrics {
+
+    static Logger logger = Logger.getLogger(SyncRecorder.class);
+
+    private final String synchroniser;
+    private final SyncDirection direction;
+    private final SyncMetrics metrics;
+
+    private final long startTime = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+
+    final AtomicLong directoriesListed = new AtomicLong();
+    final AtomicLong entriesScanned = new AtomicLong();
+    final AtomicLong entriesCompared = new AtomicLong();
+    final AtomicLong filesTransferred = new AtomicLong();
+    final AtomicLong bytesTransferred = new AtomicLong();
+    final AtomicLong directoriesCreated = new AtomicLong();
+    final AtomicLong entriesDeleted = new AtomicLong();
+    final LatencyHistogram transferLatency = new LatencyHistogram();
+
+    // INFO filled up front, so that it is only read and never changed concurrently
+    private final Map<Phase, AtomicLong> phaseNanos = new EnumMap<Phase, AtomicLong>(Phase.class);
+    private final ConcurrentMap<String, AtomicInteger> maxQueueDepths = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private SyncReport report;
+
+    /**
+     * @param synchroniser the name of the synchroniser, for the report
+     * @param metrics the metrics to pass the measurements on to
+     */
+    public SyncRecorder(String synchroniser, SyncDirection direction, SyncMetrics metrics) {
+        this.synchroniser = synchroniser;
+        this.direction = direction;
+        this.metrics = metrics != null ? metrics : NOOP;
+        for (Phase phase : Phase.values()) {
+            phaseNanos.put(phase, new AtomicLong());
+        }
+    }
+
+    public void directoryListed(String relativePath, int entries) {
+        directoriesListed.incrementAndGet();
+        entriesScanned.addAndGet(entries);
+        metrics.directoryListed(relativePath, entries);
+    }
+
+    public void entriesCompared(int count) {
+        entriesCompared.addAndGet(count);
+        metrics.entriesCompared(count);
+    }
+
+    public void transferQueued(SyncAction action) {
+        metrics.transferQueued(action);
+    }
+
+    public void fileTransferred(SyncAction action, long bytes, long nanos) {
+        filesTransferred.incrementAndGet();
+        bytesTransferred.addAndGet(bytes);
+        transferLatency.record(nanos);
+        metrics.fileTransferred(action, bytes, nanos);
+    }
+
+    public void directoryCreated(SyncAction action) {
+        directoriesCreated.incrementAndGet();
+        metrics.directoryCreated(action);
+    }
+
+    public void entryDeleted(SyncAction action, long nanos) {
+        entriesDeleted.incrementAndGet();
+        metrics.entryDeleted(action, nanos);
+    }
+
+    public void queueDepth(String queue, int depth) {
+        AtomicInteger max = maxQueueDepths.get(queue);
+        if (max == null) {
+            AtomicInteger newMax = new AtomicInteger();
+            max = maxQueueDepths.putIfAbsent(queue, newMax);
+            if (max == null) {
+                max = newMax;
+            }
+        }
+        int current = max.get();
+        while (depth > current && !max.compareAndSet(current, depth)) {
+            current = max.get();
+        }
+        metrics.queueDepth(queue, depth);
+    }
+
+    public void phaseCompleted(Phase phase, long nanos) {
+        phaseNanos.get(phase).addAndGet(nanos);
+        metrics.phaseCompleted(phase, nanos);
+    }
+
+    public void syncCompleted(SyncReport report) {
+        metrics.syncCompleted(report);
+    }
+
+    /**
+     * Ends the sync, logging its report and handing it to the metrics.
+     *
+     * @param failure what the sync failed with, or null if it succeeded
+     * @return the report of the sync
+     */
+    public synchronized SyncReport finish(Throwable failure) {
+        if (report != null) {
+            return report;
+        }
+        report = new SyncReport(this, System.nanoTime() - startNanos, failure);
+        logger.info(report);
+        try {
+            syncCompleted(report);
+        } catch (RuntimeException ex) {
+            // INFO a failing exporter must not hide the outcome of the sync
+            logger.warn("Unable to export the report of the sync", ex);
+        }
+        return report;
+    }
+
+    String getSynchroniser() {
+        return synchroniser;
+    }
+
+    SyncDirection getDirection() {
+        return direction;
+    }
+
+    long getStartTime() {
+        return startTime;
+    }
+
+    Map<Phase, Long> getPhaseMillis() {
+        Map<Phase, Long> millis = new EnumMap<Phase, Long>(Phase.class);
+        for (Map.Entry<Phase, AtomicLong> entry : phaseNanos.entrySet()) {
+            if (entry.getValue().get() > 0) {
+                millis.put(entry.getKey(), entry.getValue().get() / 1000000);
+            }
+        }
+        return Collections.unmodifiableMap(millis);
+    }
+
+    Map<String, Integer> getMaxQueueDepths() {
+        Map<String, Integer> depths = new HashMap<String, Integer>();
+        for (Map.Entry<String, AtomicInteger> entry : maxQueueDepths.entrySet()) {
+            depths.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(depths);
+    }
+}
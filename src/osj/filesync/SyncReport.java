@@ -0,0 +1,170 @@
+package osj.filesync;
+
+import java.util.Map;
+
+import osj.filesync.FileSynchroniser.SyncDirection;
+
+/**
+ * What one sync did and where its time went, as logged at the end of
+ * {@link FileSynchroniser#syncFiles} and handed to
+ * {@link SyncMetrics#syncCompleted(SyncReport)}. Counts a synchroniser
+ * is unable to measure, such as those of an external process, are zero.
+ *
+ * @author ajmas
+ *
+ */
+public class SyncReport {
+
+    private final String synchroniser;
+    private final SyncDirection direction;
+    private final long startTime;
+    private final long durationMillis;
+    private final String failure;
+
+    private final long directoriesListed;
+    private final long entriesScanned;
+    private final long entriesCompared;
+    private final long filesTransferred;
+    private final long bytesTransferred;
+    private final long directoriesCreated;
+    private final long entriesDeleted;
+
+    private final long transferLatencyMeanMicros;
+    private final long transferLatencyP50Micros;
+    private final long transferLatencyP95Micros;
+    private final long transferLatencyMaxMicros;
+
+    private final Map<SyncMetrics.Phase, Long> phaseMillis;
+    private final Map<String, Integer> maxQueueDepths;
+
+    SyncReport(SyncRecorder recorder, long durationNanos, Throwable failure) {
+        this.synchroniser = recorder.getSynchroniser();
+        this.direction = recorder.getDirection();
+        this.startTime = recorder.getStartTime();
+        this.durationMillis = durationNanos / 1000000;
+        this.failure = failure != null ? failure.toString() : null;
+        this.directoriesListed = recorder.directoriesListed.get();
+        this.entriesScanned = recorder.entriesScanned.get();
+        this.entriesCompared = recorder.entriesCompared.get();
+        this.filesTransferred = recorder.filesTransferred.get();
+        this.bytesTransferred = recorder.bytesTransferred.get();
+        this.directoriesCreated = recorder.directoriesCreated.get();
+        this.entriesDeleted = recorder.entriesDeleted.get();
+        this.transferLatencyMeanMicros = recorder.transferLatency.getMeanNanos() / 1000;
+        this.transferLatencyP50Micros = recorder.transferLatency.getPercentileNanos(50) / 1000;
+        this.transferLatencyP95Micros = recorder.transferLatency.getPercentileNanos(95) / 1000;
+        this.transferLatencyMaxMicros = recorder.transferLatency.getMaxNanos() / 1000;
+        this.phaseMillis = recorder.getPhaseMillis();
+        this.maxQueueDepths = recorder.getMaxQueueDepths();
+    }
+
+    public String getSynchroniser() {
+        return synchroniser;
+    }
+
+    public SyncDirection getDirection() {
+        return direction;
+    }
+
+    /**
+     * @return when the sync started, in milliseconds since the epoch
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public boolean isSuccessful() {
+        return failure == null;
+    }
+
+    /**
+     * @return the exception the sync failed with, as text, or null
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    public long getDirectoriesListed() {
+        return directoriesListed;
+    }
+
+    /**
+     * @return the number of source entries listed
+     */
+    public long getEntriesScanned() {
+        return entriesScanned;
+    }
+
+    public long getEntriesCompared() {
+        return entriesCompared;
+    }
+
+    public long getFilesTransferred() {
+        return filesTransferred;
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    public long getDirectoriesCreated() {
+        return directoriesCreated;
+    }
+
+    public long getEntriesDeleted() {
+        return entriesDeleted;
+    }
+
+    public long getTransferLatencyMeanMicros() {
+        return transferLatencyMeanMicros;
+    }
+
+    public long getTransferLatencyP50Micros() {
+        return transferLatencyP50Micros;
+    }
+
+    public long getTransferLatencyP95Micros() {
+        return transferLatencyP95Micros;
+    }
+
+    public long getTransferLatencyMaxMicros() {
+        return transferLatencyMaxMicros;
+    }
+
+    /**
+     * @return the wall time of each phase which was measured
+     */
+    public Map<SyncMetrics.Phase, Long> getPhaseMillis() {
+        return phaseMillis;
+    }
+
+    /**
+     * @return the most items seen waiting in each queue
+     */
+    public Map<String, Integer> getMaxQueueDepths() {
+        return maxQueueDepths;
+    }
+
+    /**
+     * @return the bytes transferred per second over the whole sync
+     */
+    public double getThroughput() {
+        return durationMillis > 0 ? bytesTransferred * 1000.0 / durationMillis : 0;
+    }
+
+    public String toString() {
+        return "SyncReport synchroniser=" + synchroniser + " direction=" + direction
+                + " outcome=" + (failure == null ? "success" : "failure") + " durationMs=" + durationMillis
+                + " directoriesListed=" + directoriesListed + " entriesScanned=" + entriesScanned
+                + " entriesCompared=" + entriesCompared + " filesTransferred=" + filesTransferred
+                + " bytesTransferred=" + bytesTransferred + " directoriesCreated=" + directoriesCreated
+                + " entriesDeleted=" + entriesDeleted + " latencyMeanUs=" + transferLatencyMeanMicros
+                + " latencyP50Us=" + transferLatencyP50Micros + " latencyP95Us=" + transferLatencyP95Micros
+                + " latencyMaxUs=" + transferLatencyMaxMicros + " phasesMs=" + phaseMillis
+                + " maxQueueDepths=" + maxQueueDepths + (failure != null ? " failure=" + failure : "");
+    }
+}
@@ -0,0 +1,257 @@
+package osj.filesync;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps a destination in sync continuously, by watching the source folder
+ * for changes rather than walking it on a schedule.
+ *
+ * Every folder of the source tree is registered with a {@link WatchService}.
+ * Events are collected per path until the tree has been quiet for the
+ * debounce time, or until the oldest pending event is older than the
+ * maximum delay, and the changed paths are then synced in one call, through
+ * the relativePaths argument of {@link FileSynchroniser#syncFiles}. If the
+ * watch service drops events, the next sync covers the whole tree.
+ *
+ * The source side must be on the local file system: the local endpoint
+ * when syncing to the remote side, and the remote endpoint, which must then
+ * be a 'file' URL, when syncing to the local side.
+ *
+ * @author ajmas
+ *
+ */
+public class SyncWatcher implements Closeable {
+
+    static final long DEFAULT_DEBOUNCE_MS = 200;
+    static final long DEFAULT_MAX_DELAY_MS = 2000;
+    static final long RETRY_DELAY_MS = 5000;
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final FileSynchroniser synchroniser;
+    private final FileSyncConfiguration configuration;
+    private final FileSynchroniser.SyncDirection syncDirection;
+    private final PathFilter pathFilter;
+    private final Path root;
+
+    private long debounceMs = DEFAULT_DEBOUNCE_MS;
+    private long maxDelayMs = DEFAULT_MAX_DELAY_MS;
+
+    private WatchService watchService;
+    private final Map<WatchKey, Path> watchedFolders = new HashMap<WatchKey, Path>();
+    private Thread thread;
+    private volatile boolean closed;
+
+    // INFO pending changes, only touched by the watch thread
+    private final TreeSet<String> dirtyPaths = new TreeSet<String>();
+    private boolean rescanNeeded;
+    private long firstEventTime;
+    private long lastEventTime;
+
+    public SyncWatcher(FileSynchroniser synchroniser, FileSyncConfiguration configuration,
+            FileSynchroniser.SyncDirection syncDirection, PathFilter pathFilter) {
+        if (syncDirection == FileSynchroniser.SyncDirection.TWO_WAY) {
+            throw new RuntimeException("two way sync can not be watched");
+        }
+        this.synchroniser = synchroniser;
+        this.configuration = configuration;
+        this.syncDirection = syncDirection;
+        this.pathFilter = pathFilter;
+
+        URI sourceURI = syncDirection == FileSynchroniser.SyncDirection.TO_REMOTE
+                ? configuration.getLocalConfiguration().getURI()
+                : configuration.getRemoteConfiguration().getURI();
+        if (!"file".equalsIgnoreCase(sourceURI.getScheme())) {
+            throw new RuntimeException("Only sources of type 'file' can be watched, specified scheme was: "
+                    + sourceURI.getScheme());
+        }
+        this.root = new File(sourceURI.getPath()).toPath();
+    }
+
+    /**
+     * @param debounceMs how long the tree must be quiet before the pending
+     *        changes are synced
+     */
+    public void setDebounceTime(long debounceMs) {
+        this.debounceMs = debounceMs;
+    }
+
+    /**
+     * @param maxDelayMs the longest a change waits for the tree to be quiet
+     */
+    public void setMaxDelay(long maxDelayMs) {
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Registers the watches, runs a full sync, and then syncs every change
+     * on a background thread until closed.
+     */
+    public void start() throws FileSyncException, IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        registerTree(root);
+        synchroniser.syncFiles(configuration, syncDirection, null, false, pathFilter);
+
+        thread = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "sync-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        if (watchService != null) {
+            watchService.close();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void watch() {
+        try {
+            while (!closed) {
+                WatchKey key = pollEvents();
+                if (key != null) {
+                    processEvents(key);
+                } else if (isDue(System.currentTimeMillis())) {
+                    syncPending(System.currentTimeMillis());
+                }
+            }
+        } catch (ClosedWatchServiceException ex) {
+            // INFO closed
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private WatchKey pollEvents() throws InterruptedException {
+        if (dirtyPaths.isEmpty() && !rescanNeeded) {
+            return watchService.take();
+        }
+        long now = System.currentTimeMillis();
+        long wait = Math.min(lastEventTime + debounceMs, firstEventTime + maxDelayMs) - now;
+        return wait > 0 ? watchService.poll(wait, TimeUnit.MILLISECONDS) : null;
+    }
+
+    /**
+     * @return whether the pending changes are to be synced at the given time
+     */
+    boolean isDue(long now) {
+        if (dirtyPaths.isEmpty() && !rescanNeeded) {
+            return false;
+        }
+        return now - lastEventTime >= debounceMs || now - firstEventTime >= maxDelayMs;
+    }
+
+    private void processEvents(WatchKey key) {
+        long now = System.currentTimeMillis();
+        Path folder = watchedFolders.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                logger.debug("Watch events were lost, the whole tree will be synced");
+                markRescan(now);
+                continue;
+            }
+            Path path = folder.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY && Files.isDirectory(path)) {
+                // INFO a folder is modified when its children change, which have events of their own
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                try {
+                    registerTree(path);
+                } catch (IOException ex) {
+                    logger.warn("Unable to watch " + path + ", the whole tree will be synced", ex);
+                    markRescan(now);
+                }
+            }
+            markDirty(root.relativize(path).toString().replace(File.separatorChar, '/'), now);
+        }
+        if (!key.reset()) {
+            watchedFolders.remove(key);
+        }
+    }
+
+    /**
+     * Records a change to the path, seen at the given time.
+     */
+    void markDirty(String relativePath, long now) {
+        touch(now);
+        dirtyPaths.add(relativePath);
+    }
+
+    /**
+     * Records that events were lost at the given time, so the next sync
+     * covers the whole tree.
+     */
+    void markRescan(long now) {
+        touch(now);
+        rescanNeeded = true;
+    }
+
+    private void touch(long now) {
+        if (dirtyPaths.isEmpty() && !rescanNeeded) {
+            firstEventTime = now;
+        }
+        lastEventTime = now;
+    }
+
+    /**
+     * Syncs the pending changes, or if that fails keeps them to try again
+     * after {@link #RETRY_DELAY_MS} from the given time.
+     */
+    void syncPending(long now) {
+        List<String> relativePaths = rescanNeeded ? null : SyncPipeline.coalesce(dirtyPaths);
+        logger.debug("Syncing " + (relativePaths == null ? "the whole tree" : relativePaths.size() + " changed paths"));
+        try {
+            synchroniser.syncFiles(configuration, syncDirection, relativePaths, false, pathFilter);
+            dirtyPaths.clear();
+            rescanNeeded = false;
+        } catch (FileSyncException | IOException | RuntimeException ex) {
+            logger.error("Sync of the changed paths failed, retrying in " + RETRY_DELAY_MS + " ms", ex);
+            // INFO keep the pending changes, and wait before trying again
+            firstEventTime = now + RETRY_DELAY_MS - maxDelayMs;
+            lastEventTime = now + RETRY_DELAY_MS - debounceMs;
+        }
+    }
+
+    private void registerTree(Path folder) throws IOException {
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedFolders.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,195 @@
+package osj.filesync;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Uploads small files in batches, packed into a tar stream which is
+ * unpacked by 'tar' on the ssh host, over a single exec channel, when the
+ * remote endpoint property 'ssh.batch' is 'true'. This saves the round
+ * trips of opening, writing and closing each file over SFTP, which is
+ * most of the cost of sending many tiny files.
+ *
+ * Files of up to 'ssh.batch.maxFileSize' bytes, 64 KiB by default, are
+ * batched; a batch holds up to 'ssh.batch.maxFiles' files, 1000 by
+ * default, and 'ssh.batch.maxBytes' bytes, 8 MiB by default. Files are
+ * only sent one at a time, through the given transfer, when they are not
+ * batched, or when the batch they were in failed for them; the names tar
+ * reports on its error output are retried, or the whole batch if it names
+ * none of them. Batching is turned off for the rest of the sync if the
+ * host does not allow exec channels.
+ *
+ * @author ajmas
+ *
+ */
+public class TarBatchUploadTransfer implements BatchTransfer {
+
+    public static final String BATCH_PROPERTY = "ssh.batch";
+    public static final String MAX_FILE_SIZE_PROPERTY = "ssh.batch.maxFileSize";
+    public static final String MAX_FILES_PROPERTY = "ssh.batch.maxFiles";
+    public static final String MAX_BYTES_PROPERTY = "ssh.batch.maxBytes";
+
+    static final long DEFAULT_MAX_FILE_SIZE = 64L * 1024;
+    static final int DEFAULT_MAX_FILES = 1000;
+    static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final LocalSyncEndpoint source;
+    private final SftpSyncEndpoint destination;
+    private final FileTransfer otherTransfer;
+
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final long maxBytes;
+
+    private volatile boolean disabled;
+
+    /**
+     * @param otherTransfer the transfer of the files which are not batched
+     */
+    public TarBatchUploadTransfer(LocalSyncEndpoint source, SftpSyncEndpoint destination, Properties properties,
+            FileTransfer otherTransfer) {
+        this.source = source;
+        this.destination = destination;
+        this.otherTransfer = otherTransfer;
+        String value = properties.getProperty(MAX_FILE_SIZE_PROPERTY);
+        this.maxFileSize = value != null ? Long.parseLong(value.trim()) : DEFAULT_MAX_FILE_SIZE;
+        value = properties.getProperty(MAX_FILES_PROPERTY);
+        this.maxFiles = value != null ? Integer.parseInt(value.trim()) : DEFAULT_MAX_FILES;
+        value = properties.getProperty(MAX_BYTES_PROPERTY);
+        this.maxBytes = value != null ? Long.parseLong(value.trim()) : DEFAULT_MAX_BYTES;
+    }
+
+    /**
+     * @return whether the endpoint properties ask for small files to be
+     *         batched
+     */
+    public static boolean isEnabled(Properties properties) {
+        return Boolean.parseBoolean(properties.getProperty(BATCH_PROPERTY, "false").trim());
+    }
+
+    public boolean accepts(SyncAction action) {
+        FileEntry sourceEntry = action.getSourceEntry();
+        return !disabled && !sourceEntry.isDirectory() && sourceEntry.getSize() <= maxFileSize
+                && TarWriter.fits(action.getRelativePath());
+    }
+
+    public int getMaxBatchFiles() {
+        return maxFiles;
+    }
+
+    public long getMaxBatchBytes() {
+        return maxBytes;
+    }
+
+    public void transfer(SyncAction action) throws IOException {
+        otherTransfer.transfer(action);
+    }
+
+    public Map<String, IOException> transfer(List<SyncAction> batch) throws IOException {
+        Map<String, IOException> failures = new LinkedHashMap<String, IOException>();
+        List<SyncAction> retries = batch;
+        if (batch.size() > 1) {
+            retries = send(batch);
+        }
+        for (SyncAction action : retries) {
+            try {
+                otherTransfer.transfer(action);
+            } catch (IOException ex) {
+                failures.put(action.getRelativePath(), ex);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Sends the files as one tar stream.
+     *
+     * @return the files to send again one at a time
+     */
+    private List<SyncAction> send(List<SyncAction> batch) throws IOException {
+        for (SyncAction action : batch) {
+            destination.invalidate(action.getRelativePath());
+        }
+
+        String command = "cd " + RemoteCommand.quote(destination.getBasePath()) + " && tar -x --no-same-owner -f -";
+        RemoteCommand remoteCommand;
+        try {
+            remoteCommand = new RemoteCommand(destination.getChannelPool().getSession(), command);
+        } catch (IOException ex) {
+            logger.warn("Unable to batch small files, sending them one at a time: " + ex.getMessage());
+            disabled = true;
+            return batch;
+        }
+
+        TransferThrottle throttle = destination.getThrottle();
+        int exitStatus;
+        IOException writeFailure = null;
+        try {
+            if (throttle != null) {
+                throttle.beginFile();
+            }
+            try {
+                if (throttle != null && batch.size() > 1) {
+                    throttle.acquireFiles(batch.size() - 1);
+                }
+                OutputStream out = remoteCommand.getOutputStream();
+                if (throttle != null) {
+                    out = throttle.throttle(out);
+                }
+                try (OutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE)) {
+                    TarWriter tar = new TarWriter(buffered);
+                    for (SyncAction action : batch) {
+                        byte[] content = Files.readAllBytes(source.resolve(action.getRelativePath()));
+                        tar.writeFile(action.getRelativePath(), content, action.getSourceEntry().getLastModified());
+                    }
+                    tar.finish();
+                } catch (IOException ex) {
+                    // INFO tar may have stopped reading, its error output tells which files failed
+                    writeFailure = ex;
+                }
+            } finally {
+                if (throttle != null) {
+                    throttle.endFile();
+                }
+            }
+            exitStatus = remoteCommand.waitFor(false);
+        } finally {
+            remoteCommand.close();
+        }
+
+        if (exitStatus == 0 && writeFailure == null) {
+            return Collections.emptyList();
+        }
+
+        String errorOutput = remoteCommand.getErrorOutput();
+        List<SyncAction> failed = new ArrayList<SyncAction>();
+        if (writeFailure == null) {
+            for (SyncAction action : batch) {
+                if (errorOutput.contains("tar: " + action.getRelativePath() + ":")) {
+                    failed.add(action);
+                }
+            }
+        }
+        if (failed.isEmpty()) {
+            failed = batch;
+        }
+        logger.warn("A batch of " + batch.size() + " files failed for " + failed.size()
+                + " of them, sending those one at a time: "
+                + (writeFailure != null ? writeFailure.getMessage() : "exit status " + exitStatus + ": " + errorOutput));
+        return failed;
+    }
+}
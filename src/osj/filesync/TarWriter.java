@@ -0,0 +1,112 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Writes regular files to a stream in the POSIX ustar format, as read by
+ * 'tar -x'. Only what a sync needs is written: the path, the size, the
+ * modification time and a 0644 mode.
+ *
+ * @author ajmas
+ *
+ */
+class TarWriter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BLOCK_SIZE = 512;
+    private static final int NAME_LENGTH = 100;
+    private static final int PREFIX_LENGTH = 155;
+
+    private final OutputStream out;
+
+    TarWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * @return whether the path fits in a ustar header, split between the
+     *         name and prefix fields if needed
+     */
+    static boolean fits(String relativePath) {
+        return split(relativePath.getBytes(UTF8)) >= 0;
+    }
+
+    /**
+     * @return the index of the '/' at which the path is split into prefix
+     *         and name, 0 if it need not be split, or -1 if it cannot be
+     */
+    private static int split(byte[] path) {
+        if (path.length <= NAME_LENGTH) {
+            return 0;
+        }
+        for (int i = Math.max(1, path.length - NAME_LENGTH - 1); i <= PREFIX_LENGTH && i < path.length; i++) {
+            if (path[i] == '/') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    void writeFile(String relativePath, byte[] content, long lastModified) throws IOException {
+        byte[] path = relativePath.getBytes(UTF8);
+        int split = split(path);
+        if (split < 0) {
+            throw new IOException("The path is too long for a tar header: " + relativePath);
+        }
+
+        byte[] header = new byte[BLOCK_SIZE];
+        if (split == 0) {
+            System.arraycopy(path, 0, header, 0, path.length);
+        } else {
+            System.arraycopy(path, split + 1, header, 0, path.length - split - 1);
+            System.arraycopy(path, 0, header, 345, split);
+        }
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, content.length);
+        octal(header, 136, 12, lastModified / 1000);
+        header[156] = '0';
+        System.arraycopy("ustar\u000000".getBytes(UTF8), 0, header, 257, 8);
+
+        // INFO the checksum is computed with its own field filled with spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        octal(header, 148, 7, checksum);
+
+        out.write(header);
+        out.write(content);
+        int padding = (BLOCK_SIZE - content.length % BLOCK_SIZE) % BLOCK_SIZE;
+        out.write(new byte[padding]);
+    }
+
+    /**
+     * Ends the archive with two empty blocks.
+     */
+    void finish() throws IOException {
+        out.write(new byte[2 * BLOCK_SIZE]);
+        out.flush();
+    }
+
+    /**
+     * Writes the value as zero padded octal digits followed by a NUL.
+     */
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int width = length - 1;
+        if (digits.length() > width) {
+            throw new IllegalArgumentException("Value too large for a tar header field: " + value);
+        }
+        for (int i = 0; i < width; i++) {
+            int index = i - (width - digits.length());
+            header[offset + i] = (byte) (index < 0 ? '0' : digits.charAt(index));
+        }
+        header[offset + width] = 0;
+    }
+}
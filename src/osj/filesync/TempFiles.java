@@ -0,0 +1,65 @@
+package osj.filesync;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Names the temporary files a file is written to before being renamed
+ * into place: hidden, next to the file, as '.name.&lt;hex&gt;.part'.
+ *
+ * A temporary file left by a sync which crashed would otherwise be taken
+ * for user data by the next one, so files named this way are left out of
+ * every scan, see {@link ParallelTreeWalker#accept}. The older
+ * '.name&lt;digits&gt;.part' names, from Files.createTempFile, are
+ * recognised as well.
+ *
+ * @author ajmas
+ *
+ */
+final class TempFiles {
+
+    private static final String SUFFIX = ".part";
+    private static final Pattern TEMP_NAME = Pattern.compile("\\..+?\\.?[0-9a-f]{6,}\\.part");
+    private static final Random RANDOM = new Random();
+
+    private TempFiles() {
+    }
+
+    /**
+     * @return a hidden, unique name next to the file
+     */
+    static String tempPathOf(String relativePath) {
+        String parent = SyncIndex.parentOf(relativePath);
+        String name = tempNameOf(SyncIndex.nameOf(relativePath));
+        return parent.isEmpty() ? name : parent + "/" + name;
+    }
+
+    /**
+     * Creates an empty temporary file next to the file, with the default
+     * permissions of a new file.
+     */
+    static Path createTempFile(Path file) throws IOException {
+        while (true) {
+            try {
+                return Files.createFile(file.resolveSibling(tempNameOf(file.getFileName().toString())));
+            } catch (FileAlreadyExistsException ex) {
+                // INFO tried again with another name
+            }
+        }
+    }
+
+    /**
+     * @return whether the path is named as a temporary file
+     */
+    static boolean isTempPath(String relativePath) {
+        return TEMP_NAME.matcher(SyncIndex.nameOf(relativePath)).matches();
+    }
+
+    private static String tempNameOf(String name) {
+        return "." + name + "." + Long.toHexString(RANDOM.nextLong() | Long.MIN_VALUE) + SUFFIX;
+    }
+}
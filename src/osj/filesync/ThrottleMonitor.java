@@ -0,0 +1,43 @@
+package osj.filesync;
+
+import java.io.InterruptedIOException;
+
+import com.jcraft.jsch.SftpProgressMonitor;
+
+/**
+ * Throttles an SFTP transfer on the bytes JSch reports as sent or
+ * received. An interrupted wait cancels the transfer.
+ *
+ * @author ajmas
+ *
+ */
+class ThrottleMonitor implements SftpProgressMonitor {
+
+    private final TransferThrottle throttle;
+
+    private ThrottleMonitor(TransferThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @return the monitor, or null if the transfers are not throttled
+     */
+    static SftpProgressMonitor of(TransferThrottle throttle) {
+        return throttle != null ? new ThrottleMonitor(throttle) : null;
+    }
+
+    public void init(int op, String src, String dest, long max) {
+    }
+
+    public boolean count(long count) {
+        try {
+            throttle.acquireBytes(count);
+            return true;
+        } catch (InterruptedIOException ex) {
+            return false;
+        }
+    }
+
+    public void end() {
+    }
+}
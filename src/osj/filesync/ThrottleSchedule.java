@@ -0,0 +1,92 @@
+package osj.filesync;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Transfer limits which depend on the time of day, such as a bandwidth
+ * cap during business hours and none overnight, see
+ * {@link TransferThrottle#setSchedule(ThrottleSchedule)}.
+ *
+ * Each window runs from its start time to its end time, given as 'HH:mm'
+ * in the local time zone, on the given days of the week or every day. A
+ * window whose end is before its start runs over midnight. The first
+ * window which covers the current time applies; outside all of them, the
+ * throttle's own limits apply.
+ *
+ * @author ajmas
+ *
+ */
+public class ThrottleSchedule {
+
+    private final List<Window> windows = new ArrayList<Window>();
+
+    /**
+     * @param limits the limits during the window, each 0 or less for none
+     * @param daysOfWeek the days, as Calendar.MONDAY and so on, or none for
+     *        every day
+     */
+    public synchronized ThrottleSchedule addWindow(String start, String end, long bytesPerSecond,
+            long filesPerSecond, int maxOpenFiles, int... daysOfWeek) {
+        Set<Integer> days = new HashSet<Integer>();
+        for (int day : daysOfWeek) {
+            days.add(day);
+        }
+        windows.add(new Window(parseMinute(start), parseMinute(end), days,
+                new long[] { bytesPerSecond, filesPerSecond, maxOpenFiles }));
+        return this;
+    }
+
+    /**
+     * @return the bytes per second, files per second and open files limits
+     *         at the time, or null if no window covers it
+     */
+    synchronized long[] getLimits(Calendar time) {
+        int minute = time.get(Calendar.HOUR_OF_DAY) * 60 + time.get(Calendar.MINUTE);
+        int day = time.get(Calendar.DAY_OF_WEEK);
+        int previousDay = day == Calendar.SUNDAY ? Calendar.SATURDAY : day - 1;
+        for (Window window : windows) {
+            if (window.start <= window.end) {
+                if (minute >= window.start && minute < window.end && window.isOn(day)) {
+                    return window.limits;
+                }
+            } else if ((minute >= window.start && window.isOn(day))
+                    || (minute < window.end && window.isOn(previousDay))) {
+                // INFO past midnight, the window belongs to the day it started on
+                return window.limits;
+            }
+        }
+        return null;
+    }
+
+    private static int parseMinute(String time) {
+        String[] parts = time.trim().split(":");
+        int hour = Integer.parseInt(parts[0]);
+        int minute = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+        if (parts.length > 2 || hour < 0 || hour > 24 || minute < 0 || minute > 59 || hour * 60 + minute > 24 * 60) {
+            throw new IllegalArgumentException("Invalid time of day, expected HH:mm: " + time);
+        }
+        return hour * 60 + minute;
+    }
+
+    private static class Window {
+        final int start;
+        final int end;
+        final Set<Integer> days;
+        final long[] limits;
+
+        Window(int start, int end, Set<Integer> days, long[] limits) {
+            this.start = start;
+            this.end = end;
+            this.days = days;
+            this.limits = limits;
+        }
+
+        boolean isOn(int day) {
+            return days.isEmpty() || days.contains(day);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package osj.filesync;
+
+import java.io.IOException;
+
+/**
+ * Holds each transfer to the files per second and open files limits of a
+ * {@link TransferThrottle}. The bytes are throttled by the transfers
+ * themselves, as they are sent.
+ *
+ * @author ajmas
+ *
+ */
+public class ThrottledTransfer implements FileTransfer {
+
+    private final FileTransfer transfer;
+    private final TransferThrottle throttle;
+
+    public ThrottledTransfer(FileTransfer transfer, TransferThrottle throttle) {
+        this.transfer = transfer;
+        this.throttle = throttle;
+    }
+
+    public void transfer(SyncAction action) throws IOException {
+        throttle.beginFile();
+        try {
+            transfer.transfer(action);
+        } finally {
+            throttle.endFile();
+        }
+    }
+}
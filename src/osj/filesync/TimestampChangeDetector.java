@@ -0,0 +1,55 @@
+package osj.filesync;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Change detector comparing the modification times, and optionally the
+ * sizes, of the files. Times are compared at the given resolution, so
+ * that a file copied to a side which keeps whole seconds is not taken to
+ * be older than its source.
+ *
+ * @author ajmas
+ *
+ */
+public class TimestampChangeDetector implements ChangeDetector {
+
+    private final long timestampResolution;
+    private final boolean compareSizes;
+
+    /**
+     * @param timestampResolution the resolution of the modification times, in ms
+     * @param compareSizes whether files with different sizes or modification
+     *        times are copied, rather than only files which are newer on
+     *        the source
+     */
+    public TimestampChangeDetector(long timestampResolution, boolean compareSizes) {
+        this.timestampResolution = timestampResolution;
+        this.compareSizes = compareSizes;
+    }
+
+    public Set<String> findChanged(Collection<FileEntry> sourceFiles, Map<String, FileEntry> destinationFiles) {
+        Set<String> changed = new HashSet<String>();
+        for (FileEntry sourceEntry : sourceFiles) {
+            if (isChanged(sourceEntry, destinationFiles.get(sourceEntry.getName()))) {
+                changed.add(sourceEntry.getName());
+            }
+        }
+        return changed;
+    }
+
+    boolean isChanged(FileEntry sourceEntry, FileEntry destinationEntry) {
+        long sourceTime = sourceEntry.getLastModified() / timestampResolution;
+        long destinationTime = destinationEntry.getLastModified() / timestampResolution;
+        if (compareSizes) {
+            return sourceEntry.getSize() != destinationEntry.getSize() || sourceTime != destinationTime;
+        }
+        return sourceTime > destinationTime;
+    }
+
+    public byte[] getSourceHash(FileEntry sourceEntry) {
+        return null;
+    }
+}
@@ -0,0 +1,75 @@
+package osj.filesync;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which permits, bytes or files, are taken, allowing
+ * bursts of up to a second's worth. A caller which takes more than is
+ * left goes into debt and sleeps until the debt would be paid off, so
+ * that concurrent callers are served in turn and the rate holds however
+ * many permits each of them takes at once.
+ *
+ * The rate can be changed at any time, and applies to the callers which
+ * come next. A rate of 0 or less means no limit.
+ *
+ * @author ajmas
+ *
+ */
+class TokenBucket {
+
+    private long rate;
+    private double tokens;
+    private long lastNanos = System.nanoTime();
+
+    TokenBucket(long rate) {
+        setRate(rate);
+    }
+
+    synchronized long getRate() {
+        return rate;
+    }
+
+    synchronized void setRate(long rate) {
+        if (rate == this.rate) {
+            return;
+        }
+        refill(System.nanoTime());
+        this.rate = rate;
+        tokens = rate > 0 ? Math.min(tokens, rate) : 0;
+    }
+
+    /**
+     * Takes the permits, sleeping as long as the rate requires.
+     */
+    void acquire(long permits) throws InterruptedIOException {
+        long waitNanos = reserve(permits);
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    /**
+     * @return how long the caller must wait before using the permits
+     */
+    synchronized long reserve(long permits) {
+        if (rate <= 0) {
+            return 0;
+        }
+        refill(System.nanoTime());
+        tokens -= permits;
+        return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+    }
+
+    private void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(rate, tokens + (now - lastNanos) * (double) rate / 1e9);
+        }
+        lastNanos = now;
+    }
+}
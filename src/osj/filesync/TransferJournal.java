@@ -0,0 +1,215 @@
+package osj.filesync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A local record of the progress of the uploads of a sync, so that a sync
+ * which dies can be resumed where it stopped, see
+ * {@link ResumableUploadTransfer}. It holds, for each file, the version of
+ * the source being sent, by size and modification time, and either the
+ * offset up to which it has been sent or the fact that it was completed.
+ *
+ * The journal is an append only log of fixed format records, flushed to
+ * disk at every checkpoint, so that at most the last record is lost in a
+ * crash. It is compacted when opened, and deleted once a sync completes.
+ *
+ * @author ajmas
+ *
+ */
+public class TransferJournal {
+
+    private static final int MAGIC = 0x4246534a; // "BFSJ"
+    private static final short VERSION = 1;
+
+    private static final int PARTIAL = 1;
+    private static final int COMPLETED = 2;
+
+    private static final Logger logger = Logger.getLogger(TransferJournal.class);
+
+    /**
+     * The progress recorded for one file.
+     */
+    public static class Record {
+        private final long size;
+        private final long lastModified;
+        private final long offset;
+        private final boolean completed;
+
+        Record(long size, long lastModified, long offset, boolean completed) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.offset = offset;
+            this.completed = completed;
+        }
+
+        /**
+         * @return whether the record is for this version of the source
+         */
+        public boolean matches(FileEntry sourceEntry) {
+            return size == sourceEntry.getSize() && lastModified == sourceEntry.getLastModified();
+        }
+
+        /**
+         * @return the number of bytes known to have been sent
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public boolean isCompleted() {
+            return completed;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Record> records;
+    private DataOutputStream out;
+    private FileOutputStream fileOut;
+
+    private TransferJournal(File file, Map<String, Record> records) {
+        this.file = file;
+        this.records = records;
+    }
+
+    /**
+     * Opens the journal, reading what it holds from a previous sync, if
+     * anything.
+     */
+    public static TransferJournal open(File file) throws IOException {
+        Map<String, Record> records = new HashMap<String, Record>();
+        if (file.exists()) {
+            read(file, records);
+        }
+        TransferJournal journal = new TransferJournal(file, records);
+        journal.compact();
+        return journal;
+    }
+
+    private static void read(File file, Map<String, Record> records) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                logger.warn("Ignoring transfer journal in an unknown format: " + file);
+                return;
+            }
+            while (true) {
+                int type = in.readByte();
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                long offset = in.readLong();
+                records.put(path, new Record(size, lastModified, offset, type == COMPLETED));
+            }
+        } catch (EOFException ex) {
+            // INFO the end of the log, possibly in the middle of a record cut short by a crash
+        }
+    }
+
+    /**
+     * Rewrites the journal with one record per file, and opens it for
+     * appending.
+     */
+    private synchronized void compact() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        File tempFile = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try (DataOutputStream temp = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 65536))) {
+                temp.writeInt(MAGIC);
+                temp.writeShort(VERSION);
+                for (Map.Entry<String, Record> record : records.entrySet()) {
+                    Record value = record.getValue();
+                    writeRecord(temp, value.completed ? COMPLETED : PARTIAL, record.getKey(), value.size,
+                            value.lastModified, value.offset);
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+        fileOut = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut, 4096));
+    }
+
+    /**
+     * @return what is recorded for the path, or null
+     */
+    public synchronized Record getRecord(String relativePath) {
+        return records.get(relativePath);
+    }
+
+    /**
+     * @return whether this version of the source file was completely sent
+     */
+    public synchronized boolean isCompleted(FileEntry sourceEntry) {
+        Record record = records.get(sourceEntry.getRelativePath());
+        return record != null && record.completed && record.matches(sourceEntry);
+    }
+
+    /**
+     * Records that the first bytes of the source file have been sent.
+     */
+    public void checkpoint(FileEntry sourceEntry, long offset) throws IOException {
+        append(PARTIAL, sourceEntry, offset);
+    }
+
+    /**
+     * Records that the whole source file has been sent.
+     */
+    public void completed(FileEntry sourceEntry) throws IOException {
+        append(COMPLETED, sourceEntry, sourceEntry.getSize());
+    }
+
+    private synchronized void append(int type, FileEntry sourceEntry, long offset) throws IOException {
+        if (out == null) {
+            throw new IOException("The transfer journal is closed: " + file);
+        }
+        records.put(sourceEntry.getRelativePath(), new Record(sourceEntry.getSize(), sourceEntry.getLastModified(),
+                offset, type == COMPLETED));
+        writeRecord(out, type, sourceEntry.getRelativePath(), sourceEntry.getSize(), sourceEntry.getLastModified(),
+                offset);
+        out.flush();
+        fileOut.getFD().sync();
+    }
+
+    private static void writeRecord(DataOutputStream out, int type, String path, long size, long lastModified,
+            long offset) throws IOException {
+        out.writeByte(type);
+        out.writeUTF(path);
+        out.writeLong(size);
+        out.writeLong(lastModified);
+        out.writeLong(offset);
+    }
+
+    /**
+     * Closes the journal, keeping it for the next sync.
+     */
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Closes and deletes the journal, once the sync it was for completed.
+     */
+    public synchronized void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file.toPath());
+        records.clear();
+    }
+}
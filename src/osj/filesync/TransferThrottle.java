@@ -0,0 +1,219 @@
+package osj.filesync;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+
+/**
+ * Limits the bytes per second, the files per second and the number of
+ * files open at once of the transfers of a sync, so that it does not take
+ * all the disk or network capacity from the services sharing them. Set on
+ * the configuration with {@link FileSyncConfiguration#setThrottle}.
+ *
+ * The byte and file rates are enforced by token buckets which allow
+ * bursts of up to a second's worth. The limits can be changed while a
+ * sync runs, and apply to the transfers from then on; the same throttle
+ * can be shared by several syncs to cap them together. A
+ * {@link ThrottleSchedule} sets other limits during given hours, and is
+ * checked every second. A limit of 0 or less means no limit, which is the
+ * default.
+ *
+ * @author ajmas
+ *
+ */
+public class TransferThrottle {
+
+    private static final long SCHEDULE_CHECK_MILLIS = 1000;
+
+    private final TokenBucket bytes = new TokenBucket(0);
+    private final TokenBucket files = new TokenBucket(0);
+
+    private long bytesPerSecond;
+    private long filesPerSecond;
+    private int maxOpenFiles;
+    private ThrottleSchedule schedule;
+    private volatile long scheduleCheckedMillis;
+
+    private int openFiles;
+    private int openFilesLimit;
+
+    public TransferThrottle() {
+    }
+
+    public TransferThrottle(long bytesPerSecond, long filesPerSecond, int maxOpenFiles) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.filesPerSecond = filesPerSecond;
+        this.maxOpenFiles = maxOpenFiles;
+        apply();
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        apply();
+    }
+
+    public synchronized long getFilesPerSecond() {
+        return filesPerSecond;
+    }
+
+    public synchronized void setFilesPerSecond(long filesPerSecond) {
+        this.filesPerSecond = filesPerSecond;
+        apply();
+    }
+
+    /**
+     * @return the number of files being transferred at once, over all the
+     *         syncs sharing the throttle
+     */
+    public synchronized int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    public synchronized void setMaxOpenFiles(int maxOpenFiles) {
+        this.maxOpenFiles = maxOpenFiles;
+        apply();
+    }
+
+    public synchronized ThrottleSchedule getSchedule() {
+        return schedule;
+    }
+
+    /**
+     * @param schedule the limits by time of day, or null to always apply
+     *        the limits of the throttle
+     */
+    public synchronized void setSchedule(ThrottleSchedule schedule) {
+        this.schedule = schedule;
+        apply();
+    }
+
+    /**
+     * @return the bytes per second limit in force now, taking the schedule
+     *         into account
+     */
+    public long getCurrentBytesPerSecond() {
+        checkSchedule();
+        return bytes.getRate();
+    }
+
+    /**
+     * Works out the limits in force from the schedule, or the throttle's
+     * own limits outside its windows.
+     */
+    private synchronized void apply() {
+        long[] limits = schedule != null ? schedule.getLimits(Calendar.getInstance()) : null;
+        bytes.setRate(limits != null ? limits[0] : bytesPerSecond);
+        files.setRate(limits != null ? limits[1] : filesPerSecond);
+        openFilesLimit = (int) (limits != null ? limits[2] : maxOpenFiles);
+        scheduleCheckedMillis = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    private void checkSchedule() {
+        if (System.currentTimeMillis() - scheduleCheckedMillis >= SCHEDULE_CHECK_MILLIS) {
+            synchronized (this) {
+                if (schedule != null) {
+                    apply();
+                } else {
+                    scheduleCheckedMillis = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the file can be opened, to be matched by a call to
+     * {@link #endFile()}.
+     */
+    public void beginFile() throws InterruptedIOException {
+        checkSchedule();
+        synchronized (this) {
+            while (openFilesLimit > 0 && openFiles >= openFilesLimit) {
+                try {
+                    // INFO woken by endFile, or by a new limit
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to open a file");
+                }
+            }
+            openFiles++;
+        }
+        try {
+            files.acquire(1);
+        } catch (InterruptedIOException ex) {
+            endFile();
+            throw ex;
+        }
+    }
+
+    public synchronized void endFile() {
+        openFiles--;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the files can be sent, for files sent together under a
+     * single {@link #beginFile()}, which counts as one of them.
+     */
+    void acquireFiles(int count) throws InterruptedIOException {
+        checkSchedule();
+        files.acquire(count);
+    }
+
+    /**
+     * Waits until the bytes can be sent.
+     */
+    public void acquireBytes(long count) throws InterruptedIOException {
+        checkSchedule();
+        bytes.acquire(count);
+    }
+
+    /**
+     * @return the stream, throttled on the bytes written
+     */
+    OutputStream throttle(OutputStream out) {
+        return new FilterOutputStream(out) {
+            public void write(int b) throws IOException {
+                acquireBytes(1);
+                out.write(b);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                acquireBytes(len);
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * @return the stream, throttled on the bytes read
+     */
+    InputStream throttle(InputStream in) {
+        return new FilterInputStream(in) {
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    acquireBytes(1);
+                }
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                int count = in.read(b, off, len);
+                if (count > 0) {
+                    acquireBytes(count);
+                }
+                return count;
+            }
+        };
+    }
+}
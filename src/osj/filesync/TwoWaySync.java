@@ -0,0 +1,657 @@
+package osj.filesync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Syncs two sides both ways, by comparing each of them with the state
+ * both had at the end of the last run, as recorded in the index file. A
+ * path which differs from the recorded state on one side only was changed
+ * on that side, and the change, be it an addition, an edit or a deletion,
+ * is applied to the other side. A path changed on both sides in different
+ * ways is a conflict, resolved according to the {@link ConflictPolicy}.
+ *
+ * Both trees are scanned concurrently, each by a fork-join task per
+ * folder, and the whole plan is made before anything is changed, so a
+ * FAIL policy leaves both sides untouched. The changes are then applied in
+ * order: conflict renames, folder creations, copies, run by the transfer
+ * threads, and finally deletions.
+ *
+ * A folder deleted on one side is only deleted on the other if nothing
+ * below it changed there since the last run. Otherwise it is kept, and
+ * only its unchanged content is deleted.
+ *
+ * On the first run, with no recorded state, a path present on both sides
+ * with a different size or modification time is a conflict.
+ *
+ * A missing side is created on the first run only. Once state has been
+ * recorded, a missing side fails the sync, as it is more likely an
+ * unmounted volume than a deletion of everything on it.
+ *
+ * @author ajmas
+ *
+ */
+public class TwoWaySync {
+
+    /**
+     * What to do with a path changed on both sides.
+     */
+    public enum ConflictPolicy {
+        /**
+         * The most recently modified version replaces the other. An edit
+         * always wins over a deletion.
+         */
+        NEWER_WINS,
+        /**
+         * The remote version is renamed, on both sides, by adding
+         * '(conflict ...)' to its name, and the local version is kept
+         * under the original name. An edit always wins over a deletion.
+         */
+        KEEP_BOTH,
+        /**
+         * The sync fails, without changing either side.
+         */
+        FAIL
+    }
+
+    Logger logger = Logger.getLogger(getClass());
+
+    private final SyncEndpoint local;
+    private final SyncEndpoint remote;
+    private final FileTransfer toRemote;
+    private final FileTransfer toLocal;
+
+    private int scanParallelism = Runtime.getRuntime().availableProcessors();
+    private int transferThreads = 4;
+    private ConflictPolicy conflictPolicy = ConflictPolicy.KEEP_BOTH;
+    private int maxDeletions = -1;
+    private List<SyncListener> listeners = new ArrayList<SyncListener>();
+    private SyncMetrics metrics = SyncMetrics.NOOP;
+
+    private File indexFile;
+    private String localId;
+    private String remoteId;
+
+    public TwoWaySync(SyncEndpoint local, SyncEndpoint remote, FileTransfer toRemote, FileTransfer toLocal) {
+        this.local = local;
+        this.remote = remote;
+        this.toRemote = toRemote;
+        this.toLocal = toLocal;
+    }
+
+    public void setScanParallelism(int scanParallelism) {
+        this.scanParallelism = scanParallelism;
+    }
+
+    public void setTransferThreads(int transferThreads) {
+        this.transferThreads = transferThreads;
+    }
+
+    public void setConflictPolicy(ConflictPolicy conflictPolicy) {
+        this.conflictPolicy = conflictPolicy;
+    }
+
+    /**
+     * @see FileSyncConfiguration#setMaxDeletions(int)
+     */
+    public void setMaxDeletions(int maxDeletions) {
+        this.maxDeletions = maxDeletions;
+    }
+
+    public void addSyncListener(SyncListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @see SyncPipeline#setMetrics(SyncMetrics)
+     */
+    public void setMetrics(SyncMetrics metrics) {
+        this.metrics = metrics != null ? metrics : SyncMetrics.NOOP;
+    }
+
+    /**
+     * Keeps the state of both sides in the index file, identifying the
+     * endpoints by the given ids. Required, as the state is what tells a
+     * file added on one side from a file deleted on the other.
+     */
+    public void setIndexFile(File indexFile, String localId, String remoteId) {
+        this.indexFile = indexFile;
+        this.localId = localId;
+        this.remoteId = remoteId;
+    }
+
+    /**
+     * Configures the sync from the general sync parameters.
+     */
+    public void configure(FileSyncConfiguration configuration, URI localURI, URI remoteURI) {
+        setScanParallelism(configuration.getParallelism());
+        setTransferThreads(configuration.getTransferThreads());
+        setConflictPolicy(configuration.getConflictPolicy());
+        setMaxDeletions(configuration.getMaxDeletions());
+        listeners.addAll(configuration.getSyncListeners());
+        if (configuration.getIndexFile() != null) {
+            setIndexFile(configuration.getIndexFile(), localURI.toString(), remoteURI.toString());
+        }
+    }
+
+    public void run(PathFilter... pathFilters) throws FileSyncException, IOException {
+        if (indexFile == null) {
+            throw new FileSyncException("Two way sync needs an index file, to tell additions from deletions");
+        }
+
+        long phaseStart = System.nanoTime();
+        SyncIndex baseline = SyncIndex.load(indexFile, localId, remoteId);
+
+        FileEntry localRoot = local.stat("");
+        FileEntry remoteRoot = remote.stat("");
+        if (localRoot == null && remoteRoot == null) {
+            throw new FileSyncException("Neither " + local + " nor " + remote + " exists");
+        }
+        if ((localRoot == null || remoteRoot == null) && !baseline.getAllRecords().isEmpty()) {
+            // INFO a missing side, such as an unmounted volume, would otherwise read as everything deleted there
+            throw new FileSyncException((localRoot == null ? local : remote)
+                    + " does not exist, but was synced before; it is only created on a first run");
+        }
+        if (localRoot == null) {
+            local.createDirectory("");
+        }
+        if (remoteRoot == null) {
+            remote.createDirectory("");
+        }
+
+        Map<String, FileEntry> localEntries = new ConcurrentHashMap<String, FileEntry>();
+        Map<String, FileEntry> remoteEntries = new ConcurrentHashMap<String, FileEntry>();
+        scan(localEntries, remoteEntries, pathFilters);
+        phaseStart = phaseCompleted(SyncMetrics.Phase.SCAN, phaseStart);
+
+        Plan plan = new Plan(baseline, localEntries, remoteEntries);
+        TreeSet<String> paths = new TreeSet<String>(localEntries.keySet());
+        paths.addAll(remoteEntries.keySet());
+        for (Map.Entry<String, SyncIndex.Record> record : baseline.getAllRecords().entrySet()) {
+            if (isInScope(record.getKey(), record.getValue(), pathFilters)) {
+                paths.add(record.getKey());
+            }
+        }
+        for (String path : paths) {
+            plan.decide(path);
+        }
+        metrics.entriesCompared(paths.size());
+        phaseCompleted(SyncMetrics.Phase.COMPARE, phaseStart);
+
+        if (!plan.conflicts.isEmpty()) {
+            throw new FileSyncException(plan.conflicts.size() + " paths were changed on both sides: "
+                    + plan.conflicts);
+        }
+        int deletionCount = plan.getDeletionCount();
+        if (maxDeletions >= 0 && deletionCount > maxDeletions) {
+            throw new FileSyncException("The sync would delete " + deletionCount
+                    + " entries, more than the limit of " + maxDeletions);
+        }
+        logger.debug("Two way sync: " + plan.toRemote.size() + " changes to apply remotely, "
+                + plan.toLocal.size() + " locally");
+
+        SyncIndex index = baseline.copy();
+        apply(plan, index);
+        phaseStart = System.nanoTime();
+        index.putRecord("", new SyncIndex.Record(local.stat(""), remote.stat(""), null));
+        index.save(indexFile);
+        phaseCompleted(SyncMetrics.Phase.INDEX, phaseStart);
+    }
+
+    /**
+     * @return the time the phase completed, when the next one starts
+     */
+    private long phaseCompleted(SyncMetrics.Phase phase, long startNanos) {
+        long now = System.nanoTime();
+        metrics.phaseCompleted(phase, now - startNanos);
+        return now;
+    }
+
+    /**
+     * Lists both trees at the same time, into flat maps keyed by path.
+     */
+    private void scan(Map<String, FileEntry> localEntries, Map<String, FileEntry> remoteEntries,
+            PathFilter... pathFilters) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(scanParallelism);
+        try {
+            // INFO both sides are reported as listed, so the counts are of the two trees
+            final ScanTask localScan = new ScanTask(local, "", localEntries, metrics, pathFilters);
+            final ScanTask remoteScan = new ScanTask(remote, "", remoteEntries, metrics, pathFilters);
+            pool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                protected void compute() {
+                    invokeAll(localScan, remoteScan);
+                }
+            });
+        } catch (ParallelTreeWalker.WalkFailure failure) {
+            throw (IOException) failure.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return whether the recorded path is covered by the filters, so that
+     *         its absence from the scans means it was deleted
+     */
+    private static boolean isInScope(String path, SyncIndex.Record record, PathFilter... pathFilters) {
+        for (String folder = SyncIndex.parentOf(path); !folder.isEmpty(); folder = SyncIndex.parentOf(folder)) {
+            if (!ParallelTreeWalker.acceptSubtree(folder, pathFilters)) {
+                return false;
+            }
+        }
+        FileEntry entry = record.getSource() != null ? record.getSource() : record.getDestination();
+        return entry != null && entry.isDirectory() ? ParallelTreeWalker.acceptSubtree(path, pathFilters)
+                : ParallelTreeWalker.accept(path, pathFilters);
+    }
+
+    private void apply(final Plan plan, final SyncIndex index) throws IOException {
+        long phaseStart = System.nanoTime();
+        for (String[] rename : plan.renames) {
+            logger.debug("Renaming remote " + rename[0] + " to " + rename[1]);
+            remote.rename(rename[0], rename[1]);
+        }
+        for (Step step : plan.replacements) {
+            step.endpoint().delete(step.action.getDestinationEntry());
+            notifyListeners(step.action);
+        }
+        for (Step step : plan.folders) {
+            logger.debug("Creating directory " + step.action.getRelativePath() + (step.remote ? " remotely" : " locally"));
+            step.endpoint().createDirectory(step.action.getRelativePath());
+            metrics.directoryCreated(step.action);
+            notifyListeners(step.action);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(transferThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final Step step : plan.copies) {
+                metrics.transferQueued(step.action);
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        logger.debug("Copying " + step.action.getRelativePath() + (step.remote ? " to remote" : " to local"));
+                        long startNanos = System.nanoTime();
+                        (step.remote ? toRemote : toLocal).transfer(step.action);
+                        metrics.fileTransferred(step.action, step.action.getSourceEntry().getSize(),
+                                System.nanoTime() - startNanos);
+                        notifyListeners(step.action);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Sync was interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        phaseStart = phaseCompleted(SyncMetrics.Phase.TRANSFER, phaseStart);
+
+        // INFO deepest first, so a folder is emptied before it is deleted
+        List<Step> deletions = new ArrayList<Step>(plan.deletions);
+        Collections.reverse(deletions);
+        for (Step step : deletions) {
+            logger.debug("Deleting " + step.action.getRelativePath() + (step.remote ? " remotely" : " locally"));
+            long startNanos = System.nanoTime();
+            step.endpoint().delete(step.action.getDestinationEntry());
+            metrics.entryDeleted(step.action, System.nanoTime() - startNanos);
+            index.removeSubtree(step.action.getRelativePath());
+            notifyListeners(step.action);
+        }
+        phaseCompleted(SyncMetrics.Phase.DELETE, phaseStart);
+
+        for (String path : plan.forgotten) {
+            index.removeSubtree(path);
+        }
+        for (Map.Entry<String, FileEntry[]> kept : plan.kept.entrySet()) {
+            index.putRecord(kept.getKey(), new SyncIndex.Record(kept.getValue()[0], kept.getValue()[1], null));
+        }
+        for (String path : plan.touched) {
+            FileEntry localEntry = local.stat(path);
+            FileEntry remoteEntry = remote.stat(path);
+            if (localEntry != null && remoteEntry != null) {
+                index.putRecord(path, new SyncIndex.Record(localEntry, remoteEntry, null));
+            } else {
+                index.removeSubtree(path);
+            }
+        }
+    }
+
+    private void notifyListeners(SyncAction action) {
+        for (SyncListener listener : listeners) {
+            listener.actionCompleted(action);
+        }
+    }
+
+    /**
+     * @return whether the entry is as recorded: both absent, both folders,
+     *         or files of the same size and modification time
+     */
+    static boolean isSame(FileEntry entry, FileEntry recorded) {
+        if (entry == null || recorded == null) {
+            return entry == recorded;
+        }
+        if (entry.isDirectory() || recorded.isDirectory()) {
+            return entry.isDirectory() == recorded.isDirectory();
+        }
+        return entry.getSize() == recorded.getSize() && entry.getLastModified() == recorded.getLastModified();
+    }
+
+    /**
+     * @return the path with '(conflict remote yyyyMMdd-HHmmss)' added to
+     *         its name, before the extension
+     */
+    static String conflictPathOf(String path, String side, long lastModified) {
+        String name = SyncIndex.nameOf(path);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(lastModified));
+        String conflictName = base + " (conflict " + side + " " + stamp + ")" + extension;
+        String parent = SyncIndex.parentOf(path);
+        return parent.isEmpty() ? conflictName : parent + "/" + conflictName;
+    }
+
+    /**
+     * A change to one side.
+     */
+    class Step {
+        final boolean remote;
+        final SyncAction action;
+
+        Step(boolean remote, SyncAction action) {
+            this.remote = remote;
+            this.action = action;
+        }
+
+        SyncEndpoint endpoint() {
+            return remote ? TwoWaySync.this.remote : local;
+        }
+    }
+
+    /**
+     * The changes to make to each side, decided path by path, parents
+     * before children.
+     */
+    class Plan {
+        private final SyncIndex baseline;
+        private final TreeMap<String, FileEntry> localEntries;
+        private final TreeMap<String, FileEntry> remoteEntries;
+        private final long timestampResolution;
+
+        // INFO folders deleted as a whole, whose content needs no decision
+        private final Set<String> removedFolders = new HashSet<String>();
+
+        final List<String[]> renames = new ArrayList<String[]>();
+        final List<Step> replacements = new ArrayList<Step>();
+        final List<Step> folders = new ArrayList<Step>();
+        final List<Step> copies = new ArrayList<Step>();
+        final List<Step> deletions = new ArrayList<Step>();
+        final List<Step> toRemote = new ArrayList<Step>();
+        final List<Step> toLocal = new ArrayList<Step>();
+        final List<String> conflicts = new ArrayList<String>();
+        final Map<String, FileEntry[]> kept = new HashMap<String, FileEntry[]>();
+        final Set<String> touched = new TreeSet<String>();
+        final Set<String> forgotten = new TreeSet<String>();
+
+        Plan(SyncIndex baseline, Map<String, FileEntry> localEntries, Map<String, FileEntry> remoteEntries) {
+            this.baseline = baseline;
+            this.localEntries = new TreeMap<String, FileEntry>(localEntries);
+            this.remoteEntries = new TreeMap<String, FileEntry>(remoteEntries);
+            this.timestampResolution = Math.max(local.getTimestampResolution(), remote.getTimestampResolution());
+        }
+
+        void decide(String path) {
+            for (String folder = SyncIndex.parentOf(path); !folder.isEmpty(); folder = SyncIndex.parentOf(folder)) {
+                if (removedFolders.contains(folder)) {
+                    return;
+                }
+            }
+
+            FileEntry localEntry = localEntries.get(path);
+            FileEntry remoteEntry = remoteEntries.get(path);
+            SyncIndex.Record record = baseline.getRecord(path);
+            boolean localChanged = !isSame(localEntry, record != null ? record.getSource() : null);
+            boolean remoteChanged = !isSame(remoteEntry, record != null ? record.getDestination() : null);
+
+            if (!localChanged && !remoteChanged && (localEntry == null) != (remoteEntry == null)) {
+                // INFO recorded on one side only, by a one way sync
+                propagate(path, localEntry != null ? localEntry : remoteEntry, null, localEntry != null, false);
+            } else if (!localChanged && !remoteChanged) {
+                if (localEntry != null) {
+                    kept.put(path, new FileEntry[] { localEntry, remoteEntry });
+                }
+            } else if (!remoteChanged) {
+                propagate(path, localEntry, remoteEntry, true, false);
+            } else if (!localChanged) {
+                propagate(path, remoteEntry, localEntry, false, false);
+            } else if (localEntry == null && remoteEntry == null) {
+                // INFO deleted on both sides, so only the record goes
+                forgotten.add(path);
+            } else if (isEquivalent(localEntry, remoteEntry)) {
+                kept.put(path, new FileEntry[] { localEntry, remoteEntry });
+            } else {
+                resolveConflict(path, localEntry, remoteEntry);
+            }
+        }
+
+        /**
+         * @return whether both sides now hold the same thing
+         */
+        private boolean isEquivalent(FileEntry localEntry, FileEntry remoteEntry) {
+            if (localEntry == null || remoteEntry == null || localEntry.isDirectory() != remoteEntry.isDirectory()) {
+                return false;
+            }
+            return localEntry.isDirectory() || (localEntry.getSize() == remoteEntry.getSize()
+                    && Math.abs(localEntry.getLastModified() - remoteEntry.getLastModified()) < timestampResolution);
+        }
+
+        private void resolveConflict(String path, FileEntry localEntry, FileEntry remoteEntry) {
+            if (conflictPolicy == ConflictPolicy.FAIL) {
+                conflicts.add(path);
+                return;
+            }
+
+            // INFO an edit wins over a deletion whatever the policy, so no data is lost
+            if (localEntry == null || remoteEntry == null) {
+                logger.info("Conflict on " + path + ", keeping the version which was not deleted");
+                boolean toRemote = localEntry != null;
+                propagate(path, toRemote ? localEntry : remoteEntry, toRemote ? remoteEntry : localEntry, toRemote, true);
+                return;
+            }
+
+            if (conflictPolicy == ConflictPolicy.NEWER_WINS || remoteEntry.isDirectory()) {
+                // INFO a remote folder can not be renamed aside, so the newer side wins
+                boolean toRemote = localEntry.getLastModified() >= remoteEntry.getLastModified();
+                logger.info("Conflict on " + path + ", keeping the " + (toRemote ? "local" : "remote") + " version");
+                propagate(path, toRemote ? localEntry : remoteEntry, toRemote ? remoteEntry : localEntry, toRemote, true);
+                return;
+            }
+
+            String conflictPath = conflictPathOf(path, "remote", remoteEntry.getLastModified());
+            logger.info("Conflict on " + path + ", keeping the remote version as " + conflictPath);
+            renames.add(new String[] { path, conflictPath });
+            FileEntry conflictEntry = new FileEntry(conflictPath, false, remoteEntry.getSize(),
+                    remoteEntry.getLastModified(), null);
+            add(new Step(false, new SyncAction(SyncAction.Type.COPY, conflictPath, conflictEntry, null)));
+            propagate(path, localEntry, null, true, true);
+        }
+
+        /**
+         * Makes the other side match this side.
+         *
+         * @param force whether to overwrite changes made below a folder on
+         *        the other side
+         */
+        private void propagate(String path, FileEntry entry, FileEntry otherEntry, boolean toRemote, boolean force) {
+            TreeMap<String, FileEntry> otherEntries = toRemote ? remoteEntries : localEntries;
+            if (otherEntry != null && otherEntry.isDirectory() && (entry == null || !entry.isDirectory())
+                    && !force && hasChangesBelow(path, otherEntries, !toRemote)) {
+                // INFO the folder was deleted or replaced here, but has new content there, so it is kept
+                if (entry == null) {
+                    add(new Step(!toRemote, new SyncAction(SyncAction.Type.CREATE_DIRECTORY, path, otherEntry, null)));
+                } else {
+                    conflicts.add(path);
+                }
+                return;
+            }
+
+            if (entry == null) {
+                add(new Step(toRemote, new SyncAction(SyncAction.Type.DELETE, path, null, otherEntry)));
+                if (otherEntry.isDirectory()) {
+                    removedFolders.add(path);
+                }
+                return;
+            }
+
+            if (otherEntry != null && otherEntry.isDirectory() != entry.isDirectory()) {
+                // INFO the type changed, the old entry makes way first
+                Step replacement = new Step(toRemote, new SyncAction(SyncAction.Type.DELETE, path, null, otherEntry));
+                replacements.add(replacement);
+                (toRemote ? this.toRemote : this.toLocal).add(replacement);
+                otherEntry = null;
+            }
+            if (entry.isDirectory()) {
+                if (otherEntry == null) {
+                    add(new Step(toRemote, new SyncAction(SyncAction.Type.CREATE_DIRECTORY, path, entry, null)));
+                } else {
+                    kept.put(path, toRemote ? new FileEntry[] { entry, otherEntry } : new FileEntry[] { otherEntry, entry });
+                }
+            } else {
+                add(new Step(toRemote, new SyncAction(SyncAction.Type.COPY, path, entry, otherEntry)));
+            }
+        }
+
+        /**
+         * @return whether anything below the folder differs from the
+         *         recorded state of that side
+         */
+        private boolean hasChangesBelow(String folder, TreeMap<String, FileEntry> entries, boolean remoteSide) {
+            // INFO '0' follows '/', so the range holds exactly the paths below the folder
+            for (FileEntry entry : entries.subMap(folder + "/", folder + "0").values()) {
+                SyncIndex.Record record = baseline.getRecord(entry.getRelativePath());
+                FileEntry recorded = record == null ? null : remoteSide ? record.getDestination() : record.getSource();
+                if (!isSame(entry, recorded)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the number of entries the plan deletes, counting the
+         *         scanned content of the folders deleted as a whole, as
+         *         {@link DeletionSweep} does for a one way sync
+         */
+        int getDeletionCount() {
+            List<Step> steps = new ArrayList<Step>(deletions);
+            steps.addAll(replacements);
+            int count = 0;
+            for (Step step : steps) {
+                count++;
+                FileEntry entry = step.action.getDestinationEntry();
+                if (entry != null && entry.isDirectory()) {
+                    String path = step.action.getRelativePath();
+                    count += (step.remote ? remoteEntries : localEntries).subMap(path + "/", path + "0").size();
+                }
+            }
+            return count;
+        }
+
+        private void add(Step step) {
+            switch (step.action.getType()) {
+            case CREATE_DIRECTORY:
+                folders.add(step);
+                break;
+            case COPY:
+                copies.add(step);
+                break;
+            default:
+                deletions.add(step);
+                break;
+            }
+            (step.remote ? toRemote : toLocal).add(step);
+            if (step.action.getType() != SyncAction.Type.DELETE) {
+                touched.add(step.action.getRelativePath());
+            }
+        }
+    }
+
+    /**
+     * Lists one folder of one side into the entries, and forks a sub-task
+     * for each accepted child folder.
+     */
+    static class ScanTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SyncEndpoint endpoint;
+        private final String relativePath;
+        private final Map<String, FileEntry> entries;
+        private final SyncMetrics metrics;
+        private final PathFilter[] pathFilters;
+
+        ScanTask(SyncEndpoint endpoint, String relativePath, Map<String, FileEntry> entries, SyncMetrics metrics,
+                PathFilter... pathFilters) {
+            this.endpoint = endpoint;
+            this.relativePath = relativePath;
+            this.entries = entries;
+            this.metrics = metrics;
+            this.pathFilters = pathFilters;
+        }
+
+        protected void compute() {
+            List<ScanTask> subTasks = new ArrayList<ScanTask>();
+            try {
+                Map<String, FileEntry> children = endpoint.list(relativePath);
+                metrics.directoryListed(relativePath, children.size());
+                for (FileEntry child : children.values()) {
+                    String path = child.getRelativePath();
+                    if (child.isDirectory()) {
+                        if (ParallelTreeWalker.acceptSubtree(path, pathFilters)) {
+                            entries.put(path, child);
+                            subTasks.add(new ScanTask(endpoint, path, entries, metrics, pathFilters));
+                        }
+                    } else if (ParallelTreeWalker.accept(path, pathFilters)) {
+                        entries.put(path, child);
+                    }
+                }
+            } catch (IOException ex) {
+                throw new ParallelTreeWalker.WalkFailure(ex);
+            }
+            invokeAll(subTasks);
+        }
+    }
+}
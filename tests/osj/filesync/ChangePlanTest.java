@@ -0,0 +1,122 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ChangePlanTest {
+
+	@Test
+	public void writeAndReadTest() throws Exception {
+		ChangePlan plan = new ChangePlan("file:///source", "file:///destination");
+		plan.add(new SyncAction(SyncAction.Type.COPY, "docs/api/index.html",
+				new FileEntry("docs/api/index.html", false, 1234, 1000000, null),
+				new FileEntry("docs/api/index.html", false, 99, 500000, null)));
+		plan.add(new SyncAction(SyncAction.Type.COPY, "docs/api/style.css",
+				new FileEntry("docs/api/style.css", false, 56, 2000000, null), null));
+		plan.add(new SyncAction(SyncAction.Type.CREATE_DIRECTORY, "docs/api",
+				new FileEntry("docs/api", true, 0, 3000000, null), null));
+		plan.add(new SyncAction(SyncAction.Type.DELETE, "old.txt", null,
+				new FileEntry("old.txt", false, 7, 4000000, null)));
+		plan.sort();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		plan.writeTo(out);
+		ChangePlan read = ChangePlan.readFrom(new ByteArrayInputStream(out.toByteArray()));
+
+		assertEquals("file:///source", read.getSourceId());
+		assertEquals("file:///destination", read.getDestinationId());
+		assertSameActions(plan.getDeletions(), read.getDeletions());
+		assertSameActions(plan.getDirectories(), read.getDirectories());
+		assertSameActions(plan.getCopies(), read.getCopies());
+		assertEquals(plan.getBytesToTransfer(), read.getBytesToTransfer());
+	}
+
+	@Test(expected = IOException.class)
+	public void readOtherFormatTest() throws Exception {
+		ChangePlan.readFrom(new ByteArrayInputStream("not a plan".getBytes("UTF-8")));
+	}
+
+	@Test
+	public void staleDeletionsAreSkippedTest() throws Exception {
+		Path source = Files.createTempDirectory("plansource");
+		Path destination = Files.createTempDirectory("plandestination");
+		try {
+			Files.createDirectories(destination.resolve("old/sub"));
+			Files.write(destination.resolve("old/sub/file"), new byte[3]);
+			Files.write(destination.resolve("gone"), new byte[3]);
+			Files.write(destination.resolve("edited"), new byte[3]);
+
+			FileSyncConfiguration configuration = new FileSyncConfiguration();
+			configuration.setLocalConfiguration(new EndpointConfiguration(source.toUri().toString()));
+			configuration.setRemoteConfiguration(new EndpointConfiguration(destination.toUri().toString()));
+			SimpleLocalFileSynchroniser fileSync = new SimpleLocalFileSynchroniser();
+			ChangePlan plan = fileSync.planFiles(configuration, FileSynchroniser.SyncDirection.TO_REMOTE, null, false,
+					null);
+			assertEquals(5, plan.getDeleteCount());
+
+			// the destination changes between the plan and its execution
+			Files.write(destination.resolve("old/new"), new byte[1]);
+			Files.write(destination.resolve("edited"), new byte[9]);
+			fileSync.applyPlan(configuration, FileSynchroniser.SyncDirection.TO_REMOTE, plan);
+
+			assertFalse(Files.exists(destination.resolve("gone")));
+			assertFalse(Files.exists(destination.resolve("old/sub")));
+			assertTrue(Files.exists(destination.resolve("old/new")));
+			assertTrue(Files.exists(destination.resolve("edited")));
+		} finally {
+			delete(source);
+			delete(destination);
+		}
+	}
+
+	private static void assertSameActions(List<SyncAction> expected, List<SyncAction> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getType(), actual.get(i).getType());
+			assertEquals(expected.get(i).getRelativePath(), actual.get(i).getRelativePath());
+			assertSameEntry(expected.get(i).getSourceEntry(), actual.get(i).getSourceEntry());
+			assertSameEntry(expected.get(i).getDestinationEntry(), actual.get(i).getDestinationEntry());
+		}
+	}
+
+	private static void assertSameEntry(FileEntry expected, FileEntry actual) {
+		if (expected == null) {
+			assertNull(actual);
+			return;
+		}
+		assertEquals(expected.getRelativePath(), actual.getRelativePath());
+		assertEquals(expected.isDirectory(), actual.isDirectory());
+		assertEquals(expected.getSize(), actual.getSize());
+		assertEquals(expected.getLastModified(), actual.getLastModified());
+	}
+
+	private static void delete(Path path) throws IOException {
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
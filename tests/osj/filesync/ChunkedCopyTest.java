@@ -0,0 +1,129 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ChunkedCopyTest {
+
+	private static final int MB = 1024 * 1024;
+
+	@Test
+	public void acceptsTest() throws Exception {
+		ChunkedCopy copy = chunkedCopy(100, 10);
+
+		assertTrue(copy.accepts(100, 2));
+		assertFalse(copy.accepts(99, 2));
+		assertFalse(copy.accepts(100, 1));
+		// a file which fits in a single range is copied in one go
+		assertFalse(chunkedCopy(5, 10).accepts(10, 4));
+	}
+
+	@Test
+	public void rangesTest() throws Exception {
+		final Set<String> ranges = Collections.synchronizedSet(new HashSet<String>());
+		chunkedCopy(0, 4).copy(10, 3, new ChunkedCopy.RangeCopier() {
+			public void copy(long offset, long length) {
+				ranges.add(offset + "+" + length);
+			}
+		});
+
+		assertEquals(new HashSet<String>(Arrays.asList("0+4", "4+4", "8+2")), ranges);
+	}
+
+	@Test
+	public void failureStopsTheCopyTest() throws Exception {
+		final AtomicInteger copied = new AtomicInteger();
+		try {
+			chunkedCopy(0, 1).copy(100000, 4, new ChunkedCopy.RangeCopier() {
+				public void copy(long offset, long length) throws IOException {
+					if (offset == 5) {
+						throw new IOException("Disk full");
+					}
+					copied.incrementAndGet();
+				}
+			});
+			fail();
+		} catch (IOException ex) {
+			assertEquals("Disk full", ex.getMessage());
+		}
+		// the other workers claim no more ranges once one failed
+		assertTrue("copied " + copied.get(), copied.get() < 100000);
+	}
+
+	@Test
+	public void verifyTest() throws Exception {
+		ChunkedCopy copy = chunkedCopy(0, 1);
+		copy.verify(hash(1, 2, 3), hash(1, 2, 3), "a.img");
+		try {
+			copy.verify(hash(1, 2, 3), hash(1, 2, 4), "a.img");
+			fail();
+		} catch (IOException ex) {
+			assertEquals("The copy of a.img does not match its source", ex.getMessage());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidChunkSizeTest() throws Exception {
+		chunkedCopy(0, 0);
+	}
+
+	@Test
+	public void localChunkedCopyTest() throws Exception {
+		Path folder = Files.createTempDirectory("copy");
+		try {
+			Path source = folder.resolve("random.bin");
+			byte[] data = new byte[3 * MB + 5];
+			new Random(data.length).nextBytes(data);
+			Files.write(source, data);
+
+			Properties properties = new Properties();
+			properties.setProperty(LocalCopyEngine.CHUNKED_PREFIX + ".threshold", String.valueOf(MB));
+			properties.setProperty(LocalCopyEngine.CHUNKED_PREFIX + ".chunkSize", String.valueOf(MB / 2));
+			properties.setProperty(LocalCopyEngine.SPARSE_PROPERTY, LocalCopyEngine.NEVER);
+			Path target = folder.resolve("copy.bin");
+			new LocalCopyEngine(properties).copy(source, target);
+
+			assertArrayEquals(data, Files.readAllBytes(target));
+		} finally {
+			Files.deleteIfExists(folder.resolve("random.bin"));
+			Files.deleteIfExists(folder.resolve("copy.bin"));
+			Files.delete(folder);
+		}
+	}
+
+	private static ChunkedCopy chunkedCopy(long threshold, long chunkSize) {
+		Properties properties = new Properties();
+		properties.setProperty("test.threshold", String.valueOf(threshold));
+		properties.setProperty("test.chunkSize", String.valueOf(chunkSize));
+		return new ChunkedCopy(properties, "test");
+	}
+
+	private static Callable<byte[]> hash(final int... bytes) {
+		return new Callable<byte[]>() {
+			public byte[] call() {
+				byte[] hash = new byte[bytes.length];
+				for (int i = 0; i < bytes.length; i++) {
+					hash[i] = (byte) bytes[i];
+				}
+				return hash;
+			}
+		};
+	}
+}
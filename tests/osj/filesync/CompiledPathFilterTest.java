@@ -0,0 +1,51 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CompiledPathFilterTest {
+
+	private static final List<String> PATHS = Arrays.asList(
+			"docs", "docs/api", "docs/api/index.html", "docs/api/tmp", "docs/api/tmp/x.html",
+			"docs/guide.txt", "src", "src/osj/Main.java", "build", "build/classes/Main.class", "README");
+
+	@Test
+	public void samePrefixResultsAsPlainFilterTest() throws Exception {
+		List<String> includes = Arrays.asList("docs/api", "src");
+		List<String> excludes = Arrays.asList("docs/api/tmp", "build");
+
+		assertSameResults(includes, excludes);
+		assertSameResults(includes, null);
+		assertSameResults(null, excludes);
+		assertSameResults(null, null);
+	}
+
+	@Test
+	public void prefixesMatchWholeSegmentsTest() throws Exception {
+		CompiledPathFilter filter = new CompiledPathFilter(Arrays.asList("docs/api"), null);
+
+		assertTrue(filter.accept("docs/api/index.html"));
+		// unlike the plain filter, a pattern is not a prefix of a longer name
+		assertFalse(filter.accept("docs/apix"));
+		assertFalse(filter.accept("docs"));
+		assertTrue(filter.acceptSubtree("docs"));
+	}
+
+	private static void assertSameResults(List<String> includes, List<String> excludes) {
+		FileSyncConfiguration configuration = new FileSyncConfiguration();
+		configuration.setPathsToInclude(includes);
+		configuration.setPathsToExclude(excludes);
+		PathFilter plainFilter = configuration.new FSPathFilter();
+		CompiledPathFilter compiledFilter = new CompiledPathFilter(includes, excludes);
+
+		for (String path : PATHS) {
+			assertEquals(path, plainFilter.accept(path), compiledFilter.accept(path));
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompressionPolicyTest {
+
+	@Test
+	public void modeTest() throws Exception {
+		assertFalse(policy("none").shouldCompress("a.txt", 100000, null));
+		assertFalse(new CompressionPolicy(new Properties()).shouldCompress("a.txt", 100000, null));
+
+		CompressionPolicy stream = policy("stream");
+		assertTrue(stream.shouldCompress("a.jpg", 100000, null));
+		// small files are sent as is
+		assertFalse(stream.shouldCompress("a.txt", CompressionPolicy.DEFAULT_MIN_SIZE - 1, null));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidLevelTest() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(CompressionPolicy.LEVEL_PROPERTY, "10");
+		new CompressionPolicy(properties);
+	}
+
+	@Test
+	public void skipListTest() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(CompressionPolicy.COMPRESSION_PROPERTY, "adaptive");
+		properties.setProperty(CompressionPolicy.SKIP_PROPERTY, "dat, ISO,");
+		CompressionPolicy policy = new CompressionPolicy(properties);
+
+		assertFalse(policy.shouldCompress("photos/a.JPG", 100000, null));
+		assertFalse(policy.shouldCompress("backup.tar.gz", 100000, null));
+		assertFalse(policy.shouldCompress("game.dat", 100000, null));
+		assertFalse(policy.shouldCompress("disk.iso", 100000, null));
+		// a type not yet known is compressed, and learnt from the transfer
+		assertTrue(policy.shouldCompress("notes.txt", 100000, null));
+	}
+
+	@Test
+	public void samplingTest() throws Exception {
+		Path folder = Files.createTempDirectory("compression");
+		try {
+			Path text = folder.resolve("a.log");
+			byte[] lines = new byte[200000];
+			for (int i = 0; i < lines.length; i++) {
+				lines[i] = (byte) ("line of a log\n".charAt(i % 14));
+			}
+			Files.write(text, lines);
+			Path random = folder.resolve("a.bin");
+			byte[] noise = new byte[200000];
+			new Random(1).nextBytes(noise);
+			Files.write(random, noise);
+
+			CompressionPolicy policy = policy("adaptive");
+			assertTrue(policy.shouldCompress("a.log", lines.length, text));
+			assertFalse(policy.shouldCompress("a.bin", noise.length, random));
+		} finally {
+			Files.deleteIfExists(folder.resolve("a.log"));
+			Files.deleteIfExists(folder.resolve("a.bin"));
+			Files.delete(folder);
+		}
+	}
+
+	@Test
+	public void typeIsLearntFromTransfersTest() throws Exception {
+		CompressionPolicy policy = policy("adaptive");
+
+		// until enough of a type was measured, its files are compressed
+		policy.recordCompressed("a.bin", CompressionPolicy.SAMPLED_BYTES / 2, CompressionPolicy.SAMPLED_BYTES / 2);
+		assertTrue(policy.shouldCompress("b.bin", 100000, null));
+
+		policy.recordCompressed("b.bin", CompressionPolicy.SAMPLED_BYTES / 2, CompressionPolicy.SAMPLED_BYTES / 2);
+		assertFalse(policy.shouldCompress("c.bin", 100000, null));
+
+		policy.recordCompressed("a.csv", CompressionPolicy.SAMPLED_BYTES, CompressionPolicy.SAMPLED_BYTES / 4);
+		assertTrue(policy.shouldCompress("b.csv", 100000, null));
+	}
+
+	@Test
+	public void extensionTest() throws Exception {
+		for (String[] example : Arrays.asList(new String[] { "docs/a.txt", "txt" },
+				new String[] { "a.tar.GZ", "gz" }, new String[] { "home/.bashrc", "" },
+				new String[] { "docs.old/README", "" })) {
+			assertEquals(example[0], example[1], CompressionPolicy.extensionOf(example[0]));
+		}
+	}
+
+	private static CompressionPolicy policy(String mode) {
+		Properties properties = new Properties();
+		properties.setProperty(CompressionPolicy.COMPRESSION_PROPERTY, mode);
+		return new CompressionPolicy(properties);
+	}
+}
@@ -0,0 +1,124 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ContentHashChangeDetectorTest {
+
+	@Test
+	public void contentIsComparedTest() throws Exception {
+		Path folder = Files.createTempDirectory("hash");
+		try {
+			CountingEndpoint source = new CountingEndpoint(folder.resolve("source"));
+			CountingEndpoint destination = new CountingEndpoint(folder.resolve("destination"));
+			write(source, "same.txt", "abc", 1000000);
+			write(destination, "same.txt", "abc", 2000000);
+			write(source, "edited.txt", "abc", 1000000);
+			write(destination, "edited.txt", "abd", 1000000);
+			write(source, "resized.txt", "abc", 1000000);
+			write(destination, "resized.txt", "abcd", 1000000);
+
+			ContentHashChangeDetector detector = new ContentHashChangeDetector(source, destination, null);
+			Set<String> changed = detector.findChanged(source.list("").values(), destination.list(""));
+
+			// the modification times do not matter, and files of another size are not hashed
+			assertEquals(new HashSet<String>(Arrays.asList("edited.txt", "resized.txt")), changed);
+			assertEquals(new HashSet<String>(Arrays.asList("same.txt", "edited.txt")), source.hashed);
+			assertEquals(new HashSet<String>(Arrays.asList("same.txt", "edited.txt")), destination.hashed);
+			assertTrue(Arrays.equals(FileHasher.hash(source.resolve("same.txt")),
+					detector.getSourceHash(source.stat("same.txt"))));
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void recordedHashesAreReusedTest() throws Exception {
+		Path folder = Files.createTempDirectory("hash");
+		try {
+			CountingEndpoint source = new CountingEndpoint(folder.resolve("source"));
+			CountingEndpoint destination = new CountingEndpoint(folder.resolve("destination"));
+			write(source, "a.txt", "abc", 1000000);
+			write(destination, "a.txt", "abc", 1000000);
+			write(source, "b.txt", "abc", 1000000);
+			write(destination, "b.txt", "abc", 1000000);
+
+			SyncIndex index = new SyncIndex("source", "destination");
+			for (String name : Arrays.asList("a.txt", "b.txt")) {
+				index.putRecord(name, new SyncIndex.Record(source.stat(name), destination.stat(name),
+						FileHasher.hash(source.resolve(name))));
+			}
+			// changed out of band, keeping its size
+			write(destination, "b.txt", "xyz", 3000000);
+
+			ContentHashChangeDetector detector = new ContentHashChangeDetector(source, destination, index);
+			Set<String> changed = detector.findChanged(source.list("").values(), destination.list(""));
+
+			assertEquals(Collections.singleton("b.txt"), changed);
+			assertEquals(Collections.emptySet(), source.hashed);
+			assertEquals(Collections.singleton("b.txt"), destination.hashed);
+		} finally {
+			delete(folder);
+		}
+	}
+
+	private static void write(LocalSyncEndpoint endpoint, String name, String content, long lastModified)
+			throws IOException {
+		Path file = endpoint.resolve(name);
+		Files.createDirectories(file.getParent());
+		Files.write(file, content.getBytes("UTF-8"));
+		Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+	}
+
+	/**
+	 * Records the files it is asked to hash.
+	 */
+	private static class CountingEndpoint extends LocalSyncEndpoint {
+
+		final Set<String> hashed = Collections.synchronizedSet(new HashSet<String>());
+
+		CountingEndpoint(Path basePath) {
+			super(basePath);
+		}
+
+		@Override
+		public Map<String, byte[]> hash(Collection<FileEntry> files) throws IOException {
+			for (FileEntry file : files) {
+				hashed.add(file.getRelativePath());
+			}
+			return super.hash(files);
+		}
+	}
+
+	private static void delete(Path path) throws IOException {
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
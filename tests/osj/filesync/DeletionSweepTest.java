@@ -0,0 +1,154 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DeletionSweepTest {
+
+	@Test
+	public void deepestFirstTest() throws Exception {
+		Path folder = Files.createTempDirectory("sweep");
+		try {
+			write(folder.resolve("a/b/c/1.txt"));
+			write(folder.resolve("a/b/2.txt"));
+			write(folder.resolve("a/3.txt"));
+			write(folder.resolve("4.txt"));
+			LocalSyncEndpoint endpoint = new LocalSyncEndpoint(folder);
+
+			DeletionSweep sweep = new DeletionSweep(endpoint, 4);
+			List<FileEntry> entries = sweep.expand(Arrays.asList(endpoint.stat("a"), endpoint.stat("4.txt")));
+
+			assertEquals(new HashSet<String>(Arrays.asList("a/b/c/1.txt", "a/b/c", "a/b/2.txt", "a/b", "a/3.txt", "a",
+					"4.txt")), new HashSet<String>(paths(entries)));
+			int lastDepth = Integer.MAX_VALUE;
+			for (String path : paths(entries)) {
+				int depth = path.split("/").length;
+				assertTrue(path, depth <= lastDepth);
+				lastDepth = depth;
+			}
+
+			final List<String> deleted = Collections.synchronizedList(new ArrayList<String>());
+			sweep.delete(entries, SyncMetrics.NOOP, new SyncListener() {
+				public void actionCompleted(SyncAction action) {
+					assertEquals(SyncAction.Type.DELETE, action.getType());
+					deleted.add(action.getRelativePath());
+				}
+			});
+
+			assertEquals(7, deleted.size());
+			assertEquals(0, folder.toFile().list().length);
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void excludedEntriesAreKeptTest() throws Exception {
+		Path folder = Files.createTempDirectory("sweep");
+		try {
+			write(folder.resolve("a/b/1.txt"));
+			write(folder.resolve("a/b/2.keep"));
+			write(folder.resolve("a/c/3.txt"));
+			write(folder.resolve("a/cache/4.txt"));
+			LocalSyncEndpoint endpoint = new LocalSyncEndpoint(folder);
+
+			PathFilter filter = new CompiledPathFilter(null, Arrays.asList("**/*.keep", "a/cache"));
+			DeletionSweep sweep = new DeletionSweep(endpoint, 2, filter);
+			List<FileEntry> entries = sweep.expand(Collections.singleton(endpoint.stat("a")));
+
+			// the folders holding an excluded entry are kept, up to the root of the sweep
+			assertEquals(new HashSet<String>(Arrays.asList("a/b/1.txt", "a/c/3.txt", "a/c")),
+					new HashSet<String>(paths(entries)));
+
+			sweep.delete(entries, SyncMetrics.NOOP, null);
+			assertTrue(Files.exists(folder.resolve("a/b/2.keep")));
+			assertTrue(Files.exists(folder.resolve("a/cache/4.txt")));
+			assertFalse(Files.exists(folder.resolve("a/b/1.txt")));
+			assertFalse(Files.exists(folder.resolve("a/c")));
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void maxDeletionsTest() throws Exception {
+		Path folder = Files.createTempDirectory("sweep");
+		try {
+			Path source = folder.resolve("source");
+			Path destination = folder.resolve("destination");
+			Files.createDirectories(source);
+			for (int i = 0; i < 10; i++) {
+				write(destination.resolve("old/" + i + ".txt"));
+			}
+
+			// the folder counts as 11 deletions, and nothing is deleted when over the limit
+			try {
+				pipeline(source, destination, 10).run(false);
+				fail();
+			} catch (FileSyncException ex) {
+				assertEquals("The sync would delete 11 entries from the destination, more than the limit of 10",
+						ex.getMessage());
+			}
+			assertEquals(10, destination.resolve("old").toFile().list().length);
+
+			pipeline(source, destination, 11).run(false);
+			assertFalse(Files.exists(destination.resolve("old")));
+		} finally {
+			delete(folder);
+		}
+	}
+
+	private static SyncPipeline pipeline(Path source, Path destination, int maxDeletions) {
+		LocalSyncEndpoint sourceEndpoint = new LocalSyncEndpoint(source);
+		LocalSyncEndpoint destinationEndpoint = new LocalSyncEndpoint(destination);
+		SyncPipeline pipeline = new SyncPipeline(sourceEndpoint, destinationEndpoint,
+				new LocalFileTransfer(sourceEndpoint, destinationEndpoint));
+		pipeline.setMaxDeletions(maxDeletions);
+		return pipeline;
+	}
+
+	private static List<String> paths(List<FileEntry> entries) {
+		List<String> paths = new ArrayList<String>();
+		for (FileEntry entry : entries) {
+			paths.add(entry.getRelativePath());
+		}
+		return paths;
+	}
+
+	private static void write(Path file) throws IOException {
+		Files.createDirectories(file.getParent());
+		Files.write(file, new byte[1]);
+	}
+
+	private static void delete(Path path) throws IOException {
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
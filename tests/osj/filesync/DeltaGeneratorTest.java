@@ -0,0 +1,47 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DeltaGeneratorTest {
+
+	@Test
+	public void insertionIsSentAsLiteralTest() throws Exception {
+		byte[] oldData = new byte[1024 * 1024];
+		new Random(1).nextBytes(oldData);
+
+		ByteArrayOutputStream newData = new ByteArrayOutputStream();
+		newData.write(oldData, 0, 300000);
+		newData.write("inserted".getBytes("UTF-8"));
+		newData.write(oldData, 300000, oldData.length - 300000);
+
+		File oldFile = File.createTempFile("delta", ".bin");
+		try {
+			Files.write(oldFile.toPath(), oldData);
+
+			BlockSignatures signatures = BlockSignatures.compute(new ByteArrayInputStream(oldData), 4096);
+			DeltaGenerator generator = new DeltaGenerator(signatures);
+			ByteArrayOutputStream delta = new ByteArrayOutputStream();
+			generator.generate(new ByteArrayInputStream(newData.toByteArray()), delta);
+
+			ByteArrayOutputStream patched = new ByteArrayOutputStream();
+			try (RandomAccessFile in = new RandomAccessFile(oldFile, "r")) {
+				new DeltaPatcher(in).apply(new ByteArrayInputStream(delta.toByteArray()), patched);
+			}
+
+			assertArrayEquals(newData.toByteArray(), patched.toByteArray());
+			assertTrue(generator.getLiteralBytes() < 2 * 4096);
+		} finally {
+			oldFile.delete();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FileHasherTest {
+
+	@Test
+	public void md5Test() throws Exception {
+		Path folder = Files.createTempDirectory("hasher");
+		try {
+			// read into a buffer, mapped, and empty
+			for (int size : Arrays.asList(1000, 1024 * 1024 + 7, 0)) {
+				byte[] content = new byte[size];
+				new Random(size).nextBytes(content);
+				Path file = folder.resolve(size + ".bin");
+				Files.write(file, content);
+
+				assertArrayEquals(MessageDigest.getInstance("MD5").digest(content), FileHasher.hash(file));
+			}
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void cacheKeyTest() throws Exception {
+		Path folder = Files.createTempDirectory("hasher");
+		try {
+			Path file = folder.resolve("a.txt");
+			Files.write(file, "abc".getBytes("UTF-8"));
+			Files.setLastModifiedTime(file, FileTime.fromMillis(1000000));
+			FileHasher hasher = new FileHasher(2);
+			byte[] first = hash(hasher, file);
+
+			// the same size and modification time, so the cached hash is used
+			Files.write(file, "abd".getBytes("UTF-8"));
+			Files.setLastModifiedTime(file, FileTime.fromMillis(1000000));
+			assertArrayEquals(first, hash(hasher, file));
+
+			Files.setLastModifiedTime(file, FileTime.fromMillis(2000000));
+			byte[] second = hash(hasher, file);
+			assertFalse(Arrays.equals(first, second));
+			assertArrayEquals(FileHasher.hash(file), second);
+
+			Files.write(file, "abcd".getBytes("UTF-8"));
+			Files.setLastModifiedTime(file, FileTime.fromMillis(2000000));
+			assertArrayEquals(FileHasher.hash(file), hash(hasher, file));
+		} finally {
+			delete(folder);
+		}
+	}
+
+	private static byte[] hash(FileHasher hasher, Path file) throws IOException {
+		FileEntry entry = FileEntry.fromAttributes(file.getFileName().toString(),
+				Files.readAttributes(file, BasicFileAttributes.class));
+		return hasher.hash(Collections.singletonMap(file, entry)).get(file);
+	}
+
+	private static void delete(Path path) throws IOException {
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -0,0 +1,77 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void emptyTest() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMeanNanos());
+		assertEquals(0, histogram.getPercentileNanos(50));
+	}
+
+	@Test
+	public void percentileTest() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		// 90 durations of 10 us, 10 of 5 ms
+		for (int i = 0; i < 90; i++) {
+			histogram.record(10000);
+		}
+		for (int i = 0; i < 10; i++) {
+			histogram.record(5000000);
+		}
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(90 * 10000L + 10 * 5000000L, histogram.getTotalNanos());
+		assertEquals(509000, histogram.getMeanNanos());
+		assertEquals(5000000, histogram.getMaxNanos());
+
+		// the upper bound of the bucket, within a factor of two of the duration
+		assertEquals(16000, histogram.getPercentileNanos(50));
+		assertEquals(16000, histogram.getPercentileNanos(90));
+		// not above the longest duration recorded
+		assertEquals(5000000, histogram.getPercentileNanos(95));
+		assertEquals(5000000, histogram.getPercentileNanos(100));
+	}
+
+	@Test
+	public void extremeDurationsTest() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(0);
+		histogram.record(Long.MAX_VALUE / 2);
+
+		assertEquals(2000, histogram.getPercentileNanos(50));
+		assertEquals(Long.MAX_VALUE / 2, histogram.getPercentileNanos(100));
+	}
+
+	@Test
+	public void concurrentRecordTest() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 1; i <= 10000; i++) {
+						histogram.record(i * 1000L + offset);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(40000, histogram.getCount());
+		assertEquals(10000003, histogram.getMaxNanos());
+		assertTrue(histogram.getPercentileNanos(50) >= 5000000);
+		assertTrue(histogram.getPercentileNanos(50) <= 2 * 5000000);
+	}
+}
@@ -0,0 +1,158 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LocalCopyEngineTest {
+
+	private static final int MB = 1024 * 1024;
+
+	@Test
+	public void copyReplacesTargetTest() throws Exception {
+		Path folder = Files.createTempDirectory("copy");
+		try {
+			Path source = folder.resolve("a.txt");
+			Path target = folder.resolve("b.txt");
+			Files.write(source, "new".getBytes("UTF-8"));
+			Files.write(target, "old, and longer".getBytes("UTF-8"));
+
+			new LocalCopyEngine().copy(source, target);
+
+			assertEquals("new", new String(Files.readAllBytes(target), "UTF-8"));
+			// the temporary file was renamed over the target
+			assertEquals(2, folder.toFile().list().length);
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void attributesArePreservedTest() throws Exception {
+		Path folder = Files.createTempDirectory("copy");
+		try {
+			Path source = folder.resolve("a.sh");
+			Path target = folder.resolve("b.sh");
+			Files.write(source, "#!/bin/sh".getBytes("UTF-8"));
+			Files.setPosixFilePermissions(source, PosixFilePermissions.fromString("rwxr-x---"));
+			Files.setLastModifiedTime(source, FileTime.fromMillis(1500000000000L));
+
+			new LocalCopyEngine().copy(source, target);
+
+			assertEquals("rwxr-x---", PosixFilePermissions.toString(Files.getPosixFilePermissions(target)));
+			assertEquals(1500000000000L, Files.getLastModifiedTime(target).toMillis());
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void sparseCopyTest() throws Exception {
+		Path folder = Files.createTempDirectory("copy");
+		try {
+			// data at both ends of the first 4 MiB, then a trailing hole
+			Path source = folder.resolve("disk.img");
+			byte[] data = random(100000);
+			try (RandomAccessFile file = new RandomAccessFile(source.toFile(), "rw")) {
+				file.write(data);
+				file.seek(3 * MB + 17);
+				file.write(data);
+				file.setLength(6 * MB);
+			}
+
+			Path target = folder.resolve("copy.img");
+			new LocalCopyEngine(properties(LocalCopyEngine.REFLINK_PROPERTY, LocalCopyEngine.NEVER)).copy(source,
+					target);
+
+			assertEquals(6 * MB, Files.size(target));
+			assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(target));
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void copyWithoutZeroBlocksTest() throws Exception {
+		Path folder = Files.createTempDirectory("copy");
+		try {
+			Path source = folder.resolve("random.bin");
+			Files.write(source, random(2 * MB + 123));
+
+			for (String sparse : Arrays.asList(LocalCopyEngine.AUTO, LocalCopyEngine.NEVER)) {
+				Path target = folder.resolve("copy-" + sparse + ".bin");
+				new LocalCopyEngine(properties(LocalCopyEngine.SPARSE_PROPERTY, sparse)).copy(source, target);
+				assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(target));
+			}
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void reflinkFallbackTest() throws Exception {
+		assertTrue(LocalCopyEngine.isUnsupported(
+				"cp: failed to clone 'b' from 'a': Operation not supported"));
+		assertTrue(LocalCopyEngine.isUnsupported(
+				"cp: failed to clone 'b' from 'a': Inappropriate ioctl for device"));
+		assertFalse(LocalCopyEngine.isUnsupported("cp: error writing 'b': No space left on device"));
+
+		Path folder = Files.createTempDirectory("copy");
+		try {
+			// a file large enough to be cloned, which falls back to a copy where clones are not supported
+			Path source = folder.resolve("random.bin");
+			Files.write(source, random(2 * MB));
+			Path target = folder.resolve("copy.bin");
+			new LocalCopyEngine(properties(LocalCopyEngine.REFLINK_PROPERTY, LocalCopyEngine.AUTO)).copy(source,
+					target);
+
+			assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(target));
+			assertEquals(2, folder.toFile().list().length);
+		} finally {
+			delete(folder);
+		}
+	}
+
+	private static Properties properties(String name, String value) {
+		Properties properties = new Properties();
+		properties.setProperty(name, value);
+		return properties;
+	}
+
+	private static byte[] random(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static void delete(Path path) throws IOException {
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
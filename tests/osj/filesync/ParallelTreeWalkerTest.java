@@ -0,0 +1,244 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ParallelTreeWalkerTest {
+
+	private static final List<String> FOLDERS = Arrays.asList("", "docs", "docs/api", "docs/api/v1", "src",
+			"src/osj", "build");
+
+	@Test
+	public void eachFolderIsVisitedOnceTest() throws Exception {
+		Path folder = Files.createTempDirectory("walker");
+		try {
+			Path source = folder.resolve("source");
+			Path destination = folder.resolve("destination");
+			tree(source);
+			Files.createDirectories(destination.resolve("docs"));
+
+			RecordingVisitor visitor = new RecordingVisitor();
+			new ParallelTreeWalker(4).walk(new LocalSyncEndpoint(source), new LocalSyncEndpoint(destination),
+					visitor);
+
+			assertEquals(new HashSet<String>(FOLDERS), visitor.visited);
+			assertEquals(FOLDERS.size(), visitor.visits.get());
+			assertTrue(visitor.parentsFirst);
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void excludedFoldersAreNotWalkedTest() throws Exception {
+		Path folder = Files.createTempDirectory("walker");
+		try {
+			Path source = folder.resolve("source");
+			Path destination = folder.resolve("destination");
+			tree(source);
+			Files.createDirectories(destination);
+
+			RecordingVisitor visitor = new RecordingVisitor();
+			new ParallelTreeWalker(2).walk(new LocalSyncEndpoint(source), new LocalSyncEndpoint(destination),
+					visitor, new CompiledPathFilter(Arrays.asList("docs/api"), Arrays.asList("docs/api/v1")));
+
+			// the folders leading to the included one are walked, but nothing beside it
+			assertEquals(new HashSet<String>(Arrays.asList("", "docs", "docs/api")), visitor.visited);
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void tempAndPartialFilesAreNotAcceptedTest() throws Exception {
+		assertTrue(ParallelTreeWalker.accept("docs/vm.img"));
+		assertFalse(ParallelTreeWalker.accept(ResumableUploadTransfer.partialPathOf("docs/vm.img")));
+		assertFalse(ParallelTreeWalker.accept(TempFiles.tempPathOf("docs/vm.img")));
+		assertFalse(ParallelTreeWalker.accept("build/a.class", new CompiledPathFilter(null, Arrays.asList("build"))));
+	}
+
+	@Test
+	public void unchangedDestinationFoldersAreNotListedTest() throws Exception {
+		Path folder = Files.createTempDirectory("walker");
+		try {
+			Path source = folder.resolve("source");
+			Path destination = folder.resolve("destination");
+			tree(source);
+			File indexFile = sync(source, destination, folder);
+
+			CountingEndpoint sourceEndpoint = new CountingEndpoint(source);
+			CountingEndpoint destinationEndpoint = new CountingEndpoint(destination);
+			ParallelTreeWalker walker = new ParallelTreeWalker(2);
+			walker.setPreviousIndex(SyncIndex.load(indexFile, "source", "destination"), false);
+			RecordingVisitor visitor = new RecordingVisitor();
+			walker.walk(sourceEndpoint, destinationEndpoint, visitor);
+
+			assertEquals(new HashSet<String>(FOLDERS), visitor.visited);
+			assertEquals(FOLDERS.size(), sourceEndpoint.listed.size());
+			assertEquals(Collections.emptySet(), destinationEndpoint.listed);
+			// the recorded children stand in for the listing
+			assertEquals(new HashSet<String>(Arrays.asList("api", "readme.txt")),
+					visitor.destinationChildren.get("docs"));
+
+			// a folder changed out of band is listed
+			Files.write(destination.resolve("docs/api/extra.txt"), new byte[1]);
+			touch(destination.resolve("docs/api"));
+			destinationEndpoint.listed.clear();
+			visitor = new RecordingVisitor();
+			walker.walk(sourceEndpoint, destinationEndpoint, visitor);
+
+			assertEquals(Collections.singleton("docs/api"), destinationEndpoint.listed);
+			assertTrue(visitor.destinationChildren.get("docs/api").contains("extra.txt"));
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void unchangedFoldersAreSkippedWithTrustedTimestampsTest() throws Exception {
+		Path folder = Files.createTempDirectory("walker");
+		try {
+			Path source = folder.resolve("source");
+			Path destination = folder.resolve("destination");
+			tree(source);
+			File indexFile = sync(source, destination, folder);
+
+			// a change to the source is seen in the folder which holds it only
+			Files.write(source.resolve("docs/api/new.txt"), new byte[1]);
+			touch(source.resolve("docs/api"));
+
+			CountingEndpoint sourceEndpoint = new CountingEndpoint(source);
+			CountingEndpoint destinationEndpoint = new CountingEndpoint(destination);
+			ParallelTreeWalker walker = new ParallelTreeWalker(2);
+			walker.setPreviousIndex(SyncIndex.load(indexFile, "source", "destination"), true);
+			RecordingVisitor visitor = new RecordingVisitor();
+			walker.walk(sourceEndpoint, destinationEndpoint, visitor);
+
+			assertEquals(Collections.singleton("docs/api"), visitor.visited);
+			assertEquals(Collections.singleton("docs/api"), sourceEndpoint.listed);
+			assertEquals(Collections.emptySet(), destinationEndpoint.listed);
+			assertEquals(new HashSet<String>(Arrays.asList("", "docs", "docs/api/v1", "src", "src/osj", "build")),
+					visitor.skipped);
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidParallelismTest() throws Exception {
+		new ParallelTreeWalker(0);
+	}
+
+	/**
+	 * Syncs the source to the destination, recording their state in an
+	 * index file.
+	 *
+	 * @return the index file
+	 */
+	private static File sync(Path source, Path destination, Path folder) throws Exception {
+		File indexFile = folder.resolve("index").toFile();
+		LocalSyncEndpoint sourceEndpoint = new LocalSyncEndpoint(source);
+		LocalSyncEndpoint destinationEndpoint = new LocalSyncEndpoint(destination);
+		SyncPipeline pipeline = new SyncPipeline(sourceEndpoint, destinationEndpoint,
+				new LocalFileTransfer(sourceEndpoint, destinationEndpoint));
+		pipeline.setIndexFile(indexFile, "source", "destination");
+		pipeline.run(false);
+		return indexFile;
+	}
+
+	private static void tree(Path root) throws IOException {
+		for (String folder : FOLDERS) {
+			Files.createDirectories(root.resolve(folder));
+		}
+		Files.write(root.resolve("docs/readme.txt"), new byte[1]);
+		Files.write(root.resolve("docs/api/v1/index.html"), new byte[1]);
+		Files.write(root.resolve("src/osj/Main.java"), new byte[1]);
+	}
+
+	/**
+	 * Moves the modification time of the folder on, as the file system
+	 * clock may not have moved since the sync.
+	 */
+	private static void touch(Path folder) throws IOException {
+		FileTime lastModified = Files.getLastModifiedTime(folder);
+		Files.setLastModifiedTime(folder, FileTime.fromMillis(lastModified.toMillis() + 10000));
+	}
+
+	/**
+	 * Records the folders the walker visits, and whether each was visited
+	 * after its parent.
+	 */
+	private static class RecordingVisitor implements ParallelTreeWalker.DirectoryVisitor {
+
+		final Set<String> visited = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final Set<String> skipped = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final Map<String, Set<String>> destinationChildren = new ConcurrentHashMap<String, Set<String>>();
+		final AtomicInteger visits = new AtomicInteger();
+		volatile boolean parentsFirst = true;
+
+		public void visitDirectory(String relativePath, Map<String, FileEntry> sourceChildren,
+				Map<String, FileEntry> destinationChildren) {
+			visits.incrementAndGet();
+			if (!relativePath.isEmpty() && !visited.contains(SyncIndex.parentOf(relativePath))) {
+				parentsFirst = false;
+			}
+			visited.add(relativePath);
+			this.destinationChildren.put(relativePath, new HashSet<String>(destinationChildren.keySet()));
+		}
+
+		public void skipDirectory(String relativePath, Map<String, FileEntry> sourceFolders) {
+			skipped.add(relativePath);
+		}
+	}
+
+	private static class CountingEndpoint extends LocalSyncEndpoint {
+
+		final Set<String> listed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		CountingEndpoint(Path basePath) {
+			super(basePath);
+		}
+
+		@Override
+		public Map<String, FileEntry> list(String relativePath) throws IOException {
+			listed.add(relativePath);
+			return super.list(relativePath);
+		}
+	}
+
+	private static void delete(Path path) throws IOException {
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
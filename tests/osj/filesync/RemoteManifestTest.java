@@ -0,0 +1,61 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class RemoteManifestTest {
+
+	@Test
+	public void readTest() throws Exception {
+		RemoteManifest manifest = read("d 4096 1500000000.5000000000 docs\0"
+				+ "f 12 1500000001.9990000000 docs/read me.txt\0"
+				+ "d 4096 1500000002.0000000000 docs/api\0"
+				+ "f 0 1500000003.0000000000 docs/api/été.txt\0"
+				+ "f 7 1500000004.0000000000 top.txt\0");
+
+		assertEquals(3, manifest.getFolderCount());
+		assertEquals(new HashSet<String>(Arrays.asList("docs", "top.txt")), manifest.list("").keySet());
+		assertEquals(new HashSet<String>(Arrays.asList("read me.txt", "api")), manifest.list("docs").keySet());
+
+		FileEntry folder = manifest.stat("docs");
+		assertTrue(folder.isDirectory());
+		assertEquals(1500000000000L, folder.getLastModified());
+
+		// names keep their spaces and characters, times are cut to the second
+		FileEntry file = manifest.stat("docs/read me.txt");
+		assertFalse(file.isDirectory());
+		assertEquals("docs/read me.txt", file.getRelativePath());
+		assertEquals(12, file.getSize());
+		assertEquals(1500000001000L, file.getLastModified());
+		assertEquals(0, manifest.stat("docs/api/été.txt").getSize());
+	}
+
+	@Test
+	public void emptyFoldersAreListedTest() throws Exception {
+		RemoteManifest manifest = read("d 4096 1500000000.0000000000 empty\0");
+
+		assertTrue(manifest.list("empty").isEmpty());
+		assertTrue(manifest.list("missing").isEmpty());
+		assertNull(manifest.stat("missing/a.txt"));
+	}
+
+	@Test(expected = IOException.class)
+	public void unexpectedOutputTest() throws Exception {
+		read("find: '/data/private': Permission denied\0");
+	}
+
+	private static RemoteManifest read(String output) throws IOException {
+		RemoteManifest manifest = new RemoteManifest();
+		manifest.read(new ByteArrayInputStream(output.getBytes("UTF-8")));
+		return manifest;
+	}
+}
@@ -1,5 +1,11 @@
 package osj.filesync;
 
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import org.junit.Test;
 
 public class RsyncFileSynchroniserTest {
@@ -37,4 +43,48 @@ public class RsyncFileSynchroniserTest {
 				FileSynchroniser.SyncDirection.TO_REMOTE, null, true, null);
 
 	}
+
+	@Test
+	public void includedFileFilterRulesTest() throws Exception {
+		// the folders leading to the file are included, so rsync descends into them
+		assertEquals(Arrays.asList("--include=/docs/", "--include=/docs/a.txt", "--include=/docs/a.txt/***",
+				"--exclude=*"), RsyncFileSynchroniser.filterRules(Arrays.asList("docs/a.txt"), null));
+	}
+
+	@Test
+	public void excludedFilterRulesTest() throws Exception {
+		// '**/' also matches no folder, as in a CompiledPathFilter
+		assertEquals(Arrays.asList("--exclude=/**/*.tmp", "--exclude=/*.tmp", "--exclude=/build"),
+				RsyncFileSynchroniser.filterRules(null, Arrays.asList("build", "**/*.tmp")));
+		assertEquals(Collections.emptyList(),
+				RsyncFileSynchroniser.filterRules(Collections.<String>emptyList(), null));
+	}
+
+	@Test
+	public void anyDepthFilterRulesTest() throws Exception {
+		assertEquals(Arrays.asList("--exclude=/docs/old", "--include=/src/", "--include=*/", "--prune-empty-dirs",
+				"--include=/docs", "--include=/docs/***", "--include=/src/**/*.java", "--include=/src/**/*.java/***",
+				"--include=/src/*.java", "--include=/src/*.java/***", "--exclude=*"),
+				RsyncFileSynchroniser.filterRules(Arrays.asList("src/**/*.java", "docs"), Arrays.asList("docs/old")));
+	}
+
+	@Test
+	public void includedPathsAreCoalescedTest() throws Exception {
+		// paths below an included folder are covered by it, and separators trimmed
+		assertEquals(Arrays.asList("--include=/docs", "--include=/docs/***", "--include=/x", "--include=/x/***",
+				"--exclude=*"), RsyncFileSynchroniser.filterRules(Arrays.asList("docs/a", "docs", "/x/"), null));
+	}
+
+	@Test
+	public void partitionTest() throws Exception {
+		List<String> paths = Arrays.asList("a", "b", "c", "d", "e");
+
+		assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c", "d", "e")),
+				RsyncFileSynchroniser.partition(paths, 2));
+		assertEquals(Arrays.asList(paths), RsyncFileSynchroniser.partition(paths, 1));
+		assertEquals(Arrays.asList(paths), RsyncFileSynchroniser.partition(paths, 0));
+		// no more partitions than paths, and none empty
+		assertEquals(5, RsyncFileSynchroniser.partition(paths, 8).size());
+		assertEquals(0, RsyncFileSynchroniser.partition(Collections.<String>emptyList(), 3).size());
+	}
 }
@@ -0,0 +1,153 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RsyncOutputParserTest {
+
+	@Test
+	public void transferredFileTest() throws Exception {
+		RecordingMetrics metrics = new RecordingMetrics();
+		RsyncOutputParser parser = new RsyncOutputParser(metrics, Collections.<SyncListener>emptyList());
+		parser.parseLine(">f+++++++++|1,234|2024/01/02-03:04:05|docs/a.txt");
+
+		assertEquals(1, metrics.transferred.size());
+		SyncAction action = metrics.transferred.get(0);
+		assertEquals(SyncAction.Type.COPY, action.getType());
+		assertEquals("docs/a.txt", action.getRelativePath());
+		assertEquals(1234, action.getSourceEntry().getSize());
+		assertEquals(new SimpleDateFormat("yyyy/MM/dd-HH:mm:ss").parse("2024/01/02-03:04:05").getTime(),
+				action.getSourceEntry().getLastModified());
+		assertEquals(1234, metrics.bytes);
+	}
+
+	@Test
+	public void pipeInNameTest() throws Exception {
+		RecordingMetrics metrics = new RecordingMetrics();
+		RsyncOutputParser parser = new RsyncOutputParser(metrics, Collections.<SyncListener>emptyList());
+		parser.parseLine("<f.st......|10|2024/01/02-03:04:05|a|b.txt");
+
+		assertEquals("a|b.txt", metrics.transferred.get(0).getRelativePath());
+	}
+
+	@Test
+	public void emptyTimeFieldTest() throws Exception {
+		// as written with OUT_FORMAT_WITHOUT_TIME, for rsync before 3.0
+		RecordingMetrics metrics = new RecordingMetrics();
+		RsyncOutputParser parser = new RsyncOutputParser(metrics, Collections.<SyncListener>emptyList());
+		parser.parseLine(">f+++++++++|5||old/file");
+
+		assertEquals("old/file", metrics.transferred.get(0).getRelativePath());
+		assertEquals(0, metrics.transferred.get(0).getSourceEntry().getLastModified());
+	}
+
+	@Test
+	public void directoryAndDeletionTest() throws Exception {
+		RecordingMetrics metrics = new RecordingMetrics();
+		final List<SyncAction> completed = new ArrayList<SyncAction>();
+		RsyncOutputParser parser = new RsyncOutputParser(metrics,
+				Collections.<SyncListener>singletonList(new SyncListener() {
+					@Override
+					public void actionCompleted(SyncAction action) {
+						completed.add(action);
+					}
+				}));
+		parser.parseLine("cd+++++++++|4,096|2024/01/02-03:04:05|docs/new/");
+		parser.parseLine("*deleting  |0|2024/01/02-03:04:05|docs/old.txt");
+		parser.parseLine("*deleting  |0|2024/01/02-03:04:05|docs/gone/");
+		// attribute changes only are not reported
+		parser.parseLine(".f..t......|10|2024/01/02-03:04:05|docs/touched.txt");
+
+		assertEquals(1, metrics.directories.size());
+		assertEquals("docs/new", metrics.directories.get(0).getRelativePath());
+		assertEquals(2, metrics.deleted.size());
+		assertEquals("docs/old.txt", metrics.deleted.get(0).getRelativePath());
+		assertEquals(SyncAction.Type.DELETE, metrics.deleted.get(1).getType());
+		assertEquals("docs/gone", metrics.deleted.get(1).getRelativePath());
+		assertTrue(metrics.deleted.get(1).getDestinationEntry().isDirectory());
+		assertEquals(2, parser.getDeletionCount());
+		assertEquals(0, metrics.transferred.size());
+		assertEquals(3, completed.size());
+	}
+
+	@Test
+	public void progressLineTest() throws Exception {
+		RecordingMetrics metrics = new RecordingMetrics();
+		RsyncOutputParser parser = new RsyncOutputParser(metrics, Collections.<SyncListener>emptyList());
+		parser.parseLine("      1,234,567  45%    1.00MB/s    0:00:01 (xfr#3, to-chk=12/40)");
+		parser.parseLine("          4,096  10%    2.00kB/s    0:00:02 (xfr#1, ir-chk=5/9)");
+		parser.parseLine("          8,192 100%    4.00kB/s    0:00:02");
+
+		assertEquals(Integer.valueOf(12), metrics.depths.get(0));
+		assertEquals(Integer.valueOf(5), metrics.depths.get(1));
+		assertEquals(2, metrics.depths.size());
+		assertEquals(0, metrics.transferred.size());
+		assertEquals("", parser.getMessages());
+	}
+
+	@Test
+	public void parseStreamTest() throws Exception {
+		RecordingMetrics metrics = new RecordingMetrics();
+		RsyncOutputParser parser = new RsyncOutputParser(metrics, Collections.<SyncListener>emptyList());
+		String output = ">f+++++++++|1|2024/01/02-03:04:05|a.txt\n"
+				+ "              1  50%    1.00kB/s    0:00:00 (xfr#1, to-chk=1/2)\r"
+				+ "rsync: link_stat \"/missing\" failed: No such file or directory (2)\n"
+				+ ">f+++++++++|2|2024/01/02-03:04:05|b.txt";
+		parser.parse(new ByteArrayInputStream(output.getBytes("UTF-8")));
+
+		assertEquals(2, metrics.transferred.size());
+		assertEquals("b.txt", metrics.transferred.get(1).getRelativePath());
+		assertEquals(Integer.valueOf(1), metrics.depths.get(0));
+		assertEquals("rsync: link_stat \"/missing\" failed: No such file or directory (2)", parser.getMessages());
+	}
+
+	@Test
+	public void longLineIsCutTest() throws Exception {
+		RsyncOutputParser parser = new RsyncOutputParser(SyncMetrics.NOOP, Collections.<SyncListener>emptyList());
+		byte[] line = new byte[RsyncOutputParser.MAX_LINE_LENGTH * 2];
+		Arrays.fill(line, (byte) 'x');
+		parser.parse(new ByteArrayInputStream(line));
+
+		assertEquals(RsyncOutputParser.MAX_LINE_LENGTH, parser.getMessages().length());
+	}
+
+	private static class RecordingMetrics extends SyncMetrics.Noop {
+
+		final List<SyncAction> transferred = new ArrayList<SyncAction>();
+		final List<SyncAction> directories = new ArrayList<SyncAction>();
+		final List<SyncAction> deleted = new ArrayList<SyncAction>();
+		final List<Integer> depths = new ArrayList<Integer>();
+		long bytes;
+
+		@Override
+		public void fileTransferred(SyncAction action, long bytes, long nanos) {
+			transferred.add(action);
+			this.bytes += bytes;
+		}
+
+		@Override
+		public void directoryCreated(SyncAction action) {
+			directories.add(action);
+		}
+
+		@Override
+		public void entryDeleted(SyncAction action, long nanos) {
+			deleted.add(action);
+		}
+
+		@Override
+		public void queueDepth(String queue, int depth) {
+			assertEquals(RsyncOutputParser.TO_CHECK_QUEUE, queue);
+			depths.add(depth);
+		}
+	}
+}
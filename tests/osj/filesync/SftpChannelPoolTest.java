@@ -0,0 +1,121 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSch;
+
+public class SftpChannelPoolTest {
+
+	@Test
+	public void channelsAreReusedTest() throws Exception {
+		RecordingPool pool = new RecordingPool(2);
+
+		ChannelSftp first = pool.borrow();
+		pool.release(first);
+		assertSame(first, pool.borrow());
+		ChannelSftp second = pool.borrow();
+
+		assertEquals(2, pool.opened.size());
+		pool.release(first);
+		pool.release(second);
+		pool.close();
+		assertEquals(2, pool.disconnected.size());
+	}
+
+	@Test
+	public void borrowWaitsForAChannelTest() throws Exception {
+		final RecordingPool pool = new RecordingPool(1);
+		ChannelSftp channel = pool.borrow();
+
+		final AtomicReference<ChannelSftp> waited = new AtomicReference<ChannelSftp>();
+		final CountDownLatch borrowed = new CountDownLatch(1);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					waited.set(pool.borrow());
+					borrowed.countDown();
+				} catch (IOException ex) {
+					// the test fails on the latch
+				}
+			}
+		};
+		thread.start();
+		try {
+			assertTrue(!borrowed.await(200, TimeUnit.MILLISECONDS));
+			pool.release(channel);
+			assertTrue(borrowed.await(5, TimeUnit.SECONDS));
+			assertSame(channel, waited.get());
+			assertEquals(1, pool.opened.size());
+		} finally {
+			thread.interrupt();
+			thread.join();
+		}
+	}
+
+	@Test
+	public void sessionDownTest() throws Exception {
+		SftpChannelPool pool = new SftpChannelPool(new JSch().getSession("user", "localhost"), 1);
+		for (int i = 0; i < 2; i++) {
+			try {
+				pool.borrow();
+				fail();
+			} catch (IOException ex) {
+				// a channel which failed to open does not take up the pool
+				assertEquals("Unable to open an SFTP channel to localhost", ex.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void channelCountTest() throws Exception {
+		EndpointConfiguration endpoint = new EndpointConfiguration("sftp://user@localhost/data");
+		assertEquals(SftpChannelPool.DEFAULT_CHANNELS, SftpChannelPool.getChannelCount(endpoint));
+		endpoint.getConfigurationProperties().setProperty(SftpChannelPool.CHANNELS_PROPERTY, " 8 ");
+		assertEquals(8, SftpChannelPool.getChannelCount(endpoint));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidChannelCountTest() throws Exception {
+		new SftpChannelPool(null, 0);
+	}
+
+	/**
+	 * Hands out channels which are never connected, recording those opened
+	 * and disconnected.
+	 */
+	private static class RecordingPool extends SftpChannelPool {
+
+		final List<ChannelSftp> opened = new ArrayList<ChannelSftp>();
+		final List<ChannelSftp> disconnected = new ArrayList<ChannelSftp>();
+
+		RecordingPool(int channelCount) {
+			super(null, channelCount);
+		}
+
+		@Override
+		ChannelSftp open() {
+			ChannelSftp channel = new ChannelSftp() {
+				@Override
+				public void disconnect() {
+					disconnected.add(this);
+				}
+			};
+			opened.add(channel);
+			return channel;
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.Test;
+
+public class SftpDownloadTransferTest {
+
+	@Test
+	public void permissionsOfModeTest() throws Exception {
+		assertEquals(PosixFilePermissions.fromString("rw-r--r--"), SftpDownloadTransfer.permissionsOf(0644));
+		assertEquals(PosixFilePermissions.fromString("rwxr-x---"), SftpDownloadTransfer.permissionsOf(0750));
+		// the file type and setuid bits of an sftp mode are left out
+		assertEquals(PosixFilePermissions.fromString("rwx--x--x"), SftpDownloadTransfer.permissionsOf(0104711));
+	}
+}
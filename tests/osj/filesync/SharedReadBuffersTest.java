@@ -0,0 +1,158 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SharedReadBuffersTest {
+
+	@Test
+	public void sharedReadTest() throws Exception {
+		Path folder = Files.createTempDirectory("buffers");
+		try {
+			byte[] data = write(folder.resolve("a.bin"), 1000);
+			CountingEndpoint source = new CountingEndpoint(folder);
+			SharedReadBuffers buffers = new SharedReadBuffers(source, 10000, 10000);
+			FileEntry entry = source.stat("a.bin");
+			source.resolved.set(0);
+
+			buffers.expect("a.bin");
+			buffers.expect("a.bin");
+			byte[] first = buffers.acquire(entry);
+			byte[] second = buffers.acquire(entry);
+
+			assertArrayEquals(data, first);
+			assertSame(first, second);
+			assertEquals(1, source.resolved.get());
+			assertEquals(1000, buffers.getBufferedBytes());
+
+			// the content is held until the last announced transfer is done
+			buffers.release("a.bin");
+			assertEquals(1000, buffers.getBufferedBytes());
+			buffers.release("a.bin");
+			assertEquals(0, buffers.getBufferedBytes());
+			assertNull(buffers.acquire(entry));
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void unbufferedFilesTest() throws Exception {
+		Path folder = Files.createTempDirectory("buffers");
+		try {
+			write(folder.resolve("single.bin"), 100);
+			write(folder.resolve("large.bin"), 2000);
+			write(folder.resolve("a.bin"), 600);
+			write(folder.resolve("b.bin"), 600);
+			LocalSyncEndpoint source = new LocalSyncEndpoint(folder);
+			SharedReadBuffers buffers = new SharedReadBuffers(source, 1000, 1000);
+
+			// not announced, needed by one target, or larger than the maximum file size
+			assertNull(buffers.acquire(source.stat("a.bin")));
+			buffers.expect("single.bin");
+			assertNull(buffers.acquire(source.stat("single.bin")));
+			buffers.expect("large.bin");
+			buffers.expect("large.bin");
+			assertNull(buffers.acquire(source.stat("large.bin")));
+
+			// over the capacity
+			for (String path : new String[] { "a.bin", "a.bin", "b.bin", "b.bin" }) {
+				buffers.expect(path);
+			}
+			assertEquals(600, buffers.acquire(source.stat("a.bin")).length);
+			assertNull(buffers.acquire(source.stat("b.bin")));
+			assertEquals(600, buffers.getBufferedBytes());
+
+			for (String path : new String[] { "single.bin", "large.bin", "large.bin", "a.bin", "a.bin", "b.bin",
+					"b.bin" }) {
+				buffers.release(path);
+			}
+			assertEquals(0, buffers.getBufferedBytes());
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void failedReadIsReleasedTest() throws Exception {
+		Path folder = Files.createTempDirectory("buffers");
+		try {
+			LocalSyncEndpoint source = new LocalSyncEndpoint(folder);
+			SharedReadBuffers buffers = new SharedReadBuffers(source, 10000, 10000);
+			FileEntry missing = new FileEntry("missing.bin", false, 100, 1500000000000L, null);
+
+			buffers.expect("missing.bin");
+			buffers.expect("missing.bin");
+			for (int i = 0; i < 2; i++) {
+				try {
+					buffers.acquire(missing);
+					fail();
+				} catch (IOException ex) {
+					// each transfer sees the failure
+				}
+			}
+			assertEquals(100, buffers.getBufferedBytes());
+
+			buffers.release("missing.bin");
+			buffers.release("missing.bin");
+			assertEquals(0, buffers.getBufferedBytes());
+		} finally {
+			delete(folder);
+		}
+	}
+
+	private static byte[] write(Path file, int length) throws IOException {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) i;
+		}
+		Files.write(file, data);
+		return data;
+	}
+
+	private static class CountingEndpoint extends LocalSyncEndpoint {
+
+		final AtomicInteger resolved = new AtomicInteger();
+
+		CountingEndpoint(Path basePath) {
+			super(basePath);
+		}
+
+		@Override
+		public Path resolve(String relativePath) {
+			if (!relativePath.isEmpty()) {
+				resolved.incrementAndGet();
+			}
+			return super.resolve(relativePath);
+		}
+	}
+
+	private static void delete(Path path) throws IOException {
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
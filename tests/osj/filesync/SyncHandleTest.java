@@ -0,0 +1,152 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class SyncHandleTest {
+
+	@Test
+	public void completedTest() throws Exception {
+		SyncHandle handle = handle(new Callable<SyncReport>() {
+			public SyncReport call() {
+				return null;
+			}
+		});
+		RecordingCallback before = new RecordingCallback();
+		handle.addCallback(before);
+		handle.getTask().run();
+
+		assertTrue(handle.isDone());
+		assertNull(handle.get());
+		assertEquals(1, before.completed);
+		assertNull(before.failure);
+
+		// a callback added once the sync has ended is told at once
+		RecordingCallback after = new RecordingCallback();
+		handle.addCallback(after);
+		assertEquals(1, after.completed);
+	}
+
+	@Test
+	public void failedTest() throws Exception {
+		final FileSyncException failure = new FileSyncException("failed");
+		SyncHandle handle = handle(new Callable<SyncReport>() {
+			public SyncReport call() throws Exception {
+				throw failure;
+			}
+		});
+		RecordingCallback callback = new RecordingCallback();
+		handle.addCallback(callback);
+		handle.getTask().run();
+
+		assertEquals(0, callback.completed);
+		assertEquals(failure, callback.failure);
+	}
+
+	@Test
+	public void cancelledBeforeStartTest() throws Exception {
+		final AtomicBoolean ran = new AtomicBoolean();
+		SyncHandle handle = handle(new Callable<SyncReport>() {
+			public SyncReport call() {
+				ran.set(true);
+				return null;
+			}
+		});
+		RecordingCallback callback = new RecordingCallback();
+		handle.addCallback(callback);
+
+		assertTrue(handle.cancel());
+		assertTrue(callback.failure instanceof CancellationException);
+
+		// the executor may still run the task, which does not start the sync
+		handle.getTask().run();
+		assertFalse(ran.get());
+		assertEquals(1, callback.calls());
+	}
+
+	@Test
+	public void cancelledWhileRunningTest() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch stop = new CountDownLatch(1);
+		final AtomicBoolean returned = new AtomicBoolean();
+		SyncHandle handle = handle(new Callable<SyncReport>() {
+			public SyncReport call() throws Exception {
+				started.countDown();
+				// a sync which takes a while to stop once interrupted
+				while (true) {
+					try {
+						stop.await();
+						break;
+					} catch (InterruptedException ex) {
+						continue;
+					}
+				}
+				returned.set(true);
+				throw new InterruptedException();
+			}
+		});
+		final CountDownLatch told = new CountDownLatch(1);
+		final AtomicBoolean returnedWhenTold = new AtomicBoolean();
+		handle.addCallback(new SyncCallback() {
+			public void completed(SyncReport report) {
+			}
+
+			public void failed(Throwable failure) {
+				returnedWhenTold.set(returned.get() && failure instanceof CancellationException);
+				told.countDown();
+			}
+		});
+		Thread thread = new Thread(handle.getTask());
+		thread.start();
+		try {
+			started.await();
+
+			assertTrue(handle.cancel());
+			assertTrue(handle.isDone());
+			assertFalse(told.await(200, TimeUnit.MILLISECONDS));
+
+			stop.countDown();
+			assertTrue(told.await(10, TimeUnit.SECONDS));
+			assertTrue(returnedWhenTold.get());
+		} finally {
+			stop.countDown();
+			thread.join();
+		}
+	}
+
+	private static SyncHandle handle(Callable<SyncReport> sync) {
+		return new SyncHandle(sync, new ProgressTracker(SyncMetrics.NOOP, 0));
+	}
+
+	private static class RecordingCallback implements SyncCallback {
+
+		int completed;
+		int failed;
+		Throwable failure;
+
+		public void completed(SyncReport report) {
+			completed++;
+		}
+
+		public void failed(Throwable failure) {
+			failed++;
+			this.failure = failure;
+		}
+
+		int calls() {
+			return completed + failed;
+		}
+	}
+}
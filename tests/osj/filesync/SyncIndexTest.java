@@ -0,0 +1,71 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+public class SyncIndexTest {
+
+	@Test
+	public void saveAndLoadTest() throws Exception {
+		SyncIndex index = new SyncIndex("file:///source", "file:///destination");
+		index.putRecord("", new SyncIndex.Record(folder(""), folder(""), null));
+		index.putRecord("docs", new SyncIndex.Record(folder("docs"), folder("docs"), null));
+		index.putRecord("docs/a.txt", new SyncIndex.Record(file("docs/a.txt", 12, 1000000),
+				file("docs/a.txt", 12, 2000000), new byte[] { 1, 2, 3, 4 }));
+		// recorded on the source only, by a one way sync which did not copy it
+		index.putRecord("b.txt", new SyncIndex.Record(file("b.txt", 5, 3000000), null, null));
+
+		File file = File.createTempFile("index", ".bin");
+		try {
+			index.save(file);
+			SyncIndex loaded = SyncIndex.load(file, "file:///source", "file:///destination");
+
+			for (String path : new String[] { "", "docs", "docs/a.txt", "b.txt" }) {
+				assertNotNull(path, loaded.getRecord(path));
+			}
+			SyncIndex.Record record = loaded.getRecord("docs/a.txt");
+			assertEquals("docs/a.txt", record.getSource().getRelativePath());
+			assertEquals(12, record.getSource().getSize());
+			assertEquals(1000000, record.getSource().getLastModified());
+			assertEquals(2000000, record.getDestination().getLastModified());
+			assertArrayEquals(new byte[] { 1, 2, 3, 4 }, record.getSourceHash());
+			assertTrue(loaded.getRecord("").getSource().isDirectory());
+			assertTrue(loaded.getRecord("docs").getDestination().isDirectory());
+			assertNull(loaded.getRecord("b.txt").getDestination());
+			assertNull(loaded.getRecord("b.txt").getSourceHash());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void loadForOtherEndpointsTest() throws Exception {
+		SyncIndex index = new SyncIndex("file:///source", "file:///destination");
+		index.putRecord("a.txt", new SyncIndex.Record(file("a.txt", 1, 1000000), file("a.txt", 1, 1000000), null));
+
+		File file = File.createTempFile("index", ".bin");
+		try {
+			index.save(file);
+
+			assertNull(SyncIndex.load(file, "file:///source", "file:///other").getRecord("a.txt"));
+		} finally {
+			file.delete();
+		}
+		assertNull(SyncIndex.load(file, "file:///source", "file:///destination").getRecord("a.txt"));
+	}
+
+	private static FileEntry folder(String relativePath) {
+		return new FileEntry(relativePath, true, 0, 0, null);
+	}
+
+	private static FileEntry file(String relativePath, long size, long lastModified) {
+		return new FileEntry(relativePath, false, size, lastModified, null);
+	}
+}
@@ -0,0 +1,332 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class SyncPipelineTest {
+
+	@Test
+	public void treeIsSyncedTest() throws Exception {
+		Path folder = Files.createTempDirectory("pipeline");
+		try {
+			Path source = folder.resolve("source");
+			Path destination = folder.resolve("destination");
+			write(source.resolve("a.txt"));
+			write(source.resolve("docs/b.txt"));
+			write(source.resolve("docs/api/c.txt"));
+			write(destination.resolve("old/d.txt"));
+
+			final List<SyncAction> actions = Collections.synchronizedList(new ArrayList<SyncAction>());
+			SyncPipeline pipeline = pipeline(source, destination);
+			pipeline.addSyncListener(new SyncListener() {
+				public void actionCompleted(SyncAction action) {
+					actions.add(action);
+				}
+			});
+			pipeline.run(false);
+
+			assertTrue(Files.exists(destination.resolve("a.txt")));
+			assertTrue(Files.exists(destination.resolve("docs/b.txt")));
+			assertTrue(Files.exists(destination.resolve("docs/api/c.txt")));
+			assertFalse(Files.exists(destination.resolve("old")));
+			// 3 copies, 2 folders created, a file and a folder deleted
+			assertEquals(7, actions.size());
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void boundedQueuesHoldBackTheScanTest() throws Exception {
+		Path folder = Files.createTempDirectory("pipeline");
+		try {
+			final Path source = folder.resolve("source");
+			final Path destination = folder.resolve("destination");
+			for (int i = 0; i < 50; i++) {
+				write(source.resolve("folder" + i + "/a.txt"));
+			}
+
+			final CountDownLatch release = new CountDownLatch(1);
+			final LocalFileTransfer copy = new LocalFileTransfer(new LocalSyncEndpoint(source),
+					new LocalSyncEndpoint(destination));
+			final SyncPipeline pipeline = new SyncPipeline(new LocalSyncEndpoint(source),
+					new LocalSyncEndpoint(destination), new FileTransfer() {
+						public void transfer(SyncAction action) throws IOException {
+							try {
+								release.await();
+							} catch (InterruptedException ex) {
+								throw new InterruptedIOException();
+							}
+							copy.transfer(action);
+						}
+					});
+			pipeline.setScanParallelism(1);
+			pipeline.setTransferThreads(1);
+			pipeline.setQueueCapacity(1);
+			final AtomicInteger listed = new AtomicInteger();
+			pipeline.setMetrics(new SyncMetrics.Noop() {
+				public void directoryListed(String relativePath, int entries) {
+					listed.incrementAndGet();
+				}
+			});
+
+			final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						pipeline.run(false);
+					} catch (Exception ex) {
+						failure.set(ex);
+					}
+				}
+			};
+			thread.start();
+			try {
+				Thread.sleep(500);
+				// the blocked transfer, one queued action and one queued listing hold back the scan
+				assertTrue("listed " + listed.get(), listed.get() < 10);
+			} finally {
+				release.countDown();
+				thread.join();
+			}
+
+			assertNull(failure.get());
+			assertEquals(51, listed.get());
+			for (int i = 0; i < 50; i++) {
+				assertTrue(Files.exists(destination.resolve("folder" + i + "/a.txt")));
+			}
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void transferFailureStopsTheSyncTest() throws Exception {
+		Path folder = Files.createTempDirectory("pipeline");
+		try {
+			Path source = folder.resolve("source");
+			Path destination = folder.resolve("destination");
+			for (int i = 0; i < 200; i++) {
+				write(source.resolve("folder" + (i % 20) + "/" + i + ".txt"));
+			}
+
+			final AtomicInteger transfers = new AtomicInteger();
+			SyncPipeline pipeline = new SyncPipeline(new LocalSyncEndpoint(source), new LocalSyncEndpoint(destination),
+					new FileTransfer() {
+						public void transfer(SyncAction action) throws IOException {
+							transfers.incrementAndGet();
+							throw new IOException("Disk full: " + action.getRelativePath());
+						}
+					});
+			pipeline.setQueueCapacity(4);
+			try {
+				pipeline.run(false);
+				fail();
+			} catch (IOException ex) {
+				assertTrue(ex.getMessage(), ex.getMessage().startsWith("Disk full"));
+			}
+			// the first failure stops the other workers and the scan
+			assertTrue("transfers " + transfers.get(), transfers.get() < 200);
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void interruptStopsTheSyncTest() throws Exception {
+		Path folder = Files.createTempDirectory("pipeline");
+		try {
+			Path source = folder.resolve("source");
+			Path destination = folder.resolve("destination");
+			for (int i = 0; i < 10; i++) {
+				write(source.resolve(i + ".txt"));
+			}
+
+			final CountDownLatch started = new CountDownLatch(1);
+			final SyncPipeline pipeline = new SyncPipeline(new LocalSyncEndpoint(source),
+					new LocalSyncEndpoint(destination), new FileTransfer() {
+						public void transfer(SyncAction action) throws IOException {
+							started.countDown();
+							try {
+								new CountDownLatch(1).await();
+							} catch (InterruptedException ex) {
+								throw new InterruptedIOException("Transfer was interrupted");
+							}
+						}
+					});
+			final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						pipeline.run(false);
+					} catch (Exception ex) {
+						failure.set(ex);
+					}
+				}
+			};
+			thread.start();
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			thread.interrupt();
+			thread.join(10000);
+
+			assertFalse(thread.isAlive());
+			assertTrue(String.valueOf(failure.get()), failure.get() instanceof InterruptedIOException);
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void batchTransferTest() throws Exception {
+		Path folder = Files.createTempDirectory("pipeline");
+		try {
+			Path source = folder.resolve("source");
+			Path destination = folder.resolve("destination");
+			for (int i = 0; i < 40; i++) {
+				write(source.resolve(i + (i % 4 == 0 ? ".big" : ".small")));
+			}
+
+			RecordingBatchTransfer transfer = new RecordingBatchTransfer(new LocalFileTransfer(
+					new LocalSyncEndpoint(source), new LocalSyncEndpoint(destination)));
+			SyncPipeline pipeline = new SyncPipeline(new LocalSyncEndpoint(source), new LocalSyncEndpoint(destination),
+					transfer);
+			pipeline.setTransferThreads(2);
+			pipeline.run(false);
+
+			assertEquals(40, destination.toFile().list().length);
+			assertEquals(10, transfer.single.get());
+			int batched = 0;
+			for (List<SyncAction> batch : transfer.batches) {
+				assertTrue(batch.size() <= RecordingBatchTransfer.MAX_BATCH_FILES);
+				for (SyncAction action : batch) {
+					assertTrue(action.getRelativePath().endsWith(".small"));
+				}
+				batched += batch.size();
+			}
+			assertEquals(30, batched);
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void batchFailureStopsTheSyncTest() throws Exception {
+		Path folder = Files.createTempDirectory("pipeline");
+		try {
+			Path source = folder.resolve("source");
+			Path destination = folder.resolve("destination");
+			write(source.resolve("a.small"));
+
+			RecordingBatchTransfer transfer = new RecordingBatchTransfer(new LocalFileTransfer(
+					new LocalSyncEndpoint(source), new LocalSyncEndpoint(destination)));
+			transfer.failing = "a.small";
+			try {
+				new SyncPipeline(new LocalSyncEndpoint(source), new LocalSyncEndpoint(destination), transfer).run(false);
+				fail();
+			} catch (IOException ex) {
+				assertEquals("1 of 1 files in a batch could not be copied, the first being a.small: Disk full",
+						ex.getMessage());
+			}
+		} finally {
+			delete(folder);
+		}
+	}
+
+	private static SyncPipeline pipeline(Path source, Path destination) {
+		LocalSyncEndpoint sourceEndpoint = new LocalSyncEndpoint(source);
+		LocalSyncEndpoint destinationEndpoint = new LocalSyncEndpoint(destination);
+		return new SyncPipeline(sourceEndpoint, destinationEndpoint,
+				new LocalFileTransfer(sourceEndpoint, destinationEndpoint));
+	}
+
+	/**
+	 * Sends the '.small' files in batches, each file of a batch being
+	 * copied by the given transfer.
+	 */
+	private static class RecordingBatchTransfer implements BatchTransfer {
+
+		static final int MAX_BATCH_FILES = 8;
+
+		final List<List<SyncAction>> batches = Collections.synchronizedList(new ArrayList<List<SyncAction>>());
+		final AtomicInteger single = new AtomicInteger();
+		private final FileTransfer transfer;
+		String failing;
+
+		RecordingBatchTransfer(FileTransfer transfer) {
+			this.transfer = transfer;
+		}
+
+		public boolean accepts(SyncAction action) {
+			return action.getRelativePath().endsWith(".small");
+		}
+
+		public int getMaxBatchFiles() {
+			return MAX_BATCH_FILES;
+		}
+
+		public long getMaxBatchBytes() {
+			return Long.MAX_VALUE;
+		}
+
+		public Map<String, IOException> transfer(List<SyncAction> batch) throws IOException {
+			batches.add(new ArrayList<SyncAction>(batch));
+			Map<String, IOException> failures = new HashMap<String, IOException>();
+			for (SyncAction action : batch) {
+				if (action.getRelativePath().equals(failing)) {
+					failures.put(action.getRelativePath(), new IOException("Disk full"));
+				} else {
+					transfer.transfer(action);
+				}
+			}
+			return failures;
+		}
+
+		public void transfer(SyncAction action) throws IOException {
+			single.incrementAndGet();
+			transfer.transfer(action);
+		}
+	}
+
+	private static void write(Path file) throws IOException {
+		Files.createDirectories(file.getParent());
+		Files.write(file, file.getFileName().toString().getBytes("UTF-8"));
+	}
+
+	private static void delete(Path path) throws IOException {
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
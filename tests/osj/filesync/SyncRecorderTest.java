@@ -0,0 +1,105 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import osj.filesync.FileSynchroniser.SyncDirection;
+
+public class SyncRecorderTest {
+
+	private static final SyncAction COPY = new SyncAction(SyncAction.Type.COPY, "a.txt", null, null);
+
+	@Test
+	public void reportTest() throws Exception {
+		RecordingMetrics metrics = new RecordingMetrics();
+		SyncRecorder recorder = new SyncRecorder("test", SyncDirection.TO_REMOTE, metrics);
+		recorder.directoryListed("", 3);
+		recorder.directoryListed("docs", 2);
+		recorder.entriesCompared(5);
+		recorder.fileTransferred(COPY, 1000, 10000);
+		recorder.fileTransferred(COPY, 500, 30000);
+		recorder.directoryCreated(COPY);
+		recorder.entryDeleted(COPY, 1000);
+		recorder.queueDepth("transfer", 4);
+		recorder.queueDepth("transfer", 2);
+		recorder.queueDepth("compare", 1);
+		recorder.phaseCompleted(SyncMetrics.Phase.SCAN, 3000000);
+		recorder.phaseCompleted(SyncMetrics.Phase.SCAN, 2000000);
+
+		SyncReport report = recorder.finish(null);
+
+		assertEquals("test", report.getSynchroniser());
+		assertEquals(SyncDirection.TO_REMOTE, report.getDirection());
+		assertTrue(report.isSuccessful());
+		assertNull(report.getFailure());
+		assertEquals(2, report.getDirectoriesListed());
+		assertEquals(5, report.getEntriesScanned());
+		assertEquals(5, report.getEntriesCompared());
+		assertEquals(2, report.getFilesTransferred());
+		assertEquals(1500, report.getBytesTransferred());
+		assertEquals(1, report.getDirectoriesCreated());
+		assertEquals(1, report.getEntriesDeleted());
+		assertEquals(20, report.getTransferLatencyMeanMicros());
+		assertEquals(30, report.getTransferLatencyMaxMicros());
+		assertEquals(Integer.valueOf(4), report.getMaxQueueDepths().get("transfer"));
+		assertEquals(Integer.valueOf(1), report.getMaxQueueDepths().get("compare"));
+		// phases which were not measured are left out
+		assertEquals(Collections.singletonMap(SyncMetrics.Phase.SCAN, 5L), report.getPhaseMillis());
+
+		// each measurement is passed on
+		assertEquals(2, metrics.transfers);
+		assertEquals(Collections.singletonList(report), metrics.reports);
+	}
+
+	@Test
+	public void finishTest() throws Exception {
+		RecordingMetrics metrics = new RecordingMetrics();
+		SyncRecorder recorder = new SyncRecorder("test", SyncDirection.TO_LOCAL, metrics);
+
+		SyncReport report = recorder.finish(new FileSyncException("Destination is not reachable"));
+
+		assertFalse(report.isSuccessful());
+		assertTrue(report.getFailure().contains("Destination is not reachable"));
+		assertTrue(report.toString().contains("outcome=failure"));
+		// a report is made once, whatever the number of calls
+		assertSame(report, recorder.finish(null));
+		assertEquals(1, metrics.reports.size());
+	}
+
+	@Test
+	public void failingMetricsTest() throws Exception {
+		SyncRecorder recorder = new SyncRecorder("test", SyncDirection.TO_REMOTE, new SyncMetrics.Noop() {
+			@Override
+			public void syncCompleted(SyncReport report) {
+				throw new IllegalStateException("Exporter is down");
+			}
+		});
+
+		assertTrue(recorder.finish(null).isSuccessful());
+	}
+
+	private static class RecordingMetrics extends SyncMetrics.Noop {
+
+		final List<SyncReport> reports = new ArrayList<SyncReport>();
+		int transfers;
+
+		@Override
+		public void fileTransferred(SyncAction action, long bytes, long nanos) {
+			transfers++;
+		}
+
+		@Override
+		public void syncCompleted(SyncReport report) {
+			reports.add(report);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SyncWatcherTest {
+
+	@Test
+	public void debounceTest() throws Exception {
+		RecordingSynchroniser synchroniser = new RecordingSynchroniser();
+		SyncWatcher watcher = watcher(synchroniser);
+		watcher.setDebounceTime(200);
+
+		watcher.markDirty("docs/a.txt", 0);
+		watcher.markDirty("docs", 100);
+		watcher.markDirty("src/b.txt", 150);
+
+		assertFalse(watcher.isDue(349));
+		assertTrue(watcher.isDue(350));
+		watcher.syncPending(350);
+
+		// the paths below a changed folder are covered by it
+		assertEquals(Arrays.asList("docs", "src/b.txt"), synchroniser.syncs.get(0));
+		assertFalse(watcher.isDue(10000));
+	}
+
+	@Test
+	public void maxDelayTest() throws Exception {
+		RecordingSynchroniser synchroniser = new RecordingSynchroniser();
+		SyncWatcher watcher = watcher(synchroniser);
+		watcher.setDebounceTime(200);
+		watcher.setMaxDelay(1000);
+
+		// a tree which is never quiet is still synced
+		for (long now = 0; now < 1000; now += 100) {
+			watcher.markDirty("log" + now + ".txt", now);
+			assertFalse(watcher.isDue(now + 50));
+		}
+		assertTrue(watcher.isDue(1000));
+	}
+
+	@Test
+	public void overflowSyncsTheWholeTreeTest() throws Exception {
+		RecordingSynchroniser synchroniser = new RecordingSynchroniser();
+		SyncWatcher watcher = watcher(synchroniser);
+
+		watcher.markDirty("docs/a.txt", 0);
+		watcher.markRescan(10);
+		watcher.syncPending(SyncWatcher.DEFAULT_DEBOUNCE_MS + 10);
+
+		assertEquals(1, synchroniser.syncs.size());
+		assertNull(synchroniser.syncs.get(0));
+
+		// the next changes are synced on their own again
+		watcher.markDirty("docs/b.txt", 1000);
+		watcher.syncPending(1000 + SyncWatcher.DEFAULT_DEBOUNCE_MS);
+		assertEquals(Collections.singletonList("docs/b.txt"), synchroniser.syncs.get(1));
+	}
+
+	@Test
+	public void failedSyncIsRetriedTest() throws Exception {
+		RecordingSynchroniser synchroniser = new RecordingSynchroniser();
+		synchroniser.failures = 1;
+		SyncWatcher watcher = watcher(synchroniser);
+
+		watcher.markDirty("docs/a.txt", 0);
+		watcher.syncPending(200);
+
+		// the changes are kept, and tried again once the retry delay is over
+		assertFalse(watcher.isDue(200));
+		assertFalse(watcher.isDue(200 + SyncWatcher.RETRY_DELAY_MS - 1));
+		assertTrue(watcher.isDue(200 + SyncWatcher.RETRY_DELAY_MS));
+		watcher.syncPending(200 + SyncWatcher.RETRY_DELAY_MS);
+
+		assertEquals(2, synchroniser.syncs.size());
+		assertEquals(synchroniser.syncs.get(0), synchroniser.syncs.get(1));
+		assertFalse(watcher.isDue(Long.MAX_VALUE / 2));
+	}
+
+	@Test
+	public void changesAreSyncedTest() throws Exception {
+		Path folder = Files.createTempDirectory("watcher");
+		try {
+			Path source = folder.resolve("source");
+			Path destination = folder.resolve("destination");
+			Files.createDirectories(source.resolve("docs"));
+			Files.createDirectories(destination);
+
+			FileSyncConfiguration configuration = new FileSyncConfiguration();
+			configuration.setLocalConfiguration(new EndpointConfiguration(source.toUri().toString()));
+			configuration.setRemoteConfiguration(new EndpointConfiguration(destination.toUri().toString()));
+			SyncWatcher watcher = new SyncWatcher(new SimpleLocalFileSynchroniser(), configuration,
+					FileSynchroniser.SyncDirection.TO_REMOTE, null);
+			watcher.setDebounceTime(50);
+			try {
+				watcher.start();
+				assertTrue(Files.isDirectory(destination.resolve("docs")));
+
+				Files.createDirectories(source.resolve("docs/new"));
+				Files.write(source.resolve("docs/new/a.txt"), new byte[1]);
+				assertTrue(waitFor(destination.resolve("docs/new/a.txt")));
+			} finally {
+				watcher.close();
+			}
+		} finally {
+			delete(folder);
+		}
+	}
+
+	private static SyncWatcher watcher(FileSynchroniser synchroniser) throws Exception {
+		FileSyncConfiguration configuration = new FileSyncConfiguration();
+		configuration.setLocalConfiguration(new EndpointConfiguration("file:///tmp/source"));
+		configuration.setRemoteConfiguration(new EndpointConfiguration("file:///tmp/destination"));
+		return new SyncWatcher(synchroniser, configuration, FileSynchroniser.SyncDirection.TO_REMOTE, null);
+	}
+
+	private static boolean waitFor(Path path) throws InterruptedException {
+		for (int i = 0; i < 100 && !Files.exists(path); i++) {
+			Thread.sleep(100);
+		}
+		return Files.exists(path);
+	}
+
+	/**
+	 * Records the paths of each sync, failing the given number of first
+	 * syncs.
+	 */
+	private static class RecordingSynchroniser implements FileSynchroniser {
+
+		final List<List<String>> syncs = new ArrayList<List<String>>();
+		int failures;
+
+		public Set<SyncDirection> getSupportSyncDirections() {
+			return EnumSet.of(SyncDirection.TO_REMOTE);
+		}
+
+		public void syncFiles(FileSyncConfiguration configuration, SyncDirection syncDirection,
+				List<String> relativePaths, boolean force, PathFilter pathFilter) throws FileSyncException {
+			syncs.add(relativePaths != null ? new ArrayList<String>(relativePaths) : null);
+			if (failures > 0) {
+				failures--;
+				throw new FileSyncException("Destination is not reachable");
+			}
+		}
+	}
+
+	private static void delete(Path path) throws IOException {
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -0,0 +1,86 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TarWriterTest {
+
+	@Test
+	public void headerTest() throws Exception {
+		byte[] content = "hello".getBytes("UTF-8");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TarWriter writer = new TarWriter(out);
+		writer.writeFile("docs/a.txt", content, 1500000000000L);
+		writer.finish();
+
+		byte[] tar = out.toByteArray();
+		// a header, the content padded to a block, then two empty blocks
+		assertEquals(4 * 512, tar.length);
+		assertEquals("docs/a.txt", field(tar, 0, 100));
+		assertEquals("", field(tar, 345, 155));
+		assertEquals(content.length, Long.parseLong(field(tar, 124, 12), 8));
+		assertEquals(1500000000L, Long.parseLong(field(tar, 136, 12), 8));
+		assertEquals('0', tar[156]);
+		assertEquals("ustar", field(tar, 257, 6));
+		assertEquals(checksum(tar), Long.parseLong(field(tar, 148, 8), 8));
+		assertEquals("hello", new String(tar, 512, content.length, "UTF-8"));
+	}
+
+	@Test
+	public void longPathIsSplitTest() throws Exception {
+		String folder = repeat('f', 120);
+		String name = repeat('n', 90) + ".txt";
+		String path = folder + "/" + name;
+		assertTrue(TarWriter.fits(path));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new TarWriter(out).writeFile(path, new byte[0], 0);
+
+		byte[] tar = out.toByteArray();
+		assertEquals(name, field(tar, 0, 100));
+		assertEquals(folder, field(tar, 345, 155));
+		assertEquals(checksum(tar), Long.parseLong(field(tar, 148, 8), 8));
+	}
+
+	@Test(expected = IOException.class)
+	public void pathTooLongTest() throws Exception {
+		// a name longer than the name field cannot be split
+		String path = "docs/" + repeat('n', 101);
+		assertFalse(TarWriter.fits(path));
+		new TarWriter(new ByteArrayOutputStream()).writeFile(path, new byte[0], 0);
+	}
+
+	/**
+	 * @return the text of the header field, up to its first NUL
+	 */
+	private static String field(byte[] header, int offset, int length) throws IOException {
+		int end = offset;
+		while (end < offset + length && header[end] != 0) {
+			end++;
+		}
+		return new String(header, offset, end - offset, "UTF-8").trim();
+	}
+
+	private static long checksum(byte[] header) {
+		byte[] block = Arrays.copyOf(header, 512);
+		Arrays.fill(block, 148, 156, (byte) ' ');
+		long checksum = 0;
+		for (byte b : block) {
+			checksum += b & 0xff;
+		}
+		return checksum;
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}
@@ -0,0 +1,86 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.junit.Test;
+
+public class TempFilesTest {
+
+	@Test
+	public void tempPathTest() throws Exception {
+		String tempPath = TempFiles.tempPathOf("docs/vm.img");
+
+		assertTrue(tempPath, tempPath.startsWith("docs/.vm.img."));
+		assertTrue(TempFiles.isTempPath(tempPath));
+		// as named by Files.createTempFile before
+		assertTrue(TempFiles.isTempPath("docs/.vm.img1234567.part"));
+
+		assertFalse(TempFiles.isTempPath("docs/vm.img"));
+		assertFalse(TempFiles.isTempPath("docs/vm.img.part"));
+		assertFalse(TempFiles.isTempPath("docs/.part"));
+		assertFalse(TempFiles.isTempPath("docs/.cafe.part"));
+		assertFalse(ParallelTreeWalker.accept(tempPath));
+	}
+
+	@Test
+	public void createTempFileTest() throws Exception {
+		Path folder = Files.createTempDirectory("temp");
+		try {
+			Path tempFile = TempFiles.createTempFile(folder.resolve("vm.img"));
+
+			assertEquals(folder, tempFile.getParent());
+			assertTrue(TempFiles.isTempPath(tempFile.getFileName().toString()));
+			assertEquals(0, Files.size(tempFile));
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void leftoverTempFileIsNotSyncedTest() throws Exception {
+		Path source = Files.createTempDirectory("tempsource");
+		Path destination = Files.createTempDirectory("tempdestination");
+		try {
+			Files.write(source.resolve("vm.img"), new byte[10]);
+			// left by a copy which crashed
+			Files.write(source.resolve(".vm.img1234567.part"), new byte[5]);
+
+			FileSyncConfiguration configuration = new FileSyncConfiguration();
+			configuration.setLocalConfiguration(new EndpointConfiguration(source.toUri().toString()));
+			configuration.setRemoteConfiguration(new EndpointConfiguration(destination.toUri().toString()));
+			new SimpleLocalFileSynchroniser().syncFiles(configuration, FileSynchroniser.SyncDirection.TO_REMOTE, null,
+					false, null);
+
+			assertTrue(Files.exists(destination.resolve("vm.img")));
+			assertEquals(1, destination.toFile().list().length);
+		} finally {
+			delete(source);
+			delete(destination);
+		}
+	}
+
+	private static void delete(Path path) throws IOException {
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -0,0 +1,82 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import org.junit.Test;
+
+public class ThrottleScheduleTest {
+
+	private static final long[] DAY_LIMITS = new long[] { 1000, 10, 4 };
+	private static final long[] NIGHT_LIMITS = new long[] { 0, 0, 16 };
+
+	@Test
+	public void windowWithinDayTest() throws Exception {
+		ThrottleSchedule schedule = new ThrottleSchedule().addWindow("09:00", "17:30", 1000, 10, 4);
+
+		assertNull(schedule.getLimits(time(Calendar.MONDAY, 8, 59)));
+		assertArrayEquals(DAY_LIMITS, schedule.getLimits(time(Calendar.MONDAY, 9, 0)));
+		assertArrayEquals(DAY_LIMITS, schedule.getLimits(time(Calendar.MONDAY, 17, 29)));
+		assertNull(schedule.getLimits(time(Calendar.MONDAY, 17, 30)));
+	}
+
+	@Test
+	public void windowCrossingMidnightTest() throws Exception {
+		ThrottleSchedule schedule = new ThrottleSchedule().addWindow("22:00", "06:00", 0, 0, 16);
+
+		assertNull(schedule.getLimits(time(Calendar.TUESDAY, 21, 59)));
+		assertArrayEquals(NIGHT_LIMITS, schedule.getLimits(time(Calendar.TUESDAY, 22, 0)));
+		assertArrayEquals(NIGHT_LIMITS, schedule.getLimits(time(Calendar.TUESDAY, 23, 59)));
+		assertArrayEquals(NIGHT_LIMITS, schedule.getLimits(time(Calendar.WEDNESDAY, 0, 0)));
+		assertArrayEquals(NIGHT_LIMITS, schedule.getLimits(time(Calendar.WEDNESDAY, 5, 59)));
+		assertNull(schedule.getLimits(time(Calendar.WEDNESDAY, 6, 0)));
+	}
+
+	@Test
+	public void windowCrossingMidnightOnDaysTest() throws Exception {
+		// Friday night into Saturday morning only
+		ThrottleSchedule schedule = new ThrottleSchedule().addWindow("22:00", "06:00", 0, 0, 16, Calendar.FRIDAY);
+
+		assertNull(schedule.getLimits(time(Calendar.THURSDAY, 23, 0)));
+		assertNull(schedule.getLimits(time(Calendar.FRIDAY, 1, 0)));
+		assertArrayEquals(NIGHT_LIMITS, schedule.getLimits(time(Calendar.FRIDAY, 23, 0)));
+		assertArrayEquals(NIGHT_LIMITS, schedule.getLimits(time(Calendar.SATURDAY, 1, 0)));
+		assertNull(schedule.getLimits(time(Calendar.SATURDAY, 23, 0)));
+	}
+
+	@Test
+	public void windowCrossingMidnightIntoMondayTest() throws Exception {
+		ThrottleSchedule schedule = new ThrottleSchedule().addWindow("20:00", "02:00", 0, 0, 16, Calendar.SUNDAY);
+
+		assertArrayEquals(NIGHT_LIMITS, schedule.getLimits(time(Calendar.SUNDAY, 21, 0)));
+		assertArrayEquals(NIGHT_LIMITS, schedule.getLimits(time(Calendar.MONDAY, 1, 0)));
+		assertNull(schedule.getLimits(time(Calendar.SUNDAY, 1, 0)));
+	}
+
+	@Test
+	public void firstWindowAppliesTest() throws Exception {
+		ThrottleSchedule schedule = new ThrottleSchedule()
+				.addWindow("09:00", "17:00", 1000, 10, 4)
+				.addWindow("00:00", "24:00", 0, 0, 16);
+
+		assertArrayEquals(DAY_LIMITS, schedule.getLimits(time(Calendar.MONDAY, 12, 0)));
+		assertArrayEquals(NIGHT_LIMITS, schedule.getLimits(time(Calendar.MONDAY, 23, 59)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidTimeTest() throws Exception {
+		new ThrottleSchedule().addWindow("25:00", "06:00", 0, 0, 0);
+	}
+
+	/**
+	 * @return a time on the day of the week, in the first week of 2024,
+	 *         which starts on a Monday
+	 */
+	private static Calendar time(int dayOfWeek, int hour, int minute) {
+		int dayOfMonth = dayOfWeek == Calendar.SUNDAY ? 7 : dayOfWeek - Calendar.MONDAY + 1;
+		return new GregorianCalendar(2024, Calendar.JANUARY, dayOfMonth, hour, minute);
+	}
+}
@@ -0,0 +1,57 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+	private static final long SECOND = 1000000000L;
+
+	@Test
+	public void noLimitTest() throws Exception {
+		TokenBucket bucket = new TokenBucket(0);
+
+		assertEquals(0, bucket.reserve(Long.MAX_VALUE / 2));
+		assertEquals(0, bucket.reserve(Long.MAX_VALUE / 2));
+	}
+
+	@Test
+	public void debtIsPaidOffAtTheRateTest() throws Exception {
+		TokenBucket bucket = new TokenBucket(1000);
+
+		// the bucket starts empty, so a second's worth takes a second
+		long wait = bucket.reserve(1000);
+		assertTrue(wait > SECOND * 9 / 10 && wait <= SECOND);
+
+		// the debt adds up for the callers which come next
+		wait = bucket.reserve(500);
+		assertTrue(wait > SECOND * 14 / 10 && wait <= SECOND * 3 / 2);
+	}
+
+	@Test
+	public void rateChangeTest() throws Exception {
+		TokenBucket bucket = new TokenBucket(1000);
+		bucket.reserve(1000);
+
+		// lifting the limit forgives the debt
+		bucket.setRate(0);
+		assertEquals(0, bucket.reserve(1000));
+
+		bucket.setRate(2000);
+		long wait = bucket.reserve(1000);
+		assertTrue(wait > SECOND * 4 / 10 && wait <= SECOND / 2);
+		assertEquals(2000, bucket.getRate());
+	}
+
+	@Test
+	public void burstIsLimitedToASecondTest() throws Exception {
+		TokenBucket bucket = new TokenBucket(1000);
+		Thread.sleep(1200);
+
+		// idle time refills the bucket to a second's worth only
+		assertEquals(0, bucket.reserve(1000));
+		assertTrue(bucket.reserve(100) > 0);
+	}
+}
@@ -0,0 +1,161 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class TransferJournalTest {
+
+	private static final FileEntry IMAGE = new FileEntry("vm/disk.img", false, 1000000, 1500000000000L, null);
+	private static final FileEntry NOTES = new FileEntry("notes.txt", false, 100, 1500000000000L, null);
+
+	@Test
+	public void recordsAreKeptAcrossSyncsTest() throws Exception {
+		File file = File.createTempFile("journal", ".bin");
+		try {
+			TransferJournal journal = TransferJournal.open(file);
+			journal.checkpoint(IMAGE, 65536);
+			journal.completed(NOTES);
+			journal.close();
+
+			journal = TransferJournal.open(file);
+			assertEquals(65536, journal.getRecord("vm/disk.img").getOffset());
+			assertFalse(journal.isCompleted(IMAGE));
+			assertTrue(journal.isCompleted(NOTES));
+			journal.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void recordCutShortIsIgnoredTest() throws Exception {
+		File file = File.createTempFile("journal", ".bin");
+		try {
+			TransferJournal journal = TransferJournal.open(file);
+			journal.checkpoint(IMAGE, 65536);
+			journal.checkpoint(NOTES, 50);
+			journal.close();
+
+			// a crash in the middle of writing the last record
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(raf.length() - 5);
+			}
+
+			journal = TransferJournal.open(file);
+			assertEquals(65536, journal.getRecord("vm/disk.img").getOffset());
+			assertNull(journal.getRecord("notes.txt"));
+
+			// the compaction drops the partial record, so what comes next can be read
+			journal.checkpoint(NOTES, 60);
+			journal.close();
+			journal = TransferJournal.open(file);
+			assertEquals(60, journal.getRecord("notes.txt").getOffset());
+			journal.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void compactionTest() throws Exception {
+		File file = File.createTempFile("journal", ".bin");
+		try {
+			TransferJournal journal = TransferJournal.open(file);
+			for (int offset = 0; offset < IMAGE.getSize(); offset += 65536) {
+				journal.checkpoint(IMAGE, offset);
+			}
+			journal.close();
+			long before = file.length();
+
+			journal = TransferJournal.open(file);
+			journal.close();
+
+			// the header, then a single record: type, path, size, time and offset
+			long record = 1 + 2 + IMAGE.getRelativePath().length() + 3 * 8;
+			assertEquals(4 + 2 + record, file.length());
+			assertTrue(before > file.length());
+			journal = TransferJournal.open(file);
+			assertEquals(983040, journal.getRecord("vm/disk.img").getOffset());
+			journal.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void changedSourceDoesNotMatchTest() throws Exception {
+		File file = File.createTempFile("journal", ".bin");
+		try {
+			TransferJournal journal = TransferJournal.open(file);
+			journal.completed(IMAGE);
+
+			FileEntry resized = new FileEntry("vm/disk.img", false, IMAGE.getSize() + 1, IMAGE.getLastModified(), null);
+			FileEntry touched = new FileEntry("vm/disk.img", false, IMAGE.getSize(), IMAGE.getLastModified() + 1000,
+					null);
+			assertTrue(journal.getRecord("vm/disk.img").matches(IMAGE));
+			assertFalse(journal.getRecord("vm/disk.img").matches(resized));
+			assertFalse(journal.getRecord("vm/disk.img").matches(touched));
+			assertFalse(journal.isCompleted(resized));
+			assertFalse(journal.isCompleted(touched));
+			journal.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void unknownFormatIsIgnoredTest() throws Exception {
+		File file = File.createTempFile("journal", ".bin");
+		try {
+			Files.write(file.toPath(), "not a journal".getBytes("UTF-8"));
+
+			TransferJournal journal = TransferJournal.open(file);
+			assertNull(journal.getRecord("vm/disk.img"));
+			journal.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void deleteTest() throws Exception {
+		File file = File.createTempFile("journal", ".bin");
+		try {
+			TransferJournal journal = TransferJournal.open(file);
+			journal.completed(IMAGE);
+			journal.delete();
+
+			assertFalse(file.exists());
+			assertNull(journal.getRecord("vm/disk.img"));
+			try {
+				journal.checkpoint(IMAGE, 0);
+				fail();
+			} catch (IOException ex) {
+				// closed
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void partialPathTest() throws Exception {
+		assertEquals("vm/.disk.img.partial", ResumableUploadTransfer.partialPathOf("vm/disk.img"));
+		assertEquals(".disk.img.partial", ResumableUploadTransfer.partialPathOf("disk.img"));
+
+		assertTrue(ResumableUploadTransfer.isPartialPath("vm/.disk.img.partial"));
+		assertFalse(ResumableUploadTransfer.isPartialPath("vm/disk.img.partial"));
+		assertFalse(ResumableUploadTransfer.isPartialPath("vm/.disk.img"));
+		assertFalse(ResumableUploadTransfer.isPartialPath("vm/.partial"));
+	}
+}
@@ -0,0 +1,264 @@
+package osj.filesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class TwoWaySyncTest {
+
+	@Test
+	public void oneSidedEditsAreCopiedTest() throws Exception {
+		Path folder = Files.createTempDirectory("twoway");
+		try {
+			Path local = folder.resolve("local");
+			Path remote = folder.resolve("remote");
+			write(local.resolve("a.txt"), "a", 1000000);
+			write(remote.resolve("docs/b.txt"), "b", 1000000);
+			sync(folder, TwoWaySync.ConflictPolicy.FAIL);
+
+			assertEquals("a", read(remote.resolve("a.txt")));
+			assertEquals("b", read(local.resolve("docs/b.txt")));
+
+			write(local.resolve("a.txt"), "a, edited", 2000000);
+			write(remote.resolve("docs/b.txt"), "b, edited", 2000000);
+			sync(folder, TwoWaySync.ConflictPolicy.FAIL);
+
+			assertEquals("a, edited", read(remote.resolve("a.txt")));
+			assertEquals("b, edited", read(local.resolve("docs/b.txt")));
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void oneSidedDeletionsAreAppliedTest() throws Exception {
+		Path folder = Files.createTempDirectory("twoway");
+		try {
+			Path local = folder.resolve("local");
+			Path remote = folder.resolve("remote");
+			write(local.resolve("a.txt"), "a", 1000000);
+			write(local.resolve("docs/b.txt"), "b", 1000000);
+			sync(folder, TwoWaySync.ConflictPolicy.FAIL);
+
+			Files.delete(local.resolve("a.txt"));
+			delete(remote.resolve("docs"));
+			sync(folder, TwoWaySync.ConflictPolicy.FAIL);
+
+			assertFalse(Files.exists(remote.resolve("a.txt")));
+			assertFalse(Files.exists(local.resolve("docs")));
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void deletionOnBothSidesIsForgottenTest() throws Exception {
+		Path folder = Files.createTempDirectory("twoway");
+		try {
+			Path local = folder.resolve("local");
+			Path remote = folder.resolve("remote");
+			write(local.resolve("a.txt"), "a", 1000000);
+			sync(folder, TwoWaySync.ConflictPolicy.FAIL);
+
+			Files.delete(local.resolve("a.txt"));
+			Files.delete(remote.resolve("a.txt"));
+			sync(folder, TwoWaySync.ConflictPolicy.FAIL);
+
+			assertFalse(Files.exists(local.resolve("a.txt")));
+			assertFalse(Files.exists(remote.resolve("a.txt")));
+
+			// the path is no longer recorded, so adding it again is an addition
+			write(local.resolve("a.txt"), "a, again", 2000000);
+			sync(folder, TwoWaySync.ConflictPolicy.FAIL);
+
+			assertEquals("a, again", read(remote.resolve("a.txt")));
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void modifyDeleteConflictNewerWinsTest() throws Exception {
+		Path folder = Files.createTempDirectory("twoway");
+		try {
+			Path local = folder.resolve("local");
+			Path remote = folder.resolve("remote");
+			write(local.resolve("a.txt"), "a", 1000000);
+			write(local.resolve("b.txt"), "b", 1000000);
+			sync(folder, TwoWaySync.ConflictPolicy.NEWER_WINS);
+
+			write(local.resolve("a.txt"), "a, edited", 2000000);
+			Files.delete(remote.resolve("a.txt"));
+			Files.delete(local.resolve("b.txt"));
+			write(remote.resolve("b.txt"), "b, edited", 2000000);
+			sync(folder, TwoWaySync.ConflictPolicy.NEWER_WINS);
+
+			assertEquals("a, edited", read(remote.resolve("a.txt")));
+			assertEquals("b, edited", read(local.resolve("b.txt")));
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void modifyDeleteConflictKeepBothTest() throws Exception {
+		Path folder = Files.createTempDirectory("twoway");
+		try {
+			Path local = folder.resolve("local");
+			Path remote = folder.resolve("remote");
+			write(local.resolve("a.txt"), "a", 1000000);
+			sync(folder, TwoWaySync.ConflictPolicy.KEEP_BOTH);
+
+			Files.delete(local.resolve("a.txt"));
+			write(remote.resolve("a.txt"), "a, edited", 2000000);
+			sync(folder, TwoWaySync.ConflictPolicy.KEEP_BOTH);
+
+			// only one version is left, so it is kept without a conflict copy
+			assertEquals("a, edited", read(local.resolve("a.txt")));
+			assertEquals(1, local.toFile().list().length);
+			assertEquals(1, remote.toFile().list().length);
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void modifyDeleteConflictFailTest() throws Exception {
+		Path folder = Files.createTempDirectory("twoway");
+		try {
+			Path local = folder.resolve("local");
+			Path remote = folder.resolve("remote");
+			write(local.resolve("a.txt"), "a", 1000000);
+			write(local.resolve("b.txt"), "b", 1000000);
+			sync(folder, TwoWaySync.ConflictPolicy.FAIL);
+
+			write(local.resolve("a.txt"), "a, edited", 2000000);
+			Files.delete(remote.resolve("a.txt"));
+			write(local.resolve("b.txt"), "b, edited", 2000000);
+			try {
+				sync(folder, TwoWaySync.ConflictPolicy.FAIL);
+				fail("The conflict should have failed the sync");
+			} catch (FileSyncException ex) {
+				// expected
+			}
+
+			// nothing was changed, not even the path without a conflict
+			assertFalse(Files.exists(remote.resolve("a.txt")));
+			assertEquals("b", read(remote.resolve("b.txt")));
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void missingRootIsCreatedOnFirstRunOnlyTest() throws Exception {
+		Path folder = Files.createTempDirectory("twoway");
+		try {
+			Path local = folder.resolve("local");
+			Path remote = folder.resolve("remote");
+			write(local.resolve("a.txt"), "a", 1000000);
+			sync(folder, TwoWaySync.ConflictPolicy.FAIL);
+
+			assertEquals("a", read(remote.resolve("a.txt")));
+
+			delete(remote);
+			try {
+				sync(folder, TwoWaySync.ConflictPolicy.FAIL);
+				fail("A missing side should fail the sync once it was synced");
+			} catch (FileSyncException ex) {
+				// expected
+			}
+
+			assertFalse(Files.exists(remote));
+			assertTrue(Files.exists(local.resolve("a.txt")));
+		} finally {
+			delete(folder);
+		}
+	}
+
+	@Test
+	public void maxDeletionsCountsFolderContentTest() throws Exception {
+		Path folder = Files.createTempDirectory("twoway");
+		try {
+			Path local = folder.resolve("local");
+			Path remote = folder.resolve("remote");
+			for (int i = 0; i < 50; i++) {
+				write(local.resolve("docs/" + i + ".txt"), "x", 1000000);
+			}
+			sync(folder, TwoWaySync.ConflictPolicy.FAIL, 5);
+
+			delete(local.resolve("docs"));
+			try {
+				sync(folder, TwoWaySync.ConflictPolicy.FAIL, 5);
+				fail("Deleting the folder and its 50 files should exceed the limit");
+			} catch (FileSyncException ex) {
+				assertTrue(ex.getMessage(), ex.getMessage().contains("51 entries"));
+			}
+			assertEquals(50, remote.resolve("docs").toFile().list().length);
+
+			sync(folder, TwoWaySync.ConflictPolicy.FAIL, 51);
+			assertFalse(Files.exists(remote.resolve("docs")));
+		} finally {
+			delete(folder);
+		}
+	}
+
+	private static void sync(Path folder, TwoWaySync.ConflictPolicy conflictPolicy) throws Exception {
+		sync(folder, conflictPolicy, -1);
+	}
+
+	/**
+	 * Syncs the 'local' and 'remote' folders of the folder, keeping the
+	 * index in it.
+	 */
+	private static void sync(Path folder, TwoWaySync.ConflictPolicy conflictPolicy, int maxDeletions)
+			throws Exception {
+		LocalSyncEndpoint local = new LocalSyncEndpoint(folder.resolve("local"));
+		LocalSyncEndpoint remote = new LocalSyncEndpoint(folder.resolve("remote"));
+		TwoWaySync sync = new TwoWaySync(local, remote, new LocalFileTransfer(local, remote, new Properties()),
+				new LocalFileTransfer(remote, local, new Properties()));
+		sync.setConflictPolicy(conflictPolicy);
+		sync.setMaxDeletions(maxDeletions);
+		sync.setIndexFile(new File(folder.toFile(), "index"), "local", "remote");
+		sync.run();
+	}
+
+	private static void write(Path path, String content, long lastModified) throws IOException {
+		Files.createDirectories(path.getParent());
+		Files.write(path, content.getBytes("UTF-8"));
+		Files.setLastModifiedTime(path, FileTime.fromMillis(lastModified));
+	}
+
+	private static String read(Path path) throws IOException {
+		return new String(Files.readAllBytes(path), "UTF-8");
+	}
+
+	private static void delete(Path path) throws IOException {
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}